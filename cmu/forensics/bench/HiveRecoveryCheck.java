@@ -0,0 +1,293 @@
+/*
+   HiveRecoveryCheck.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import cmu.forensics.registry.Hive;
+import cmu.forensics.registry.HivePatchSet;
+import cmu.forensics.registry.RegistryParser;
+
+/**
+ * HiveRecoveryCheck
+ * Checks transaction log replay on synthetic hives: a dirty hive is
+ * brought up to date from an old format (dirty vector) log written by the
+ * flush that left it dirty, and a log left over from an earlier flush is
+ * not applied, neither when the hive is read nor when it is next patched.
+ * It also checks that a patch set written around an uncommitted overlay
+ * edit leaves that edit pending.
+ *
+ * Each check builds its hive and logs in a fresh temp directory and prints
+ * ok or FAILED; the exit status is 1 if any check failed.
+ *
+ * usage: java cmu.forensics.bench.HiveRecoveryCheck
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveRecoveryCheck
+{
+    private static final int SECTOR_SIZE = 0x200;
+    private static final String VALUE = "\\Select\\Current";
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException
+    {
+        checkReplay();
+        checkStaleLog();
+        checkOverlayGap();
+
+        System.out.println((failures == 0) ? "all checks passed" : failures + " checks failed");
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    /**
+     * a dirty hive reads the value from the log of its last flush
+     */
+    private static void checkReplay() throws IOException
+    {
+        File dir = tempDir();
+        File file = dirtyHive(dir, 2);
+
+        Hive hive = new Hive(file);
+        try
+        {
+            check("replay: value comes from the log", RegistryParser.getDWordValue(hive, VALUE, -1) == 2);
+            check("replay: no recovery problem", hive.getRecoveryProblem() == null);
+            check("replay: hive is recovered", hive.isRecovered());
+        }
+        finally
+        {
+            hive.close();
+            delete(dir);
+        }
+    }
+
+    /**
+     * a log older than the hive is ignored and reported, and the next patch
+     * does not write its pages into the file
+     */
+    private static void checkStaleLog() throws IOException
+    {
+        File dir = tempDir();
+        File file = dirtyHive(dir, 1);
+
+        Hive hive = new Hive(file);
+        try
+        {
+            check("stale log: value comes from the hive", RegistryParser.getDWordValue(hive, VALUE, -1) == 1);
+            check("stale log: recovery problem is set", hive.getRecoveryProblem() != null);
+            check("stale log: nothing replayed", !hive.isRecovered());
+
+            //patch a byte of the base block padding, far from the value
+            HivePatchSet patch = new HivePatchSet(hive, null);
+            patch.putByte(0x100, 0);
+            patch.commit();
+        }
+        finally
+        {
+            hive.close();
+        }
+
+        hive = new Hive(file);
+        try
+        {
+            check("stale log: patched file keeps the hive's value", RegistryParser.getDWordValue(hive, VALUE, -1) == 1);
+        }
+        finally
+        {
+            hive.close();
+            delete(dir);
+        }
+    }
+
+    /**
+     * an overlay edit in the gap between two coalesced patch set edits
+     * survives the patch and is written by the next Hive.commit
+     */
+    private static void checkOverlayGap() throws IOException
+    {
+        File dir = tempDir();
+        File file = new File(dir, "SYSTEM");
+        write(file, systemHive(1));
+
+        //the first hbin header: 0x1010 and 0x1018 are coalesced into one run over 0x1014
+        int pending = 0x1014;
+        Hive hive = new Hive(file);
+        try
+        {
+            hive.putByte(pending, 0x5A);
+
+            HivePatchSet patch = new HivePatchSet(hive, null);
+            patch.putByte(pending - 4, 0x11);
+            patch.putByte(pending + 4, 0x22);
+            patch.commit();
+
+            check("overlay gap: pending edit survives the patch", hive.getByte(pending) == 0x5A);
+            check("overlay gap: patch is visible", hive.getByte(pending - 4) == 0x11 && hive.getByte(pending + 4) == 0x22);
+            check("overlay gap: pending edit not written by the patch", read(file)[pending] != 0x5A);
+
+            hive.commit(null);
+        }
+        finally
+        {
+            hive.close();
+        }
+
+        byte[] data = read(file);
+        check("overlay gap: pending edit written by commit", data[pending] == 0x5A
+                && data[pending - 4] == 0x11 && data[pending + 4] == 0x22);
+        delete(dir);
+    }
+
+    /**
+     * Writes SYSTEM with \Select\Current = 1 and a primary sequence number
+     * of 2 (dirty, the secondary is 1), and SYSTEM.LOG holding the sectors
+     * that set it to 2 under a base block with sequence number logSeq
+     * @return the hive file
+     */
+    private static File dirtyHive(File dir, int logSeq) throws IOException
+    {
+        byte[] before = systemHive(1);
+        byte[] after = systemHive(2);
+
+        SyntheticHive.putDWord(before, 0x04, 2);
+        SyntheticHive.putDWord(before, 0x1FC, SyntheticHive.checksum(before));
+
+        File file = new File(dir, "SYSTEM");
+        write(file, before);
+        write(new File(dir, "SYSTEM.LOG"), dirtyVectorLog(before, after, logSeq));
+        return file;
+    }
+
+    private static byte[] systemHive(int current)
+    {
+        SyntheticHive sh = new SyntheticHive("ROOT");
+        sh.getRoot().getKey("Select").addDWord("Current", current).addDWord("Default", 1);
+        sh.getRoot().getKey("ControlSet001\\Control").addString("SystemBootDevice", "multi(0)disk(0)rdisk(0)partition(1)");
+        return sh.toByteArray();
+    }
+
+    /**
+     * an old format log: the base block of to, "DIRT", a bitmap of the
+     * sectors that differ between from and to, and those sectors of to
+     */
+    private static byte[] dirtyVectorLog(byte[] from, byte[] to, int seq) throws IOException
+    {
+        int binsSize = to.length - 0x1000;
+        int sectors = binsSize / SECTOR_SIZE;
+        byte[] bitmap = new byte[(sectors + 7) / 8];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        for (int i = 0; i < sectors; i++)
+        {
+            int ofs = 0x1000 + (i * SECTOR_SIZE);
+            boolean dirty = ofs + SECTOR_SIZE > from.length;
+            for (int j = 0; !dirty && j < SECTOR_SIZE; j++)
+                dirty = from[ofs + j] != to[ofs + j];
+
+            if (dirty)
+            {
+                bitmap[i >>> 3] |= 1 << (i & 7);
+                data.write(to, ofs, SECTOR_SIZE);
+            }
+        }
+
+        byte[] base = new byte[SECTOR_SIZE];
+        System.arraycopy(to, 0, base, 0, SECTOR_SIZE);
+        SyntheticHive.putDWord(base, 0x04, seq);
+        SyntheticHive.putDWord(base, 0x08, seq);
+        SyntheticHive.putDWord(base, 0x1C, 1);      // transaction log
+        SyntheticHive.putDWord(base, 0x28, binsSize);
+        SyntheticHive.putDWord(base, 0x1FC, SyntheticHive.checksum(base));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(base);
+        log.write("DIRT".getBytes());
+        log.write(bitmap);
+        while (log.size() % SECTOR_SIZE != 0)
+            log.write(0);
+        log.write(data.toByteArray());
+        return log.toByteArray();
+    }
+
+    private static void check(String name, boolean ok)
+    {
+        System.out.println((ok ? "ok      " : "FAILED  ") + name);
+        if (!ok)
+            failures++;
+    }
+
+    private static File tempDir() throws IOException
+    {
+        File dir = File.createTempFile("recovery", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("cannot create " + dir);
+        return dir;
+    }
+
+    private static void delete(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(data);
+        }
+        finally
+        {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(data);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
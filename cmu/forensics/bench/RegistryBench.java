@@ -0,0 +1,419 @@
+/*
+   RegistryBench.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import cmu.forensics.registry.DCC_Structure;
+import cmu.forensics.registry.Hive;
+import cmu.forensics.registry.RegistryParser;
+import cmu.forensics.registry.SAMV_Structure;
+import cmu.forensics.registry.VK_Structure;
+import cmu.forensics.registry.crypto.CryptoContext;
+import cmu.forensics.registry.crypto.DES;
+import cmu.forensics.registry.crypto.MD4;
+import cmu.forensics.registry.crypto.RC4;
+
+/**
+ * RegistryBench
+ * Throughput and allocation of the registry and crypto code: opening a
+ * hive, traversePath at several fan-outs, getUserRIDMap with N accounts,
+ * SAM V and NT5 and NT6 DCC record decryption, mscash export,
+ * PBKDF2-HMAC-SHA1, NT5 and Vista LSA secret decryption, RC4, DES, AES and
+ * MD4.
+ *
+ * Every case runs on deterministic synthetic input (SyntheticEvidence with
+ * fixed seeds, hives written to temp files), so numbers are comparable between machines.
+ * Each case is warmed up, then run in batches for the measurement time;
+ * allocation per op comes from the per thread allocated byte counter of
+ * the JVM, "-" where the JVM does not provide one.
+ *
+ * usage: java cmu.forensics.bench.RegistryBench [millis per case] [name filter]
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class RegistryBench
+{
+    private static final int[] FANOUTS = { 16, 256, 4096 };
+    private static final int[] ACCOUNTS = { 16, 256, 4096 };
+    private static final int PBKDF2_ITERATIONS = 10240;    // iterations of a default DCC2 (MSCash2) hash
+
+    /**
+     * one benchmarked operation
+     */
+    private static abstract class Case
+    {
+        final String name;
+
+        Case(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * runs operation number i once
+         * @return anything derived from the result, summed so the work is not optimized away
+         */
+        abstract long op(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+        String filter = (args.length > 1) ? args[1] : null;
+
+        System.out.println("case\t\t\t\tops/s\t\tns/op\tB/op");
+
+        Case[] cases = cases();
+        for (int i = 0; i < cases.length; i++)
+        {
+            if (filter == null || cases[i].name.indexOf(filter) >= 0)
+                measure(cases[i], millis);
+        }
+    }
+
+    /**
+     * warms c up for half of millis, then times batches of it for millis
+     */
+    private static void measure(Case c, long millis) throws Exception
+    {
+        long sink = 0;
+        int batch = 1;
+
+        long warmEnd = System.nanoTime() + (millis * 500000L);
+        while (System.nanoTime() < warmEnd)
+        {
+            for (int i = 0; i < batch; i++)
+                sink += c.op(i);
+            if (batch < (1 << 16))
+                batch <<= 1;
+        }
+
+        long ops = 0;
+        long allocStart = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + (millis * 1000000L);
+        long now;
+        do
+        {
+            for (int i = 0; i < batch; i++)
+                sink += c.op(i);
+            ops += batch;
+            now = System.nanoTime();
+        }
+        while (now < end);
+        long allocated = allocatedBytes() - allocStart;
+
+        long elapsed = now - start;
+        String alloc = (allocStart < 0) ? "-" : Long.toString(allocated / ops);
+        System.out.println(pad(c.name, 32) + (ops * 1000000000L / elapsed) + "\t\t" + (elapsed / ops) + "\t" + alloc
+                + ((sink == 42) ? " " : ""));
+    }
+
+    /**
+     * bytes allocated so far by the calling thread, -1 if the JVM can not tell
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)mx;
+        if (!sun.isThreadAllocatedMemorySupported())
+            return -1;
+        if (!sun.isThreadAllocatedMemoryEnabled())
+            sun.setThreadAllocatedMemoryEnabled(true);
+
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String pad(String s, int width)
+    {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < width)
+            sb.append(' ');
+        return sb.toString();
+    }
+
+    /**
+     * builds the inputs and the cases that use them
+     */
+    private static Case[] cases() throws Exception
+    {
+        java.util.ArrayList<Case> cases = new java.util.ArrayList<Case>();
+
+        /* hive open, a SAM with 256 accounts */
+        final File samFile = writeTemp(new SyntheticEvidence(256, 256, 0).samHive());
+        cases.add(new Case("hive.open") {
+            long op(int i)
+            {
+                Hive hive = new Hive(samFile);
+                long root = hive.getRootOffset();
+                hive.close();
+                return root;
+            }
+        });
+
+        /* traversePath below a parent with fanout subkeys, relative so the path cache is not involved */
+        for (int f = 0; f < FANOUTS.length; f++)
+        {
+            final String[] names = SubkeyLookupBench.keyNames(FANOUTS[f]);
+            SyntheticHive sh = new SyntheticHive("ROOT");
+            SyntheticHive.Key parent = sh.getRoot().addKey("Parent");
+            for (int i = 0; i < names.length; i++)
+                parent.addKey(names[i]);
+
+            final Hive hive = new Hive(writeTemp(sh));
+            final int parentOfs = RegistryParser.traversePath(hive, 0, "\\Parent", 0) + 4;
+            cases.add(new Case("traversePath/" + FANOUTS[f]) {
+                long op(int i)
+                {
+                    return RegistryParser.traversePath(hive, parentOfs, names[(i * 7919) % names.length], 0);
+                }
+            });
+        }
+
+        /* getUserRIDMap over N accounts */
+        for (int a = 0; a < ACCOUNTS.length; a++)
+        {
+            final Hive hive = new Hive(writeTemp(new SyntheticEvidence(ACCOUNTS[a], ACCOUNTS[a], 0).samHive()));
+            cases.add(new Case("getUserRIDMap/" + ACCOUNTS[a]) {
+                long op(int i)
+                {
+                    return RegistryParser.getUserRIDMap(hive).size();
+                }
+            });
+        }
+
+        /* SAM V record, syskey encrypted hashes */
+        SyntheticEvidence evidence = new SyntheticEvidence(1, 1, 1);
+        final byte[] hBootKey = evidence.getHashedBootKey();
+        final Hive sam = new Hive(writeTemp(evidence.samHive()));
+        final int vOfs = valueData(sam, "\\SAM\\Domains\\Account\\Users\\000003E8\\V");
+        final int vLen = valueLength(sam, "\\SAM\\Domains\\Account\\Users\\000003E8\\V");
+        cases.add(new Case("samv.decrypt") {
+            long op(int i)
+            {
+                SAMV_Structure samv = new SAMV_Structure(sam, vOfs, vLen);
+                samv.decrypt(hBootKey, 1000);
+                return samv.getNTHash()[0];
+            }
+        });
+
+        /* DCC record, encrypted with a known NL$KM */
+        final byte[] nlkm = evidence.getNLKM();
+        final Hive sec = new Hive(writeTemp(evidence.securityHive()));
+        final int dccOfs = valueData(sec, "\\Cache\\NL$1");
+        final int dccLen = valueLength(sec, "\\Cache\\NL$1");
+        cases.add(new Case("dcc.decrypt") {
+            long op(int i) throws Exception
+            {
+                DCC_Structure dcc = new DCC_Structure(sec, dccOfs, dccLen, true);
+                dcc.decrypt(nlkm);
+                return dcc.getHash()[0];
+            }
+        });
+        cases.add(new Case("dcc.decrypt+encrypt") {
+            long op(int i) throws Exception
+            {
+                DCC_Structure dcc = new DCC_Structure(sec, dccOfs, dccLen, true);
+                dcc.decrypt(nlkm);
+                dcc.clearUserPassword();
+                dcc.encrypt();
+                return dcc.getHMAC()[0];
+            }
+        });
+
+        /* exporting a decrypted record, and PBKDF2-HMAC-SHA1 at the 10240 iterations of DCC2 against a JCE loop */
+        final DCC_Structure plainDcc = new DCC_Structure(sec, dccOfs, dccLen, true);
+        plainDcc.decrypt(nlkm);
+        cases.add(new Case("dcc.mscash") {
+            long op(int i)
+            {
+                return plainDcc.getMSCASHline().length();
+            }
+        });
+        final byte[] dcc1 = plainDcc.getHash();
+        final byte[] salt = plainDcc.getUser();
+        final byte[] derived = new byte[0x10];
+        cases.add(new Case("pbkdf2/" + PBKDF2_ITERATIONS) {
+            long op(int i)
+            {
+                CryptoContext.get().pbkdf2().deriveKey(dcc1, 0, dcc1.length, salt, 0, salt.length, PBKDF2_ITERATIONS, derived, 0, derived.length);
+                return derived[0];
+            }
+        });
+        final Mac mac = Mac.getInstance("HmacSHA1");
+        cases.add(new Case("pbkdf2.jce/" + PBKDF2_ITERATIONS) {
+            long op(int i) throws Exception
+            {
+                return jcePBKDF2(mac, dcc1, salt, PBKDF2_ITERATIONS)[0];
+            }
+        });
+
+        /* NT6 (Vista) DCC record, AES-CTS; clearing it derives the DCC2 of the blank password */
+        SyntheticEvidence vista = new SyntheticEvidence(1, 1, 1, true);
+        final byte[] nlkm6 = vista.getNLKM();
+        final Hive sec6 = new Hive(writeTemp(vista.securityHive()));
+        final int dcc6Ofs = valueData(sec6, "\\Cache\\NL$1");
+        final int dcc6Len = valueLength(sec6, "\\Cache\\NL$1");
+        cases.add(new Case("dcc6.decrypt") {
+            long op(int i) throws Exception
+            {
+                DCC_Structure dcc = new DCC_Structure(sec6, dcc6Ofs, dcc6Len, true, PBKDF2_ITERATIONS);
+                dcc.decrypt(nlkm6);
+                return dcc.getHash()[0];
+            }
+        });
+        cases.add(new Case("dcc6.decrypt+encrypt") {
+            long op(int i) throws Exception
+            {
+                DCC_Structure dcc = new DCC_Structure(sec6, dcc6Ofs, dcc6Len, true, PBKDF2_ITERATIONS);
+                dcc.decrypt(nlkm6);
+                dcc.clearUserPassword();
+                dcc.encrypt();
+                return dcc.getHMAC()[0];
+            }
+        });
+
+        /* LSA secret, the same layout NL$KM is stored in */
+        Random r = new Random(1);
+        final byte[] lsaKey = evidence.getLSAKey();
+        final byte[] secret = SyntheticEvidence.encryptSecret(random(r, 64), lsaKey);
+        cases.add(new Case("lsa.decryptSecret") {
+            long op(int i)
+            {
+                return RegistryParser.decryptSecret(secret, lsaKey).length;
+            }
+        });
+        final byte[] lsaKey6 = vista.getLSAKey();
+        final byte[] secret6 = SyntheticEvidence.encryptAESSecret(random(r, 64), lsaKey6, r);
+        cases.add(new Case("lsa.decryptAESSecret") {
+            long op(int i)
+            {
+                return RegistryParser.decryptAESSecret(secret6, lsaKey6).length;
+            }
+        });
+
+        /* primitives */
+        final byte[] buf = random(r, 1024);
+        final byte[] out = new byte[1024];
+        final byte[] key = random(r, 16);
+        cases.add(new Case("rc4/1k") {
+            long op(int i)
+            {
+                RC4 rc4 = CryptoContext.get().rc4(key, 0, key.length);
+                rc4.encrypt(buf, 0, out, 0, buf.length);
+                return out[i & 1023];
+            }
+        });
+        cases.add(new Case("des/block cached") {
+            long op(int i)
+            {
+                CryptoContext.get().des(key, i & 7).decrypt(buf, 0, out, 0, 8);
+                return out[0];
+            }
+        });
+        cases.add(new Case("des/block new key") {
+            long op(int i)
+            {
+                new DES(DES.createKey(key, i & 7)).decrypt(buf, 0, out, 0, 8);
+                return out[0];
+            }
+        });
+        cases.add(new Case("aes/1k") {
+            long op(int i)
+            {
+                CryptoContext.get().aes(key, 0, key.length).encrypt(buf, 0, out, 0, buf.length);
+                return out[i & 1023];
+            }
+        });
+        final MD4 md4 = new MD4();
+        cases.add(new Case("md4/64") {
+            long op(int i)
+            {
+                md4.update(buf, i & 511, 64);
+                return md4.digest()[0];
+            }
+        });
+
+        return cases.toArray(new Case[cases.size()]);
+    }
+
+    /**
+     * the first 20 bytes of PBKDF2-HMAC-SHA1 written plainly against javax.crypto.Mac
+     */
+    private static byte[] jcePBKDF2(Mac mac, byte[] password, byte[] salt, int iterations) throws Exception
+    {
+        mac.init(new SecretKeySpec(password, "HmacSHA1"));
+        mac.update(salt);
+        byte[] u = mac.doFinal(new byte[] { 0, 0, 0, 1 });
+        byte[] t = u.clone();
+
+        for (int j = 1; j < iterations; j++)
+        {
+            u = mac.doFinal(u);
+            for (int k = 0; k < t.length; k++)
+                t[k] ^= u[k];
+        }
+        return t;
+    }
+
+    private static int valueData(Hive hive, String path)
+    {
+        VK_Structure vk = new VK_Structure(hive, RegistryParser.traversePath(hive, 0, path, 1));
+        return (int)vk.getOfs_data() + 0x1004;
+    }
+
+    private static int valueLength(Hive hive, String path)
+    {
+        VK_Structure vk = new VK_Structure(hive, RegistryParser.traversePath(hive, 0, path, 1));
+        return (int)vk.getLen_data();
+    }
+
+    private static File writeTemp(SyntheticHive sh) throws IOException
+    {
+        File file = File.createTempFile("bench", ".hive");
+        file.deleteOnExit();
+        sh.write(file);
+        return file;
+    }
+
+    private static byte[] random(Random r, int len)
+    {
+        byte[] b = new byte[len];
+        r.nextBytes(b);
+        return b;
+    }
+}
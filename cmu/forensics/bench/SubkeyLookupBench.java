@@ -0,0 +1,163 @@
+/*
+   SubkeyLookupBench.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import cmu.forensics.registry.Hive;
+import cmu.forensics.registry.NK_Structure;
+import cmu.forensics.registry.RegistryParser;
+import cmu.forensics.registry.SubkeyList;
+
+/**
+ * SubkeyLookupBench
+ * Measures the cost of resolving one subkey by name as the number of
+ * sibling keys grows, for each subkey list format, and compares the
+ * indexed lookup used by RegistryParser.traversePath against a plain
+ * linear scan that decodes every name.
+ *
+ * usage: java cmu.forensics.bench.SubkeyLookupBench [lookups]
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SubkeyLookupBench
+{
+    private static final int[] FANOUTS = { 16, 256, 4096, 32768 };
+
+    public static void main(String[] args) throws IOException
+    {
+        int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        System.out.println("list\tfanout\tindexed ns/op\tlinear ns/op");
+
+        runLayout("lf", SyntheticHive.LF, 0, lookups);
+        runLayout("lh", SyntheticHive.LH, 0, lookups);
+        runLayout("li", SyntheticHive.LI, 0, lookups);
+        runLayout("ri/lh", SyntheticHive.LH, 512, lookups);
+    }
+
+    private static void runLayout(String label, int listType, int riChunk, int lookups) throws IOException
+    {
+        for (int f = 0; f < FANOUTS.length; f++)
+        {
+            int fanout = FANOUTS[f];
+            String[] names = keyNames(fanout);
+
+            SyntheticHive sh = new SyntheticHive("ROOT");
+            sh.setListType(listType);
+            sh.setIndexRootChunk(riChunk);
+            SyntheticHive.Key parent = sh.getRoot().addKey("Parent");
+            for (int i = 0; i < names.length; i++)
+                parent.addKey(names[i]);
+
+            File file = File.createTempFile("fanout", ".hive");
+            file.deleteOnExit();
+            sh.write(file);
+
+            Hive hive = new Hive(file);
+            int parentOfs = RegistryParser.traversePath(hive, 0, "\\Parent", 0) + 4;
+
+            // warm up both paths before timing
+            indexed(hive, parentOfs, names, lookups / 4);
+            linear(hive, parentOfs, names, lookups / 4);
+
+            long indexedNs = indexed(hive, parentOfs, names, lookups);
+            long linearNs = linear(hive, parentOfs, names, Math.max(1000, lookups / (fanout / 16 + 1)));
+
+            System.out.println(label + "\t" + fanout + "\t" + indexedNs + "\t\t" + linearNs);
+
+            hive.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * average ns per traversePath lookup.  Paths are relative to the parent
+     * key so the hive's path cache is not involved.
+     */
+    private static long indexed(Hive hive, int parentOfs, String[] names, int lookups)
+    {
+        Random r = new Random(1);
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < lookups; i++)
+            sink += RegistryParser.traversePath(hive, parentOfs, names[r.nextInt(names.length)], 0);
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0)
+            System.out.println("lookup failed");
+        return elapsed / lookups;
+    }
+
+    /**
+     * average ns per lookup when every subkey name is decoded and compared
+     */
+    private static long linear(Hive hive, int parentOfs, String[] names, int lookups)
+    {
+        Random r = new Random(1);
+        NK_Structure parent = new NK_Structure(hive, parentOfs);
+        NK_Structure nk = new NK_Structure(hive);
+        SubkeyList list = new SubkeyList(hive);
+        list.setKey(parent);
+        int size = list.size();
+
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < lookups; i++)
+        {
+            String name = names[r.nextInt(names.length)];
+            for (int k = 0; k < size; k++)
+            {
+                nk.setOffset(list.getOfs_nk(k));
+                if (nk.nameEquals(name))
+                {
+                    sink += nk.getOffset();
+                    break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0)
+            System.out.println("lookup failed");
+        return elapsed / lookups;
+    }
+
+    /**
+     * deterministic, service-like key names with varied prefixes
+     */
+    static String[] keyNames(int count)
+    {
+        String[] prefixes = { "Acpi", "Afd", "Beep", "Cdrom", "Disk", "Dhcp", "Eventlog", "Fdc", "Http", "i8042prt",
+                              "Kbd", "Lanman", "Mouse", "Msiscsi", "Netbt", "Ntfs", "Parport", "Rdp", "Serial", "Tcpip",
+                              "Usb", "Vga", "Wmi", "Wuau" };
+        Random r = new Random(count);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++)
+            names[i] = prefixes[r.nextInt(prefixes.length)] + Integer.toHexString(r.nextInt()) + i;
+        return names;
+    }
+}
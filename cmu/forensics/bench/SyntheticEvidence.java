@@ -0,0 +1,925 @@
+/*
+   SyntheticEvidence.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import cmu.forensics.registry.RegistryParser;
+import cmu.forensics.registry.crypto.CryptoContext;
+import cmu.forensics.registry.crypto.MD4;
+
+/**
+ * SyntheticEvidence
+ * Generates a consistent set of synthetic evidence from a seed: SYSTEM,
+ * SAM and SECURITY hives and raw disk images, so RegistryParser, the
+ * password clearing code and DiskData can be load tested at any size
+ * without sharing real evidence.
+ *
+ * The hives are encrypted the way Windows XP encrypts them, with keys
+ * known up front: the boot key is scrambled into the class names of the
+ * Lsa\JD, Skew1, GBG and Data keys, the SAM holds the hashed boot key in
+ * Account\F and syskey encrypted V records for every user, and the
+ * SECURITY hive holds the LSA key, the NL$KM secret and NT5 cached domain
+ * logons.  Passwords follow a fixed pattern, so the pwdump and mscash
+ * lines the parser should produce are known as well.
+ *
+ * Vista evidence keeps the SAM, but its SECURITY hive holds the 32 byte
+ * LSA key in PolEKList and NL$KM as AES encrypted secrets, and NT6 cached
+ * logons: DCC2 hashes, AES-CTS encrypted and HMAC-SHA1 checked.
+ *
+ * Disk images have a valid MBR (Windows boot code, disk signature and a
+ * bootable NTFS partition entry) and an NTFS boot sector, optionally split
+ * into numbered chunks; partition images hold only the partition and come
+ * with the 63 sector MBR file a partition VMDK boots through.  Everything
+ * else in the images is left sparse.
+ *
+ * usage: java cmu.forensics.bench.SyntheticEvidence outDir [users] [cachedLogons] [diskMB] [chunkMB] [seed] [vista]
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SyntheticEvidence
+{
+    public static final int BYTES_PER_SECTOR    = 512;
+    public static final int SECTORS_PER_TRACK   = 63;
+    public static final int HEADS               = 255;
+    public static final int FIRST_USER_RID      = 1000;
+    public static final int FIRST_DOMAIN_RID    = 1100;
+    public static final String DOMAIN           = "CORP";
+    public static final String FULL_DOMAIN      = "corp.example.com";
+    public static final int DCC2_ITERATIONS     = 10240;
+
+    private static final int NTFS = 0x07;
+    private static final int BOOTABLE = 0x80;
+    private static final long MB = 1048576L;
+
+    // the boot key is stored in this order, getBootKey undoes it
+    private static final int[] BOOTKEY_PERMUTATION = { 0x8, 0x5, 0x4, 0x2, 0xb, 0x9, 0xd, 0x3, 0x0, 0x6, 0x1, 0xc, 0xe, 0xa, 0xf, 0x7 };
+    private static final String[] BOOTKEY_KEYS = { "JD", "Skew1", "GBG", "Data" };
+
+    private static final byte[] AQWERTY = "!@#$%^&*()qwertyUIOPAzxcvbnmQQQQQQQQQQQQ)(*@&%\0".getBytes();
+    private static final byte[] ANUM = "0123456789012345678901234567890123456789\0".getBytes();
+    private static final byte[] ANTPASSWORD = "NTPASSWORD\0".getBytes();
+
+    private static final byte[] BOOT_CODE = { (byte)0x33, (byte)0xC0, (byte)0x8E, (byte)0xD0, (byte)0xBC, (byte)0x00, (byte)0x7C,
+                                              (byte)0xFB, (byte)0x50, (byte)0x07, (byte)0x50, (byte)0x1F, (byte)0xFC };
+
+    private long seed;
+    private int users;
+    private int cachedLogons;
+    private boolean vista;
+    private long partitionStart = SECTORS_PER_TRACK;
+
+    private byte[] bootKey;
+    private byte[] hBootKey;
+    private byte[] lsaKey;
+    private byte[] nlkm;
+    private byte[] diskSignature;
+
+    /**
+     * constructor, derives all keys from seed
+     * @param seed seed for every random value in the evidence
+     * @param users number of local accounts in the SAM
+     * @param cachedLogons number of cached domain logons in the SECURITY hive
+     */
+    public SyntheticEvidence(long seed, int users, int cachedLogons)
+    {
+        this(seed, users, cachedLogons, false);
+    }
+
+    /**
+     * constructor, derives all keys from seed
+     * @param seed seed for every random value in the evidence
+     * @param users number of local accounts in the SAM
+     * @param cachedLogons number of cached domain logons in the SECURITY hive
+     * @param vista true for a Vista style SECURITY hive (AES LSA secrets, NT6 cached logons)
+     */
+    public SyntheticEvidence(long seed, int users, int cachedLogons, boolean vista)
+    {
+        this.seed = seed;
+        this.users = users;
+        this.cachedLogons = cachedLogons;
+        this.vista = vista;
+
+        Random r = new Random(seed);
+        bootKey = random(r, 16);
+        hBootKey = random(r, 16);
+        lsaKey = random(r, vista ? 32 : 16);
+        nlkm = random(r, 64);
+        diskSignature = random(r, 4);
+    }
+
+    /**
+     * sets the sector the partition starts at, 63 (XP) by default, 2048 for Vista style alignment
+     * @param sector first sector of the partition
+     */
+    public void setPartitionStart(long sector)
+    {
+        this.partitionStart = sector;
+    }
+
+    public long getPartitionStart()
+    {
+        return partitionStart;
+    }
+
+    public byte[] getBootKey()
+    {
+        return bootKey.clone();
+    }
+
+    /**
+     * the first 16 bytes of the decrypted Account\F key, what SAMV_Structure decrypts with
+     */
+    public byte[] getHashedBootKey()
+    {
+        return hBootKey.clone();
+    }
+
+    public byte[] getLSAKey()
+    {
+        return lsaKey.clone();
+    }
+
+    public byte[] getNLKM()
+    {
+        return nlkm.clone();
+    }
+
+    public byte[] getDiskSignature()
+    {
+        return diskSignature.clone();
+    }
+
+    public int getUsers()
+    {
+        return users;
+    }
+
+    public int getCachedLogons()
+    {
+        return cachedLogons;
+    }
+
+    public boolean isVista()
+    {
+        return vista;
+    }
+
+    public static String getUserName(int i)
+    {
+        return "user" + i;
+    }
+
+    public static String getDomainUserName(int i)
+    {
+        return "domuser" + i;
+    }
+
+    public static String getPassword(int i)
+    {
+        return "Passw0rd" + i;
+    }
+
+    /**
+     * SYSTEM hive: Select, ControlSet001 and ControlSet002 with the scrambled
+     * boot key under Control\Lsa, and MountedDevices pointing C: at the
+     * partition of the disk images
+     */
+    public SyntheticHive systemHive()
+    {
+        SyntheticHive sh = new SyntheticHive("SYSTEM");
+        SyntheticHive.Key root = sh.getRoot();
+
+        root.addKey("Select").addDWord("Current", 1)
+                             .addDWord("Default", 1)
+                             .addDWord("Failed", 0)
+                             .addDWord("LastKnownGood", 2);
+
+        byte[] scrambled = new byte[16];
+        for (int i = 0; i < scrambled.length; i++)
+            scrambled[BOOTKEY_PERMUTATION[i]] = bootKey[i];
+
+        for (int cs = 1; cs <= 2; cs++)
+        {
+            SyntheticHive.Key control = root.getKey("ControlSet00" + cs + "\\Control");
+
+            SyntheticHive.Key lsa = control.addKey("Lsa");
+            for (int i = 0; i < BOOTKEY_KEYS.length; i++)
+                lsa.addKey(BOOTKEY_KEYS[i]).setClassName(RegistryParser.hexToString(RegistryParser.byteSlice(scrambled, i * 4, 4)));
+
+            control.getKey("ComputerName\\ComputerName").addString("ComputerName", "SYNTHETIC");
+            control.addKey("ContentIndex").addString("DllsToRegister", "C:\\WINDOWS\\system32\\query.dll");
+        }
+
+        byte[] device = new byte[12];
+        System.arraycopy(diskSignature, 0, device, 0, 4);
+        SyntheticHive.putQWord(device, 4, partitionStart * BYTES_PER_SECTOR);
+        root.addKey("MountedDevices").addValue("\\DosDevices\\C:", SyntheticHive.REG_BINARY, device);
+
+        return sh;
+    }
+
+    /**
+     * SAM hive: the encrypted hashed boot key in Domains\Account\F and one
+     * account per user under Users\Names and Users\RID, whose V record holds
+     * the syskey encrypted NT hash of getPassword(i)
+     */
+    public SyntheticHive samHive()
+    {
+        Random r = new Random(seed + 1);
+        SyntheticHive sh = new SyntheticHive("SAM");
+        SyntheticHive.Key account = sh.getRoot().getKey("SAM\\Domains\\Account");
+
+        account.addValue("F", SyntheticHive.REG_BINARY, accountF(r));
+
+        SyntheticHive.Key userKeys = account.addKey("Users");
+        SyntheticHive.Key names = userKeys.addKey("Names");
+
+        for (int i = 0; i < users; i++)
+        {
+            int rid = FIRST_USER_RID + i;
+            names.addKey(getUserName(i)).addTypeOnlyValue("", rid);
+
+            byte[] f = new byte[0x50];
+            SyntheticHive.putDWord(f, 0x30, rid);
+            SyntheticHive.putWord(f, 0x38, 0x0210);      // normal account, password does not expire
+
+            userKeys.addKey(ridKey(rid)).addValue("F", SyntheticHive.REG_BINARY, f)
+                                        .addValue("V", SyntheticHive.REG_BINARY, vRecord(getUserName(i), rid, getPassword(i)));
+        }
+
+        return sh;
+    }
+
+    /**
+     * SECURITY hive: the encrypted LSA key in PolSecretEncryptionKey (Vista:
+     * PolEKList), the NL$KM secret and a cached logon per domain user in
+     * Cache\NL$1..n
+     */
+    public SyntheticHive securityHive()
+    {
+        Random r = new Random(seed + 2);
+        SyntheticHive sh = new SyntheticHive("SECURITY");
+        SyntheticHive.Key root = sh.getRoot();
+
+        if (vista)
+        {
+            // the LSA key list holds the current key 52 bytes into the secret
+            byte[] keys = new byte[52 + lsaKey.length];
+            SyntheticHive.putDWord(keys, 48, lsaKey.length);
+            System.arraycopy(lsaKey, 0, keys, 52, lsaKey.length);
+            root.getKey("Policy\\PolEKList").addValue("", SyntheticHive.REG_BINARY, encryptAESSecret(keys, bootKey, r));
+            root.getKey("Policy\\Secrets\\NL$KM\\CurrVal").addValue("", SyntheticHive.REG_BINARY, encryptAESSecret(nlkm, lsaKey, r));
+
+            SyntheticHive.Key cache = root.addKey("Cache");
+            cache.addDWord("NL$IterationCount", DCC2_ITERATIONS / 1024);
+            for (int i = 0; i < cachedLogons; i++)
+                cache.addValue("NL$" + (i + 1), SyntheticHive.REG_BINARY, cachedLogon(i, r));
+
+            return sh;
+        }
+
+        root.getKey("Policy\\PolSecretEncryptionKey").addValue("", SyntheticHive.REG_BINARY, policySecretEncryptionKey(r));
+
+        byte[] encrypted = encryptSecret(nlkm, lsaKey);
+        byte[] currVal = new byte[12 + encrypted.length];
+        SyntheticHive.putDWord(currVal, 0, encrypted.length);
+        SyntheticHive.putDWord(currVal, 4, encrypted.length);
+        SyntheticHive.putDWord(currVal, 8, 12);
+        System.arraycopy(encrypted, 0, currVal, 12, encrypted.length);
+        root.getKey("Policy\\Secrets\\NL$KM\\CurrVal").addValue("", SyntheticHive.REG_BINARY, currVal);
+
+        SyntheticHive.Key cache = root.addKey("Cache");
+        cache.addValue("NL$Control", SyntheticHive.REG_BINARY, new byte[] { 4, 0, 1, 0, (byte)cachedLogons, 0, 0, 0 });
+        for (int i = 0; i < cachedLogons; i++)
+            cache.addValue("NL$" + (i + 1), SyntheticHive.REG_BINARY, cachedLogon(i, r));
+
+        return sh;
+    }
+
+    /**
+     * the pwdump lines RegistryParser should export for the SAM hive, in the
+     * order of the Users\Names subkeys it enumerates the accounts by
+     */
+    public String[] getPWDUMPlines()
+    {
+        String[] lines = new String[users];
+        for (int i = 0; i < users; i++)
+        {
+            lines[i] = getUserName(i) + ":" + (FIRST_USER_RID + i) + ":aad3b435b51404eeaad3b435b51404ee:"
+                     + RegistryParser.hexToString(ntHash(getPassword(i))) + ":::";
+        }
+
+        // subkeys are sorted by their upper case names
+        Arrays.sort(lines, new Comparator<String>() {
+            public int compare(String a, String b)
+            {
+                String nameA = a.substring(0, a.indexOf(':')).toUpperCase();
+                String nameB = b.substring(0, b.indexOf(':')).toUpperCase();
+                return nameA.compareTo(nameB);
+            }
+        });
+        return lines;
+    }
+
+    /**
+     * the mscash lines RegistryParser should export for the SECURITY hive,
+     * in NL$ order; the short domain name is exported in lower case, Vista
+     * hashes as $DCC2$iterations#user#hash
+     */
+    public String[] getMSCASHlines()
+    {
+        String[] lines = new String[cachedLogons];
+        for (int i = 0; i < cachedLogons; i++)
+        {
+            String name = getDomainUserName(i);
+            String hash = vista ? "$DCC2$" + DCC2_ITERATIONS + "#" + name.toLowerCase() + "#" + RegistryParser.hexToString(dcc2Hash(name, getPassword(i)))
+                                : RegistryParser.hexToString(dccHash(name, getPassword(i)));
+            lines[i] = name + ":" + hash + ":" + DOMAIN.toLowerCase() + ":" + FULL_DOMAIN;
+        }
+        return lines;
+    }
+
+    /**
+     * writes SYSTEM, SAM and SECURITY to dir
+     * @param dir existing directory
+     */
+    public void writeHives(File dir) throws IOException
+    {
+        systemHive().write(new File(dir, "SYSTEM"));
+        samHive().write(new File(dir, "SAM"));
+        securityHive().write(new File(dir, "SECURITY"));
+    }
+
+    /**
+     * writes a full disk image: MBR with a bootable NTFS partition from
+     * getPartitionStart() to the end of the disk and its boot sectors
+     * @param image image file, or the base name of the chunks
+     * @param sizeBytes size of the disk, rounded down to whole sectors
+     * @param chunkBytes size of each chunk, 0 for a single file; chunks are named image.001, image.002 ...
+     * @return the files written, in order
+     */
+    public File[] writeDisk(File image, long sizeBytes, long chunkBytes) throws IOException
+    {
+        long sectors = sizeBytes / BYTES_PER_SECTOR;
+        if (sectors < partitionStart + 2)
+            throw new IllegalArgumentException("disk of " + sizeBytes + " bytes is too small for a partition at sector " + partitionStart);
+
+        long partitionSectors = sectors - partitionStart;
+        SplitImage out = new SplitImage(image, sectors * BYTES_PER_SECTOR, chunkBytes);
+        try
+        {
+            out.write(0, masterBootRecord(partitionStart, partitionSectors));
+            byte[] boot = ntfsBootSector(partitionStart, partitionSectors);
+            out.write(partitionStart * BYTES_PER_SECTOR, boot);
+            out.write((sectors - 1) * BYTES_PER_SECTOR, boot);   // backup boot sector
+        }
+        finally
+        {
+            out.close();
+        }
+        return out.getFiles();
+    }
+
+    /**
+     * writes a partition only image (boot sector first, no MBR)
+     * @param image image file, or the base name of the chunks
+     * @param sizeBytes size of the partition, rounded down to whole sectors
+     * @param chunkBytes size of each chunk, 0 for a single file
+     * @return the files written, in order
+     */
+    public File[] writePartition(File image, long sizeBytes, long chunkBytes) throws IOException
+    {
+        long sectors = sizeBytes / BYTES_PER_SECTOR;
+        if (sectors < 2)
+            throw new IllegalArgumentException("partition of " + sizeBytes + " bytes is too small");
+
+        SplitImage out = new SplitImage(image, sectors * BYTES_PER_SECTOR, chunkBytes);
+        try
+        {
+            byte[] boot = ntfsBootSector(SECTORS_PER_TRACK, sectors);
+            out.write(0, boot);
+            out.write((sectors - 1) * BYTES_PER_SECTOR, boot);
+        }
+        finally
+        {
+            out.close();
+        }
+        return out.getFiles();
+    }
+
+    /**
+     * writes the 63 sector MBR file a partition image is booted through:
+     * the MBR followed by the empty rest of the first track
+     * @param mbrFile file to create
+     * @param partitionSectors size of the partition image in sectors
+     */
+    public void writePartitionMBR(File mbrFile, long partitionSectors) throws IOException
+    {
+        byte[] track = new byte[SECTORS_PER_TRACK * BYTES_PER_SECTOR];
+        System.arraycopy(masterBootRecord(SECTORS_PER_TRACK, partitionSectors), 0, track, 0, BYTES_PER_SECTOR);
+
+        FileOutputStream out = new FileOutputStream(mbrFile);
+        try
+        {
+            out.write(track);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * lays plain out as an LSA secret (length, version, data) and encrypts
+     * it the way RegistryParser.decryptSecret expects: DES with a key that
+     * moves 7 bytes along lsaKey per block
+     * @param plain the secret
+     * @param lsaKey the LSA key
+     * @return the encrypted secret, without the 12 byte CurrVal header
+     */
+    public static byte[] encryptSecret(byte[] plain, byte[] lsaKey)
+    {
+        byte[] secret = new byte[(plain.length + 8 + 7) & ~7];
+        SyntheticHive.putDWord(secret, 0, plain.length);
+        SyntheticHive.putDWord(secret, 4, 1);
+        System.arraycopy(plain, 0, secret, 8, plain.length);
+
+        CryptoContext ctx = CryptoContext.get();
+        int lsaKeyOffset = 0;
+        for (int i = 0; i < secret.length; i += 8)
+        {
+            ctx.des(lsaKey, lsaKeyOffset).encrypt(secret, i, secret, i, 8);
+            lsaKeyOffset += 7;
+            if ((lsaKey.length - lsaKeyOffset) < 7)
+                lsaKeyOffset = lsaKey.length - lsaKeyOffset;
+        }
+
+        return secret;
+    }
+
+    /**
+     * lays plain out as a Vista LSA secret and encrypts it the way
+     * RegistryParser.decryptAESSecret expects: a 28 byte header, a random
+     * salt and the secret (length, 12 reserved bytes, data) in AES blocks
+     * under SHA-256(key, 1000 x salt)
+     * @param plain the secret
+     * @param key the bootKey for the LSA key list, the LSA key for any other secret
+     * @param r source of the key id and the salt
+     * @return the encrypted secret as stored in the value
+     */
+    public static byte[] encryptAESSecret(byte[] plain, byte[] key, Random r)
+    {
+        int blocks = (16 + plain.length + 15) & ~15;
+        byte[] secret = new byte[60 + blocks];
+        SyntheticHive.putDWord(secret, 0, 1);                   // version
+        System.arraycopy(random(r, 16), 0, secret, 4, 16);      // key id
+        SyntheticHive.putDWord(secret, 20, 3);                  // AES
+        System.arraycopy(random(r, 32), 0, secret, 28, 32);     // salt
+
+        SyntheticHive.putDWord(secret, 60, plain.length);
+        System.arraycopy(plain, 0, secret, 76, plain.length);
+
+        CryptoContext ctx = CryptoContext.get();
+        MessageDigest sha256 = ctx.sha256();
+        sha256.update(key);
+        for (int i = 0; i < 1000; i++)
+            sha256.update(secret, 28, 32);
+        byte[] aesKey = sha256.digest();
+        ctx.aes(aesKey, 0, aesKey.length).encrypt(secret, 60, secret, 60, blocks);
+
+        return secret;
+    }
+
+    /**
+     * RID keys are named by the RID in 8 digit upper case hex
+     */
+    public static String ridKey(int rid)
+    {
+        String hex = Integer.toHexString(rid).toUpperCase();
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Account\F: the RC4 key salt at 0x70, then the hashed boot key and its
+     * checksum at 0x80, encrypted with MD5(salt, AQWERTY, bootKey, ANUM)
+     */
+    private byte[] accountF(Random r)
+    {
+        byte[] f = new byte[0xA0];
+        SyntheticHive.putWord(f, 0x00, 2);          // revision
+        System.arraycopy(random(r, 16), 0, f, 0x70, 16);
+
+        CryptoContext ctx = CryptoContext.get();
+        MessageDigest md5 = ctx.md5();
+        md5.update(hBootKey);
+        md5.update(ANUM);
+        md5.update(hBootKey);
+        md5.update(AQWERTY);
+        byte[] checksum = md5.digest();
+
+        System.arraycopy(hBootKey, 0, f, 0x80, 16);
+        System.arraycopy(checksum, 0, f, 0x90, 16);
+
+        md5.update(f, 0x70, 16);
+        md5.update(AQWERTY);
+        md5.update(bootKey);
+        md5.update(ANUM);
+        ctx.rc4(md5).encrypt(f, 0x80, f, 0x80, 0x20);
+
+        return f;
+    }
+
+    /**
+     * a V record: 0xCC byte header of offset/length pairs, the UTF-16 user
+     * name, an LM entry holding only its 4 byte counter (no LM hash) and the
+     * counter prefixed, syskey encrypted NT hash
+     */
+    private byte[] vRecord(String name, int rid, String password)
+    {
+        byte[] uname = SyntheticHive.utf16(name);
+        int nameLen = (uname.length + 3) & ~3;
+        byte[] v = new byte[0xCC + nameLen + 4 + 20];
+
+        SyntheticHive.putDWord(v, 0x0C, 0);
+        SyntheticHive.putDWord(v, 0x10, uname.length);
+        SyntheticHive.putDWord(v, 0x9C, nameLen);
+        SyntheticHive.putDWord(v, 0xA0, 4);
+        SyntheticHive.putDWord(v, 0xA8, nameLen + 4);
+        SyntheticHive.putDWord(v, 0xAC, 20);
+        System.arraycopy(uname, 0, v, 0xCC, uname.length);
+
+        int lm = 0xCC + nameLen;
+        int nt = lm + 4;
+        SyntheticHive.putDWord(v, lm, 0x00010002);
+        SyntheticHive.putDWord(v, nt, 0x00010002);
+        System.arraycopy(ntHash(password), 0, v, nt + 4, 16);
+
+        byte[] ridBytes = new byte[4];
+        SyntheticHive.putDWord(ridBytes, 0, rid);
+        byte[] key1 = { ridBytes[0], ridBytes[1], ridBytes[2], ridBytes[3], ridBytes[0], ridBytes[1], ridBytes[2] };
+        byte[] key2 = { ridBytes[3], ridBytes[0], ridBytes[1], ridBytes[2], ridBytes[3], ridBytes[0], ridBytes[1] };
+
+        // the reverse of SAMV_Structure.decryptHash: DES with the RID keys, then RC4
+        CryptoContext ctx = CryptoContext.get();
+        ctx.des(key1, 0).encrypt(v, nt + 4, v, nt + 4, 8);
+        ctx.des(key2, 0).encrypt(v, nt + 12, v, nt + 12, 8);
+
+        MessageDigest md5 = ctx.md5();
+        md5.update(hBootKey);
+        md5.update(ridBytes);
+        md5.update(ANTPASSWORD);
+        ctx.rc4(md5).encrypt(v, nt + 4, v, nt + 4, 16);
+
+        return v;
+    }
+
+    /**
+     * PolSecretEncryptionKey: 0x30 bytes from offset 12, holding the LSA key
+     * at 28, RC4 encrypted with MD5(bootKey, 1000 times the salt at 60)
+     */
+    private byte[] policySecretEncryptionKey(Random r)
+    {
+        byte[] psek = new byte[76];
+        SyntheticHive.putDWord(psek, 0, 1);         // revision
+        System.arraycopy(random(r, 16), 0, psek, 12, 16);
+        System.arraycopy(lsaKey, 0, psek, 28, 16);
+        System.arraycopy(random(r, 16), 0, psek, 44, 16);
+        System.arraycopy(random(r, 16), 0, psek, 60, 16);
+
+        CryptoContext ctx = CryptoContext.get();
+        MessageDigest md5 = ctx.md5();
+        md5.update(bootKey);
+        for (int i = 0; i < 1000; i++)
+            md5.update(psek, 60, 16);
+        ctx.rc4(md5).encrypt(psek, 12, psek, 12, 0x30);
+
+        return psek;
+    }
+
+    /**
+     * an enabled cached logon for domain user i, NT5 or on Vista NT6,
+     * encrypted the way DCC_Structure.encrypt does it
+     */
+    private byte[] cachedLogon(int i, Random r)
+    {
+        String name = getDomainUserName(i);
+        byte[] user = SyntheticHive.utf16(name);
+        byte[] domain = SyntheticHive.utf16(DOMAIN);
+        byte[] fullDomain = SyntheticHive.utf16(FULL_DOMAIN);
+
+        int userPad = (user.length + 3) & ~3;
+        int domainPad = (domain.length + 3) & ~3;
+        int dce = 0x60;
+        byte[] dcc = new byte[(dce + 0x48 + userPad + domainPad + fullDomain.length + 15) & ~15];
+
+        SyntheticHive.putWord(dcc, 0x00, user.length);
+        SyntheticHive.putWord(dcc, 0x02, domain.length);
+        SyntheticHive.putDWord(dcc, 0x10, FIRST_DOMAIN_RID + i);
+        SyntheticHive.putDWord(dcc, 0x14, 513);                  // Domain Users
+        SyntheticHive.putQWord(dcc, 0x20, 0x01c9f0e7b1f31000L + (i * 600000000L));
+        if (!vista)
+            SyntheticHive.putDWord(dcc, 0x28, 0x10004);         // NT5 record
+        SyntheticHive.putWord(dcc, 0x30, 1);                    // enabled
+        SyntheticHive.putWord(dcc, 0x3C, fullDomain.length);
+        System.arraycopy(random(r, 16), 0, dcc, 0x40, 16);      // cipher key
+
+        System.arraycopy(vista ? dcc2Hash(name, getPassword(i)) : dccHash(name, getPassword(i)), 0, dcc, dce, 16);
+        System.arraycopy(user, 0, dcc, dce + 0x48, user.length);
+        System.arraycopy(domain, 0, dcc, dce + 0x48 + userPad, domain.length);
+        System.arraycopy(fullDomain, 0, dcc, dce + 0x48 + userPad + domainPad, fullDomain.length);
+
+        CryptoContext ctx = CryptoContext.get();
+        if (vista)
+        {
+            // HMAC-SHA1 keyed with the first half of NL$KM, AES-CTS with the second, the cipher key as IV
+            byte[] mac = new byte[20];
+            ctx.hmacSHA1(nlkm, 0, 16, dcc, dce, dcc.length - dce, mac, 0);
+            System.arraycopy(mac, 0, dcc, 0x50, 16);
+            ctx.aes(nlkm, 16, 16).encryptCTS(RegistryParser.byteSlice(dcc, 0x40, 16), dcc, dce, dcc.length - dce);
+            return dcc;
+        }
+
+        byte[] rc4Key = new byte[16];
+        ctx.hmacMD5(nlkm, dcc, 0x40, 16, rc4Key, 0);
+        ctx.hmacMD5(rc4Key, dcc, dce, dcc.length - dce, dcc, 0x50);
+        ctx.rc4(rc4Key, 0, rc4Key.length).encrypt(dcc, dce, dcc, dce, dcc.length - dce);
+
+        return dcc;
+    }
+
+    /**
+     * MD4 of the UTF-16LE password
+     */
+    static byte[] ntHash(String password)
+    {
+        MD4 md4 = new MD4();
+        md4.update(SyntheticHive.utf16(password));
+        return md4.digest();
+    }
+
+    /**
+     * MD4 of the NT hash and the lower case UTF-16LE user name
+     */
+    static byte[] dccHash(String user, String password)
+    {
+        MD4 md4 = new MD4();
+        md4.update(ntHash(password));
+        md4.update(SyntheticHive.utf16(user.toLowerCase()));
+        return md4.digest();
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA1 of the DCC1 hash, salted with the lower case
+     * UTF-16LE user name
+     */
+    static byte[] dcc2Hash(String user, String password)
+    {
+        byte[] dcc1 = dccHash(user, password);
+        byte[] salt = SyntheticHive.utf16(user.toLowerCase());
+        byte[] hash = new byte[16];
+        CryptoContext.get().pbkdf2().deriveKey(dcc1, 0, dcc1.length, salt, 0, salt.length, DCC2_ITERATIONS, hash, 0, hash.length);
+        return hash;
+    }
+
+    /**
+     * the MBR: Windows boot code, the disk signature and one bootable NTFS
+     * partition from sector start
+     */
+    private byte[] masterBootRecord(long start, long partitionSectors)
+    {
+        byte[] mbr = new byte[BYTES_PER_SECTOR];
+        System.arraycopy(BOOT_CODE, 0, mbr, 0, BOOT_CODE.length);
+        System.arraycopy(diskSignature, 0, mbr, 440, 4);
+
+        int entry = 446;
+        mbr[entry] = (byte)BOOTABLE;
+        putCHS(mbr, entry + 1, start);
+        mbr[entry + 4] = (byte)NTFS;
+        putCHS(mbr, entry + 5, start + partitionSectors - 1);
+        SyntheticHive.putDWord(mbr, entry + 8, (int)start);
+        SyntheticHive.putDWord(mbr, entry + 12, (int)partitionSectors);
+
+        mbr[510] = (byte)0x55;
+        mbr[511] = (byte)0xAA;
+        return mbr;
+    }
+
+    /**
+     * head, sector and cylinder of a sector in the partition entry layout,
+     * addresses past cylinder 1023 are capped the way Windows caps them
+     */
+    private static void putCHS(byte[] b, int ofs, long lba)
+    {
+        long cylinder = lba / (HEADS * SECTORS_PER_TRACK);
+        int head = (int)((lba / SECTORS_PER_TRACK) % HEADS);
+        int sector = (int)(lba % SECTORS_PER_TRACK) + 1;
+
+        if (cylinder > 1023)
+        {
+            cylinder = 1023;
+            head = HEADS - 1;
+            sector = SECTORS_PER_TRACK;
+        }
+
+        b[ofs] = (byte)head;
+        b[ofs + 1] = (byte)(sector | ((cylinder >> 2) & 0xC0));
+        b[ofs + 2] = (byte)cylinder;
+    }
+
+    /**
+     * an NTFS boot sector for a volume of sectors sectors starting at sector start
+     */
+    private byte[] ntfsBootSector(long start, long sectors)
+    {
+        byte[] boot = new byte[BYTES_PER_SECTOR];
+        boot[0] = (byte)0xEB;
+        boot[1] = (byte)0x52;
+        boot[2] = (byte)0x90;
+        SyntheticHive.putBytes(boot, 3, "NTFS    ".getBytes());
+        SyntheticHive.putWord(boot, 0x0B, BYTES_PER_SECTOR);
+        boot[0x0D] = 8;                                         // sectors per cluster
+        boot[0x15] = (byte)0xF8;                                // fixed disk
+        SyntheticHive.putWord(boot, 0x18, SECTORS_PER_TRACK);
+        SyntheticHive.putWord(boot, 0x1A, HEADS);
+        SyntheticHive.putDWord(boot, 0x1C, (int)start);
+        boot[0x24] = (byte)0x80;
+        boot[0x26] = (byte)0x80;
+        SyntheticHive.putQWord(boot, 0x28, sectors - 1);
+        SyntheticHive.putQWord(boot, 0x30, 4);                  // $MFT cluster
+        SyntheticHive.putQWord(boot, 0x38, (sectors / 8) / 2);  // $MFTMirr cluster
+        boot[0x40] = (byte)0xF6;                                // 1 KB file records
+        boot[0x44] = 1;                                         // 1 cluster index records
+        System.arraycopy(diskSignature, 0, boot, 0x48, 4);
+        System.arraycopy(diskSignature, 0, boot, 0x4C, 4);
+        boot[510] = (byte)0x55;
+        boot[511] = (byte)0xAA;
+        return boot;
+    }
+
+    private static byte[] random(Random r, int len)
+    {
+        byte[] b = new byte[len];
+        r.nextBytes(b);
+        return b;
+    }
+
+    /**
+     * SplitImage
+     * A sparse image file, or a set of numbered chunk files, written by
+     * absolute offset
+     */
+    private static class SplitImage
+    {
+        private File[] files;
+        private RandomAccessFile[] chunks;
+        private long chunkBytes;
+
+        SplitImage(File image, long size, long chunkBytes) throws IOException
+        {
+            if (chunkBytes <= 0 || chunkBytes >= size)
+                chunkBytes = size;
+            else
+                chunkBytes -= chunkBytes % BYTES_PER_SECTOR;
+            this.chunkBytes = chunkBytes;
+
+            int count = (int)((size + chunkBytes - 1) / chunkBytes);
+            files = new File[count];
+            chunks = new RandomAccessFile[count];
+
+            for (int i = 0; i < count; i++)
+            {
+                if (count == 1)
+                {
+                    files[i] = image;
+                }
+                else
+                {
+                    String ext = Integer.toString(i + 1);
+                    files[i] = new File(image.getPath() + "." + "000".substring(Math.min(3, ext.length())) + ext);
+                }
+
+                chunks[i] = new RandomAccessFile(files[i], "rw");
+                chunks[i].setLength(Math.min(chunkBytes, size - (i * chunkBytes)));
+            }
+        }
+
+        void write(long offset, byte[] data) throws IOException
+        {
+            int done = 0;
+            while (done < data.length)
+            {
+                int chunk = (int)((offset + done) / chunkBytes);
+                long within = (offset + done) % chunkBytes;
+                int len = (int)Math.min(data.length - done, chunkBytes - within);
+
+                chunks[chunk].seek(within);
+                chunks[chunk].write(data, done, len);
+                done += len;
+            }
+        }
+
+        void close() throws IOException
+        {
+            for (int i = 0; i < chunks.length; i++)
+            {
+                if (chunks[i] != null)
+                    chunks[i].close();
+            }
+        }
+
+        File[] getFiles()
+        {
+            return files;
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: SyntheticEvidence outDir [users] [cachedLogons] [diskMB] [chunkMB] [seed] [vista]");
+            return;
+        }
+
+        File dir = new File(args[0]);
+        int users = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        int cachedLogons = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        long diskBytes = ((args.length > 3) ? Long.parseLong(args[3]) : 64) * MB;
+        long chunkBytes = ((args.length > 4) ? Long.parseLong(args[4]) : 0) * MB;
+        long seed = (args.length > 5) ? Long.parseLong(args[5]) : 0;
+        boolean vista = (args.length > 6) && args[6].equalsIgnoreCase("vista");
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            System.out.println("Could not create " + dir);
+            return;
+        }
+
+        SyntheticEvidence evidence = new SyntheticEvidence(seed, users, cachedLogons, vista);
+        evidence.writeHives(dir);
+
+        File[] disk = evidence.writeDisk(new File(dir, "disk.img"), diskBytes, chunkBytes);
+        long partitionBytes = diskBytes - (evidence.getPartitionStart() * BYTES_PER_SECTOR);
+        File[] partition = evidence.writePartition(new File(dir, "partition.img"), partitionBytes, chunkBytes);
+        // DiskData looks for the MBR by the name of the first image file
+        evidence.writePartitionMBR(new File(dir, partition[0].getName() + ".mbr"), partitionBytes / BYTES_PER_SECTOR);
+
+        PrintWriter out = new PrintWriter(new FileOutputStream(new File(dir, "evidence.txt")));
+        try
+        {
+            out.println("seed\t" + seed);
+            out.println("bootkey\t" + RegistryParser.hexToString(evidence.bootKey));
+            out.println("hbootkey\t" + RegistryParser.hexToString(evidence.hBootKey));
+            out.println("lsakey\t" + RegistryParser.hexToString(evidence.lsaKey));
+            out.println("nlkm\t" + RegistryParser.hexToString(evidence.nlkm));
+            out.println("disksignature\t" + RegistryParser.hexToString(evidence.diskSignature));
+            out.println("partitionoffset\t" + (evidence.getPartitionStart() * BYTES_PER_SECTOR));
+
+            String[] lines = evidence.getPWDUMPlines();
+            for (int i = 0; i < lines.length; i++)
+                out.println("pwdump\t" + lines[i]);
+
+            lines = evidence.getMSCASHlines();
+            for (int i = 0; i < lines.length; i++)
+                out.println("mscash\t" + lines[i]);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        System.out.println("Wrote SYSTEM, SAM, SECURITY, " + disk.length + " disk and " + partition.length + " partition file(s) to " + dir);
+    }
+}
@@ -0,0 +1,520 @@
+/*
+   SyntheticHive.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cmu.forensics.registry.SubkeyList;
+
+/**
+ * SyntheticHive
+ * Builds deterministic regf hive files from an in-memory key tree so the
+ * registry code can be measured and exercised without real evidence.
+ *
+ * The output follows the on-disk layout Windows uses: a 4 KB base block
+ * with a valid checksum, followed by 4 KB hbins holding nk, vk, value list,
+ * class name and subkey list (li/lf/lh, optionally split under an ri) cells.
+ * Subkey lists are sorted the way Windows sorts them.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SyntheticHive
+{
+    public static final int LI = 0x696c;
+    public static final int LF = 0x666c;
+    public static final int LH = 0x686c;
+
+    public static final int REG_SZ          = 1;
+    public static final int REG_EXPAND_SZ   = 2;
+    public static final int REG_BINARY      = 3;
+    public static final int REG_DWORD       = 4;
+    public static final int REG_MULTI_SZ    = 7;
+    public static final int REG_QWORD       = 11;
+
+    private static final int HBIN_SIZE = 0x1000;
+    private static final int HBIN_HEADER = 0x20;
+    private static final long TIMESTAMP = 0x01c9f0e7b1f31000L;  // fixed FILETIME so output is reproducible
+
+    /**
+     * Key
+     * A key in the tree being built
+     */
+    public static class Key
+    {
+        private String name;
+        private String className;
+        private List<Key> subkeys = new ArrayList<Key>();
+        private List<Object[]> values = new ArrayList<Object[]>();
+
+        public Key(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * returns the named subkey, creating it if it does not exist
+         * @param name name of the subkey
+         * @return the subkey
+         */
+        public Key addKey(String name)
+        {
+            for (int i = 0; i < subkeys.size(); i++)
+            {
+                Key k = subkeys.get(i);
+                if (k.name.equalsIgnoreCase(name))
+                    return k;
+            }
+
+            Key k = new Key(name);
+            subkeys.add(k);
+            return k;
+        }
+
+        /**
+         * returns the key at a backslash separated path below this key,
+         * creating any keys that do not exist
+         * @param path path relative to this key
+         * @return the key at path
+         */
+        public Key getKey(String path)
+        {
+            Key k = this;
+            String[] parts = path.split("\\\\");
+            for (int i = 0; i < parts.length; i++)
+            {
+                if (parts[i].length() > 0)
+                    k = k.addKey(parts[i]);
+            }
+            return k;
+        }
+
+        public Key setClassName(String className)
+        {
+            this.className = className;
+            return this;
+        }
+
+        public Key addValue(String name, int type, byte[] data)
+        {
+            values.add(new Object[] { name, Integer.valueOf(type), data });
+            return this;
+        }
+
+        public Key addDWord(String name, int value)
+        {
+            return addValue(name, REG_DWORD, new byte[] { (byte)value, (byte)(value >> 8), (byte)(value >> 16), (byte)(value >> 24) });
+        }
+
+        public Key addString(String name, String value)
+        {
+            return addValue(name, REG_SZ, utf16(value + "\0"));
+        }
+
+        /**
+         * adds a value whose data lives inline in the vk: the data length is
+         * stored as 0x80000000 and the type field carries a number, which is
+         * how the SAM stores RIDs under Users\Names
+         */
+        public Key addTypeOnlyValue(String name, int type)
+        {
+            values.add(new Object[] { name, Integer.valueOf(type), null });
+            return this;
+        }
+    }
+
+    private Key root;
+    private int listType = LH;
+    private int indexRootChunk = 0;
+
+    private byte[] buf = new byte[0x10000];
+    private int used;           // bytes of buf in use (hbin relative)
+    private int hbinStart;      // hbin relative offset of the current hbin
+
+    public SyntheticHive(String rootName)
+    {
+        root = new Key(rootName);
+    }
+
+    public Key getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * selects the subkey list format
+     * @param listType LI, LF or LH
+     */
+    public void setListType(int listType)
+    {
+        this.listType = listType;
+    }
+
+    /**
+     * splits subkey lists longer than chunk entries under an ri, 0 never splits
+     * @param chunk maximum entries per leaf list
+     */
+    public void setIndexRootChunk(int chunk)
+    {
+        this.indexRootChunk = chunk;
+    }
+
+    /**
+     * serializes the tree into a complete hive image
+     * @return the hive file contents
+     */
+    public byte[] toByteArray()
+    {
+        used = 0;
+        hbinStart = 0;
+        startHbin(HBIN_SIZE);
+
+        int rootOfs = writeKey(root, -1);
+
+        // close the last hbin with a free cell
+        closeHbin();
+
+        byte[] hive = new byte[0x1000 + used];
+        System.arraycopy(buf, 0, hive, 0x1000, used);
+
+        putBytes(hive, 0, "regf".getBytes());
+        putDWord(hive, 0x04, 1);                  // primary sequence number
+        putDWord(hive, 0x08, 1);                  // secondary sequence number
+        putQWord(hive, 0x0C, TIMESTAMP);
+        putDWord(hive, 0x14, 1);                  // major version
+        putDWord(hive, 0x18, 3);                  // minor version
+        putDWord(hive, 0x1C, 0);                  // primary file
+        putDWord(hive, 0x20, 1);                  // memory format
+        putDWord(hive, 0x24, rootOfs);
+        putDWord(hive, 0x28, used);               // hive bins data size
+        putDWord(hive, 0x2C, 1);                  // clustering factor
+        putDWord(hive, 0x1FC, checksum(hive));
+
+        return hive;
+    }
+
+    /**
+     * writes the hive to a file
+     * @param file the file to create
+     */
+    public void write(File file) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(toByteArray());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * XOR of the first 127 dwords of the base block
+     * @param hive hive image
+     * @return the base block checksum
+     */
+    public static int checksum(byte[] hive)
+    {
+        int sum = 0;
+        for (int i = 0; i < 0x1FC; i += 4)
+            sum ^= getDWord(hive, i);
+        return sum;
+    }
+
+    /**
+     * writes key and everything below it, returns its hbin relative offset
+     */
+    private int writeKey(Key key, int parent)
+    {
+        byte[] name = latin1(key.name);
+
+        int me = allocate(0x4C + name.length);
+        int nk = me + 4;
+        putBytes(buf, nk, "nk".getBytes());
+        putWord(buf, nk + 0x02, 0x20 | ((parent == -1) ? 0x0C : 0));   // compressed name, root flags
+        putQWord(buf, nk + 0x04, TIMESTAMP);
+        putDWord(buf, nk + 0x10, parent);
+        putDWord(buf, nk + 0x1C, -1);
+        putDWord(buf, nk + 0x20, -1);
+        putDWord(buf, nk + 0x28, -1);
+        putDWord(buf, nk + 0x2C, -1);
+        putDWord(buf, nk + 0x30, -1);
+        putWord(buf, nk + 0x48, name.length);
+        putBytes(buf, nk + 0x4C, name);
+
+        List<Key> sorted = new ArrayList<Key>(key.subkeys);
+        Collections.sort(sorted, new Comparator<Key>() {
+            public int compare(Key a, Key b)
+            {
+                return a.name.toUpperCase().compareTo(b.name.toUpperCase());
+            }
+        });
+
+        int[] children = new int[sorted.size()];
+        int maxNameLen = 0;
+        for (int i = 0; i < children.length; i++)
+        {
+            children[i] = writeKey(sorted.get(i), me);
+            maxNameLen = Math.max(maxNameLen, sorted.get(i).name.length() * 2);
+        }
+
+        if (children.length > 0)
+        {
+            putDWord(buf, nk + 0x14, children.length);
+            putDWord(buf, nk + 0x1C, writeList(children, sorted));
+            putDWord(buf, nk + 0x34, maxNameLen);
+        }
+
+        if (key.values.size() > 0)
+        {
+            int[] vks = new int[key.values.size()];
+            for (int i = 0; i < vks.length; i++)
+                vks[i] = writeValue(key.values.get(i));
+
+            int list = allocate(vks.length * 4);
+            for (int i = 0; i < vks.length; i++)
+                putDWord(buf, list + 4 + (i * 4), vks[i]);
+
+            putDWord(buf, nk + 0x24, vks.length);
+            putDWord(buf, nk + 0x28, list);
+        }
+
+        if (key.className != null)
+        {
+            byte[] cls = utf16(key.className);
+            int c = allocate(cls.length);
+            putBytes(buf, c + 4, cls);
+            putDWord(buf, nk + 0x30, c);
+            putWord(buf, nk + 0x4A, cls.length);
+        }
+
+        return me;
+    }
+
+    private int writeValue(Object[] value)
+    {
+        byte[] name = latin1((String)value[0]);
+        int type = ((Integer)value[1]).intValue();
+        byte[] data = (byte[])value[2];
+
+        int me = allocate(0x14 + name.length);
+        int vk = me + 4;
+        putBytes(buf, vk, "vk".getBytes());
+        putWord(buf, vk + 0x02, name.length);
+        putDWord(buf, vk + 0x0C, type);
+        putWord(buf, vk + 0x10, (name.length > 0) ? 1 : 0);
+        putBytes(buf, vk + 0x14, name);
+
+        if (data == null)
+        {
+            putDWord(buf, vk + 0x04, 0x80000000);
+        }
+        else if (data.length <= 4)
+        {
+            putDWord(buf, vk + 0x04, 0x80000000 | data.length);
+            putBytes(buf, vk + 0x08, data);
+        }
+        else
+        {
+            int d = allocate(data.length);
+            putBytes(buf, d + 4, data);
+            putDWord(buf, vk + 0x04, data.length);
+            putDWord(buf, vk + 0x08, d);
+        }
+
+        return me;
+    }
+
+    private int writeList(int[] children, List<Key> keys)
+    {
+        if (indexRootChunk <= 0 || children.length <= indexRootChunk)
+            return writeLeaf(children, keys, 0, children.length);
+
+        int lists = (children.length + indexRootChunk - 1) / indexRootChunk;
+        int[] leaves = new int[lists];
+        for (int i = 0; i < lists; i++)
+        {
+            int from = i * indexRootChunk;
+            leaves[i] = writeLeaf(children, keys, from, Math.min(children.length, from + indexRootChunk));
+        }
+
+        int ri = allocate(4 + (lists * 4));
+        putBytes(buf, ri + 4, "ri".getBytes());
+        putWord(buf, ri + 6, lists);
+        for (int i = 0; i < lists; i++)
+            putDWord(buf, ri + 8 + (i * 4), leaves[i]);
+        return ri;
+    }
+
+    private int writeLeaf(int[] children, List<Key> keys, int from, int to)
+    {
+        int count = to - from;
+        int stride = (listType == LI) ? 4 : 8;
+        int leaf = allocate(4 + (count * stride));
+
+        putWord(buf, leaf + 4, listType);
+        putWord(buf, leaf + 6, count);
+
+        for (int i = 0; i < count; i++)
+        {
+            int entry = leaf + 8 + (i * stride);
+            String name = keys.get(from + i).name;
+            putDWord(buf, entry, children[from + i]);
+
+            if (listType == LF)
+            {
+                byte[] hint = latin1(name);
+                for (int h = 0; h < 4 && h < hint.length; h++)
+                    buf[entry + 4 + h] = hint[h];
+            }
+            else if (listType == LH)
+            {
+                putDWord(buf, entry + 4, SubkeyList.hash(name));
+            }
+        }
+
+        return leaf;
+    }
+
+    /**
+     * allocates a used cell of at least len data bytes
+     * @return hbin relative offset of the cell (its size field)
+     */
+    private int allocate(int len)
+    {
+        int size = (len + 4 + 7) & ~7;
+
+        if (used + size > hbinStart + hbinSize())
+        {
+            closeHbin();
+            startHbin(Math.max(HBIN_SIZE, (size + HBIN_HEADER + HBIN_SIZE - 1) & ~(HBIN_SIZE - 1)));
+        }
+
+        int cell = used;
+        putDWord(buf, cell, -size);
+        used += size;
+        return cell;
+    }
+
+    private int hbinSize()
+    {
+        return getDWord(buf, hbinStart + 0x08);
+    }
+
+    private void startHbin(int size)
+    {
+        hbinStart = used;
+        ensure(hbinStart + size);
+        putBytes(buf, hbinStart, "hbin".getBytes());
+        putDWord(buf, hbinStart + 0x04, hbinStart);
+        putDWord(buf, hbinStart + 0x08, size);
+        putQWord(buf, hbinStart + 0x14, TIMESTAMP);
+        used = hbinStart + HBIN_HEADER;
+    }
+
+    private void closeHbin()
+    {
+        int end = hbinStart + hbinSize();
+        if (end > used)
+            putDWord(buf, used, end - used);    // positive size marks a free cell
+        used = end;
+    }
+
+    private void ensure(int size)
+    {
+        if (size <= buf.length)
+            return;
+
+        byte[] bigger = new byte[Math.max(size, buf.length * 2)];
+        System.arraycopy(buf, 0, bigger, 0, used);
+        buf = bigger;
+    }
+
+    static byte[] utf16(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-16LE");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] latin1(String s)
+    {
+        try
+        {
+            return s.getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int getDWord(byte[] b, int ofs)
+    {
+        return (b[ofs] & 0xFF) | ((b[ofs + 1] & 0xFF) << 8) | ((b[ofs + 2] & 0xFF) << 16) | ((b[ofs + 3] & 0xFF) << 24);
+    }
+
+    static void putWord(byte[] b, int ofs, int v)
+    {
+        b[ofs] = (byte)v;
+        b[ofs + 1] = (byte)(v >> 8);
+    }
+
+    static void putDWord(byte[] b, int ofs, int v)
+    {
+        putWord(b, ofs, v);
+        putWord(b, ofs + 2, v >> 16);
+    }
+
+    static void putQWord(byte[] b, int ofs, long v)
+    {
+        putDWord(b, ofs, (int)v);
+        putDWord(b, ofs + 4, (int)(v >>> 32));
+    }
+
+    static void putBytes(byte[] b, int ofs, byte[] src)
+    {
+        System.arraycopy(src, 0, b, ofs, src.length);
+    }
+}
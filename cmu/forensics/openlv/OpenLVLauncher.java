@@ -30,6 +30,16 @@ import javax.swing.*;
 
 import cmu.forensics.mbr.MasterBootRecord;
 import cmu.forensics.registry.RegistryParser;
+import cmu.forensics.registry.HiveSession;
+import cmu.forensics.registry.PasswordClearer;
+import cmu.forensics.registry.PasswordClearResult;
+import cmu.forensics.registry.Hive;
+import cmu.forensics.registry.HiveChange;
+import cmu.forensics.registry.HiveDiff;
+import cmu.forensics.registry.BootVolume;
+import cmu.forensics.registry.HiveEditor;
+import cmu.forensics.registry.HiveValidator;
+import cmu.forensics.registry.RegMergeFile;
 import java.awt.*;
 import java.awt.event.*;
 
@@ -2562,12 +2572,23 @@ System.out.println("incoming " + userChosenGuestOS);
 				    }                                                             
 				}                                                                
 
+				//one set of parsed hives and derived keys for both kinds of password clearing
+				HiveSession hiveSession = null;
+				if(clearPasswords || (enableAdvanced && clearDomainPasswords))
+				{
+				    if((hiveSession = openHiveSession(os)) == null)
+				    {
+					postError("Error Clearing Logon Passwords. Uncheck The Clear Passwords Box And Try Again.");
+					return null;
+				    }
+				}
+
 				if(enableAdvanced){
 					if(clearDomainPasswords)   //user selected blank out all logon passwords                
 					{                                                                
 					    //modify DCC to clear passwords
 					    String[] dusersCleared = null;
-					    if((dusersCleared = clearDomainPasswords(os, mountDriveLetter, outputDir, baseFileName)) != null)                            
+					    if((dusersCleared = clearDomainPasswords(os, hiveSession, outputDir, baseFileName)) != null)                            
 					    {                                                             
 						postOutput("Passwords cleared for the following Domain users: " + endL);
 						StringBuffer sb = new StringBuffer();
@@ -2579,6 +2600,7 @@ System.out.println("incoming " + userChosenGuestOS);
 					    else                                                          
 					    {                                                             
 						postError("Error Clearing Cached Domain Logon Passwords. Uncheck The Clear Passwords Box And Try Again.");    
+						hiveSession.close();
 						//return false;
 						return null;                                                 
 					    }                                                             
@@ -2588,7 +2610,7 @@ System.out.println("incoming " + userChosenGuestOS);
 				{                                                                
 				    //modify SAM file to clear passwords
 				    String[] usersCleared = null;
-				    if((usersCleared = clearLocalPasswords(os, mountDriveLetter, outputDir, baseFileName)) != null)                            
+				    if((usersCleared = clearLocalPasswords(os, hiveSession, outputDir, baseFileName)) != null)                            
 				    {                                                             
 					postOutput("Passwords cleared for the following Local users: " + endL);
 					StringBuffer sb = new StringBuffer();
@@ -2600,10 +2622,14 @@ System.out.println("incoming " + userChosenGuestOS);
 				    else                                                          
 				    {                                                             
 					postError("Error Clearing Logon Passwords. Uncheck The Clear Passwords Box And Try Again.");    
+					hiveSession.close();
 					//return false;
 					return null;                                                 
 				    }                                                             
 				}                                                                
+
+				if(hiveSession != null)
+				    hiveSession.close();
 				/*##########end-gov##########*/       
 
 				if(!isOriginalNT)
@@ -2646,31 +2672,43 @@ System.out.println("incoming " + userChosenGuestOS);
 					return null;
 				    }
 
-				    if(loadSystemHive(systemHiveLoc))   //load the image system hive into local system registry
-				    {
-					postOutput("System Hive Loaded" + endL);
-				    }
-				    else
+				    //the system hive is edited offline, straight in the snapshot
+				    if(!new File(systemHiveLoc).isFile())
 				    {
 					postError("System Hive Load Failed");
 					//return false;
 					return null;
 				    }
+				    Hive systemHive = new Hive(new File(systemHiveLoc));
 
-				    int currentControlSetVal = getCurrentControlSet();
-				    if(currentControlSetVal == -1)   //failed to extract control set
-					postError("Failed to extract CurrentControlSet value from guest registry");
-				    else
-					postOutput("Extracted Current Control Set Value: " + currentControlSetVal + endL);
+				    //merge registry entries into the hive file
+				    String mergeTemplateLoc = InternalConfigStrings.getString("OpenLVLauncher.MergeFileLocation");
+				    File journal = new File(outputDir + "\\" + baseFileName + ".SYSTEM.UNDO");
+				    long mergeStart = System.currentTimeMillis();
+				    boolean merged = false;
 
+				    try
+				    {
+					int currentControlSetVal = RegistryParser.getCurrentControlSet(systemHive);
+					if(currentControlSetVal == -1)   //failed to extract control set
+					    postError("Failed to extract CurrentControlSet value from guest registry");
+					else
+					    postOutput("Extracted Current Control Set Value: " + currentControlSetVal + endL);
 
-				    //String macAddress = getMACAddress(currentControlSetVal);
-				    //postOutput("MAC: " + macAddress);
 
-				    //merge registry entries to loaded hive
-				    String mergeTemplateLoc = InternalConfigStrings.getString("OpenLVLauncher.MergeFileLocation");
+					//String macAddress = getMACAddress(currentControlSetVal);
+					//postOutput("MAC: " + macAddress);
+
+					merged = makeChangesToRegistry(systemHive, mergeTemplateLoc, currentControlSetVal, journal);
+				    }
+				    finally
+				    {
+					//release the mapping of the snapshot, or it cannot be unmounted
+					systemHive.close();
+				    }
+				    logHiveChanges(new File(systemHiveLoc), journal, mergeStart);
 
-				    if(makeChangesToRegistry(mergeTemplateLoc, currentControlSetVal))   
+				    if(merged)   
 				    {
 					postOutput("Critical Device Database Updated" + endL);
 				    }
@@ -2684,21 +2722,6 @@ System.out.println("incoming " + userChosenGuestOS);
 
 				if(isFullDisk)   //if we are dealing with a full disk
 				{
-				    if(!isOriginalNT)
-				    {
-					//unload system hive
-					if(unloadHive("SYSTEM"))   //unload the image system hive from local machine' registry
-					{
-					    postOutput("System Hive Unloaded" + endL);
-					}
-					else
-					{
-					    postError("System Hive Unload Failed");
-					    //return false;
-					    return null;
-					}
-				    }
-
 				    //unmount snapshot
 				    if(unmountSnapshot(mountDriveLetter, false))   //unmount the snapshot for image from local machine FS
 				    {
@@ -2712,7 +2735,7 @@ System.out.println("incoming " + userChosenGuestOS);
 				    }
 				}
 				else   //partition only, so keep mounted snapshot open -- other things need to be done for partitions later
-				    postOutput("Keeping mounted snapshot open and registry loaded for partition" + endL);
+				    postOutput("Keeping mounted snapshot open for partition" + endL);
 			    }
 			    else
 			    {
@@ -2929,28 +2952,21 @@ System.out.println("incoming " + userChosenGuestOS);
          * Precondition: Snapshot is already mounted 
          * 
          * @param os and OperatingSystem instance
-         * @param destDriveLetter this parameter is actually not used, but remains for historical reasons and uniformity
+         * @param session the hives of the image
 	 * @param outputDir output directory
 	 * @param baseFileName the base file name for dumped hashes
          * @return a list of user accounts that had passwords cleared, null on failure
          */
-        private static String[] clearLocalPasswords(OperatingSystem os, String destDriveLetter, String outputDir, String baseFileName)
+        private static String[] clearLocalPasswords(OperatingSystem os, HiveSession session, String outputDir, String baseFileName)
         {
-            //       String baseOS = getBaseOS(OS);
-            String samLoc;
-	    String sysLoc;
-
-            String systemRoot = os.getSystemRoot();
-            if(systemRoot != null){
-                sysLoc = systemRoot + "\\system32\\config\\SYSTEM";
-                samLoc = systemRoot + "\\system32\\config\\SAM";
-	    }else
-                return null;   //unhandled os selected
-
-            myLogWriter.log("********************SYSTEM Location: " + sysLoc);
-            myLogWriter.log("SAM Location: " + samLoc);
-
-            return RegistryParser.clearLocalPasswords(sysLoc,samLoc,outputDir,baseFileName);
+            myLogWriter.log("********************SYSTEM Location: " + session.getSystemFile());
+            myLogWriter.log("SAM Location: " + session.getSamFile());
+
+            File journal = new File(outputDir + "\\" + baseFileName + ".SAM.UNDO");
+            long start = System.currentTimeMillis();
+            PasswordClearResult result = new PasswordClearer(session).clearLocalPasswords(journal);
+            logHiveChanges(session.getSamFile(), journal, start);
+            return exportClearedPasswords(result, outputDir + "\\" + baseFileName + ".SAMDUMP");
         }
         /*##########end-gov##########*/
 
@@ -2962,30 +2978,108 @@ System.out.println("incoming " + userChosenGuestOS);
          * Precondition: Snapshot is already mounted 
          * 
          * @param os and OperatingSystem instance
-         * @param destDriveLetter this parameter is actually not used, but remains for historical reasons and uniformity
+         * @param session the hives of the image
 	 * @param outputDir output directory
 	 * @param baseFileName the base file name for dumped hashes
          * @return a list of user accounts that had passwords cleared, null on failure
          */
-        private static String[] clearDomainPasswords(OperatingSystem os, String destDriveLetter, String outputDir, String baseFileName)
+        private static String[] clearDomainPasswords(OperatingSystem os, HiveSession session, String outputDir, String baseFileName)
         {
-            String sysLoc;
-            String secLoc;
+            myLogWriter.log("SYSTEM Location: " + session.getSystemFile());
+            myLogWriter.log("SECURITY Location: " + session.getSecurityFile());
+
+            File journal = new File(outputDir + "\\" + baseFileName + ".SECURITY.UNDO");
+            long start = System.currentTimeMillis();
+            PasswordClearResult result = new PasswordClearer(session).clearDomainPasswords(journal);
+            logHiveChanges(session.getSecurityFile(), journal, start);
+            return exportClearedPasswords(result, outputDir + "\\" + baseFileName + ".MSCASHDUMP");
+        }
+        /*##########end-gov##########*/
 
+        /*##########start-gov##########*/
+        /** 
+         * Reports the warnings of a password clearing run and writes the hashes
+         * it exported to the dump file
+         * 
+         * @param result the password clearing run
+	 * @param dumpLoc the .SAMDUMP or .MSCASHDUMP file
+         * @return a list of user accounts that had passwords cleared, null on failure
+         */
+        private static String[] exportClearedPasswords(PasswordClearResult result, String dumpLoc)
+        {
+            String[] warnings = result.getWarnings();
+            for(int i = 0; i < warnings.length; i++)
+                postOutput(warnings[i] + endL);
+
+            if(!result.hasAccounts())
+                return null;
+
+            try
+            {
+                result.writeRecords(new File(dumpLoc));
+            }
+            catch(IOException ioe)
+            {
+                postError("I/O Problem Writing Hash Dump " + dumpLoc + ": " + ioe.toString());
+                return null;
+            }
+
+            return result.getAccounts();
+        }
+        /*##########end-gov##########*/
+
+        /*##########start-gov##########*/
+        /** 
+         * Opens the SYSTEM, SAM and SECURITY hives of an image as one session so
+         * that clearing local and domain passwords shares the parsed hives and
+         * the keys derived from them
+         * 
+         * Precondition: Snapshot is already mounted 
+         * 
+         * @param os and OperatingSystem instance
+         * @return a session over the image's hives, null if the OS has no system root
+         */
+        private static HiveSession openHiveSession(OperatingSystem os)
+        {
             String systemRoot = os.getSystemRoot();
-            if(systemRoot != null){
-                sysLoc = systemRoot + "\\system32\\config\\SYSTEM";
-                secLoc = systemRoot + "\\system32\\config\\SECURITY";
-	    }else
+            if(systemRoot == null)
                 return null;   //unhandled os selected
 
-            myLogWriter.log("SYSTEM Location: " + sysLoc);
-            myLogWriter.log("SECURITY Location: " + secLoc);
-
-            return RegistryParser.clearDomainPasswords(sysLoc,secLoc,outputDir,baseFileName);
+            String configDir = systemRoot + "\\system32\\config\\";
+            return new HiveSession(configDir + "SYSTEM", configDir + "SAM", configDir + "SECURITY");
         }
         /*##########end-gov##########*/
 
+        /** 
+         * Logs the keys and values a patch step changed in a hive, read back
+         * from the undo journal the step wrote
+         * 
+         * @param hiveFile the patched hive
+         * @param journal the undo journal of the step
+         * @param since when the step started, older journals are left from an earlier run
+         */
+        private static void logHiveChanges(File hiveFile, File journal, long since)
+        {
+            if(!journal.isFile() || journal.lastModified() < since - 2000)   //nothing patched, allow for FAT timestamps
+                return;
+
+            try
+            {
+                java.util.List<HiveChange> changes = HiveDiff.compare(hiveFile, journal);
+                myLogWriter.log(hiveFile + ": " + changes.size() + " registry changes");
+                for(int i = 0; i < changes.size(); i++)
+                    myLogWriter.log("\t" + changes.get(i));
+            }
+            catch(IOException ioe)
+            {
+                myLogWriter.log("Could not diff " + hiveFile + " against " + journal + ": " + ioe);
+            }
+            catch(RuntimeException re)
+            {
+                myLogWriter.log("Could not diff " + hiveFile + " against " + journal + ": " + re);
+            }
+        }
+
         /**
          * Calls an external process and posts the stderr messages to the output window
          * 
@@ -3190,20 +3284,19 @@ System.out.println("incoming " + userChosenGuestOS);
         }
 
         /**
-         * Applies the contents of the merge file (*.reg) to the registry to make appropriate changes
+         * Applies the contents of the merge file (*.reg) to the system hive of the image to make appropriate changes
          * to the critical device database so that the intelide.sys driver is loaded on boot to prevent
-         * the 0x7b bluescreen boot errors. 
+         * the 0x7b bluescreen boot errors. The hive file is edited offline, nothing is loaded into the
+         * local system registry.
          * 
-         * Precondition: system hive from image is already loaded into local system registry under HKLM\NEWSYSTEM
-         *
-         * @param mergeTemplatLoc the path to the .reg file for import into the mounted hive
+         * @param systemHive the system hive from the image, committed to disk on success
+         * @param mergeTemplatLoc the path to the .reg file whose keys are rooted at HKLM\NEWSYSTEM
          * @param currentControlSetVal the control sent in use by the OS
+         * @param journal file to save the original bytes of the hive to, so the merge can be undone
          * @return true on success, false otherwise
          */
-        private static boolean makeChangesToRegistry(String mergeTemplateLoc, int currentControlSetVal)
+        private static boolean makeChangesToRegistry(Hive systemHive, String mergeTemplateLoc, int currentControlSetVal, File journal)
         {      
-            File tempMergeFile = null;
-
             //read in merge template line by line
             StringBuffer mergeTemplateBuffer = new StringBuffer();
             try
@@ -3221,28 +3314,43 @@ System.out.println("incoming " + userChosenGuestOS);
                 //replace the control set placeholder with the actual current control set
                 String finalMergeFileString = mergeTemplateBuffer.toString().replaceAll("<CurrentControlSet>", controlSetString);
 
-                //write modified merge file contents to temp merge file
-                tempMergeFile = new File(mergeTemplateLoc + ".temp");
-                FileWriter outWriter = new FileWriter(tempMergeFile);
-                outWriter.write(finalMergeFileString);
-                outWriter.close();
+                RegMergeFile merge = RegMergeFile.parse(finalMergeFileString);
+
+                //a dirty hive whose logs could not be replayed is edited as it is on disk
+                if(systemHive.getRecoveryProblem() != null)
+                    myLogWriter.log("Problem: " + systemHive.getRecoveryProblem());
+
+                //do not start editing a hive that is already damaged
+                HiveValidator validator = new HiveValidator(systemHive);
+                boolean valid = validator.validate(Runtime.getRuntime().availableProcessors());
+                for(int i = 0; i < validator.getWarnings().size(); i++)
+                    myLogWriter.log("Warning: " + systemHive.getFile() + ": " + validator.getWarnings().get(i));
+                if(!valid)
+                {
+                    postError("The system hive is damaged. Guest registry could not be updated" + endL + validator.getProblems().get(0));
+                    return false;
+                }
+
+                HiveEditor editor = new HiveEditor(systemHive);
+                int values = merge.apply(editor, "HKEY_LOCAL_MACHINE\\NEWSYSTEM");
+                editor.commit(journal);
+
+                myLogWriter.log("Merged " + values + " values into " + systemHive.getFile());
             }
             catch(IOException ioe)
             {
-                postError("I/O Error while creating merge file from template. Guest registry could not be updated" + endL + ioe.getMessage());
+                systemHive.discard();
+                postError("I/O Error while merging template into the system hive. Guest registry could not be updated" + endL + ioe.getMessage());
                 return false;         
             }
-
-            //run temporary merge file
-            String[] cmd = new String[3];
-            cmd[0] = "regedit";
-            cmd[1] = "/s";   
-            cmd[2] = tempMergeFile.getAbsolutePath();
-
-            String stdOut = callExternalProcess(cmd);
-            tempMergeFile.delete();  //delete temporary merge file
-            if(stdOut == null)
+            catch(RuntimeException re)
+            {
+                //rejected merge value or damaged hive, leave the hive as it was
+                systemHive.discard();
+                postError("Error while merging template into the system hive. Guest registry could not be updated" + endL + re);
                 return false;
+            }
+
             return true;
         }
 
@@ -3939,36 +4047,6 @@ System.out.println("incoming " + userChosenGuestOS);
             }
         }
 
-        /**
-         * determines the current control set in use in the registry
-         *
-         * Precondition: Registry is already loaded and will be unloaded after method returns 
-         * return null means failure querying registry
-         *
-         * @return the current control set
-         */
-        private static int getCurrentControlSet()
-        {
-            //search registry key HKLM\NEWSYSTEM\Select\Current to find the current control set number
-            String regData = queryRegistry("HKLM\\NEWSYSTEM\\Select",
-                    "Current",
-                    "REG_DWORD");
-
-            if(regData != null)
-            {
-                try
-                {
-                    return  Integer.parseInt(regData.substring(2,regData.length()), 16);    //chop off hex value are convert to int;
-                }
-                catch(NumberFormatException nfe)
-                {
-                    postError("CurrentControlSet is not an integer");
-                    return -1;
-                }
-            } 
-            return -1;         //some sort of failure to extract value
-        }
-
         /**
          * Extracts the disk serial number from the registry
          * 
@@ -3986,113 +4064,57 @@ System.out.println("incoming " + userChosenGuestOS);
         private static int[] getNTDriveSerialNum(String vmdkLoc, boolean useExistingSnapshot, OperatingSystem os, int ntPartitionIndex)
         {
             String mountDriveLetter = MOUNT_DRIVE_LETTER; //ExternalConfigStrings.getString("Configuration.DriveMountLetter");
-            String bootDriveLetter;
-            int[] serialNum = {0,0,0,0};
-            boolean worked;
+            int[] serialNum = null;
+            boolean mounted = true;
 
-            //if there is a snapshot we need to mount the snapshot and load registry because it was not done during prepareForLaunch
+            //if there is a snapshot we need to mount it because it was not done during prepareForLaunch
             if(useExistingSnapshot)
             {
                 //mount snapshot to access registry
-                worked = mountSnapshot(mountDriveLetter, vmdkLoc, ntPartitionIndex);   
+                mounted = mountSnapshot(mountDriveLetter, vmdkLoc, ntPartitionIndex);   
 
-                if(!worked)
-                {
+                if(!mounted)
                     postError("Snapshot Mount For Serial Number Failed");
-                    serialNum = null;
-                }
                 else
                     postOutput("Mounted Snapshot For Disk Serial Number: " + endL);
+            }
 
-                //load system hive
-
-                String systemHiveLoc = null;
-                String systemDir = os.getSystemRoot();
-                if(systemDir != null)
-                    systemHiveLoc = systemDir + "\\system32\\config\\system";
-                else
-                {
-                    postError("Could not locate system hive for serial number extraction");
-                    serialNum = null;
-                }
-
+            String systemDir = os.getSystemRoot();
+            if(mounted && systemDir == null)
+                postError("Could not locate system hive for serial number extraction");
+            else if(mounted)
+            {
+                //read control set, boot drive letter and MountedDevices entry straight from the hive file
+                String systemHiveLoc = systemDir + "\\system32\\config\\system";
                 myLogWriter.log("System Hive Loc: " + systemHiveLoc);
 
-                if(serialNum != null && systemHiveLoc != null)   //we know it is either an XP or 2K aliased OS
-                    worked = loadSystemHive(systemHiveLoc);
-
-                if(!worked)
+                BootVolume bootVolume = null;
+                if(new File(systemHiveLoc).isFile())
                 {
-                    postError("System Hive Load For Serial Number Failed");
-                    serialNum = null;
+                    Hive systemHive = new Hive(new File(systemHiveLoc));
+                    bootVolume = RegistryParser.getBootVolume(systemHive);
+                    systemHive.close();
                 }
                 else
-                    postOutput("Loaded System Hive For Disk Serial Number: " + endL);
-            }
+                    postError("System Hive For Serial Number Not Found");
 
-            //get current control set value to pass to boot drive letter
-            int currentControlSetVal = getCurrentControlSet();
-            if(currentControlSetVal == -1)   //failed to extract control set
-                postError("Failed to extract CurrentControlSet value from guest registry necessary for extracting boot drive letter");
-            //       else
-            //          postOutput("Extracted Current Control Set Value: " + currentControlSetVal + endL);
-
-            //get registry key and parse out boot drive letter (mounted snapshot and registry should be open and loaded already from prepareForLaunch())
-            bootDriveLetter = getBootDriveLetter(currentControlSetVal);   
-
-            if(bootDriveLetter != null)
-            {
-                postOutput("Got bootable partition drive letter mapping: " + bootDriveLetter + endL);
-
-
-                //use boot drive letter to get serial number out of HKLM\NEWSYSTEM\MountedDevices\DosDevices
-                String searchStr = "\\DosDevices\\" + bootDriveLetter.toUpperCase() + ":";
-                String type = "REG_BINARY";
-                String regData = queryRegistry("HKLM\\NEWSYSTEM\\MountedDevices\\",
-                        searchStr,
-                        type);
-
-                String diskSerialString = "-1";
-
-                if(regData != null)
+                if(bootVolume != null)
                 {
-                    diskSerialString = regData.substring(0,8);    //chop off first 8 characters (4 hex bytes)
-                    myLogWriter.log("Disk Serial Number: " + diskSerialString);
-
-                    //convert hex string to integer array
-                    long val = Long.parseLong( diskSerialString, 16 );
-                    serialNum[0] = (int) ( ( val >>> 24 ) & 0xff );
-                    serialNum[1] = (int) ( ( val >>> 16 ) & 0xff );
-                    serialNum[2] = (int) ( ( val >>> 8 )  & 0xff );
-                    serialNum[3] = (int) ( ( val >>> 0 )  & 0xff );
+                    postOutput("Got bootable partition drive letter mapping: " + bootVolume.getDriveLetter() + endL);
+                    myLogWriter.log("Boot Volume: " + bootVolume);
 
+                    serialNum = bootVolume.getDiskSerialNum();
                     postOutput("Disk Serial Number Extracted Successfully " + endL);
                 }
                 else
-                {
-                    postError("Bootable Drive Letter Does Not Match Any Mounted Device Entries");
-                    serialNum = null;
-                }
-            }
-            else
-            {
-                postError("Failed to get bootable partition's drive letter mapping");
-                serialNum = null;
+                    postError("Failed to match bootable partition's drive letter to a Mounted Device entry");
             }
 
-            //unload system hive
-            worked = unloadHive("SYSTEM");
-
-            if(!worked)
-            {
-                postError("System Hive Unload For Serial Number Failed");
-                serialNum = null;
-            }
-            else
-                postOutput("System Hive Unloaded Successfully " + endL);
+            if(!mounted)
+                return null;
 
             //unmount snapshot
-            worked = unmountSnapshot(mountDriveLetter, false);   
+            boolean worked = unmountSnapshot(mountDriveLetter, false);   
 
             if(!worked)
             {
@@ -4105,31 +4127,6 @@ System.out.println("incoming " + userChosenGuestOS);
             return serialNum;
         }
 
-        /**
-         * determine the drive letter for the bootable parition
-         *
-         * Precondition: Registry is already loaded and will be unloaded after method returns 
-         * return null means failure querying registry
-         *
-         * @param controlSetVal the control set in use in the registry
-         * @return the drive letter, as a string, null on error
-         */
-        private static String getBootDriveLetter(int controlSetVal)
-        {
-            //pad control set value in string with 3 chars
-            String controlSetString = "ControlSet"  + new Formatter().format("%03d", controlSetVal).toString();
-
-            //search registry key HKLM\NEWSYSTEM\<CurrentControlSet>\Control\ContentIndex\DllsToRegister to find bootable drive letter
-            String regData = queryRegistry("HKLM\\NEWSYSTEM\\" + controlSetString + "\\Control\\ContentIndex",
-                    "DllsToRegister",
-                    "REG_MULTI_SZ");
-
-            if(regData != null)
-                return  regData.substring(0,1);    //chop off the first character (drive letter);
-
-            return null;         //unknown string found
-        }
-
         /**
          * determine guests original MAC address
          *
@@ -23,6 +23,9 @@
 package cmu.forensics.openlv;
 
 import java.io.File;
+
+import cmu.forensics.registry.Hive;
+import cmu.forensics.registry.RegistryParser;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
@@ -45,6 +48,9 @@ public class OperatingSystem
     private String vmGuestOS;
     private String publicOSName;
     private String systemRoot;
+    private String currentVersion;      //CurrentVersion from the software hive (eg 5.1), null if not read
+    private String currentBuild;        //CurrentBuildNumber from the software hive, null if not read
+    private String csdVersion;          //service pack (eg Service Pack 2), null if none
     private static HashMap  prodNameToGuestOSMap = new HashMap();  //maps windows product name (from registry) to its corresponding vmware guestos name
     private int partitionID;
 
@@ -129,29 +135,52 @@ public class OperatingSystem
 
 		    if(!detectedWin9xOrLinux)  //xp,2k,2k3,nt, etc
 		    {
-			//load software hive
-			if(OpenLVLauncher.loadSoftwareHive(softHiveLoc))  //load the image software hive into local system registry
+			//parse the software hive straight from the image, nothing is loaded into the local registry
+			Hive softHive = new Hive(softwareHive);
+			String tempSystemRoot;
+			try
 			{
-			    OpenLVLauncher.postOutput("Software Hive Loaded" + OpenLVLauncher.endL);
+			    readVersionInfo(softHive);
+
+			    if(autoDetect)  //if autodetect os is enabled, query registry for it
+			    {
+				this.publicOSName = queryRegistryForOSName(softHive);
+				if(this.publicOSName == null)  //software hive was found, but couldnt find ProductName key (Windows NT has this issue)
+				    this.publicOSName = "Microsoft Windows NT";  
+				//get guest os name
+				this.vmGuestOS = getClosestGuestOSMapping();  //using public name, get closest vmware guest osname
+			    }
+			    else  //user provided os
+			    {
+				this.vmGuestOS = guestOSName;      //set vmware guest os value that user set
+				this.publicOSName = getFullOSNameForGuestOS(guestOSName);  //set corresponding full os name
+			    }
+
+			    //get the system root directory
+			    StringBuffer regPath = new StringBuffer("\\Microsoft\\Windows");
+
+			    //for xp, 2k, 2k3, or orginial nt, check HKLM\SOFTWARE\Microsoft\WindowsNT\\CurrentVersion (otherwise just Windows)
+			    if(isNTKernel(getVmGuestOS()) || getBaseOS(getVmGuestOS()).equalsIgnoreCase("nt"))  
+				regPath.append(" NT");
+			    regPath.append("\\CurrentVersion\\SystemRoot");
+
+			    tempSystemRoot = RegistryParser.getStringValue(softHive, regPath.toString());
 			}
-			else
+			catch(RuntimeException re)  //damaged hive, parsing ran off the end of a cell
 			{
-			    throw new OpenLVException("Software Hive Load Failed");
+			    throw new OpenLVException("Could Not Read Software Hive: " + re);
 			}
-
-			if(autoDetect)  //if autodetect os is enabled, query registry for it
+			finally
 			{
-			    this.publicOSName = queryRegistryForOSName(softHiveLoc);
-			    if(this.publicOSName == null)  //software hive was found, but couldnt find ProductName key (Windows NT has this issue)
-				this.publicOSName = "Microsoft Windows NT";  
-			    //get guest os name
-			    this.vmGuestOS = getClosestGuestOSMapping();  //using public name, get closest vmware guest osname
-			}
-			else  //user provided os
-			{
-			    this.vmGuestOS = guestOSName;      //set vmware guest os value that user set
-			    this.publicOSName = getFullOSNameForGuestOS(guestOSName);  //set corresponding full os name
+			    softHive.close();  //release the mapping so the snapshot can be unmounted
 			}
+
+			if(tempSystemRoot == null || tempSystemRoot.trim().length() < 2)
+			    throw new OpenLVException("Could Not Read SystemRoot From Software Hive");
+
+			//change SystemRoot value to start with 'mountDriveLetter' rather than C: or whatever it is on the actual image
+			tempSystemRoot = tempSystemRoot.trim().substring(1,tempSystemRoot.trim().length());  //cut off drive letter (ie c)
+			this.systemRoot = mountDriveLetter + tempSystemRoot;  //add mount drive letter to rest of path
 		    }
 		    else  //detected win 9x
 		    {
@@ -160,32 +189,6 @@ public class OperatingSystem
 			return;  //no further processing needed
 		    }
 
-
-		    //get the system root directory
-		    StringBuffer regPath = new StringBuffer("HKLM\\NEWSOFTWARE\\Microsoft\\Windows");
-
-		    //for xp, 2k, 2k3, or orginial nt, check HKLM\SOFTWARE\Microsoft\WindowsNT\\CurrentVersion (otherwise just Windows)
-		    if(isNTKernel(getVmGuestOS()) || getBaseOS(getVmGuestOS()).equalsIgnoreCase("nt"))  
-			regPath.append(" NT");
-		    regPath.append("\\CurrentVersion");
-
-
-		    String tempSystemRoot = OpenLVLauncher.queryRegistry(regPath.toString(), "SystemRoot", "REG_SZ");
-
-		    //change SystemRoot value to start with 'mountDriveLetter' rather than C: or whatever it is on the actual image
-		    tempSystemRoot = tempSystemRoot.trim().substring(1,tempSystemRoot.trim().length());  //cut off drive letter (ie c)
-		    this.systemRoot = mountDriveLetter + tempSystemRoot;  //add mount drive letter to rest of path
-
-		    //unload software hive
-		    if(OpenLVLauncher.unloadHive("SOFTWARE"))  //unload the image software hive from local machine' registry
-		    {
-			OpenLVLauncher.postOutput("Software Hive Unloaded" + OpenLVLauncher.endL);
-		    }
-		    else
-		    {
-			throw new OpenLVException("Software Hive Unload Failed");
-		    }
-
 		}
 	}//REMOVE isVMWare()  TODO FIXME
         else  //not mountable filesystem type or win9x
@@ -290,20 +293,37 @@ public class OperatingSystem
      *  (the former is typically present on nt based systems whereas the latter
      *  is typically present on pre NT systems)
      *  
-     * @param softwareHiveLoc location on the mounted image of the software hive 
+     * @param softHive the software hive from the image
      * @return the ProductName value in the registry, or null on failure
      */
-    private String queryRegistryForOSName(String softwareHiveLoc)
+    private String queryRegistryForOSName(Hive softHive)
     {
-        String regData = OpenLVLauncher.queryRegistry("HKLM\\NEWSOFTWARE\\Microsoft\\Windows NT\\CurrentVersion", "ProductName", "REG_SZ");
+        String regData = RegistryParser.getStringValue(softHive, "\\Microsoft\\Windows NT\\CurrentVersion\\ProductName");
 
         if(regData == null)  //key could not be found -- probably a win9x image, so check that path for prod name
         {
-            regData = OpenLVLauncher.queryRegistry("HKLM\\NEWSOFTWARE\\Microsoft\\Windows\\CurrentVersion", "ProductName", "REG_SZ");
+            regData = RegistryParser.getStringValue(softHive, "\\Microsoft\\Windows\\CurrentVersion\\ProductName");
         }
         return regData;
     }
 
+    /**
+     * Reads CurrentVersion, CurrentBuildNumber (CurrentBuild on older systems) and CSDVersion
+     * from HKLM\SOFTWARE\Microsoft\Windows NT\CurrentVersion
+     *
+     * @param softHive the software hive from the image
+     */
+    private void readVersionInfo(Hive softHive)
+    {
+        String ntKey = "\\Microsoft\\Windows NT\\CurrentVersion\\";
+
+        currentVersion = RegistryParser.getStringValue(softHive, ntKey + "CurrentVersion");
+        currentBuild = RegistryParser.getStringValue(softHive, ntKey + "CurrentBuildNumber");
+        if(currentBuild == null)
+            currentBuild = RegistryParser.getStringValue(softHive, ntKey + "CurrentBuild");
+        csdVersion = RegistryParser.getStringValue(softHive, ntKey + "CSDVersion");
+    }
+
     /**
      * inspector for partitionID 
      * @return partitionID datamember
@@ -313,6 +333,33 @@ public class OperatingSystem
         return partitionID;
     }
 
+    /**
+     * inspector for currentVersion
+     * @return CurrentVersion from the software hive (eg 5.1), null if not read
+     */
+    public String getCurrentVersion()
+    {
+        return currentVersion;
+    }
+
+    /**
+     * inspector for currentBuild
+     * @return CurrentBuildNumber from the software hive, null if not read
+     */
+    public String getCurrentBuild()
+    {
+        return currentBuild;
+    }
+
+    /**
+     * inspector for csdVersion
+     * @return the service pack (eg Service Pack 2), null if none
+     */
+    public String getCSDVersion()
+    {
+        return csdVersion;
+    }
+
     /**
      * inspector for publicOSName
      * @return publicOSName datamember
@@ -0,0 +1,149 @@
+/*
+   Artifact.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * Artifact
+ * One finding of an ArtifactPlugin: the key it was read from, the time
+ * that key was last written and a list of named fields, in the order the
+ * plugin reported them.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class Artifact
+{
+    private String plugin;
+    private String hive;
+    private String path;
+    private long lastWritten;
+    private String[] fields;    // name, value, name, value, ...
+
+    /**
+     * @param plugin name of the plugin that found it
+     * @param hive name of the hive, as passed to ArtifactEngine.addHive
+     * @param path path of the key from the hive root
+     * @param lastWritten last written time of the key as a FILETIME
+     * @param fields field names and values, alternating
+     */
+    public Artifact(String plugin, String hive, String path, long lastWritten, String[] fields)
+    {
+        this.plugin = plugin;
+        this.hive = hive;
+        this.path = path;
+        this.lastWritten = lastWritten;
+        this.fields = fields;
+    }
+
+    /**
+     * inspector for the plugin name
+     * @return name of the plugin that found the artifact
+     */
+    public String getPlugin()
+    {
+        return plugin;
+    }
+
+    /**
+     * inspector for the hive name
+     * @return the name the hive was added to the engine under
+     */
+    public String getHive()
+    {
+        return hive;
+    }
+
+    /**
+     * inspector for the key path
+     * @return path of the key from the hive root
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * inspector for the last written time of the key
+     * @return the time as a FILETIME
+     */
+    public long getLastWritten()
+    {
+        return lastWritten;
+    }
+
+    /**
+     * number of fields
+     * @return the number of name and value pairs
+     */
+    public int getFieldCount()
+    {
+        return fields.length / 2;
+    }
+
+    /**
+     * inspector for a field name
+     * @param index field index, from 0 to getFieldCount() - 1
+     * @return the name
+     */
+    public String getFieldName(int index)
+    {
+        return fields[index * 2];
+    }
+
+    /**
+     * inspector for a field value
+     * @param index field index, from 0 to getFieldCount() - 1
+     * @return the value
+     */
+    public String getFieldValue(int index)
+    {
+        return fields[index * 2 + 1];
+    }
+
+    /**
+     * looks up a field by name
+     * @param name field name (case sensitive)
+     * @return the value of the first field called name, null if there is none
+     */
+    public String getField(String name)
+    {
+        for (int i = 0; i < fields.length; i += 2)
+        {
+            if (fields[i].equals(name))
+                return fields[i + 1];
+        }
+        return null;
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(plugin).append('\t').append(hive).append(path);
+        sb.append("\t0x").append(Long.toHexString(lastWritten));
+        for (int i = 0; i < fields.length; i += 2)
+            sb.append('\t').append(fields[i]).append('=').append(fields[i + 1]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+   ArtifactContext.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.util.List;
+
+/**
+ * ArtifactContext
+ * What an ArtifactPlugin sees of the walk when it is called back: the
+ * current key, lookups of the values of that key and a report method
+ * collecting the plugin's findings.  ArtifactEngine keeps one context per
+ * hive walk and moves it along with the walker, so a context (and any
+ * cursor or HiveValue it returns) is only valid during the call it was
+ * passed to.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class ArtifactContext
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Hive hive;
+    private String hiveName;
+    private HiveWalker walker;
+    private List<Artifact> found;
+    private ArtifactPlugin plugin;      // plugin being called, set by the engine before each call
+    private VK_Structure vk;            // scratch cursor for the value lookups
+    private HiveValue value;            // returned by getValue, reused
+
+    ArtifactContext(Hive hive, String hiveName, HiveWalker walker, List<Artifact> found)
+    {
+        this.hive = hive;
+        this.hiveName = hiveName;
+        this.walker = walker;
+        this.found = found;
+        vk = new VK_Structure(hive);
+        value = new HiveValue(hive);
+    }
+
+    void setPlugin(ArtifactPlugin plugin)
+    {
+        this.plugin = plugin;
+    }
+
+    /**
+     * inspector for the hive name
+     * @return the name the hive was added to the engine under
+     */
+    public String getHiveName()
+    {
+        return hiveName;
+    }
+
+    /**
+     * inspector for the path of the current key
+     * @return path from the hive root, "" for the root, "\Sub\Key" below it
+     */
+    public String getPath()
+    {
+        return walker.getPath();
+    }
+
+    /**
+     * inspector for the current key
+     * @return cursor on the nk structure of the current key
+     */
+    public NK_Structure getKey()
+    {
+        return walker.getKey();
+    }
+
+    /**
+     * decodes the name of the current key
+     * @return the key name in its original case
+     */
+    public String getKeyName()
+    {
+        return walker.getKey().getName();
+    }
+
+    /**
+     * inspector for the last written time of the current key
+     * @return the time as a FILETIME
+     */
+    public long getLastWritten()
+    {
+        return walker.getKey().getLastWritten();
+    }
+
+    /**
+     * looks up a value of the current key
+     * @param name value name (case insensitive), @ for the nameless default value
+     * @return the value, reused by the next call, null if the key has no such value
+     */
+    public HiveValue getValue(String name)
+    {
+        int vkOfs = RegistryParser.findValue(hive, walker.getKey(), vk, name);
+        if (vkOfs == 0)
+            return null;
+
+        value.setOffset(vkOfs);
+        return value;
+    }
+
+    /**
+     * decodes a string value of the current key
+     * @param name value name
+     * @return the string, null if the key has no such value
+     */
+    public String getString(String name)
+    {
+        HiveValue v = getValue(name);
+        return (v == null) ? null : v.getString();
+    }
+
+    /**
+     * decodes a REG_DWORD value of the current key
+     * @param name value name
+     * @param defaultValue returned when the value is missing or too short
+     * @return the value
+     */
+    public int getDWord(String name, int defaultValue)
+    {
+        HiveValue v = getValue(name);
+        return (v == null) ? defaultValue : v.getDWord(defaultValue);
+    }
+
+    /**
+     * decodes a REG_MULTI_SZ value of the current key
+     * @param name value name
+     * @return the strings, null if the key has no such value
+     */
+    public String[] getMultiString(String name)
+    {
+        HiveValue v = getValue(name);
+        return (v == null) ? null : v.getMultiString();
+    }
+
+    /**
+     * renders a value of the current key as text according to its type
+     * @param name value name
+     * @return the text, null if the key has no such value
+     */
+    public String getText(String name)
+    {
+        HiveValue v = getValue(name);
+        return (v == null) ? null : toText(v);
+    }
+
+    /**
+     * renders a value as text according to its type: strings as they are,
+     * REG_MULTI_SZ joined with ", ", DWORDs and QWORDs in decimal and
+     * anything else as hex
+     * @param v the value
+     * @return the text
+     */
+    public static String toText(HiveValue v)
+    {
+        switch (v.getType())
+        {
+            case HiveValue.REG_SZ:
+            case HiveValue.REG_EXPAND_SZ:
+            case HiveValue.REG_LINK:
+                return v.getString();
+
+            case HiveValue.REG_MULTI_SZ:
+                String[] strings = v.getMultiString();
+                StringBuffer sb = new StringBuffer();
+                for (int i = 0; i < strings.length; i++)
+                {
+                    if (i > 0)
+                        sb.append(", ");
+                    sb.append(strings[i]);
+                }
+                return sb.toString();
+
+            case HiveValue.REG_DWORD:
+            case HiveValue.REG_DWORD_BIG_ENDIAN:
+                if (v.getLength() == 4)
+                    return Long.toString(v.getDWord(0) & 0xffffffffL);
+                break;
+
+            case HiveValue.REG_QWORD:
+                if (v.getLength() == 8)
+                    return Long.toString(v.getQWord(0));
+                break;
+        }
+
+        return toHex(v.getData());
+    }
+
+    /**
+     * renders bytes as lower case hex without separators
+     * @param data the bytes
+     * @return the hex text
+     */
+    public static String toHex(byte[] data)
+    {
+        char[] text = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++)
+        {
+            text[i * 2] = HEX[(data[i] >> 4) & 0xf];
+            text[i * 2 + 1] = HEX[data[i] & 0xf];
+        }
+        return new String(text);
+    }
+
+    /**
+     * records an artifact for the current key
+     * @param fields field names and values, alternating; null values are left out
+     */
+    public void report(String... fields)
+    {
+        report(getPath(), getLastWritten(), fields);
+    }
+
+    /**
+     * records an artifact for a key other than the current one
+     * @param path path of the key from the hive root
+     * @param lastWritten last written time of the key as a FILETIME
+     * @param fields field names and values, alternating; null values are left out
+     */
+    public void report(String path, long lastWritten, String... fields)
+    {
+        int n = 0;
+        for (int i = 0; i + 1 < fields.length; i += 2)
+        {
+            if (fields[i + 1] != null)
+                n += 2;
+        }
+
+        String[] kept = fields;
+        if (n != fields.length)
+        {
+            kept = new String[n];
+            n = 0;
+            for (int i = 0; i + 1 < fields.length; i += 2)
+            {
+                if (fields[i + 1] != null)
+                {
+                    kept[n++] = fields[i];
+                    kept[n++] = fields[i + 1];
+                }
+            }
+        }
+
+        found.add(new Artifact(plugin.getName(), hiveName, path, lastWritten, kept));
+    }
+}
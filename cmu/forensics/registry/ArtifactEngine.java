@@ -0,0 +1,392 @@
+/*
+   ArtifactEngine.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cmu.forensics.registry.artifacts.MountedDevicesPlugin;
+import cmu.forensics.registry.artifacts.NetworkInterfacesPlugin;
+import cmu.forensics.registry.artifacts.ProfileListPlugin;
+import cmu.forensics.registry.artifacts.RunKeysPlugin;
+import cmu.forensics.registry.artifacts.ServicesPlugin;
+import cmu.forensics.registry.artifacts.UsbStorPlugin;
+
+/**
+ * ArtifactEngine
+ * Runs ArtifactPlugins over a set of hives.  Each hive is opened once and
+ * walked once by a HiveWalker, whatever the number of plugins: at every
+ * depth the engine keeps the queries of all the interested plugins whose
+ * path still matches, calls a plugin back when one of its queries is
+ * complete and skips the subtrees no query can match, so the walk only
+ * reads the union of the keys the plugins asked for.
+ *
+ * Independent hives are walked in parallel on a pool, the artifacts are
+ * returned in the order the hives were added and, within a hive, in walk
+ * order.  A plugin that throws is reported as a warning and the walk goes
+ * on for the others.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class ArtifactEngine
+{
+    private ArrayList<ArtifactPlugin> plugins = new ArrayList<ArtifactPlugin>();
+    private ArrayList<RegistryQuery[]> queries = new ArrayList<RegistryQuery[]>();  // asked once per plugin
+    private LinkedHashMap<String, File> hives = new LinkedHashMap<String, File>();
+    private List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * adds a plugin, run on every matching hive
+     * @param plugin the plugin
+     */
+    public void addPlugin(ArtifactPlugin plugin)
+    {
+        plugins.add(plugin);
+        queries.add(plugin.getQueries());
+    }
+
+    /**
+     * adds the plugins shipped in cmu.forensics.registry.artifacts
+     */
+    public void addDefaultPlugins()
+    {
+        addPlugin(new UsbStorPlugin());
+        addPlugin(new ServicesPlugin());
+        addPlugin(new RunKeysPlugin());
+        addPlugin(new MountedDevicesPlugin());
+        addPlugin(new ProfileListPlugin());
+        addPlugin(new NetworkInterfacesPlugin());
+    }
+
+    /**
+     * adds the plugins listed in META-INF/services/cmu.forensics.registry.ArtifactPlugin
+     * @param loader class loader searched for the listings
+     * @return the number of plugins added
+     */
+    public int loadPlugins(ClassLoader loader)
+    {
+        int added = 0;
+        Iterator<ArtifactPlugin> it = ServiceLoader.load(ArtifactPlugin.class, loader).iterator();
+        while (true)
+        {
+            try
+            {
+                if (!it.hasNext())
+                    break;
+                addPlugin(it.next());
+                added++;
+            }
+            catch (ServiceConfigurationError sce)
+            {
+                warnings.add("could not load plugin: " + sce.getMessage());
+            }
+        }
+        return added;
+    }
+
+    /**
+     * adds a hive
+     * @param name name of the hive, whatever follows the last \ tells the
+     * plugins which hive it is: SYSTEM, SOFTWARE, SAM, SECURITY or NTUSER.DAT
+     * @param file the hive file
+     */
+    public void addHive(String name, File file)
+    {
+        hives.put(name, file);
+    }
+
+    /**
+     * adds the hives of a Windows installation, as found by HiveSession.findHives
+     * @param systemRoot the Windows directory
+     * @return the number of hives found
+     */
+    public int addWindowsHives(String systemRoot)
+    {
+        Map<String, File> found = HiveSession.findHives(systemRoot);
+        hives.putAll(found);
+        return found.size();
+    }
+
+    /**
+     * inspector for the warnings of the last run
+     * @return missing or damaged hives and plugins that failed
+     */
+    public String[] getWarnings()
+    {
+        synchronized (warnings)
+        {
+            return warnings.toArray(new String[warnings.size()]);
+        }
+    }
+
+    /**
+     * walks every hive once and runs the plugins over it
+     * @param threads number of hives walked at the same time
+     * @return the artifacts found, in hive order
+     */
+    public List<Artifact> run(int threads)
+    {
+        warnings.clear();
+        List<Artifact> found = new ArrayList<Artifact>();
+        if (hives.isEmpty() || plugins.isEmpty())
+            return found;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, hives.size())));
+        try
+        {
+            List<Future<List<Artifact>>> results = new ArrayList<Future<List<Artifact>>>(hives.size());
+            for (Map.Entry<String, File> entry : hives.entrySet())
+            {
+                final String name = entry.getKey();
+                final File file = entry.getValue();
+                results.add(pool.submit(new Callable<List<Artifact>>() {
+                    public List<Artifact> call()
+                    {
+                        return scan(name, file);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+                found.addAll(results.get(i).get());
+            return found;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+        catch (ExecutionException ee)
+        {
+            throw new IllegalStateException(ee.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * the kind of hive a hive name stands for
+     * @param name hive name as passed to addHive
+     * @return whatever follows the last \, upper case
+     */
+    static String hiveType(String name)
+    {
+        return name.substring(name.lastIndexOf('\\') + 1).toUpperCase();
+    }
+
+    /**
+     * walks one hive, dispatching to the plugins reading that kind of hive
+     */
+    private List<Artifact> scan(String name, File file)
+    {
+        List<Artifact> found = new ArrayList<Artifact>();
+
+        /* one slot per query of every interested plugin */
+        String type = hiveType(name);
+        ArrayList<ArtifactPlugin> slotPlugins = new ArrayList<ArtifactPlugin>();
+        ArrayList<RegistryQuery> slotQueries = new ArrayList<RegistryQuery>();
+        ArrayList<Integer> slotIndexes = new ArrayList<Integer>();
+        for (int p = 0; p < plugins.size(); p++)
+        {
+            String[] accepted = plugins.get(p).getHives();
+            boolean wanted = false;
+            for (int i = 0; i < accepted.length && !wanted; i++)
+                wanted = accepted[i].equalsIgnoreCase(type);
+            if (!wanted)
+                continue;
+
+            RegistryQuery[] q = queries.get(p);
+            for (int i = 0; i < q.length; i++)
+            {
+                slotPlugins.add(plugins.get(p));
+                slotQueries.add(q[i]);
+                slotIndexes.add(Integer.valueOf(i));
+            }
+        }
+
+        int slots = slotQueries.size();
+        if (slots == 0)
+            return found;
+        if (!file.isFile())
+        {
+            warnings.add(name + ": " + file + " not found");
+            return found;
+        }
+
+        ArtifactPlugin[] plugin = slotPlugins.toArray(new ArtifactPlugin[slots]);
+        RegistryQuery[] query = slotQueries.toArray(new RegistryQuery[slots]);
+        int[] index = new int[slots];
+        for (int s = 0; s < slots; s++)
+            index[s] = slotIndexes.get(s).intValue();
+
+        Hive hive = null;
+        try
+        {
+            hive = new Hive(file);
+            if (hive.getRecoveryProblem() != null)
+                warnings.add(name + ": " + hive.getRecoveryProblem());
+            HiveWalker walker = new HiveWalker(hive);
+            ArtifactContext ctx = new ArtifactContext(hive, name, walker, found);
+
+            /* active[d] holds the slots whose first d key components match the key at depth d */
+            int[][] active = new int[16][];
+            int[] counts = new int[16];
+            int event;
+
+            while ((event = walker.next()) != HiveWalker.DONE)
+            {
+                int d = walker.getDepth();
+                if (event == HiveWalker.KEY)
+                {
+                    if (d >= active.length)
+                    {
+                        int[][] grownActive = new int[active.length * 2][];
+                        System.arraycopy(active, 0, grownActive, 0, active.length);
+                        active = grownActive;
+                        int[] grownCounts = new int[counts.length * 2];
+                        System.arraycopy(counts, 0, grownCounts, 0, counts.length);
+                        counts = grownCounts;
+                    }
+                    if (active[d] == null)
+                        active[d] = new int[slots];
+
+                    int parents = (d == 0) ? slots : counts[d - 1];
+                    int n = 0;
+                    boolean deeper = false;
+                    boolean values = false;
+
+                    for (int i = 0; i < parents; i++)
+                    {
+                        int s = (d == 0) ? i : active[d - 1][i];
+                        RegistryQuery q = query[s];
+                        if (d > 0 && (q.getKeyDepth() < d || !q.matchesKey(d - 1, walker.getKey())))
+                            continue;
+
+                        active[d][n++] = s;
+                        if (q.getKeyDepth() > d)
+                            deeper = true;
+                        else if (q.isValueQuery())
+                            values = true;
+                        else
+                            dispatch(ctx, plugin[s], index[s], null);
+                    }
+
+                    counts[d] = n;
+                    if (!deeper && !values)
+                        walker.skipSubtree();
+                }
+                else if (event == HiveWalker.VALUE)
+                {
+                    HiveValue value = walker.getValue();
+                    for (int i = 0; i < counts[d]; i++)
+                    {
+                        int s = active[d][i];
+                        RegistryQuery q = query[s];
+                        if (q.getKeyDepth() == d && q.isValueQuery() && q.matchesValue(value.getVK()))
+                            dispatch(ctx, plugin[s], index[s], value);
+                    }
+                }
+            }
+        }
+        catch (RuntimeException re)
+        {
+            warnings.add(name + ": walk stopped: " + re);
+        }
+        finally
+        {
+            if (hive != null)
+                hive.close();
+        }
+
+        return found;
+    }
+
+    /**
+     * calls a plugin back, a failing plugin costs a warning and not the walk
+     */
+    private void dispatch(ArtifactContext ctx, ArtifactPlugin plugin, int query, HiveValue value)
+    {
+        ctx.setPlugin(plugin);
+        try
+        {
+            if (value == null)
+                plugin.visitKey(ctx, query);
+            else
+                plugin.visitValue(ctx, query, value);
+        }
+        catch (RuntimeException re)
+        {
+            warnings.add(ctx.getHiveName() + ctx.getPath() + ": " + plugin.getName() + " failed: " + re);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: ArtifactEngine systemRoot|hiveFile ...");
+            return;
+        }
+
+        ArtifactEngine engine = new ArtifactEngine();
+        engine.addDefaultPlugins();
+        engine.loadPlugins(ArtifactEngine.class.getClassLoader());
+
+        for (int i = 0; i < args.length; i++)
+        {
+            File f = new File(args[i]);
+            if (f.isDirectory())
+                engine.addWindowsHives(args[i]);
+            else
+                engine.addHive(f.getName().toUpperCase(), f);
+        }
+
+        long start = System.currentTimeMillis();
+        List<Artifact> found = engine.run(Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < found.size(); i++)
+            System.out.println(found.get(i));
+        System.out.println(found.size() + " artifacts from " + engine.hives.size() + " hives in "
+            + (System.currentTimeMillis() - start) + " ms");
+
+        String[] warnings = engine.getWarnings();
+        for (int i = 0; i < warnings.length; i++)
+            System.out.println(warnings[i]);
+    }
+}
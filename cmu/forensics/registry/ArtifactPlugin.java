@@ -0,0 +1,83 @@
+/*
+   ArtifactPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * ArtifactPlugin
+ * An extractor for one kind of forensic artifact (USB devices, services,
+ * autostart entries, ...) run by ArtifactEngine.  A plugin does not walk
+ * the hive itself, it declares the keys and values it needs as
+ * RegistryQuery patterns and the engine calls it back for every match
+ * found during the single walk it makes over each hive, so each plugin
+ * added costs some pattern matching and nothing in I/O or parsing.
+ *
+ * The engine walks several hives at once and calls the same plugin from
+ * all of them, so a plugin should keep no state between calls and hand
+ * everything it finds to ArtifactContext.report.
+ *
+ * Plugins outside this package are found with java.util.ServiceLoader,
+ * listed in META-INF/services/cmu.forensics.registry.ArtifactPlugin.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public interface ArtifactPlugin
+{
+    /**
+     * name the artifacts of this plugin are reported under
+     * @return a short name without spaces
+     */
+    public String getName();
+
+    /**
+     * hives this plugin reads, as named by HiveSession.findHives with the
+     * profile dropped: SYSTEM, SOFTWARE, SAM, SECURITY or NTUSER.DAT
+     * @return the hive names
+     */
+    public String[] getHives();
+
+    /**
+     * patterns of the keys (KEY queries) and values (VALUE queries) the
+     * plugin is called back for, with paths from the hive root.  Called
+     * once when the plugin is added, the queries are shared by every walk
+     * @return the queries, their index is passed back on each match
+     */
+    public RegistryQuery[] getQueries();
+
+    /**
+     * called for every key matching one of the KEY queries
+     * @param ctx the key and where to report, valid for this call only
+     * @param query index of the matching query in getQueries
+     */
+    public void visitKey(ArtifactContext ctx, int query);
+
+    /**
+     * called for every value matching one of the VALUE queries
+     * @param ctx the key holding the value and where to report, valid for this call only
+     * @param query index of the matching query in getQueries
+     * @param value the value, valid for this call only
+     */
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value);
+}
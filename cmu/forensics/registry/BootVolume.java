@@ -0,0 +1,116 @@
+/*
+   BootVolume.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * BootVolume
+ * The boot partition as recorded in a SYSTEM hive: the current control set,
+ * the drive letter it was mounted as and the disk signature and partition
+ * offset from its MountedDevices entry
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class BootVolume
+{
+    private final int controlSet;
+    private final char driveLetter;
+    private final byte[] diskSignature;  // 4 bytes, in the order they appear in the MBR at 440
+    private final long partitionOffset;  // byte offset of the partition on the disk
+
+    /**
+     *  BootVolume constructor
+     *
+     *  @param controlSet the current control set number
+     *  @param driveLetter upper case drive letter of the boot partition
+     *  @param diskSignature the 4 byte disk signature
+     *  @param partitionOffset byte offset of the partition on the disk
+     */
+    public BootVolume(int controlSet, char driveLetter, byte[] diskSignature, long partitionOffset)
+    {
+        this.controlSet = controlSet;
+        this.driveLetter = driveLetter;
+        this.diskSignature = diskSignature.clone();
+        this.partitionOffset = partitionOffset;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        return driveLetter + ": ControlSet" + controlSet + " signature " + RegistryParser.hexToString(diskSignature)
+            + " offset 0x" + Long.toHexString(partitionOffset);
+    }
+
+    /**
+     * inspector for controlSet
+     * @return the current control set number (1 for ControlSet001)
+     */
+    public int getControlSet()
+    {
+        return controlSet;
+    }
+
+    /**
+     * inspector for driveLetter
+     * @return the upper case drive letter of the boot partition
+     */
+    public char getDriveLetter()
+    {
+        return driveLetter;
+    }
+
+    /**
+     * inspector for diskSignature
+     * @return a copy of the 4 byte disk signature
+     */
+    public byte[] getDiskSignature()
+    {
+        return diskSignature.clone();
+    }
+
+    /**
+     * disk signature as the unsigned bytes written to the MBR
+     * @return the 4 signature bytes as ints
+     */
+    public int[] getDiskSerialNum()
+    {
+        int[] serialNum = new int[4];
+        for(int i = 0; i < 4; i++)
+            serialNum[i] = diskSignature[i] & 0xff;
+        return serialNum;
+    }
+
+    /**
+     * inspector for partitionOffset
+     * @return byte offset of the partition on the disk
+     */
+    public long getPartitionOffset()
+    {
+        return partitionOffset;
+    }
+}
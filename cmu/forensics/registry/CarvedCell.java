@@ -0,0 +1,246 @@
+/*
+   CarvedCell.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * CarvedCell
+ * A deleted key, value or subkey list recovered from the free space of a
+ * hive by HiveCarver.  Fields that do not apply to the type of record are
+ * 0 (or null).
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class CarvedCell
+{
+    public static final int KEY = 1;
+    public static final int VALUE = 2;
+    public static final int SUBKEY_LIST = 3;
+
+    private final int type;
+    private final int offset;       // hive offset of the record id ("nk", "vk", "lf" or "lh")
+    private final int freeCell;     // hive offset of the free cell the record was found in
+
+    /* keys and values */
+    String name;
+
+    /* keys */
+    long lastWritten;
+    int parentOffset;               // hive offset of the parent nk, 0 if it is not a key any more
+    String parentPath;              // path of the parent from the hive root, null if unresolved
+    int subkeys;
+    int values;
+
+    /* values */
+    int valueType;
+    int dataLength;
+    boolean dataRecoverable;
+
+    /* subkey lists */
+    int listId;
+    int entries;
+    int liveEntries;                // entries still pointing at an nk
+
+    /**
+     *  CarvedCell constructor, the remaining fields are filled in by HiveCarver
+     *
+     *  @param type KEY, VALUE or SUBKEY_LIST
+     *  @param offset hive offset of the record id
+     *  @param freeCell hive offset of the free cell holding the record
+     */
+    CarvedCell(int type, int offset, int freeCell)
+    {
+        this.type = type;
+        this.offset = offset;
+        this.freeCell = freeCell;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("0x").append(Integer.toHexString(offset));
+
+        if (type == KEY)
+        {
+            sb.append(" key ").append(getPath());
+            sb.append(" lastwritten 0x").append(Long.toHexString(lastWritten));
+            sb.append(" subkeys ").append(subkeys).append(" values ").append(values);
+        }
+        else if (type == VALUE)
+        {
+            sb.append(" value ").append((name.length() == 0) ? "@" : name);
+            sb.append(" type ").append(valueType).append(" len ").append(dataLength);
+            if (!dataRecoverable)
+                sb.append(" (data lost)");
+        }
+        else
+        {
+            sb.append((listId == SubkeyList.LF_ID) ? " lf " : " lh ");
+            sb.append(liveEntries).append('/').append(entries).append(" entries live");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * inspector for type
+     * @return KEY, VALUE or SUBKEY_LIST
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * inspector for offset, NK_Structure and HiveValue can be positioned on it
+     * @return hive offset of the record id
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * inspector for freeCell
+     * @return hive offset of the free cell the record was found in
+     */
+    public int getFreeCell()
+    {
+        return freeCell;
+    }
+
+    /**
+     * inspector for name
+     * @return the key or value name, null for subkey lists
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * path of a recovered key, under its parent when the parent is still a key
+     * @return the path from the hive root, or ?\name if the parent is gone
+     */
+    public String getPath()
+    {
+        return ((parentPath != null) ? parentPath : "?") + "\\" + name;
+    }
+
+    /**
+     * inspector for lastWritten
+     * @return the FILETIME the key was last written
+     */
+    public long getLastWritten()
+    {
+        return lastWritten;
+    }
+
+    /**
+     * inspector for parentOffset
+     * @return hive offset of the parent nk, 0 if it is not a key any more
+     */
+    public int getParentOffset()
+    {
+        return parentOffset;
+    }
+
+    /**
+     * inspector for parentPath
+     * @return path of the parent key, null if it could not be resolved
+     */
+    public String getParentPath()
+    {
+        return parentPath;
+    }
+
+    /**
+     * inspector for subkeys
+     * @return the number of subkeys the key had
+     */
+    public int getSubkeys()
+    {
+        return subkeys;
+    }
+
+    /**
+     * inspector for values
+     * @return the number of values the key had
+     */
+    public int getValues()
+    {
+        return values;
+    }
+
+    /**
+     * inspector for valueType
+     * @return the REG_* type of the value
+     */
+    public int getValueType()
+    {
+        return valueType;
+    }
+
+    /**
+     * inspector for dataLength
+     * @return the data length of the value
+     */
+    public int getDataLength()
+    {
+        return dataLength;
+    }
+
+    /**
+     * is the value data inline or still in a free cell, so that reading it
+     * through HiveValue most likely returns the deleted data
+     * @return true if the data looks intact
+     */
+    public boolean isDataRecoverable()
+    {
+        return dataRecoverable;
+    }
+
+    /**
+     * inspector for entries
+     * @return the number of entries of the subkey list
+     */
+    public int getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * inspector for liveEntries
+     * @return the number of entries of the subkey list still pointing at a key
+     */
+    public int getLiveEntries()
+    {
+        return liveEntries;
+    }
+}
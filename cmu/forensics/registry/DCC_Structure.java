@@ -22,22 +22,22 @@
 
 package cmu.forensics.registry;
 
-import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.DataFormatException;
 
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
+import cmu.forensics.registry.crypto.CryptoContext;
 import cmu.forensics.registry.crypto.MD4;
-import cmu.forensics.registry.crypto.RC4;
 import cmu.forensics.registry.crypto.Util;
 
 /**
  * DCC_Structure
  * Represents a Domain Cached Credential (DCC) registry structure in the SECURITY hive
  * Offsets are relative to the beginning of the DCC structure
+ *
+ * NT5 records (2000 to 2003) hold the MSCash (DCC1) hash, RC4 encrypted and
+ * HMAC-MD5 checked.  NT6 records (Vista and later) hold the MSCash2 (DCC2)
+ * hash, PBKDF2-HMAC-SHA1 of DCC1 salted with the lower case user name, AES
+ * encrypted in CBC-CTS mode with the Cipher Key as IV and HMAC-SHA1 checked.
  * @author Tom Spencer
  * @version 0.7, Mar 2009
  */
@@ -69,7 +69,10 @@ public class DCC_Structure
     private int dccDataSize;        // Convenient DCE size reference (dccData.length - dceRootOffset)
     private int dceDataSize;        // Convenient DCE size reference (dccData.length - dceRootOffset)
 
-    private SecretKeySpec nlkmKey;  // decryption key in a SecretKeySpec object
+    private byte[] nlkmKey;         // NL$KM, the HMAC-MD5 key the RC4 key is derived with (NT6: HMAC key, then AES key)
+    private byte[] rc4Key = new byte[0x10];     // RC4 key of the DCE, derived from nlkmKey and the Cipher Key
+    private byte[] hmac = new byte[0x14];       // HMAC computed over the decrypted DCE, the first 0x10 bytes are stored
+    private int iterations;                     // DCC2 PBKDF2 iterations of an NT6 record, 0 for NT5
 
     private boolean encrypted       = true;     // is the DCE encrypted?
     private boolean keySet          = false;    // is the decryption key set?
@@ -94,41 +97,61 @@ public class DCC_Structure
     private boolean encryptedDCE        = true;
 
     /**
-     *  DCC Struct constructor
+     *  DCC Struct constructor for NT5 records
      *
-     *  @param hiveBuf the hive to populate the struct with
+     *  @param hive the hive to populate the struct with
      *  @param offsetInHive offset into the hive for the DCC_Structure
      *  @param dccSize size of the DCC Structure
      */
-    public DCC_Structure(int[] hiveBuf, int offsetInHive, int dccSize, boolean enableUsers) throws DataFormatException
-    {
-        unameLen        = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0000);
-        domainLen       = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0002);
-        pre2kUnameLen   = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0004);
-        unameFullLen    = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0006);
-        logonScriptLen  = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0008);
-        profilePathLen  = RegistryParser.getWord(hiveBuf, offsetInHive + 0x000A);
-        homeDirLen      = RegistryParser.getWord(hiveBuf, offsetInHive + 0x000C);
-        homeDriveLen    = RegistryParser.getWord(hiveBuf, offsetInHive + 0x000E);
-        userRID         = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0010);
-        groupRID        = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0014);
+    public DCC_Structure(Hive hive, int offsetInHive, int dccSize, boolean enableUsers) throws DataFormatException
+    {
+        this(hive, offsetInHive, dccSize, enableUsers, 0);
+    }
+
+    /**
+     *  DCC Struct constructor
+     *
+     *  @param hive the hive to populate the struct with
+     *  @param offsetInHive offset into the hive for the DCC_Structure
+     *  @param dccSize size of the DCC Structure
+     *  @param iterations DCC2 iteration count of an NT6 record, 0 for an NT5 record
+     */
+    public DCC_Structure(Hive hive, int offsetInHive, int dccSize, boolean enableUsers, int iterations) throws DataFormatException
+    {
+        unameLen        = hive.getWord(offsetInHive + 0x0000);
+        domainLen       = hive.getWord(offsetInHive + 0x0002);
+        pre2kUnameLen   = hive.getWord(offsetInHive + 0x0004);
+        unameFullLen    = hive.getWord(offsetInHive + 0x0006);
+        logonScriptLen  = hive.getWord(offsetInHive + 0x0008);
+        profilePathLen  = hive.getWord(offsetInHive + 0x000A);
+        homeDirLen      = hive.getWord(offsetInHive + 0x000C);
+        homeDriveLen    = hive.getWord(offsetInHive + 0x000E);
+        userRID         = hive.getDWord(offsetInHive + 0x0010);
+        groupRID        = hive.getDWord(offsetInHive + 0x0014);
         // 0x0018 - 0x001D unknown 6 bytes
-        //logonDomainLen  = RegistryParser.getWord(hiveBuf, offsetInHive + 0x001E);
-        lastAccessTime  = ((long)RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0024) << 32)
-                         | (long)RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0020);
-        dccVersion      = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0028);
+        //logonDomainLen  = hive.getWord(offsetInHive + 0x001E);
+        lastAccessTime  = ((long)hive.getDWord(offsetInHive + 0x0024) << 32)
+                         | (long)hive.getDWord(offsetInHive + 0x0020);
+        dccVersion      = hive.getDWord(offsetInHive + 0x0028);
         // 0x002C - 0x002F unknown 4 bytes
-        userEnabled     = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0030);
+        userEnabled     = hive.getWord(offsetInHive + 0x0030);
         // 0x0032 - 0x003B unknown 12 bytes
-        domainFullLen   = RegistryParser.getWord(hiveBuf, offsetInHive + 0x003C);
-        logonFullLen    = RegistryParser.getWord(hiveBuf, offsetInHive + 0x003E);
+        domainFullLen   = hive.getWord(offsetInHive + 0x003C);
+        logonFullLen    = hive.getWord(offsetInHive + 0x003E);
+
+        if (iterations == 0 && dccVersion != DCCVER_NT5_0) {
+            throw new DataFormatException("Only NT5 style domain cached credentials are supported without an NT6 LSA key");
+        }
 
-        if (dccVersion != DCCVER_NT5_0) {
-            throw new DataFormatException("Only NT5 style domain cached credentials are currently supported");
+        // AES-CTS needs more than one block
+        if (iterations != 0 && dccSize <= dceRootOffset + 0x10) {
+            throw new DataFormatException("NT6 domain cached credential of " + dccSize + " bytes is too short");
         }
 
-        //copy entire DCC entry to dccData
-        dccData         = RegistryParser.byteSlice(hiveBuf, offsetInHive, dccSize);
+        this.iterations = iterations;
+
+        //copy the DCC entry (only this record, not the hive) to dccData
+        dccData         = hive.slice(offsetInHive, dccSize);
         dccDataSize     = dccSize;
         dceDataSize     = dccDataSize - dceRootOffset;
 
@@ -162,6 +185,7 @@ public class DCC_Structure
         StringBuffer sb = new StringBuffer();
         String newL = System.getProperty("line.separator");
         sb.append("dccVersion\t 0x" + Integer.toHexString(dccVersion) + newL);
+        sb.append("iterations\t " + iterations + newL);
         sb.append("unameLen\t 0x" + Integer.toHexString(unameLen) + newL);
         sb.append("domainLen\t 0x" + Integer.toHexString(domainLen) + newL);
         sb.append("domainFullLen\t 0x" + Integer.toHexString(domainFullLen) + newL);
@@ -181,20 +205,9 @@ public class DCC_Structure
      */
     public byte[] calcHmac(byte[] data, int offset, byte[] key)
     {
-        byte[] dataToHMAC = RegistryParser.byteSlice(data, offset, data.length - offset);
-
-        SecretKey sk = new SecretKeySpec(key, "HmacMD5");
-
-        Mac mac;
-
-        try {
-            mac = Mac.getInstance("HmacMD5");
-            mac.init(sk);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
-        }
-
-        return mac.doFinal(dataToHMAC);
+        byte[] mac = new byte[0x10];
+        CryptoContext.get().hmacMD5(key, data, offset, data.length - offset, mac, 0);
+        return mac;
     }
 
     /**
@@ -219,23 +232,33 @@ public class DCC_Structure
     {
         if (!keySet) { return; }
 
+        if (iterations != 0)
+        {
+            decryptNT6();
+            return;
+        }
+
+        CryptoContext ctx = CryptoContext.get();
+
         // get the RC4 Key, this is an HMAC of the DCC's CipherKey using the nlkmKey
-        byte[] rc4Key = getRC4Key();
+        ctx.hmacMD5(nlkmKey, dccData, cipherKeyOffset, 0x10, rc4Key, 0);
 
         // the DCE is only encrypted if the user is enabled
         if (encrypted)
         {
             // decrypt DCE in place
-            RC4 rc4 = new RC4();
-            rc4.setKey(rc4Key);
-            rc4.decrypt(dccData, dceRootOffset, dccData, dceRootOffset, dceDataSize);
+            ctx.rc4(rc4Key, 0, rc4Key.length).decrypt(dccData, dceRootOffset, dccData, dceRootOffset, dceDataSize);
         }
 
         // compute the HMAC for the decrypted DCE
-        byte[] hmac = calcHmac(dccData, dceRootOffset, rc4Key);
+        ctx.hmacMD5(rc4Key, dccData, dceRootOffset, dceDataSize, hmac, 0);
 
         // compare the computed HMAC to the DCC's stored HMAC, they should match
-        if (!Arrays.equals(getHMAC(), hmac) )
+        boolean match = true;
+        for (int i = 0; i < 0x10; i++)
+            match &= (dccData[hmacOffset + i] == hmac[i]);
+
+        if (!match)
         {
             // didn't decompress properly, output warning
             throw new DataFormatException("DCC decrypt: HMAC validation failed!");
@@ -245,6 +268,34 @@ public class DCC_Structure
         encrypted = false;
     }
 
+    /**
+     * Decrypts an NT6 DCE inplace, AES keyed with the second half of NL$KM
+     */
+    private void decryptNT6() throws DataFormatException
+    {
+        CryptoContext ctx = CryptoContext.get();
+
+        // the DCE is only encrypted if the user is enabled
+        if (encrypted)
+        {
+            ctx.aes(nlkmKey, 0x10, 0x10).decryptCTS(getCipherKey(), dccData, dceRootOffset, dceDataSize);
+        }
+
+        // the HMAC-SHA1 of the decrypted DCE, keyed with the first half of NL$KM
+        ctx.hmacSHA1(nlkmKey, 0, 0x10, dccData, dceRootOffset, dceDataSize, hmac, 0);
+
+        boolean match = true;
+        for (int i = 0; i < 0x10; i++)
+            match &= (dccData[hmacOffset + i] == hmac[i]);
+
+        if (!match)
+        {
+            throw new DataFormatException("DCC decrypt: HMAC validation failed!");
+        }
+
+        encrypted = false;
+    }
+
     /**
      * Encrypts the DCE inplace in the dccData structure
      */
@@ -252,33 +303,43 @@ public class DCC_Structure
     {
         if (encrypted || !keySet) { return; }
 
+        CryptoContext ctx = CryptoContext.get();
+
+        if (iterations != 0)
+        {
+            // HMAC-SHA1 of the DCE, truncated to the stored 0x10 bytes, then AES in place
+            ctx.hmacSHA1(nlkmKey, 0, 0x10, dccData, dceRootOffset, dceDataSize, hmac, 0);
+            System.arraycopy(hmac, 0, dccData, hmacOffset, 0x10);
+            ctx.aes(nlkmKey, 0x10, 0x10).encryptCTS(getCipherKey(), dccData, dceRootOffset, dceDataSize);
+
+            encrypted = true;
+            return;
+        }
+
         // get the RC4 Key, this is an HMAC of the DCC's Cipher Key using the nlkmKey
         // this is computed again in case the Cipher Key has been changed
-        byte[] rc4Key = getRC4Key();
+        ctx.hmacMD5(nlkmKey, dccData, cipherKeyOffset, 0x10, rc4Key, 0);
 
         // Calculate the HMAC for the DCE and store it
-        setHMAC(calcHmac(dccData, dceRootOffset, rc4Key));
-
-        RC4 rc4 = new RC4();
-        rc4.setKey(rc4Key);
+        ctx.hmacMD5(rc4Key, dccData, dceRootOffset, dceDataSize, dccData, hmacOffset);
 
         // encrypt DCE in place
-        rc4.encrypt(dccData, dceRootOffset, dccData, dceRootOffset, dceDataSize);
+        ctx.rc4(rc4Key, 0, rc4Key.length).encrypt(dccData, dceRootOffset, dccData, dceRootOffset, dceDataSize);
 
         // DCE is now encrypted again
         encrypted = true;
     }
 
     /**
-     * Convert the byte[] NL$KM into the usable SecretKeySpec HmacMD5 object
+     * Set the NL$KM key the RC4 key of the DCE is derived with
      * @param nlkmByteKey byte[] containing the NL$KM key
      */
     public void setKey(byte[] nlkmByteKey)
     {
         if (nlkmByteKey == null) { return; }
 
-        // Generate secret key for HMAC-MD5
-        nlkmKey = new SecretKeySpec(nlkmByteKey, "HmacMD5");
+        // kept as is, the HMAC-MD5 of CryptoContext takes the raw key
+        nlkmKey = nlkmByteKey;
 
         // nlkm key has been set
         keySet = true;
@@ -290,19 +351,9 @@ public class DCC_Structure
      */
     public byte[] getRC4Key()
     {
-        // Get instance of Mac object implementing HMAC-MD5, and
-        // initialize it with the secret key
-
-        Mac mac;
-
-        try {
-            mac = Mac.getInstance("HmacMD5");
-            mac.init(nlkmKey);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
-        }
-
-        return mac.doFinal(getCipherKey());
+        byte[] key = new byte[0x10];
+        CryptoContext.get().hmacMD5(nlkmKey, dccData, cipherKeyOffset, 0x10, key, 0);
+        return key;
     }
 
     /**
@@ -310,6 +361,18 @@ public class DCC_Structure
      * @param password ANSI String containing the new password or an empty string for no password
      */
     public void setUserPassword(String password)
+    {
+        setHash( passwordHash(password) );  // update the DCE password hash
+    }
+
+    /**
+     * Computes the hash this entry stores for a password, DCC1 for an NT5
+     * record and DCC2 for an NT6 one.  Only reads the decrypted user name,
+     * so entries can compute their hashes on separate threads.
+     * @param password ANSI String containing the password or an empty string for no password
+     * @return the 0x10 byte hash to pass to setHash
+     */
+    public byte[] passwordHash(String password)
     {
         byte[] utfPass;
         byte[] uNameLowerCase;
@@ -328,18 +391,16 @@ public class DCC_Structure
 
         byte[] hash = md4.digest();
 
-        /*
-         * For OSs beyond win2k3 a multi-thousand round SHA1 based PBKDF2 is used
-         * the number of iterations is stored somewhere in the DCC (maybe in the DCE?), default is 10240 (0x2800) rounds
-         * but where does the salt come from??
-        if (getDccVersion() >= win2k3)
+        // NT6 records store the PBKDF2-HMAC-SHA1 (DCC2) of it, salted with the lower case user name
+        if (iterations != 0)
         {
-            PBKDF2 kdf = new PBKDF2();
-            hash = kdf.deriveKey(salt, (long) getPBKDF2iterations(), hash); where does salt come from?
+            byte[] dcc2 = new byte[0x10];
+            CryptoContext.get().pbkdf2().deriveKey(hash, 0, hash.length, uNameLowerCase, 0, uNameLowerCase.length,
+                                                   iterations, dcc2, 0, dcc2.length);
+            hash = dcc2;
         }
-        */
 
-        setHash( hash );  // hash again and update the DCE password hash
+        return hash;
     }
 
     /**
@@ -361,11 +422,18 @@ public class DCC_Structure
     }
 
     /**
-     * Retrieves the mscash (CacheDump) formatted line for cracking
+     * Retrieves the mscash (CacheDump) formatted line for cracking, the hash
+     * of an NT6 record in the $DCC2$iterations#user#hash form of john
      * @return ANSI mscash line
      */
     public String getMSCASHline()
     {
+        if (iterations != 0)
+        {
+            return new String(getUserS() + ":$DCC2$" + iterations + "#" + getUserS().toLowerCase() + "#" + getHashS()
+                              + ":" + getDomainS() + ":" + getFullDomainS());
+        }
+
         return new String(getUserS() + ":" + getHashS() + ":" + getDomainS() + ":" + getFullDomainS());
     }
 
@@ -453,6 +521,15 @@ public class DCC_Structure
         return dccVersion;
     }
 
+    /**
+     * inspector function for iterations
+     * @return the DCC2 iteration count, 0 for an NT5 record
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
     /**
      * inspector function for the user name
      * @return the unicode user name from the DCE in its current decrypted or encrypted form
@@ -0,0 +1,123 @@
+/*
+   HbinTable.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * HbinTable
+ * The hbin layout of a validated hive, built by HiveValidator.
+ *
+ * For every 4 KB page the offset of the hbin holding it is kept, and one
+ * bit for every 8 bytes marks where a cell starts, so whether an offset
+ * read out of the hive points at a real cell, and whether a length fits
+ * inside that cell, is answered in constant time.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HbinTable
+{
+    private static final int PAGE_SIZE = 0x1000;
+
+    private final Hive hive;
+    private final int[] bins;       // per page, offset of the hbin holding it, 0 outside the hbins
+    private final long[] cells;     // bit n set if a cell starts at offset n * 8
+
+    /**
+     *  HbinTable constructor, empty table for hive
+     *
+     *  @param hive the hive the table describes
+     */
+    HbinTable(Hive hive)
+    {
+        this.hive = hive;
+        bins = new int[(hive.getLength() + PAGE_SIZE - 1) / PAGE_SIZE];
+        cells = new long[(hive.getLength() / 8 + 63) / 64];
+    }
+
+    /**
+     * records an hbin
+     */
+    void addBin(int bin, int size)
+    {
+        for (int page = bin / PAGE_SIZE; page < (bin + size) / PAGE_SIZE; page++)
+            bins[page] = bin;
+    }
+
+    /**
+     * records a cell starting at offset, tasks marking different hbins
+     * never share a word of the bitmap as hbins are page aligned
+     */
+    void addCell(int offset)
+    {
+        int bit = offset >>> 3;
+        cells[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    /**
+     * the hbin holding offset
+     * @param offset offset into the hive
+     * @return offset of the hbin, 0 if offset is outside every hbin
+     */
+    public int getBin(int offset)
+    {
+        if (offset < 0 || offset >= hive.getLength() || (offset >>> 12) >= bins.length)
+            return 0;
+        return bins[offset >>> 12];
+    }
+
+    /**
+     * does a cell start at offset
+     * @param offset hive offset of the cell size field
+     * @return true if a cell of a valid hbin starts there
+     */
+    public boolean isCell(int offset)
+    {
+        if (offset < 0 || (offset & 7) != 0 || (offset >>> 3) >= cells.length * 64)
+            return false;
+
+        int bit = offset >>> 3;
+        return (cells[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Checks an offset as stored in the hive (relative to the first hbin)
+     * before it is followed
+     * @param relOffset cell offset as stored in an nk, vk or list
+     * @param len number of data bytes that will be read from the cell
+     * @return true if relOffset is an allocated cell with at least len data bytes
+     */
+    public boolean checkCell(int relOffset, int len)
+    {
+        if (relOffset < 0 || relOffset > Integer.MAX_VALUE - 0x1000 || len < 0)
+            return false;
+
+        int cell = relOffset + 0x1000;
+        if (!isCell(cell))
+            return false;
+
+        int size = hive.getDWord(cell);
+        return size < 0 && len <= -size - 4;
+    }
+}
@@ -24,14 +24,37 @@
 package cmu.forensics.registry;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 
 /**
  * Hive
  * Represents a Windows Registry Hive
+ *
+ * The hive file is memory mapped read-only and all structures read their
+ * fields directly out of the mapping, so no copy of the file is ever made on
+ * the heap.  If the file cannot be mapped (very large hives on a 32 bit JVM,
+ * some network filesystems) the hive falls back to positional reads through
+ * a FileChannel using a single page sized window.
+ *
+ * Edits never touch the mapping.  The first write to a 4 KB page copies it
+ * into an overlay and every later read of that page is served from the
+ * copy, so structures see edits immediately.  Hbins appended with grow()
+ * only exist in the overlay.  commit() writes the dirty pages back to the
+ * file in one HivePatchSet and remaps the hive, discard() drops them.
+ *
+ * A dirty hive (base block not completely flushed) is brought up to date
+ * from its transaction logs when it is opened: HiveLog replays the dirty
+ * sectors or log entries into the overlay, so parsing and patching both
+ * see the current state without the file being copied.  Replayed pages
+ * are written out with the next commit or HivePatchSet.
+ *
+ * All multi-byte accessors are little-endian, as is everything in a hive.
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -40,35 +63,56 @@ import java.io.InputStream;
 public class Hive
 {
     private static final int ROOTKEY_OFFSET = 0x24;
-    private int[] buffer;
+    private static final int PAGE_SIZE = 0x1000;
+
+    private File file;
+    private FileChannel channel;    // only kept open when the file could not be mapped
+    private ByteBuffer buffer;      // read-only little-endian mapping of the whole hive
+    private ByteBuffer page;        // positional read window for the unmapped fallback
+    private long pageBase = -1;
+    private int length;             // logical length, including hbins appended in the overlay
+    private int fileLength;         // length of the hive file on disk
+    private byte[][] overlay;       // copy-on-write pages, null until the hive is first edited
+    private int[] replayedPages = new int[0];   // overlay pages recovered from the transaction logs
+    private String recoveryProblem;             // why a dirty hive could not be recovered, null if it could or was clean
     private int rootOffset;
+    private HivePathCache pathCache = new HivePathCache(HivePathCache.DEFAULT_CAPACITY);
+    private volatile HbinTable hbinTable;   // set by HiveValidator, dropped by any edit
 
     public Hive(File file)
+    {
+        this.file = file;
+        open();
+        recover();
+    }
+
+    /**
+     * maps the hive file, or prepares the unmapped fallback
+     */
+    private void open()
     {
         try
         {
-            InputStream fileStream = new FileInputStream(file);
-            buffer = new int[(int)file.length()];
-
-            /* read registry file into buffer */
-            byte[] tmpb = new byte[(int)file.length()];
-
-            int bytesRead = fileStream.read(tmpb, 0, tmpb.length);
-
-            fileStream.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel fc = raf.getChannel();
+            fileLength = length = (int)fc.size();
 
-            if (bytesRead != tmpb.length)
+            try
             {
-                System.out.println("Only read " + bytesRead + " bytes out of " + tmpb.length + " bytes!");
+                buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                raf.close();    // the mapping stays valid after the channel is closed
             }
-
-            // perform byte to int conversion in memory
-            for(int i = 0; i < tmpb.length; i++)
+            catch(IOException mapFailed)
             {
-                buffer[i] = (int) tmpb[i];
+                /* could not map, read through the channel instead */
+                buffer = null;
+                channel = fc;
+                page = ByteBuffer.allocate(PAGE_SIZE);
+                pageBase = -1;
             }
 
-            rootOffset = RegistryParser.getWord(buffer, ROOTKEY_OFFSET) + 0x1000;
+            rootOffset = getDWord(ROOTKEY_OFFSET) + 0x1000;
         }
         catch(IOException ioe)
         {
@@ -76,6 +120,24 @@ public class Hive
         }
     }
 
+    /**
+     * replays the transaction logs of a dirty hive into the empty overlay
+     */
+    private void recover()
+    {
+        recoveryProblem = null;
+        if (buffer == null && channel == null)
+            return;
+
+        if (HiveLog.replay(this) > 0)
+        {
+            replayedPages = getModifiedPages();
+            rootOffset = getDWord(ROOTKEY_OFFSET) + 0x1000;
+        }
+        else
+            replayedPages = new int[0];
+    }
+
     /**
      * inspector for rootOffset datamember
      * @return the rootOffset datamember
@@ -86,11 +148,577 @@ public class Hive
     }
 
     /**
-     * inspector for buffer datamember
-     * @return the buffer datamember (int [])
+     * inspector for the file this hive was read from
+     * @return the hive file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * size of the hive in bytes, including hbins appended but not yet committed
+     * @return the length of the hive
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * size of the hive file on disk
+     * @return the length of the hive file
+     */
+    int getFileLength()
+    {
+        return fileLength;
+    }
+
+    /**
+     * inspector for the resolved path cache of this hive
+     * @return the path cache
+     */
+    public HivePathCache getPathCache()
+    {
+        return pathCache;
+    }
+
+    /**
+     * the hbin table of the last successful HiveValidator run
+     * @return the table, null if the hive was not validated since it was last edited
+     */
+    public HbinTable getHbinTable()
+    {
+        return hbinTable;
+    }
+
+    void setHbinTable(HbinTable table)
+    {
+        hbinTable = table;
+    }
+
+    /**
+     * Drops everything derived from the hive contents.  Must be called
+     * after the hive file has been patched.
+     */
+    public void invalidate()
+    {
+        pathCache.clear();
+        hbinTable = null;
+
+        synchronized (this)
+        {
+            pageBase = -1;  // the fallback window may hold stale bytes
+        }
+    }
+
+    /**
+     * reads an unsigned byte out of the hive
+     * @param offset offset into the hive file
+     * @return the byte at offset (0 - 255)
+     */
+    public int getByte(int offset)
+    {
+        if (overlay != null)
+        {
+            byte[] p = overlay[offset >>> 12];
+            if (p != null)
+                return p[offset & (PAGE_SIZE - 1)] & 0xFF;
+        }
+
+        if (buffer != null)
+            return buffer.get(offset) & 0xFF;
+
+        return windowByte(offset);
+    }
+
+    /**
+     * reads an unsigned little-endian word out of the hive
+     * @param offset offset into the hive file
+     * @return 2 bytes from the hive at offset
+     */
+    public int getWord(int offset)
+    {
+        if (overlay != null && inOverlay(offset, 2))
+            return getByte(offset) | (getByte(offset + 1) << 8);
+
+        if (buffer != null)
+            return buffer.getShort(offset) & 0xFFFF;
+
+        return windowByte(offset) | (windowByte(offset + 1) << 8);
+    }
+
+    /**
+     * reads a little-endian dword out of the hive
+     * @param offset offset into the hive file
+     * @return 4 bytes from the hive at offset
+     */
+    public int getDWord(int offset)
+    {
+        if (overlay != null && inOverlay(offset, 4))
+            return         getByte(offset)
+                        | (getByte(offset + 1) << 8)
+                        | (getByte(offset + 2) << 16)
+                        | (getByte(offset + 3) << 24);
+
+        if (buffer != null)
+            return buffer.getInt(offset);
+
+        return         windowByte(offset)
+                    | (windowByte(offset + 1) << 8)
+                    | (windowByte(offset + 2) << 16)
+                    | (windowByte(offset + 3) << 24);
+    }
+
+    /**
+     * copies a range of the hive into a caller supplied array
+     * @param offset offset into the hive file
+     * @param dest array to copy into
+     * @param destOffset offset into dest
+     * @param len number of bytes to copy
+     */
+    public void read(int offset, byte[] dest, int destOffset, int len)
+    {
+        if (offset < 0 || len < 0 || offset + len > length)
+            throw new IndexOutOfBoundsException("hive read " + offset + "+" + len + " outside of " + length);
+
+        if (overlay == null)
+        {
+            readFile(offset, dest, destOffset, len);
+            return;
+        }
+
+        while (len > 0)
+        {
+            int inPage = offset & (PAGE_SIZE - 1);
+            int n = Math.min(len, PAGE_SIZE - inPage);
+            byte[] p = overlay[offset >>> 12];
+
+            if (p != null)
+                System.arraycopy(p, inPage, dest, destOffset, n);
+            else
+                readFile(offset, dest, destOffset, n);
+
+            offset += n;
+            destOffset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * copies a range of the hive file as it is on disk, ignoring any
+     * uncommitted edits.  Bytes past the end of the file read as 0.
+     * @param offset offset into the hive file
+     * @param dest array to copy into
+     * @param destOffset offset into dest
+     * @param len number of bytes to copy
+     */
+    void readFile(int offset, byte[] dest, int destOffset, int len)
+    {
+        int onDisk = Math.max(0, Math.min(len, fileLength - offset));
+        for (int i = onDisk; i < len; i++)
+            dest[destOffset + i] = 0;
+
+        if (buffer != null)
+        {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(dest, destOffset, onDisk);
+            return;
+        }
+
+        for (int i = 0; i < onDisk; i++)
+            dest[destOffset + i] = (byte)windowByte(offset + i);
+    }
+
+    /**
+     * copies a range of the hive into a new array
+     * @param offset offset into the hive file
+     * @param len number of bytes to copy
+     * @return the bytes at offset
      */
-    public int[] getBuffer()
+    public byte[] slice(int offset, int len)
     {
-        return buffer;
+        byte[] slice = new byte[len];
+        read(offset, slice, 0, len);
+        return slice;
+    }
+
+    /**
+     * writes a byte into the overlay
+     * @param offset offset into the hive
+     * @param value the new byte value
+     */
+    public void putByte(int offset, int value)
+    {
+        dirtyPage(offset)[offset & (PAGE_SIZE - 1)] = (byte)value;
+    }
+
+    /**
+     * writes a little-endian word into the overlay
+     * @param offset offset into the hive
+     * @param value the new word value
+     */
+    public void putWord(int offset, int value)
+    {
+        putByte(offset, value);
+        putByte(offset + 1, value >>> 8);
+    }
+
+    /**
+     * writes a little-endian dword into the overlay
+     * @param offset offset into the hive
+     * @param value the new dword value
+     */
+    public void putDWord(int offset, int value)
+    {
+        putByte(offset, value);
+        putByte(offset + 1, value >>> 8);
+        putByte(offset + 2, value >>> 16);
+        putByte(offset + 3, value >>> 24);
+    }
+
+    /**
+     * copies a range of bytes into the overlay
+     * @param offset offset into the hive
+     * @param src array holding the new bytes
+     * @param srcOffset offset into src
+     * @param len number of bytes to copy
+     */
+    public void write(int offset, byte[] src, int srcOffset, int len)
+    {
+        if (offset < 0 || len < 0 || offset + len > length)
+            throw new IndexOutOfBoundsException("hive write " + offset + "+" + len + " outside of " + length);
+
+        while (len > 0)
+        {
+            int inPage = offset & (PAGE_SIZE - 1);
+            int n = Math.min(len, PAGE_SIZE - inPage);
+            System.arraycopy(src, srcOffset, dirtyPage(offset), inPage, n);
+
+            offset += n;
+            srcOffset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Appends zeroed space to the end of the hive, in the overlay only
+     * @param len number of bytes to append, a multiple of 4 KB
+     * @return offset of the new space
+     */
+    public int grow(int len)
+    {
+        if (len <= 0 || (len & (PAGE_SIZE - 1)) != 0)
+            throw new IllegalArgumentException("hive can only grow by whole pages: " + len);
+
+        int start = length;
+        int pages = (length + len) / PAGE_SIZE;
+        hbinTable = null;
+        if (overlay == null)
+            overlay = new byte[pages][];
+        else if (overlay.length < pages)
+        {
+            byte[][] bigger = new byte[pages][];
+            System.arraycopy(overlay, 0, bigger, 0, overlay.length);
+            overlay = bigger;
+        }
+
+        for (int i = start / PAGE_SIZE; i < pages; i++)
+            overlay[i] = new byte[PAGE_SIZE];
+
+        length += len;
+        return start;
+    }
+
+    /**
+     * was the hive brought up to date from its transaction logs
+     * @return true if log data was replayed and has not been committed yet
+     */
+    public boolean isRecovered()
+    {
+        return replayedPages.length > 0;
+    }
+
+    /**
+     * why the hive could not be brought up to date from its transaction
+     * logs, left for the caller to report
+     * @return the problem, null if the hive was clean or has been recovered
+     */
+    public String getRecoveryProblem()
+    {
+        return recoveryProblem;
+    }
+
+    /**
+     * records why recovery failed, set by HiveLog.replay
+     */
+    void setRecoveryProblem(String problem)
+    {
+        recoveryProblem = problem;
+    }
+
+    /**
+     * indexes of the pages recovered from the transaction logs
+     * @return the replayed 4 KB pages, in hive order
+     */
+    int[] getReplayedPages()
+    {
+        return replayedPages;
+    }
+
+    /**
+     * Brings the overlay in line with an edit HivePatchSet just wrote to the
+     * hive file, so the pages that stay in the overlay keep the patch
+     * @param offset offset of the edit in the hive file
+     * @param data the bytes of the edit
+     */
+    void refresh(int offset, byte[] data)
+    {
+        if (overlay == null)
+            return;
+
+        for (int i = offset >>> 12; i < overlay.length && i * PAGE_SIZE < offset + data.length; i++)
+        {
+            if (overlay[i] == null)
+                continue;
+
+            int from = Math.max(offset, i * PAGE_SIZE);
+            int to = Math.min(offset + data.length, (i + 1) * PAGE_SIZE);
+            System.arraycopy(data, from - offset, overlay[i], from - (i * PAGE_SIZE), to - from);
+        }
+    }
+
+    /**
+     * Called once HivePatchSet has written a patch, which always carries the
+     * replayed log pages: they are on disk now and leave the overlay, and
+     * the hive is remapped over the patched file, which may have grown
+     */
+    void patchWritten()
+    {
+        int pending = length;
+        if (overlay != null)
+        {
+            for (int i = 0; i < replayedPages.length; i++)
+                overlay[replayedPages[i]] = null;
+            if (getModifiedPages().length == 0)
+                overlay = null;
+        }
+        replayedPages = new int[0];
+
+        release();
+        open();
+        if (overlay != null && pending > length)
+            length = pending;   // pages appended in the overlay are still to be committed
+        invalidate();
+    }
+
+    /**
+     * are there edits that have not been committed
+     * @return true if the overlay holds any page, replayed log data included
+     */
+    public boolean isModified()
+    {
+        return overlay != null;
+    }
+
+    /**
+     * indexes of the pages held in the overlay
+     * @return the edited or appended 4 KB pages, in hive order
+     */
+    int[] getModifiedPages()
+    {
+        if (overlay == null)
+            return new int[0];
+
+        int count = 0;
+        for (int i = 0; i < overlay.length; i++)
+        {
+            if (overlay[i] != null)
+                count++;
+        }
+
+        int[] pages = new int[count];
+        count = 0;
+        for (int i = 0; i < overlay.length; i++)
+        {
+            if (overlay[i] != null)
+                pages[count++] = i;
+        }
+        return pages;
+    }
+
+    /**
+     * Writes every edited or appended page back to the hive file through a
+     * single HivePatchSet (base block update and undo journal included) and
+     * remaps the hive over the new file.
+     * @param journal file the undo journal is written to, null for none
+     * @return the number of bytes written
+     */
+    public int commit(File journal) throws IOException
+    {
+        if (overlay == null)
+            return 0;
+
+        HivePatchSet patch = new HivePatchSet(this, journal);
+        for (int i = 0; i < overlay.length; i++)
+        {
+            if (overlay[i] != null)
+                patch.put(i * PAGE_SIZE, overlay[i], 0, Math.min(PAGE_SIZE, length - (i * PAGE_SIZE)));
+        }
+
+        int written = patch.commit();   // remaps the hive over the patched file
+
+        overlay = null;                 // every page was written out, the file is clean now
+        length = fileLength;
+        invalidate();
+
+        return written;
+    }
+
+    /**
+     * Drops every edit that has not been committed, log data is replayed again
+     */
+    public void discard()
+    {
+        overlay = null;
+        length = fileLength;
+        rootOffset = getDWord(ROOTKEY_OFFSET) + 0x1000;
+        recover();
+        invalidate();
+    }
+
+    /**
+     * does any byte of the range live in the overlay
+     */
+    private boolean inOverlay(int offset, int len)
+    {
+        return overlay[offset >>> 12] != null || overlay[(offset + len - 1) >>> 12] != null;
+    }
+
+    /**
+     * the overlay page holding offset, copied from the file on first use
+     */
+    private byte[] dirtyPage(int offset)
+    {
+        if (offset < 0 || offset >= length)
+            throw new IndexOutOfBoundsException("hive write " + offset + " outside of " + length);
+
+        hbinTable = null;   // cell sizes may change
+        if (overlay == null)
+            overlay = new byte[(length + PAGE_SIZE - 1) / PAGE_SIZE][];
+
+        int index = offset >>> 12;
+        if (overlay[index] == null)
+        {
+            byte[] p = new byte[PAGE_SIZE];
+            readFile(index * PAGE_SIZE, p, 0, Math.min(PAGE_SIZE, fileLength - (index * PAGE_SIZE)));
+            overlay[index] = p;
+        }
+
+        return overlay[index];
+    }
+
+    /**
+     * Releases the mapping (or channel) backing this hive.  The hive must not
+     * be used afterwards.  Unmapping is best effort, but matters on Windows
+     * where a live mapping keeps the snapshot from being unmounted.
+     */
+    public void close()
+    {
+        pathCache.clear();
+        overlay = null;
+        replayedPages = new int[0];
+        release();
+    }
+
+    /**
+     * unmaps the file or closes the fallback channel
+     */
+    private void release()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch(IOException ioe)
+            {
+                System.out.println("Problem: " + ioe);
+            }
+            channel = null;
+        }
+
+        if (buffer != null)
+        {
+            unmap(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * fetches a single byte through the page window when the hive is not mapped
+     * @param offset offset into the hive file
+     * @return the byte at offset (0 - 255)
+     */
+    private synchronized int windowByte(int offset)
+    {
+        if (offset < 0 || offset >= fileLength)
+            throw new IndexOutOfBoundsException("hive offset " + offset + " outside of " + fileLength);
+
+        long base = offset & ~(PAGE_SIZE - 1);
+
+        if (base != pageBase)
+        {
+            try
+            {
+                page.clear();
+                while (page.hasRemaining() && channel.read(page, base + page.position()) > 0)
+                    ;
+            }
+            catch(IOException ioe)
+            {
+                pageBase = -1;
+                throw new IllegalStateException("Problem reading hive: " + ioe);
+            }
+            pageBase = base;
+        }
+
+        return page.get((int)(offset - base)) & 0xFF;
+    }
+
+    /**
+     * Best effort release of a mapped buffer.  There is no public API for this,
+     * so try the JDK 9+ Unsafe.invokeCleaner route and then the older
+     * DirectBuffer.cleaner().clean() route; if neither works the mapping is
+     * released when the buffer is garbage collected.
+     * @param mapped the mapped buffer to release, must not be used afterwards
+     */
+    static void unmap(ByteBuffer mapped)
+    {
+        if (!mapped.isDirect())
+            return;
+
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Method clean = unsafeClass.getMethod("invokeCleaner", new Class<?>[] { ByteBuffer.class });
+            clean.invoke(f.get(null), new Object[] { mapped });
+            return;
+        }
+        catch(Throwable t) { }
+
+        try
+        {
+            Method cleanerMethod = mapped.getClass().getMethod("cleaner", new Class<?>[0]);
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mapped, new Object[0]);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean", new Class<?>[0]).invoke(cleaner, new Object[0]);
+        }
+        catch(Throwable t) { }
     }
 }
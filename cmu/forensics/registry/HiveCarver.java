@@ -0,0 +1,456 @@
+/*
+   HiveCarver.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * HiveCarver
+ * Recovers deleted keys, values and subkey lists from the free cells of a
+ * hive.  Deleting a key or value only marks its cells free (the size turns
+ * positive), so until the space is reused the old nk, vk and lf/lh records
+ * are still there, several of them in one cell when Windows merged
+ * neighbouring free cells.
+ *
+ * The hbins are split into ranges of about a megabyte that are scanned on
+ * a pool, each task with its own cursors over the shared mapping.  Inside
+ * a free cell every 8 byte boundary is tried: the record id and the old
+ * cell size are checked first and the fixed fields only when they match,
+ * so almost all of the free space costs two reads.  A record that passes
+ * is decoded and skipped over as a whole.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveCarver
+{
+    private static final int HBIN_ID = 0x6e696268;      // "hbin"
+    private static final int HBIN_HEADER = 0x20;
+    private static final int RANGE_SIZE = 0x100000;     // bytes of hbins per task
+    private static final int MAX_KEY_NAME = 510;        // 255 UTF-16 characters
+    private static final int MAX_VALUE_NAME = 32766;    // 16383 UTF-16 characters
+    private static final int MAX_COUNT = 0x100000;      // sanity bound on subkey and value counts
+
+    /* FILETIMEs of 1995-01-01 and 2100-01-01, deleted keys outside are noise */
+    private static final long MIN_FILETIME = 0x01b9b90a9f21c000L;
+    private static final long MAX_FILETIME = 0x022f716377640000L;
+
+    private Hive hive;
+
+    /**
+     *  HiveCarver constructor
+     *
+     *  @param hive the hive to carve, not modified
+     */
+    public HiveCarver(Hive hive)
+    {
+        this.hive = hive;
+    }
+
+    /**
+     * scans the free space of every hbin
+     * @param threads number of ranges scanned at the same time
+     * @return the recovered records in hive order
+     */
+    public List<CarvedCell> carve(int threads)
+    {
+        List<int[]> ranges = splitRanges();
+        List<CarvedCell> found = new ArrayList<CarvedCell>();
+        if (ranges.isEmpty()) { return found; }
+
+        if (threads <= 1 || ranges.size() == 1)
+        {
+            for (int i = 0; i < ranges.size(); i++)
+                found.addAll(carveRange(ranges.get(i)[0], ranges.get(i)[1]));
+            return found;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+        try
+        {
+            List<Future<List<CarvedCell>>> results = new ArrayList<Future<List<CarvedCell>>>(ranges.size());
+            for (int i = 0; i < ranges.size(); i++)
+            {
+                final int[] range = ranges.get(i);
+                results.add(pool.submit(new Callable<List<CarvedCell>>() {
+                    public List<CarvedCell> call()
+                    {
+                        return carveRange(range[0], range[1]);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+                found.addAll(results.get(i).get());
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+        catch (ExecutionException ee)
+        {
+            throw new IllegalStateException(ee.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        return found;
+    }
+
+    /**
+     * hops over the hbin headers and groups consecutive hbins into ranges
+     * of about RANGE_SIZE bytes, stops at the first damaged hbin
+     */
+    private List<int[]> splitRanges()
+    {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int length = hive.getLength();
+        int start = 0x1000;
+        int bin = start;
+
+        while (bin + HBIN_HEADER <= length && hive.getDWord(bin) == HBIN_ID)
+        {
+            int binSize = hive.getDWord(bin + 0x0008);
+            if (binSize < 0x1000 || (binSize & 0xFFF) != 0 || binSize > length - bin)
+                break;
+
+            bin += binSize;
+            if (bin - start >= RANGE_SIZE)
+            {
+                ranges.add(new int[] { start, bin });
+                start = bin;
+            }
+        }
+
+        if (bin > start)
+            ranges.add(new int[] { start, bin });
+
+        return ranges;
+    }
+
+    /**
+     * carves the hbins in [start, end)
+     */
+    private List<CarvedCell> carveRange(int start, int end)
+    {
+        List<CarvedCell> found = new ArrayList<CarvedCell>();
+        NK_Structure nk = new NK_Structure(hive);
+        HiveValue value = new HiveValue(hive);
+        HashMap<Integer, String> paths = new HashMap<Integer, String>();
+
+        for (int bin = start; bin < end; )
+        {
+            int binEnd = bin + hive.getDWord(bin + 0x0008);
+
+            for (int cell = bin + HBIN_HEADER; cell + 4 <= binEnd; )
+            {
+                int size = hive.getDWord(cell);
+                int abs = Math.abs(size);
+                if (size == 0 || (abs & 7) != 0 || abs > binEnd - cell)
+                    break;  // damaged hbin, leave the rest alone
+
+                if (size > 0)
+                    carveCell(cell, cell + size, nk, value, paths, found);
+                cell += abs;
+            }
+
+            bin = binEnd;
+        }
+
+        return found;
+    }
+
+    /**
+     * tries every 8 byte boundary of the free cell [cell, end)
+     */
+    private void carveCell(int cell, int end, NK_Structure nk, HiveValue value, HashMap<Integer, String> paths, List<CarvedCell> found)
+    {
+        for (int p = cell; p + 8 <= end; )
+        {
+            int ofs = p + 4;
+            int id = hive.getWord(ofs);
+            int len = 0;
+
+            if (id == NK_Structure.NK_ID)
+                len = checkKey(ofs, end);
+            else if (id == VK_Structure.VK_ID)
+                len = checkValue(ofs, end);
+            else if (id == SubkeyList.LF_ID || id == SubkeyList.LH_ID)
+                len = checkList(ofs, end);
+
+            // the old cell size must still cover the record
+            if (len > 0)
+            {
+                int old = Math.abs(hive.getDWord(p));
+                if (old < len + 4 || (old & 7) != 0)
+                    len = 0;
+            }
+
+            if (len == 0)
+            {
+                p += 8;
+                continue;
+            }
+
+            if (id == NK_Structure.NK_ID)
+                found.add(decodeKey(ofs, cell, nk, paths));
+            else if (id == VK_Structure.VK_ID)
+                found.add(decodeValue(ofs, cell, value));
+            else
+                found.add(decodeList(ofs, cell));
+
+            p += (len + 4 + 7) & ~7;
+        }
+    }
+
+    /**
+     * cheap test of the fixed nk fields
+     * @return the length of the record from its id, 0 if it is not a key
+     */
+    private int checkKey(int ofs, int end)
+    {
+        if (ofs + 0x004C > end)
+            return 0;
+
+        int nameLen = hive.getWord(ofs + 0x0048);
+        if (nameLen == 0 || nameLen > MAX_KEY_NAME || ofs + 0x004C + nameLen > end)
+            return 0;
+
+        long written = ((long)hive.getDWord(ofs + 0x0008) << 32) | (hive.getDWord(ofs + 0x0004) & 0xffffffffL);
+        if (written < MIN_FILETIME || written > MAX_FILETIME)
+            return 0;
+
+        int subkeys = hive.getDWord(ofs + 0x0014);
+        int values = hive.getDWord(ofs + 0x0024);
+        if (subkeys < 0 || subkeys > MAX_COUNT || values < 0 || values > MAX_COUNT)
+            return 0;
+
+        if (!isCellOffset(hive.getDWord(ofs + 0x0010)))
+            return 0;
+
+        return 0x004C + nameLen;
+    }
+
+    /**
+     * cheap test of the fixed vk fields
+     * @return the length of the record from its id, 0 if it is not a value
+     */
+    private int checkValue(int ofs, int end)
+    {
+        if (ofs + 0x0014 > end)
+            return 0;
+
+        int nameLen = hive.getWord(ofs + 0x0002);
+        if (nameLen > MAX_VALUE_NAME || ofs + 0x0014 + nameLen > end)
+            return 0;
+
+        if ((hive.getWord(ofs + 0x0010) & ~VK_Structure.VALUE_COMP_NAME) != 0)
+            return 0;
+
+        int len = hive.getDWord(ofs + 0x0004);
+        if ((len & 0x80000000) != 0)
+        {
+            if ((len & 0x7fffffff) > 4)
+                return 0;
+        }
+        else if (len > 0 && !isCellOffset(hive.getDWord(ofs + 0x0008)))
+            return 0;
+
+        return 0x0014 + nameLen;
+    }
+
+    /**
+     * cheap test of an lf or lh list
+     * @return the length of the record from its id, 0 if it is not a subkey list
+     */
+    private int checkList(int ofs, int end)
+    {
+        int count = hive.getWord(ofs + 0x0002);
+        if (count == 0 || ofs + 4 + (count * 8) > end)
+            return 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (!isCellOffset(hive.getDWord(ofs + 4 + (i * 8))))
+                return 0;
+        }
+
+        return 4 + (count * 8);
+    }
+
+    private CarvedCell decodeKey(int ofs, int cell, NK_Structure nk, HashMap<Integer, String> paths)
+    {
+        CarvedCell c = new CarvedCell(CarvedCell.KEY, ofs, cell);
+        nk.setOffset(ofs);
+        c.name = nk.getName();
+        c.lastWritten = nk.getLastWritten();
+        c.subkeys = (int)nk.getNo_subkeys();
+        c.values = (int)nk.getNo_values();
+
+        int parent = (int)nk.getOfs_parent() + 0x1004;
+        if (hive.getWord(parent) == NK_Structure.NK_ID)
+        {
+            c.parentOffset = parent;
+            c.parentPath = resolve(parent, nk, paths);
+        }
+
+        return c;
+    }
+
+    private CarvedCell decodeValue(int ofs, int cell, HiveValue value)
+    {
+        CarvedCell c = new CarvedCell(CarvedCell.VALUE, ofs, cell);
+        value.setOffset(ofs);
+        VK_Structure vk = value.getVK();
+        c.name = vk.getName();
+        c.valueType = (int)vk.getVal_type();
+
+        int len = (int)vk.getLen_data();
+        c.dataLength = len & 0x7fffffff;
+        if ((len & 0x80000000) != 0)
+            c.dataRecoverable = true;
+        else if (value.getLength() > 0)
+            c.dataRecoverable = hive.getDWord((int)vk.getOfs_data() + 0x1000) > 0;   // data cell not reused
+
+        return c;
+    }
+
+    private CarvedCell decodeList(int ofs, int cell)
+    {
+        CarvedCell c = new CarvedCell(CarvedCell.SUBKEY_LIST, ofs, cell);
+        c.listId = hive.getWord(ofs);
+        c.entries = hive.getWord(ofs + 0x0002);
+
+        for (int i = 0; i < c.entries; i++)
+        {
+            int key = hive.getDWord(ofs + 4 + (i * 8)) + 0x1004;
+            if (hive.getWord(key) == NK_Structure.NK_ID)
+                c.liveEntries++;
+        }
+
+        return c;
+    }
+
+    /**
+     * path from the root of the key at ofs, following the parent offsets
+     * through live and deleted keys alike
+     * @return the path, "" for the root, null if the chain is broken
+     */
+    private String resolve(int ofs, NK_Structure nk, HashMap<Integer, String> paths)
+    {
+        int root = hive.getRootOffset() + 4;
+        List<Integer> chain = new ArrayList<Integer>();
+        String path = null;
+
+        while (chain.size() < HiveWalker.MAX_DEPTH)
+        {
+            if (ofs == root)
+            {
+                path = "";
+                break;
+            }
+
+            Integer key = Integer.valueOf(ofs);
+            if (paths.containsKey(key))
+            {
+                path = paths.get(key);
+                break;
+            }
+
+            if (!inHive(ofs, 0x4C) || hive.getWord(ofs) != NK_Structure.NK_ID || chain.contains(key))
+                break;
+
+            chain.add(key);
+            nk.setOffset(ofs);
+            ofs = (int)nk.getOfs_parent() + 0x1004;
+        }
+
+        // remember the whole chain, broken chains as null
+        for (int i = chain.size() - 1; i >= 0; i--)
+        {
+            if (path != null)
+            {
+                nk.setOffset(chain.get(i).intValue());
+                path = path + "\\" + nk.getName();
+            }
+            paths.put(chain.get(i), path);
+        }
+
+        return path;
+    }
+
+    /**
+     * is rel a plausible cell offset (relative to the first hbin, 8 byte aligned, in the hive)
+     */
+    private boolean isCellOffset(int rel)
+    {
+        return rel >= 0 && (rel & 7) == 0 && rel <= hive.getLength() - 0x1000 - 8;
+    }
+
+    /**
+     * does [offset, offset+len) lie in the hbins of the hive
+     */
+    private boolean inHive(int offset, int len)
+    {
+        return offset >= 0x1000 && len >= 0 && offset <= hive.getLength() - len;
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: HiveCarver hiveFile [threads]");
+            return;
+        }
+
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Hive hive = new Hive(new File(args[0]));
+        try
+        {
+            long start = System.currentTimeMillis();
+            List<CarvedCell> found = new HiveCarver(hive).carve(threads);
+            long millis = System.currentTimeMillis() - start;
+
+            for (int i = 0; i < found.size(); i++)
+                System.out.println(found.get(i));
+            System.out.println(found.size() + " records carved from " + hive.getLength() + " bytes in " + millis + " ms");
+        }
+        finally
+        {
+            hive.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+   HiveChange.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * HiveChange
+ * One difference between two versions of a hive found by HiveDiff: a key
+ * or value that was added, removed or modified, or a cell that changed
+ * but could not be tied to a key.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveChange
+{
+    public static final int ADDED = 1;
+    public static final int REMOVED = 2;
+    public static final int MODIFIED = 3;
+
+    public static final int KEY = 1;
+    public static final int VALUE = 2;
+    public static final int CELL = 3;
+
+    private final int change;
+    private final int type;
+    private final int offset;       // hive offset of the nk or vk, or of the cell
+    private final String path;      // key or value path from the hive root, null for cells
+    private final String detail;    // what was modified, "" if nothing more is known
+
+    /**
+     *  HiveChange constructor
+     *
+     *  @param change ADDED, REMOVED or MODIFIED
+     *  @param type KEY, VALUE or CELL
+     *  @param offset hive offset of the nk or vk structure, or of the cell
+     *  @param path key or value path from the hive root, null for cells
+     *  @param detail what was modified
+     */
+    public HiveChange(int change, int type, int offset, String path, String detail)
+    {
+        this.change = change;
+        this.type = type;
+        this.offset = offset;
+        this.path = path;
+        this.detail = detail;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append((change == ADDED) ? "added " : ((change == REMOVED) ? "removed " : "modified "));
+        sb.append((type == KEY) ? "key " : ((type == VALUE) ? "value " : "cell "));
+        sb.append((path != null) ? path : "0x" + Integer.toHexString(offset));
+        if (detail.length() > 0)
+            sb.append(" (").append(detail).append(')');
+        return sb.toString();
+    }
+
+    /**
+     * inspector for change
+     * @return ADDED, REMOVED or MODIFIED
+     */
+    public int getChange()
+    {
+        return change;
+    }
+
+    /**
+     * inspector for type
+     * @return KEY, VALUE or CELL
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * inspector for offset
+     * @return hive offset of the nk or vk structure, or of the cell
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * inspector for path
+     * @return the key or value path, values as key path \ value name, null for cells
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * inspector for detail
+     * @return what was modified, "" if nothing more is known
+     */
+    public String getDetail()
+    {
+        return detail;
+    }
+}
@@ -0,0 +1,751 @@
+/*
+   HiveDiff.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * HiveDiff
+ * Structural diff of two versions of a hive, reported as keys and values
+ * that were added, removed or modified.
+ *
+ * Both hives are read 4 KB page by page and pages are compared by a 64 bit
+ * FNV-1a hash; only pages whose hashes differ are compared byte by byte,
+ * and only the cells overlapping a changed byte range are looked at.  Cells
+ * that are nk or vk on both sides become modified keys and values, cells
+ * that only hold one on one side are added or removed.  Other cells (data,
+ * value and subkey lists) are tied back to their value or key by looking at
+ * the keys that changed first, then by walking the hive until every cell
+ * has an owner.  The base block is not compared, every commit rewrites it.
+ *
+ * compare() diffs a patched hive against its undo journal: the original is
+ * the patched file with the journal overlaid, and only the pages the
+ * journal covers are hashed, so the cost follows the size of the patch and
+ * not the size of the hive.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveDiff
+{
+    private static final int PAGE_SIZE = 0x1000;
+    private static final int HBIN_ID = 0x6e696268;      // "hbin"
+    private static final int HBIN_HEADER = 0x20;
+    private static final int MAX_RANGES = 8;            // changed data ranges listed per value
+
+    /* what a cell is to its owner */
+    private static final int OWN_VALUE = 1;
+    private static final int OWN_DATA = 2;
+    private static final int OWN_VALUE_LIST = 3;
+    private static final int OWN_SUBKEY_LIST = 4;
+
+    /* nk fields compared for modified keys, counts are shown old -> new */
+    private static final int[] NK_FIELDS = { 0x0004, 0x0014, 0x001C, 0x0024, 0x0028, 0x002C, 0x0030 };
+    private static final int[] NK_WIDTHS = { 8, 4, 4, 4, 4, 4, 4 };
+    private static final String[] NK_NAMES = { "lastwritten", "subkeys", "subkey list", "values", "value list", "security", "class name" };
+
+    private Side orig;
+    private Side mod;
+    private int[] pages;        // pages to compare, null for every page
+
+    /**
+     *  HiveDiff constructor, compares every page of two hives
+     *
+     *  @param original the hive before the change
+     *  @param modified the hive after the change
+     */
+    public HiveDiff(Hive original, Hive modified)
+    {
+        this(original, original.getLength(), modified, null);
+    }
+
+    private HiveDiff(Hive original, int origLength, Hive modified, int[] pages)
+    {
+        this.orig = new Side(original, origLength);
+        this.mod = new Side(modified, modified.getLength());
+        this.pages = pages;
+    }
+
+    /**
+     * Diffs a patched hive file against the undo journal of the patch
+     * @param hiveFile the patched hive file
+     * @param journal the undo journal written when it was patched
+     * @return the changes made by the patch
+     */
+    public static List<HiveChange> compare(File hiveFile, File journal) throws IOException
+    {
+        Hive modified = new Hive(hiveFile);
+        Hive original = new Hive(hiveFile);
+        try
+        {
+            int origLength = HivePatchSet.overlayJournal(original, journal);
+
+            int[] edited = original.getModifiedPages();
+            int appended = (modified.getLength() - origLength) / PAGE_SIZE;
+            int[] pages = new int[edited.length + appended];
+            System.arraycopy(edited, 0, pages, 0, edited.length);
+            for (int i = 0; i < appended; i++)
+                pages[edited.length + i] = (origLength / PAGE_SIZE) + i;
+
+            return new HiveDiff(original, origLength, modified, pages).diff();
+        }
+        finally
+        {
+            original.close();
+            modified.close();
+        }
+    }
+
+    /**
+     * compares the hives
+     * @return the changes, sorted by path
+     */
+    public List<HiveChange> diff()
+    {
+        byte[] a = new byte[PAGE_SIZE];
+        byte[] b = new byte[PAGE_SIZE];
+        int count = (pages != null) ? pages.length : (Math.max(orig.length, mod.length) + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        for (int i = 0; i < count; i++)
+        {
+            int page = (pages != null) ? pages[i] : i;
+            if (page == 0)
+                continue;   // base block
+
+            int ofs = page * PAGE_SIZE;
+            int lenA = readPage(orig, ofs, a);
+            int lenB = readPage(mod, ofs, b);
+            if (lenA == lenB && hash(a, lenA) == hash(b, lenB))
+                continue;
+
+            int n = Math.max(lenA, lenB);
+            for (int j = 0; j < n; )
+            {
+                if (j < lenA && j < lenB && a[j] == b[j])
+                {
+                    j++;
+                    continue;
+                }
+
+                int start = j;
+                while (j < n && !(j < lenA && j < lenB && a[j] == b[j]))
+                    j++;
+
+                collectCells(orig, ofs + start, ofs + j);
+                collectCells(mod, ofs + start, ofs + j);
+            }
+        }
+
+        return classify();
+    }
+
+    /**
+     * sorts the changed cells into keys and values, resolves the owners of
+     * the other cells and builds the changes
+     */
+    private List<HiveChange> classify()
+    {
+        TreeSet<Integer> keysAdded = new TreeSet<Integer>();
+        TreeSet<Integer> keysRemoved = new TreeSet<Integer>();
+        TreeSet<Integer> keysModified = new TreeSet<Integer>();
+        TreeSet<Integer> valuesAdded = new TreeSet<Integer>();
+        TreeSet<Integer> valuesRemoved = new TreeSet<Integer>();
+        TreeSet<Integer> valuesModified = new TreeSet<Integer>();
+        TreeSet<Integer> otherOrig = new TreeSet<Integer>();
+        TreeSet<Integer> otherMod = new TreeSet<Integer>();
+
+        TreeSet<Integer> cells = new TreeSet<Integer>(orig.cells.keySet());
+        cells.addAll(mod.cells.keySet());
+        int[] all = toArray(cells);
+
+        for (int i = 0; i < all.length; i++)
+        {
+            int cell = all[i];
+            Integer data = Integer.valueOf(cell + 4);
+            int oId = orig.getId(cell);
+            int mId = mod.getId(cell);
+
+            // a freed cell reused for another key or value is a remove and an add
+            boolean same = oId == mId && isSameRecord(cell + 4, oId);
+
+            if (same && oId == NK_Structure.NK_ID)
+                keysModified.add(data);
+            else if (same && oId == VK_Structure.VK_ID)
+                valuesModified.add(data);
+            else
+            {
+                if (oId == NK_Structure.NK_ID)
+                    keysRemoved.add(data);
+                else if (oId == VK_Structure.VK_ID)
+                    valuesRemoved.add(data);
+                else if (oId != -1)
+                    otherOrig.add(Integer.valueOf(cell));
+
+                if (mId == NK_Structure.NK_ID)
+                    keysAdded.add(data);
+                else if (mId == VK_Structure.VK_ID)
+                    valuesAdded.add(data);
+                else if (mId != -1)
+                    otherMod.add(Integer.valueOf(cell));
+            }
+        }
+
+        // owners of the value cells (for their paths) and of every other cell
+        TreeSet<Integer> pendingMod = new TreeSet<Integer>(otherMod);
+        addCells(pendingMod, valuesAdded);
+        addCells(pendingMod, valuesModified);
+        TreeSet<Integer> candidates = new TreeSet<Integer>(keysAdded);
+        candidates.addAll(keysModified);
+        resolve(mod, pendingMod, candidates);
+
+        TreeSet<Integer> pendingOrig = new TreeSet<Integer>(otherOrig);
+        addCells(pendingOrig, valuesRemoved);
+        candidates = new TreeSet<Integer>(keysRemoved);
+        candidates.addAll(keysModified);
+        resolve(orig, pendingOrig, candidates);
+
+        // data and lists that changed under a key or value not changed itself
+        HashMap<Integer, String> keyNotes = new HashMap<Integer, String>();
+        int[] other = toArray(otherMod);
+        for (int i = 0; i < other.length; i++)
+            noteOwner(mod, other[i], keysAdded, valuesAdded, keysModified, valuesModified, keyNotes);
+        other = toArray(otherOrig);
+        for (int i = 0; i < other.length; i++)
+            noteOwner(orig, other[i], keysRemoved, valuesRemoved, keysModified, valuesModified, keyNotes);
+
+        List<HiveChange> changes = new ArrayList<HiveChange>();
+        int[] ofs = toArray(keysAdded);
+        for (int i = 0; i < ofs.length; i++)
+            changes.add(new HiveChange(HiveChange.ADDED, HiveChange.KEY, ofs[i], mod.keyPath(ofs[i]), ""));
+
+        ofs = toArray(keysRemoved);
+        for (int i = 0; i < ofs.length; i++)
+            changes.add(new HiveChange(HiveChange.REMOVED, HiveChange.KEY, ofs[i], orig.keyPath(ofs[i]), ""));
+
+        ofs = toArray(keysModified);
+        for (int i = 0; i < ofs.length; i++)
+        {
+            StringBuffer detail = new StringBuffer();
+            keyDetail(ofs[i], detail);
+            String note = keyNotes.get(Integer.valueOf(ofs[i]));
+            String[] parts = (note != null) ? note.split(", ") : new String[0];
+            for (int j = 0; j < parts.length; j++)
+            {
+                if (detail.toString().indexOf(parts[j]) < 0)
+                    append(detail, parts[j]);
+            }
+
+            if (detail.length() > 0)
+                changes.add(new HiveChange(HiveChange.MODIFIED, HiveChange.KEY, ofs[i], mod.keyPath(ofs[i]), detail.toString()));
+        }
+
+        ofs = toArray(valuesAdded);
+        for (int i = 0; i < ofs.length; i++)
+        {
+            mod.value.setOffset(ofs[i]);
+            String detail = "type " + mod.value.getType() + ", " + mod.value.getLength() + " bytes";
+            changes.add(new HiveChange(HiveChange.ADDED, HiveChange.VALUE, ofs[i], mod.valuePath(ofs[i]), detail));
+        }
+
+        ofs = toArray(valuesRemoved);
+        for (int i = 0; i < ofs.length; i++)
+            changes.add(new HiveChange(HiveChange.REMOVED, HiveChange.VALUE, ofs[i], orig.valuePath(ofs[i]), ""));
+
+        ofs = toArray(valuesModified);
+        for (int i = 0; i < ofs.length; i++)
+        {
+            StringBuffer detail = new StringBuffer();
+            valueDetail(ofs[i], detail);
+            if (detail.length() > 0)
+            {
+                // the owner may only have been found on the original side
+                Side side = mod.valueKeys.containsKey(Integer.valueOf(ofs[i])) ? mod : orig;
+                changes.add(new HiveChange(HiveChange.MODIFIED, HiveChange.VALUE, ofs[i], side.valuePath(ofs[i]), detail.toString()));
+            }
+        }
+
+        // cells no key or value could be found for
+        ofs = toArray(otherMod);
+        for (int i = 0; i < ofs.length; i++)
+        {
+            if (!mod.owners.containsKey(Integer.valueOf(ofs[i])))
+                changes.add(new HiveChange(orig.getId(ofs[i]) != -1 ? HiveChange.MODIFIED : HiveChange.ADDED, HiveChange.CELL, ofs[i], null, -mod.getSize(ofs[i]) + " bytes"));
+        }
+        ofs = toArray(otherOrig);
+        for (int i = 0; i < ofs.length; i++)
+        {
+            if (!orig.owners.containsKey(Integer.valueOf(ofs[i])) && mod.getId(ofs[i]) == -1)
+                changes.add(new HiveChange(HiveChange.REMOVED, HiveChange.CELL, ofs[i], null, -orig.getSize(ofs[i]) + " bytes"));
+        }
+
+        Collections.sort(changes, new Comparator<HiveChange>() {
+            public int compare(HiveChange a, HiveChange b)
+            {
+                String pa = a.getPath();
+                String pb = b.getPath();
+                int c = 0;
+                if (pa == null || pb == null)
+                    c = (pa == pb) ? 0 : ((pa == null) ? 1 : -1);   // cells last
+                else
+                    c = pa.compareToIgnoreCase(pb);
+                return (c != 0) ? c : (a.getOffset() - b.getOffset());
+            }
+        });
+
+        return changes;
+    }
+
+    /**
+     * is the nk or vk at ofs the same key or value on both sides: same
+     * name, and for keys the same parent.  Keys and values can not be
+     * renamed in place, a different name means the cell was reused
+     */
+    private boolean isSameRecord(int ofs, int id)
+    {
+        if (id == NK_Structure.NK_ID)
+        {
+            orig.nk.setOffset(ofs);
+            mod.nk.setOffset(ofs);
+            return orig.nk.getOfs_parent() == mod.nk.getOfs_parent() && orig.nk.getName().equals(mod.nk.getName());
+        }
+
+        if (id == VK_Structure.VK_ID)
+        {
+            orig.value.setOffset(ofs);
+            mod.value.setOffset(ofs);
+            return orig.value.getName().equals(mod.value.getName());
+        }
+
+        return true;
+    }
+
+    /**
+     * turns a changed data or list cell into a modified value or a note on
+     * a modified key, unless its owner was added or removed as a whole
+     */
+    private void noteOwner(Side side, int cell, TreeSet<Integer> keysGone, TreeSet<Integer> valuesGone,
+                           TreeSet<Integer> keysModified, TreeSet<Integer> valuesModified, HashMap<Integer, String> keyNotes)
+    {
+        int[] owner = side.owners.get(Integer.valueOf(cell));
+        if (owner == null)
+            return;
+
+        Integer key = Integer.valueOf(owner[1]);
+        Integer vk = Integer.valueOf(owner[2]);
+
+        if (owner[0] == OWN_DATA)
+        {
+            // the value must still be a value on both sides to be compared
+            if (!valuesGone.contains(vk) && mod.hive.getWord(owner[2]) == VK_Structure.VK_ID && orig.hive.getWord(owner[2]) == VK_Structure.VK_ID)
+                valuesModified.add(vk);
+            return;
+        }
+
+        if (keysGone.contains(key) || mod.hive.getWord(owner[1]) != NK_Structure.NK_ID || orig.hive.getWord(owner[1]) != NK_Structure.NK_ID)
+            return;
+
+        // a list rewritten in place, the nk itself may not have changed
+        String note = (owner[0] == OWN_VALUE_LIST) ? "value list" : "subkey list";
+        String notes = keyNotes.get(key);
+        if (notes == null)
+            keyNotes.put(key, note);
+        else if (!notes.equals(note))
+            keyNotes.put(key, "value list, subkey list");
+        keysModified.add(key);
+    }
+
+    /**
+     * finds the owners of the pending cells, first under the candidate keys
+     * and then by walking the hive until none is left
+     */
+    private void resolve(Side side, TreeSet<Integer> pending, TreeSet<Integer> candidates)
+    {
+        int[] keys = toArray(candidates);
+        for (int i = 0; i < keys.length && !pending.isEmpty(); i++)
+        {
+            if (side.hive.getWord(keys[i]) == NK_Structure.NK_ID)
+                side.register(keys[i], null, pending);
+        }
+
+        if (pending.isEmpty())
+            return;
+
+        HiveWalker walker = new HiveWalker(side.hive);
+        int event;
+        while (!pending.isEmpty() && (event = walker.next()) != HiveWalker.DONE)
+        {
+            if (event == HiveWalker.KEY)
+                side.register(walker.getKey().getOffset(), walker.getPath(), pending);
+        }
+    }
+
+    /**
+     * lists the nk fields that differ
+     */
+    private void keyDetail(int ofs, StringBuffer detail)
+    {
+        for (int i = 0; i < NK_FIELDS.length; i++)
+        {
+            int at = ofs + NK_FIELDS[i];
+            boolean same = orig.hive.getDWord(at) == mod.hive.getDWord(at);
+            if (NK_WIDTHS[i] == 8)
+                same = same && orig.hive.getDWord(at + 4) == mod.hive.getDWord(at + 4);
+            if (same)
+                continue;
+
+            if (NK_FIELDS[i] == 0x0014 || NK_FIELDS[i] == 0x0024)
+                append(detail, NK_NAMES[i] + " " + orig.hive.getDWord(at) + " -> " + mod.hive.getDWord(at));
+            else
+                append(detail, NK_NAMES[i]);
+        }
+
+    }
+
+    /**
+     * lists the vk fields that differ and the byte ranges of the data that changed
+     */
+    private void valueDetail(int ofs, StringBuffer detail)
+    {
+        orig.value.setOffset(ofs);
+        mod.value.setOffset(ofs);
+
+        if (orig.value.getType() != mod.value.getType())
+            append(detail, "type " + orig.value.getType() + " -> " + mod.value.getType());
+
+        if (orig.value.getLength() != mod.value.getLength())
+        {
+            append(detail, "data length " + orig.value.getLength() + " -> " + mod.value.getLength());
+            return;
+        }
+
+        byte[] a = orig.value.getData();
+        byte[] b = mod.value.getData();
+        int ranges = 0;
+        for (int i = 0; i < a.length; )
+        {
+            if (a[i] == b[i])
+            {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            while (i < a.length && a[i] != b[i])
+                i++;
+
+            if (++ranges > MAX_RANGES)
+            {
+                append(detail, "...");
+                break;
+            }
+            append(detail, "data 0x" + Integer.toHexString(start) + "+" + (i - start));
+        }
+    }
+
+    private static void append(StringBuffer sb, String s)
+    {
+        if (sb.length() > 0)
+            sb.append(", ");
+        sb.append(s);
+    }
+
+    /**
+     * records the cells overlapping [start, end) in the hbin holding start
+     */
+    private static void collectCells(Side side, int start, int end)
+    {
+        if (start >= side.length)
+            return;
+        end = Math.min(end, side.length);
+
+        int bin = findBin(side, start);
+        if (bin < 0)
+            return;
+
+        int binEnd = bin + side.hive.getDWord(bin + 0x0008);
+        for (int cell = bin + HBIN_HEADER; cell < end && cell + 4 <= binEnd; )
+        {
+            int size = side.hive.getDWord(cell);
+            int abs = Math.abs(size);
+            if (size == 0 || (abs & 7) != 0 || abs > binEnd - cell)
+                break;  // damaged hbin
+
+            if (cell + abs > start)
+                side.cells.put(Integer.valueOf(cell), Integer.valueOf(size));
+            cell += abs;
+        }
+    }
+
+    /**
+     * offset of the hbin holding ofs, found by stepping back page by page
+     * to its header, -1 if there is none
+     */
+    private static int findBin(Side side, int ofs)
+    {
+        for (int p = ofs & ~(PAGE_SIZE - 1); p >= 0x1000; p -= PAGE_SIZE)
+        {
+            if (side.hive.getDWord(p) != HBIN_ID || side.hive.getDWord(p + 0x0004) != p - 0x1000)
+                continue;
+
+            int size = side.hive.getDWord(p + 0x0008);
+            return (size >= PAGE_SIZE && size <= side.length - p && ofs < p + size) ? p : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * copies the page at ofs, as far as the side reaches
+     * @return the number of bytes copied
+     */
+    private static int readPage(Side side, int ofs, byte[] buf)
+    {
+        int len = Math.max(0, Math.min(PAGE_SIZE, side.length - ofs));
+        if (len > 0)
+            side.hive.read(ofs, buf, 0, len);
+        return len;
+    }
+
+    /**
+     * 64 bit FNV-1a
+     */
+    private static long hash(byte[] buf, int len)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < len; i++)
+        {
+            h ^= buf[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * adds the cell offsets of a set of nk or vk offsets
+     */
+    private static void addCells(TreeSet<Integer> cells, TreeSet<Integer> structures)
+    {
+        int[] ofs = toArray(structures);
+        for (int i = 0; i < ofs.length; i++)
+            cells.add(Integer.valueOf(ofs[i] - 4));
+    }
+
+    private static int[] toArray(TreeSet<Integer> set)
+    {
+        Integer[] boxed = set.toArray(new Integer[set.size()]);
+        int[] a = new int[boxed.length];
+        for (int i = 0; i < a.length; i++)
+            a[i] = boxed[i].intValue();
+        return a;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.out.println("usage: HiveDiff hiveFile undoJournal|originalHive");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        List<HiveChange> changes;
+        Hive other = new Hive(new File(args[1]));
+        boolean isHive = other.getLength() >= 4 && other.getDWord(0) == 0x66676572;     // "regf"
+
+        if (isHive)
+        {
+            Hive modified = new Hive(new File(args[0]));
+            try
+            {
+                changes = new HiveDiff(other, modified).diff();
+            }
+            finally
+            {
+                modified.close();
+                other.close();
+            }
+        }
+        else
+        {
+            other.close();
+            changes = compare(new File(args[0]), new File(args[1]));
+        }
+
+        for (int i = 0; i < changes.size(); i++)
+            System.out.println(changes.get(i));
+        System.out.println(changes.size() + " changes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * one version of the hive and what was found in it
+     */
+    private static class Side
+    {
+        final Hive hive;
+        final int length;
+        final NK_Structure nk;
+        final HiveValue value;
+        final HashMap<Integer, Integer> cells = new HashMap<Integer, Integer>();    // changed cell -> cell size
+        final HashMap<Integer, int[]> owners = new HashMap<Integer, int[]>();       // cell -> { OWN_*, nk, vk }
+        final HashMap<Integer, String> paths = new HashMap<Integer, String>();      // nk -> key path
+        final HashMap<Integer, Integer> valueKeys = new HashMap<Integer, Integer>(); // vk -> owning nk
+
+        Side(Hive hive, int length)
+        {
+            this.hive = hive;
+            this.length = length;
+            this.nk = new NK_Structure(hive);
+            this.value = new HiveValue(hive);
+        }
+
+        /**
+         * id of an allocated changed cell
+         * @return the id word, -1 if the cell is free or was not found on this side
+         */
+        int getId(int cell)
+        {
+            Integer size = cells.get(Integer.valueOf(cell));
+            if (size == null || size.intValue() >= 0 || -size.intValue() < 8)
+                return -1;
+            return hive.getWord(cell + 4);
+        }
+
+        int getSize(int cell)
+        {
+            Integer size = cells.get(Integer.valueOf(cell));
+            return (size != null) ? size.intValue() : 0;
+        }
+
+        /**
+         * claims the pending cells that belong to the key at ofs: its lists,
+         * its values and their data
+         * @param path path of the key, null to resolve it when needed
+         */
+        void register(int ofs, String path, TreeSet<Integer> pending)
+        {
+            if (path != null)
+                paths.put(Integer.valueOf(ofs), path);
+
+            nk.setOffset(ofs);
+            int values = (int)nk.getNo_values();
+            int list = (int)nk.getOfs_vallist() + 0x1004;
+            if (values > 0)
+                claim(list - 4, OWN_VALUE_LIST, ofs, 0, pending);
+            if (nk.getNo_subkeys() > 0)
+                claim((int)nk.getOfs_lf() + 0x1000, OWN_SUBKEY_LIST, ofs, 0, pending);
+
+            if (values <= 0 || !inHive(list, values * 4))
+                return;
+
+            for (int i = 0; i < values; i++)
+            {
+                int vk = hive.getDWord(list + (i * 4)) + 0x1004;
+                if (!inHive(vk, 0x18) || hive.getWord(vk) != VK_Structure.VK_ID)
+                    continue;
+
+                valueKeys.put(Integer.valueOf(vk), Integer.valueOf(ofs));
+                claim(vk - 4, OWN_VALUE, ofs, vk, pending);
+
+                int len = hive.getDWord(vk + 0x0004);
+                if (len > 0)
+                    claim(hive.getDWord(vk + 0x0008) + 0x1000, OWN_DATA, ofs, vk, pending);
+            }
+        }
+
+        private void claim(int cell, int role, int key, int vk, TreeSet<Integer> pending)
+        {
+            Integer c = Integer.valueOf(cell);
+            if (pending.remove(c))
+                owners.put(c, new int[] { role, key, vk });
+        }
+
+        /**
+         * path of a key, following the parent offsets up to the root
+         * @return the path, with ? for the part that could not be resolved
+         */
+        String keyPath(int ofs)
+        {
+            int root = hive.getRootOffset() + 4;
+            String path = "";
+            ArrayList<Integer> chain = new ArrayList<Integer>();
+
+            while (ofs != root)
+            {
+                String known = paths.get(Integer.valueOf(ofs));
+                if (known != null)
+                {
+                    path = known;
+                    break;
+                }
+
+                if (chain.size() >= HiveWalker.MAX_DEPTH || !inHive(ofs, 0x50) || hive.getWord(ofs) != NK_Structure.NK_ID)
+                {
+                    path = "?";
+                    break;
+                }
+
+                chain.add(Integer.valueOf(ofs));
+                nk.setOffset(ofs);
+                ofs = (int)nk.getOfs_parent() + 0x1004;
+            }
+
+            for (int i = chain.size() - 1; i >= 0; i--)
+            {
+                nk.setOffset(chain.get(i).intValue());
+                path = path + "\\" + nk.getName();
+                paths.put(chain.get(i), path);
+            }
+
+            return path;
+        }
+
+        /**
+         * path of a value, its owning key path and the value name (@ for the default value)
+         */
+        String valuePath(int vk)
+        {
+            Integer key = valueKeys.get(Integer.valueOf(vk));
+            value.setOffset(vk);
+            String name = value.getName();
+            if (name.length() == 0)
+                name = "@";
+            return ((key != null) ? keyPath(key.intValue()) : "?") + "\\" + name;
+        }
+
+        /**
+         * does [offset, offset+len) lie in the hbins of this side
+         */
+        private boolean inHive(int offset, int len)
+        {
+            return offset >= 0x1000 && len >= 0 && offset <= length - len;
+        }
+    }
+}
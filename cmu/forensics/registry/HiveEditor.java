@@ -0,0 +1,654 @@
+/*
+   HiveEditor.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * HiveEditor
+ * Offline editing of a hive file: creates keys and sets or deletes values
+ * without loading the hive into a live registry.
+ *
+ * All edits go to the hive's copy-on-write overlay and reach the file only
+ * when commit() is called.  Cells are taken from the free cells of the
+ * existing hbins (first fit, split when the rest is big enough to be a
+ * cell) and new 4 KB hbins are appended when nothing fits.  Subkey and
+ * value lists are grown in place while their cell has room; otherwise a
+ * list with half again as much room is allocated and the old one freed, so
+ * adding many keys or values does not copy the list every time.  New keys get an lh list (or join the existing lf/lh/li
+ * list, kept sorted the way Windows sorts it) and share the parent's
+ * security descriptor.  Freed cells are not coalesced.
+ *
+ * Offsets taken and returned are nk structure offsets (the "nk" id), the
+ * same offsets NK_Structure cursors are positioned at.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveEditor
+{
+    public static final int REG_SZ          = 1;
+    public static final int REG_EXPAND_SZ   = 2;
+    public static final int REG_BINARY      = 3;
+    public static final int REG_DWORD       = 4;
+    public static final int REG_MULTI_SZ    = 7;
+
+    private static final int HBIN_ID = 0x6e696268;      // "hbin"
+    private static final int HBIN_SIZE = 0x1000;
+    private static final int HBIN_HEADER = 0x20;
+    private static final int MIN_CELL = 0x10;
+    private static final int MAX_CELL_DATA = 16344;     // bigger values need db lists
+    private static final int DATA_INLINE = 0x80000000;  // value data stored in the data offset field
+    private static final long FILETIME_EPOCH_DIFF = 11644473600000L;
+
+    private Hive hive;
+    private NK_Structure nk;            // scratch cursors
+    private NK_Structure child;
+    private VK_Structure vk;
+    private SubkeyList subkeys;
+
+    private int[] freeOfs;              // cell offsets of known free cells
+    private int[] freeSize;
+    private int freeCount = -1;         // -1 until the hbins have been scanned
+
+    /**
+     *  HiveEditor constructor
+     *
+     *  @param hive the hive to edit
+     */
+    public HiveEditor(Hive hive)
+    {
+        this.hive = hive;
+        nk = new NK_Structure(hive);
+        child = new NK_Structure(hive);
+        vk = new VK_Structure(hive);
+        subkeys = new SubkeyList(hive);
+    }
+
+    /**
+     * inspector for the hive being edited
+     * @return the hive
+     */
+    public Hive getHive()
+    {
+        return hive;
+    }
+
+    /**
+     * Finds a key
+     * @param path path from the hive root, components separated by \
+     * @return offset of the nk structure, 0 if the key does not exist
+     */
+    public int openKey(String path)
+    {
+        if (!path.startsWith("\\"))
+            path = "\\" + path;
+
+        int ofs = RegistryParser.traversePath(hive, 0, path, 0);
+        return (ofs > 0) ? ofs + 4 : 0;
+    }
+
+    /**
+     * Finds a key, creating it and any missing parents
+     * @param path path from the hive root, components separated by \
+     * @return offset of the nk structure
+     */
+    public int createKey(String path)
+    {
+        int key = hive.getRootOffset() + 4;
+        String[] parts = path.split("\\\\");
+
+        for (int i = 0; i < parts.length; i++)
+        {
+            String name = parts[i].trim();
+            if (name.length() == 0)
+                continue;
+
+            nk.setOffset(key);
+            int found = 0;
+            if (nk.getNo_subkeys() > 0)
+            {
+                subkeys.setKey(nk);
+                found = subkeys.find(name);
+            }
+
+            key = (found != 0) ? found : addSubkey(key, name);
+        }
+
+        return key;
+    }
+
+    /**
+     * Sets a value, replacing the type and data of an existing value of the
+     * same name
+     * @param key offset of the nk structure
+     * @param name value name, "" or @ for the default value
+     * @param type registry value type (REG_SZ ...)
+     * @param data value data
+     */
+    public void setValue(int key, String name, int type, byte[] data)
+    {
+        if (data.length > MAX_CELL_DATA)
+            throw new IllegalArgumentException("value " + name + " is too big: " + data.length + " bytes");
+        if (name.equals("@"))
+            name = "";
+
+        nk.setOffset(key);
+        int vkOfs = (nk.getNo_values() > 0) ? RegistryParser.findValue(hive, nk, vk, (name.length() == 0) ? "@" : name) : 0;
+
+        if (vkOfs != 0)
+        {
+            vk.setOffset(vkOfs);
+            freeData(vk);
+        }
+        else
+        {
+            vkOfs = newValue(name);
+
+            // value lists are plain arrays of cell offsets
+            int count = (int)nk.getNo_values();
+            int oldList = (count > 0) ? (int)nk.getOfs_vallist() + 0x1004 : 0;
+            int newList = oldList;
+            if (oldList == 0 || capacity(oldList) < (count + 1) * 4)
+            {
+                newList = allocate(grown(count + 1) * 4);
+                for (int i = 0; i < count; i++)
+                    hive.putDWord(newList + (i * 4), hive.getDWord(oldList + (i * 4)));
+                if (oldList != 0)
+                    free(oldList);
+            }
+            hive.putDWord(newList + (count * 4), vkOfs - 0x1004);
+
+            hive.putDWord(key + 0x0024, count + 1);
+            hive.putDWord(key + 0x0028, newList - 0x1004);
+            raise(key + 0x003C, nameBytes(name).length * (isCompressible(name) ? 2 : 1));
+        }
+
+        writeData(vkOfs, type, data);
+        raise(key + 0x0040, data.length);
+        touch(key);
+    }
+
+    /**
+     * Removes a value
+     * @param key offset of the nk structure
+     * @param name value name, "" or @ for the default value
+     * @return true if the value existed
+     */
+    public boolean deleteValue(int key, String name)
+    {
+        nk.setOffset(key);
+        if (nk.getNo_values() <= 0)
+            return false;
+
+        int vkOfs = RegistryParser.findValue(hive, nk, vk, (name.length() == 0) ? "@" : name);
+        if (vkOfs == 0)
+            return false;
+
+        int count = (int)nk.getNo_values();
+        int list = (int)nk.getOfs_vallist() + 0x1004;
+        int j = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int entry = hive.getDWord(list + (i * 4));
+            if (entry + 0x1004 != vkOfs)
+                hive.putDWord(list + (j++ * 4), entry);
+        }
+        hive.putDWord(key + 0x0024, count - 1);
+        if (count == 1)
+        {
+            hive.putDWord(key + 0x0028, -1);
+            free(list);
+        }
+
+        vk.setOffset(vkOfs);
+        freeData(vk);
+        free(vkOfs);
+        touch(key);
+        return true;
+    }
+
+    /**
+     * Writes every edit to the hive file
+     * @param journal file the undo journal is written to, null for none
+     * @return the number of bytes written
+     */
+    public int commit(File journal) throws IOException
+    {
+        freeCount = -1;     // rescanned on the next allocation
+        return hive.commit(journal);
+    }
+
+    /**
+     * Allocates a cell
+     * @param size number of data bytes needed
+     * @return offset of the cell data (just past the size field), zeroed
+     */
+    public int allocate(int size)
+    {
+        if (freeCount < 0)
+            scanFreeCells();
+
+        int need = (size + 4 + 7) & ~7;
+        int i = 0;
+        while (i < freeCount && freeSize[i] < need)
+            i++;
+
+        if (i == freeCount)
+            appendBin(need);
+
+        int cell = freeOfs[i];
+        int rest = freeSize[i] - need;
+        if (rest >= MIN_CELL)
+        {
+            hive.putDWord(cell + need, rest);
+            freeOfs[i] = cell + need;
+            freeSize[i] = rest;
+        }
+        else
+        {
+            need = freeSize[i];
+            freeCount--;
+            freeOfs[i] = freeOfs[freeCount];
+            freeSize[i] = freeSize[freeCount];
+        }
+
+        hive.putDWord(cell, -need);
+        hive.write(cell + 4, new byte[need - 4], 0, need - 4);
+        return cell + 4;
+    }
+
+    /**
+     * Marks a cell free
+     * @param data offset of the cell data, as returned by allocate
+     */
+    public void free(int data)
+    {
+        int cell = data - 4;
+        int size = hive.getDWord(cell);
+        if (size >= 0)
+            return;     // already free
+
+        hive.putDWord(cell, -size);
+        if (freeCount >= 0)
+            addFree(cell, -size);
+    }
+
+    /**
+     * creates a subkey and links it into the parent's subkey list
+     */
+    private int addSubkey(int parent, String name)
+    {
+        byte[] nameBytes = nameBytes(name);
+        int key = allocate(0x4C + nameBytes.length);
+
+        nk.setOffset(parent);
+        hive.putWord(key + 0x0000, NK_Structure.NK_ID);
+        hive.putWord(key + 0x0002, isCompressible(name) ? NK_Structure.KEY_COMP_NAME : 0);
+        putFiletime(key + 0x0004);
+        hive.putDWord(key + 0x0010, parent - 0x1004);
+        hive.putDWord(key + 0x001C, -1);    // no subkey list
+        hive.putDWord(key + 0x0020, -1);    // no volatile subkey list
+        hive.putDWord(key + 0x0028, -1);    // no value list
+        hive.putDWord(key + 0x0030, -1);    // no class name
+        hive.putWord(key + 0x0048, nameBytes.length);
+        hive.write(key + 0x004C, nameBytes, 0, nameBytes.length);
+
+        // share the parent's security descriptor
+        int sk = (int)nk.getOfs_sk();
+        hive.putDWord(key + 0x002C, sk);
+        if (sk != -1)
+            hive.putDWord(sk + 0x1004 + 0x000C, hive.getDWord(sk + 0x1004 + 0x000C) + 1);
+
+        linkSubkey(parent, key, name);
+
+        nk.setOffset(parent);
+        hive.putDWord(parent + 0x0014, (int)nk.getNo_subkeys() + 1);
+        raise(parent + 0x0034, nameBytes.length * (isCompressible(name) ? 2 : 1));
+        touch(parent);
+
+        return key;
+    }
+
+    /**
+     * puts key into the subkey list of parent, replacing the list (or the
+     * ri child list it belongs in) with a copy one entry bigger
+     */
+    private void linkSubkey(int parent, int key, String name)
+    {
+        nk.setOffset(parent);
+        if (nk.getNo_subkeys() <= 0 || nk.getOfs_lf() == -1)
+        {
+            int list = allocate(4 + 8);
+            hive.putWord(list, SubkeyList.LH_ID);
+            hive.putWord(list + 0x0002, 1);
+            putEntry(list, SubkeyList.LH_ID, 0, key, name);
+            hive.putDWord(parent + 0x001C, list - 0x1004);
+            return;
+        }
+
+        int list = (int)nk.getOfs_lf() + 0x1004;
+        if (hive.getWord(list) != RI_Structure.RI_ID)
+        {
+            hive.putDWord(parent + 0x001C, insertEntry(list, key, name) - 0x1004);
+            return;
+        }
+
+        // pick the child list whose range covers name, or the last one
+        int lists = hive.getWord(list + 0x0002);
+        int slot = lists - 1;
+        for (int i = 0; i < lists - 1; i++)
+        {
+            int leaf = hive.getDWord(list + 0x0004 + (i * 4)) + 0x1004;
+            int count = hive.getWord(leaf + 0x0002);
+            if (count == 0)
+                continue;
+
+            child.setOffset(entryOffset(leaf, count - 1));
+            if (child.compareName(name) >= 0)
+            {
+                slot = i;
+                break;
+            }
+        }
+
+        int leaf = hive.getDWord(list + 0x0004 + (slot * 4)) + 0x1004;
+        hive.putDWord(list + 0x0004 + (slot * 4), insertEntry(leaf, key, name) - 0x1004);
+    }
+
+    /**
+     * inserts key into a li/lf/lh list in sorted position, in place if the
+     * cell has room, otherwise into a bigger copy (the old list is freed)
+     * @return offset of the list now holding key
+     */
+    private int insertEntry(int list, int key, String name)
+    {
+        int id = hive.getWord(list);
+        int count = hive.getWord(list + 0x0002);
+        int stride = (id == LI_Structure.LI_ID) ? 4 : 8;
+
+        // first entry that sorts after name
+        int lo = 0, hi = count;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            child.setOffset(entryOffset(list, mid));
+            if (child.compareName(name) > 0)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        if (capacity(list) >= 4 + ((count + 1) * stride))
+        {
+            for (int i = count; i > lo; i--)
+            {
+                for (int b = 0; b < stride; b += 4)
+                    hive.putDWord(list + 0x0004 + (i * stride) + b, hive.getDWord(list + 0x0004 + ((i - 1) * stride) + b));
+            }
+            putEntry(list, id, lo, key, name);
+            hive.putWord(list + 0x0002, count + 1);
+            return list;
+        }
+
+        int copy = allocate(4 + (grown(count + 1) * stride));
+        hive.putWord(copy, id);
+        hive.putWord(copy + 0x0002, count + 1);
+        for (int i = 0, j = 0; i <= count; i++)
+        {
+            if (i == lo)
+                putEntry(copy, id, i, key, name);
+            else
+            {
+                for (int b = 0; b < stride; b += 4)
+                    hive.putDWord(copy + 0x0004 + (i * stride) + b, hive.getDWord(list + 0x0004 + (j * stride) + b));
+                j++;
+            }
+        }
+
+        free(list);
+        return copy;
+    }
+
+    /**
+     * writes entry index of a li/lf/lh list
+     */
+    private void putEntry(int list, int id, int index, int key, String name)
+    {
+        int stride = (id == LI_Structure.LI_ID) ? 4 : 8;
+        int entry = list + 0x0004 + (index * stride);
+
+        hive.putDWord(entry, key - 0x1004);
+        if (id == SubkeyList.LH_ID)
+            hive.putDWord(entry + 0x0004, SubkeyList.hash(name));
+        else if (id == SubkeyList.LF_ID)
+        {
+            for (int i = 0; i < 4; i++)
+                hive.putByte(entry + 0x0004 + i, (i < name.length()) ? name.charAt(i) : 0);
+        }
+    }
+
+    /**
+     * nk offset of entry index of a li/lf/lh list
+     */
+    private int entryOffset(int list, int index)
+    {
+        int stride = (hive.getWord(list) == LI_Structure.LI_ID) ? 4 : 8;
+        return hive.getDWord(list + 0x0004 + (index * stride)) + 0x1004;
+    }
+
+    /**
+     * number of data bytes the cell holding data can take
+     */
+    private int capacity(int data)
+    {
+        return -hive.getDWord(data - 4) - 4;
+    }
+
+    /**
+     * room to allocate for a list that needs count entries
+     */
+    private static int grown(int count)
+    {
+        return (count <= 1) ? count : count + (count / 2);
+    }
+
+    /**
+     * creates a vk cell without data
+     * @return offset of the vk structure
+     */
+    private int newValue(String name)
+    {
+        byte[] nameBytes = nameBytes(name);
+        int value = allocate(0x14 + nameBytes.length);
+
+        hive.putWord(value + 0x0000, VK_Structure.VK_ID);
+        hive.putWord(value + 0x0002, nameBytes.length);
+        hive.putWord(value + 0x0010, (isCompressible(name) && name.length() > 0) ? VK_Structure.VALUE_COMP_NAME : 0);
+        hive.write(value + 0x0014, nameBytes, 0, nameBytes.length);
+
+        return value;
+    }
+
+    /**
+     * stores type and data in a vk, inline when it fits in the offset field
+     */
+    private void writeData(int value, int type, byte[] data)
+    {
+        hive.putDWord(value + 0x000C, type);
+
+        if (data.length <= 4)
+        {
+            int inline = 0;
+            for (int i = 0; i < data.length; i++)
+                inline |= (data[i] & 0xFF) << (i * 8);
+            hive.putDWord(value + 0x0004, data.length | DATA_INLINE);
+            hive.putDWord(value + 0x0008, inline);
+            return;
+        }
+
+        int cell = allocate(data.length);
+        hive.write(cell, data, 0, data.length);
+        hive.putDWord(value + 0x0004, data.length);
+        hive.putDWord(value + 0x0008, cell - 0x1004);
+    }
+
+    /**
+     * frees the data cell of a value unless the data is inline
+     */
+    private void freeData(VK_Structure value)
+    {
+        int len = (int)value.getLen_data();
+        if ((len & DATA_INLINE) == 0 && len > 0)
+            free((int)value.getOfs_data() + 0x1004);
+    }
+
+    /**
+     * builds the free list from every hbin in the hive
+     */
+    private void scanFreeCells()
+    {
+        freeOfs = new int[64];
+        freeSize = new int[64];
+        freeCount = 0;
+
+        int bin = 0x1000;
+        while (bin + HBIN_HEADER <= hive.getLength() && hive.getDWord(bin) == HBIN_ID)
+        {
+            int binSize = hive.getDWord(bin + 0x0008);
+            if (binSize < HBIN_SIZE || bin + binSize > hive.getLength())
+                break;
+
+            for (int cell = bin + HBIN_HEADER; cell < bin + binSize; )
+            {
+                int size = hive.getDWord(cell);
+                if (size == 0)
+                    break;  // damaged hbin, leave the rest alone
+                if (size > 0)
+                    addFree(cell, size);
+                cell += Math.abs(size);
+            }
+
+            bin += binSize;
+        }
+    }
+
+    private void addFree(int cell, int size)
+    {
+        if (freeCount == freeOfs.length)
+        {
+            int[] ofs = new int[freeCount * 2];
+            int[] sizes = new int[freeCount * 2];
+            System.arraycopy(freeOfs, 0, ofs, 0, freeCount);
+            System.arraycopy(freeSize, 0, sizes, 0, freeCount);
+            freeOfs = ofs;
+            freeSize = sizes;
+        }
+
+        freeOfs[freeCount] = cell;
+        freeSize[freeCount] = size;
+        freeCount++;
+    }
+
+    /**
+     * appends an hbin big enough for a cell of need bytes, its space
+     * becomes the last free cell
+     */
+    private void appendBin(int need)
+    {
+        int binSize = (need + HBIN_HEADER + HBIN_SIZE - 1) & ~(HBIN_SIZE - 1);
+        int bin = hive.grow(binSize);
+
+        hive.putDWord(bin + 0x0000, HBIN_ID);
+        hive.putDWord(bin + 0x0004, bin - 0x1000);
+        hive.putDWord(bin + 0x0008, binSize);
+        putFiletime(bin + 0x0014);
+        hive.putDWord(bin + HBIN_HEADER, binSize - HBIN_HEADER);
+
+        // hive bins data size in the base block
+        hive.putDWord(0x0028, hive.getLength() - 0x1000);
+
+        addFree(bin + HBIN_HEADER, binSize - HBIN_HEADER);
+    }
+
+    /**
+     * updates the last written time of a key
+     */
+    private void touch(int key)
+    {
+        putFiletime(key + 0x0004);
+    }
+
+    /**
+     * raises a max length field of an nk to at least len
+     */
+    private void raise(int field, int len)
+    {
+        if (hive.getDWord(field) < len)
+            hive.putDWord(field, len);
+    }
+
+    private void putFiletime(int offset)
+    {
+        long filetime = (System.currentTimeMillis() + FILETIME_EPOCH_DIFF) * 10000L;
+        hive.putDWord(offset, (int)filetime);
+        hive.putDWord(offset + 4, (int)(filetime >>> 32));
+    }
+
+    /**
+     * can the name be stored as 8 bit characters
+     */
+    private static boolean isCompressible(String name)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            if (name.charAt(i) > 0xFF)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * the name as stored in a cell, latin-1 when possible, UTF-16LE otherwise
+     */
+    private static byte[] nameBytes(String name)
+    {
+        boolean compressed = isCompressible(name);
+        byte[] bytes = new byte[compressed ? name.length() : name.length() * 2];
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if (compressed)
+                bytes[i] = (byte)c;
+            else
+            {
+                bytes[i * 2] = (byte)c;
+                bytes[(i * 2) + 1] = (byte)(c >>> 8);
+            }
+        }
+        return bytes;
+    }
+}
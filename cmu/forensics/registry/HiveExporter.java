@@ -0,0 +1,585 @@
+/*
+   HiveExporter.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HiveExporter
+ * Exports every key and value of a hive straight from the hive file as a
+ * .reg file (Windows Registry Editor Version 5.00) or as JSON Lines, one
+ * object per key with its values, without loading the hive into a live
+ * registry.
+ *
+ * The root key is written by the thread calling export, each top level
+ * subtree is walked by its own HiveWalker on a pool.  A walker hands its
+ * text over in chunks through a small bounded queue and the exporting
+ * thread copies the queues to the output in subkey order, so the output
+ * is the same as a single threaded walk.  At most one walker per thread is
+ * running ahead of the one being written, and they block when their queue
+ * is full, so memory stays constant however large the hive is.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveExporter
+{
+    public static final int REG = 0;
+    public static final int JSONL = 1;
+
+    private static final String REG_HEADER = "Windows Registry Editor Version 5.00";
+    private static final String[] TYPE_NAMES = { "REG_NONE", "REG_SZ", "REG_EXPAND_SZ", "REG_BINARY", "REG_DWORD",
+        "REG_DWORD_BIG_ENDIAN", "REG_LINK", "REG_MULTI_SZ", "REG_RESOURCE_LIST", "REG_FULL_RESOURCE_DESCRIPTOR",
+        "REG_RESOURCE_REQUIREMENTS_LIST", "REG_QWORD" };
+    private static final long FILETIME_UNIX_EPOCH = 116444736000000000L;  // 1970-01-01 as a FILETIME
+    private static final long FILETIME_PER_SECOND = 10000000L;
+    private static final int CHUNK_SIZE = 0x8000;                         // characters handed over at a time
+    private static final int QUEUE_CAPACITY = 16;                         // chunks a walker may run ahead
+    private static final int REG_LINE = 76;                               // hex lines are wrapped past this column
+    private static final String END = new String("END");                  // marks the end of one subtree, compared by identity
+
+    private Hive hive;
+    private int format;
+    private String root;
+    private String newL;
+    private List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     *  HiveExporter constructor
+     *
+     *  @param hive the hive to export, not modified
+     *  @param format REG or JSONL
+     *  @param root path written for the root key, e.g. HKEY_LOCAL_MACHINE\SYSTEM
+     */
+    public HiveExporter(Hive hive, int format, String root)
+    {
+        this.hive = hive;
+        this.format = format;
+        this.root = root;
+        this.newL = (format == REG) ? "\r\n" : "\n";
+    }
+
+    /**
+     * inspector for warnings
+     * @return the subtrees that could not be read (completely) by the last export
+     */
+    public String[] getWarnings()
+    {
+        synchronized (warnings)
+        {
+            return warnings.toArray(new String[warnings.size()]);
+        }
+    }
+
+    /**
+     * Writes the whole hive to out.  A .reg export starts with its header
+     * line, the byte order mark is up to the caller (regedit writes UTF-16LE
+     * with a BOM).
+     * @param out destination, not closed
+     * @param threads number of top level subtrees walked at the same time
+     * @return the number of keys written
+     * @throws IOException if out can not be written, the walk is stopped
+     */
+    public long export(Writer out, int threads) throws IOException
+    {
+        warnings.clear();
+        if (hive.getRecoveryProblem() != null)
+            warnings.add(hive.getRecoveryProblem());
+        threads = Math.max(1, threads);
+        if (format == REG)
+            out.write(REG_HEADER + newL);
+
+        int rootOfs = hive.getRootOffset() + 4;
+        NK_Structure key = new NK_Structure(hive, rootOfs);
+        if (key.getId() != NK_Structure.NK_ID)
+        {
+            warnings.add(root + ": no root key");
+            return 0;
+        }
+
+        // the root key and its values, then one task per subkey
+        Context ctx = new Context();
+        StringBuffer sb = new StringBuffer();
+        HiveWalker rootWalker = new HiveWalker(hive, rootOfs);
+        int event;
+        while ((event = rootWalker.next()) != HiveWalker.DONE)
+        {
+            if (rootWalker.getDepth() == 0)
+                append(sb, ctx, rootWalker, event, root);
+            else if (event == HiveWalker.KEY)
+                rootWalker.skipSubtree();
+        }
+        out.write(sb.toString());
+        long keys = 1;
+
+        int[] subtrees = subkeys(key);
+        if (subtrees.length == 0)
+        {
+            finish(out);
+            return keys;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, subtrees.length));
+        List<BlockingQueue<String>> queues = new ArrayList<BlockingQueue<String>>();
+        final long[] counts = new long[subtrees.length];
+
+        try
+        {
+            for (int i = 0; i < subtrees.length; i++)
+            {
+                // keep one walker per thread ahead of the subtree being written
+                while (queues.size() < subtrees.length && queues.size() < i + threads)
+                    queues.add(submit(pool, subtrees[queues.size()], queues.size(), counts));
+
+                BlockingQueue<String> queue = queues.get(i);
+                String chunk;
+                while ((chunk = queue.take()) != END)
+                    out.write(chunk);
+                queues.set(i, null);
+                keys += counts[i];
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("hive export interrupted");
+        }
+        finally
+        {
+            // stops the walkers when out failed, they may be blocked on a full queue
+            pool.shutdownNow();
+        }
+
+        finish(out);
+        return keys;
+    }
+
+    /**
+     * regedit ends a .reg file with an empty line
+     */
+    private void finish(Writer out) throws IOException
+    {
+        if (format == REG)
+            out.write(newL);
+        out.flush();
+    }
+
+    /**
+     * starts the walk of one top level subtree
+     */
+    private BlockingQueue<String> submit(ExecutorService pool, final int nkOfs, final int index, final long[] counts)
+    {
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+        pool.execute(new Runnable() {
+            public void run()
+            {
+                walk(nkOfs, queue, counts, index);
+            }
+        });
+        return queue;
+    }
+
+    /**
+     * walks one subtree into queue, its key count is stored in counts[index]
+     * before END is queued
+     */
+    private void walk(int nkOfs, BlockingQueue<String> queue, long[] counts, int index)
+    {
+        StringBuffer sb = new StringBuffer(CHUNK_SIZE + 0x1000);
+        Context ctx = new Context();
+        long keys = 0;
+        String prefix = null;
+
+        try
+        {
+            try
+            {
+                HiveWalker walker = new HiveWalker(hive, nkOfs);
+                prefix = root + "\\" + new NK_Structure(hive, nkOfs).getName();
+                int event;
+                while ((event = walker.next()) != HiveWalker.DONE)
+                {
+                    if (event == HiveWalker.KEY)
+                        keys++;
+                    append(sb, ctx, walker, event, prefix + walker.getPath());
+
+                    if (sb.length() >= CHUNK_SIZE)
+                    {
+                        queue.put(sb.toString());
+                        sb.setLength(0);
+                    }
+                }
+            }
+            catch (RuntimeException re)
+            {
+                // corrupt subtree, keep what was walked
+                warnings.add(((prefix != null) ? prefix : "0x" + Integer.toHexString(nkOfs)) + ": " + re.toString());
+                if (ctx.open)
+                    ctx.close(sb, newL);
+            }
+
+            if (sb.length() > 0)
+                queue.put(sb.toString());
+        }
+        catch (InterruptedException ie)
+        {
+            // export gave up
+            return;
+        }
+        finally
+        {
+            counts[index] = keys;
+            try
+            {
+                queue.put(END);
+            }
+            catch (InterruptedException ie)
+            {
+                // export gave up, nobody is waiting for the marker
+            }
+        }
+    }
+
+    /**
+     * nk offsets of the subkeys of key
+     */
+    private int[] subkeys(NK_Structure key)
+    {
+        if (key.getNo_subkeys() <= 0)
+            return new int[0];
+
+        SubkeyList list = new SubkeyList(hive);
+        list.setKey(key);
+        int count = list.size();
+        int[] offsets = new int[count];
+        int n = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            int ofs = list.getOfs_nk(i);
+            if (ofs > 0 && ofs < hive.getLength() - 0x50 && hive.getWord(ofs) == NK_Structure.NK_ID)
+                offsets[n++] = ofs;
+        }
+
+        if (n == count)
+            return offsets;
+
+        int[] valid = new int[n];
+        System.arraycopy(offsets, 0, valid, 0, n);
+        return valid;
+    }
+
+    /**
+     * appends the text of one walker event
+     */
+    private void append(StringBuffer sb, Context ctx, HiveWalker walker, int event, String path)
+    {
+        if (format == REG)
+        {
+            if (event == HiveWalker.KEY)
+                sb.append(newL).append('[').append(path).append(']').append(newL);
+            else if (event == HiveWalker.VALUE)
+                appendRegValue(sb, walker.getValue());
+            return;
+        }
+
+        // values follow their key right away, the next KEY or END_KEY ends the object
+        if (ctx.open && event != HiveWalker.VALUE)
+            ctx.close(sb, newL);
+
+        if (event == HiveWalker.KEY)
+        {
+            sb.append("{\"key\":");
+            appendJson(sb, path);
+            sb.append(",\"lastWritten\":\"");
+            appendTime(sb, ctx, walker.getKey().getLastWritten());
+            sb.append("\",\"values\":[");
+            ctx.open = true;
+            ctx.first = true;
+        }
+        else if (event == HiveWalker.VALUE && ctx.open)
+        {
+            if (!ctx.first)
+                sb.append(',');
+            appendJsonValue(sb, walker.getValue());
+            ctx.first = false;
+        }
+    }
+
+    /**
+     * one "name"=data line of a .reg file
+     */
+    private void appendRegValue(StringBuffer sb, HiveValue value)
+    {
+        int lineStart = sb.length();
+        String name = value.getName();
+        if (name.length() == 0)
+            sb.append('@');
+        else
+            appendRegString(sb, name);
+        sb.append('=');
+
+        int type = value.getType();
+        int length = value.getLength();
+
+        if (type == HiveValue.REG_SZ && isPlainString(value))
+        {
+            appendRegString(sb, value.getString());
+        }
+        else if (type == HiveValue.REG_DWORD && length == 4)
+        {
+            String hex = Integer.toHexString(value.getDWord(0));
+            sb.append("dword:").append("00000000".substring(hex.length())).append(hex);
+        }
+        else
+        {
+            sb.append((type == HiveValue.REG_BINARY) ? "hex:" : "hex(" + Integer.toHexString(type) + "):");
+            byte[] data = value.getData();
+            for (int i = 0; i < data.length; i++)
+            {
+                sb.append(Character.forDigit((data[i] >> 4) & 0xF, 16)).append(Character.forDigit(data[i] & 0xF, 16));
+                if (i + 1 < data.length)
+                {
+                    sb.append(',');
+                    if (sb.length() - lineStart > REG_LINE)
+                    {
+                        sb.append('\\').append(newL).append("  ");
+                        lineStart = sb.length() - 2;
+                    }
+                }
+            }
+        }
+
+        sb.append(newL);
+    }
+
+    /**
+     * can a string value be written as "text": well formed UTF-16 ending
+     * in its only NUL, and no line breaks
+     */
+    private static boolean isPlainString(HiveValue value)
+    {
+        int length = value.getLength();
+        if (length == 0)
+            return true;
+        if ((length & 1) != 0 || length < 2 || value.getByte(length - 1) != 0 || value.getByte(length - 2) != 0)
+            return false;
+
+        for (int i = 0; i + 3 < length; i += 2)
+        {
+            int c = value.getByte(i) | (value.getByte(i + 1) << 8);
+            if (c == 0 || c == '\r' || c == '\n')
+                return false;
+        }
+        return true;
+    }
+
+    private static void appendRegString(StringBuffer sb, String s)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * one {"name":..,"type":..,"data":..} object of a JSON Lines record
+     */
+    private void appendJsonValue(StringBuffer sb, HiveValue value)
+    {
+        int type = value.getType();
+        int length = value.getLength();
+
+        sb.append("{\"name\":");
+        appendJson(sb, value.getName());
+        sb.append(",\"type\":");
+        if (type >= 0 && type < TYPE_NAMES.length)
+            sb.append('"').append(TYPE_NAMES[type]).append('"');
+        else
+            sb.append(type & 0xFFFFFFFFL);
+        sb.append(",\"data\":");
+
+        if (type == HiveValue.REG_SZ || type == HiveValue.REG_EXPAND_SZ || type == HiveValue.REG_LINK)
+            appendJson(sb, value.getString());
+        else if (type == HiveValue.REG_MULTI_SZ)
+        {
+            String[] strings = value.getMultiString();
+            sb.append('[');
+            for (int i = 0; i < strings.length; i++)
+            {
+                if (i > 0)
+                    sb.append(',');
+                appendJson(sb, strings[i]);
+            }
+            sb.append(']');
+        }
+        else if ((type == HiveValue.REG_DWORD || type == HiveValue.REG_DWORD_BIG_ENDIAN) && length == 4)
+            sb.append(value.getDWord(0) & 0xFFFFFFFFL);
+        else if (type == HiveValue.REG_QWORD && length == 8)
+        {
+            long q = value.getQWord(0);
+            sb.append((q >= 0) ? Long.toString(q) : new BigInteger(Long.toHexString(q), 16).toString());
+        }
+        else
+        {
+            byte[] data = value.getData();
+            sb.append('"');
+            for (int i = 0; i < data.length; i++)
+                sb.append(Character.forDigit((data[i] >> 4) & 0xF, 16)).append(Character.forDigit(data[i] & 0xF, 16));
+            sb.append('"');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * JSON string, control characters and unpaired surrogates escaped
+     */
+    private static void appendJson(StringBuffer sb, String s)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            boolean unpaired = (Character.isHighSurrogate(c) && !(i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))))
+                            || (Character.isLowSurrogate(c) && !(i > 0 && Character.isHighSurrogate(s.charAt(i - 1))));
+
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '\r')
+                sb.append("\\r");
+            else if (c == '\t')
+                sb.append("\\t");
+            else if (c < 0x20 || unpaired)
+            {
+                String hex = Integer.toHexString(c);
+                sb.append("\\u").append("0000".substring(hex.length())).append(hex);
+            }
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * ISO 8601 UTC with the full 100 ns FILETIME precision
+     */
+    private static void appendTime(StringBuffer sb, Context ctx, long filetime)
+    {
+        long since1970 = filetime - FILETIME_UNIX_EPOCH;
+        long seconds = (since1970 > 0) ? since1970 / FILETIME_PER_SECOND : 0;
+        String fraction = Long.toString((since1970 > 0) ? since1970 % FILETIME_PER_SECOND : 0);
+
+        sb.append(ctx.iso.format(new Date(seconds * 1000)));
+        sb.append('.').append("0000000".substring(fraction.length())).append(fraction).append('Z');
+    }
+
+    /**
+     * per thread formatting state
+     */
+    private static class Context
+    {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        boolean open;       // a JSON key object is waiting for more values
+        boolean first;      // no value written into it yet
+
+        Context()
+        {
+            iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        void close(StringBuffer sb, String newL)
+        {
+            sb.append("]}").append(newL);
+            open = false;
+        }
+    }
+
+    /**
+     * Exports a hive file
+     *
+     * @param args reg or jsonl, the hive file, the output file and optionally the root key path
+     * @throws IOException if the output can not be written
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3 || !(args[0].equalsIgnoreCase("reg") || args[0].equalsIgnoreCase("jsonl")))
+        {
+            System.out.println("usage: HiveExporter reg|jsonl hiveFile outFile [rootKey]");
+            return;
+        }
+
+        int format = args[0].equalsIgnoreCase("reg") ? REG : JSONL;
+        File file = new File(args[1]);
+        String root = (args.length > 3) ? args[3] : "HKEY_LOCAL_MACHINE\\" + file.getName().toUpperCase();
+
+        long start = System.currentTimeMillis();
+        Hive hive = new Hive(file);
+        Writer out = null;
+        try
+        {
+            FileOutputStream fos = new FileOutputStream(args[2]);
+            out = new BufferedWriter(new OutputStreamWriter(fos, (format == REG) ? "UTF-16LE" : "UTF-8"), 0x10000);
+            if (format == REG)
+                out.write('\uFEFF');
+
+            HiveExporter exporter = new HiveExporter(hive, format, root);
+            long keys = exporter.export(out, Runtime.getRuntime().availableProcessors());
+            System.out.println(keys + " keys written to " + args[2] + " in " + (System.currentTimeMillis() - start) + " ms");
+
+            String[] warnings = exporter.getWarnings();
+            for (int i = 0; i < warnings.length; i++)
+                System.out.println(warnings[i]);
+        }
+        finally
+        {
+            if (out != null)
+                out.close();
+            hive.close();
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/*
+   HiveLog.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * HiveLog
+ * Replays the transaction logs of a dirty hive into its overlay.
+ *
+ * A hive whose base block sequence numbers differ (or whose checksum is
+ * bad) was not completely flushed, the newest data is only in the logs next
+ * to it: SYSTEM.LOG, SYSTEM.LOG1, SYSTEM.LOG2 (any case).  Two formats
+ * exist:
+ *
+ *   old (NT to 8) - a base block, the "DIRT" signature and a bitmap with
+ *                   one bit per 512 byte sector of hbin data, followed by
+ *                   the dirty sectors in bitmap order
+ *   new (8.1+)    - a base block followed by "HvLE" entries, each with a
+ *                   sequence number, a list of (offset, size) dirty pages
+ *                   and the page data, protected by two Marvin32 hashes
+ *
+ * Old logs are only used for dirty hives, and only when their base block
+ * is at least as new as the hive's primary sequence number: a log left
+ * over from an earlier flush would put stale pages over newer ones.  New
+ * log entries are applied from the one numbered like the hive's secondary
+ * sequence number onwards, across .LOG1 and .LOG2, until the chain breaks;
+ * on 8.1 and later such entries can exist even when the base block looks
+ * clean.
+ *
+ * Only the dirty sectors and pages are read and written into the overlay
+ * with Hive.write, so the hive file is never copied.  The base block in
+ * the overlay gets matching sequence numbers, the new hbin data size and a
+ * fresh checksum.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveLog
+{
+    private static final String[] SUFFIXES = { ".LOG", ".LOG1", ".LOG2" };
+
+    private static final int REGF_ID = 0x66676572;      // "regf"
+    private static final int DIRT_ID = 0x54524944;      // "DIRT"
+    private static final int HVLE_ID = 0x454c7648;      // "HvLE"
+    private static final int BASE_BLOCK_SIZE = 0x200;
+    private static final int SECTOR_SIZE = 0x200;
+    private static final int BINS_START = 0x1000;
+    private static final int PAGE_SIZE = 0x1000;
+    private static final int ENTRY_HEADER = 0x28;
+    private static final long MARVIN_SEED = 0x82EF4D887A4E55C5L;
+
+    /**
+     * Replays the logs next to the hive file into the overlay of hive.  A
+     * dirty hive that cannot be brought up to date is left as it is on disk
+     * and the reason is recorded with Hive.setRecoveryProblem
+     * @param hive a freshly opened hive without edits
+     * @return the number of bytes replayed, 0 if the hive is clean or has no usable log
+     */
+    public static int replay(Hive hive)
+    {
+        if (hive.getLength() < BINS_START || hive.getDWord(0) != REGF_ID)
+            return 0;
+
+        byte[] base = hive.slice(0, BASE_BLOCK_SIZE);
+        int primary = RegistryParser.getDWord(base, 0x04);
+        int secondary = RegistryParser.getDWord(base, 0x08);
+        boolean dirty = isDirty(base);
+
+        File[] logs = findLogs(hive.getFile());
+        if (logs.length == 0)
+        {
+            if (dirty)
+                hive.setRecoveryProblem(hive.getFile() + " is dirty and has no transaction log");
+            return 0;
+        }
+
+        try
+        {
+            int replayed = replayEntries(hive, logs, secondary);
+            if (replayed == 0 && dirty)
+                replayed = replayDirtyVector(hive, logs, primary);
+
+            if (replayed == 0 && dirty && hive.getRecoveryProblem() == null)
+                hive.setRecoveryProblem(hive.getFile() + " is dirty and its transaction logs do not apply");
+            return replayed;
+        }
+        catch (IOException ioe)
+        {
+            hive.setRecoveryProblem(hive.getFile() + ": transaction logs could not be read: " + ioe.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * was the base block not completely written
+     * @param base the base block
+     * @return true if the sequence numbers differ or the checksum is bad
+     */
+    public static boolean isDirty(byte[] base)
+    {
+        return RegistryParser.getDWord(base, 0x04) != RegistryParser.getDWord(base, 0x08)
+            || RegistryParser.getDWord(base, 0x1FC) != HivePatchSet.checksum(base);
+    }
+
+    /**
+     * The transaction logs of a hive, matched case insensitively as the
+     * hive may come from a FAT or NTFS image mounted with any name case
+     * @param hiveFile the hive file
+     * @return the .LOG, .LOG1 and .LOG2 files that exist, in that order
+     */
+    public static File[] findLogs(File hiveFile)
+    {
+        File dir = hiveFile.getAbsoluteFile().getParentFile();
+        String[] names = (dir != null) ? dir.list() : null;
+        ArrayList<File> logs = new ArrayList<File>();
+        if (names == null)
+            return new File[0];
+
+        for (int s = 0; s < SUFFIXES.length; s++)
+        {
+            String wanted = hiveFile.getName() + SUFFIXES[s];
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].equalsIgnoreCase(wanted))
+                {
+                    File log = new File(dir, names[i]);
+                    if (log.isFile() && log.length() > BASE_BLOCK_SIZE)
+                        logs.add(log);
+                    break;
+                }
+            }
+        }
+
+        return logs.toArray(new File[logs.size()]);
+    }
+
+    /**
+     * applies the consecutive run of new format entries starting at sequence number first
+     * @return the number of bytes replayed
+     */
+    private static int replayEntries(Hive hive, File[] logs, int first) throws IOException
+    {
+        HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+        for (int i = 0; i < logs.length; i++)
+            scanEntries(logs[i], first, entries);
+
+        int replayed = 0;
+        int seq = first;
+        int binsSize = 0;
+        Entry entry;
+
+        while ((entry = entries.get(Integer.valueOf(seq))) != null)
+        {
+            byte[] data = read(entry.log, entry.position, entry.size);
+            binsSize = RegistryParser.getDWord(data, 0x10);
+            ensureLength(hive, binsSize);
+
+            int count = RegistryParser.getDWord(data, 0x14);
+            int pos = ENTRY_HEADER + (count * 8);
+            for (int i = 0; i < count; i++)
+            {
+                int offset = RegistryParser.getDWord(data, ENTRY_HEADER + (i * 8));
+                int size = RegistryParser.getDWord(data, ENTRY_HEADER + (i * 8) + 4);
+                hive.write(BINS_START + offset, data, pos, size);
+                pos += size;
+                replayed += size;
+            }
+            seq++;
+        }
+
+        if (seq != first)
+            finish(hive, hive.slice(0, BASE_BLOCK_SIZE), seq, binsSize);
+        return replayed;
+    }
+
+    /**
+     * collects the valid entries of a new format log numbered first or higher,
+     * stops at the first entry that is torn or fails its hashes
+     */
+    private static void scanEntries(File log, int first, HashMap<Integer, Entry> entries) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(log, "r");
+        try
+        {
+            long length = raf.length();
+            long position = BASE_BLOCK_SIZE;
+            byte[] header = new byte[ENTRY_HEADER];
+
+            while (position + ENTRY_HEADER <= length)
+            {
+                raf.seek(position);
+                raf.readFully(header);
+
+                int size = RegistryParser.getDWord(header, 0x04);
+                int count = RegistryParser.getDWord(header, 0x14);
+                if (RegistryParser.getDWord(header, 0x00) != HVLE_ID || size < ENTRY_HEADER
+                        || (size & (SECTOR_SIZE - 1)) != 0 || position + size > length
+                        || count < 0 || count > (size - ENTRY_HEADER) / 8)
+                    break;
+
+                if (marvin32(header, 0, 0x20, MARVIN_SEED) != getQWord(header, 0x20))
+                    break;
+
+                byte[] data = new byte[size];
+                raf.seek(position);
+                raf.readFully(data);
+                if (marvin32(data, ENTRY_HEADER, size - ENTRY_HEADER, MARVIN_SEED) != getQWord(data, 0x18)
+                        || !pagesFit(data, count))
+                    break;
+
+                int seq = RegistryParser.getDWord(header, 0x0C);
+                Integer key = Integer.valueOf(seq);
+                if (seq - first >= 0 && !entries.containsKey(key))
+                    entries.put(key, new Entry(log, position, size));
+
+                position += size;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * do the dirty pages of an entry lie inside it and inside its hbin data
+     */
+    private static boolean pagesFit(byte[] data, int count)
+    {
+        long binsSize = RegistryParser.getDWord(data, 0x10) & 0xFFFFFFFFL;
+        long pos = ENTRY_HEADER + (count * 8L);
+
+        for (int i = 0; i < count; i++)
+        {
+            long offset = RegistryParser.getDWord(data, ENTRY_HEADER + (i * 8)) & 0xFFFFFFFFL;
+            long size = RegistryParser.getDWord(data, ENTRY_HEADER + (i * 8) + 4) & 0xFFFFFFFFL;
+            if (offset + size > binsSize || pos + size > data.length)
+                return false;
+            pos += size;
+        }
+
+        return binsSize + BINS_START <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * applies the newest old format log: its base block and dirty sectors
+     * @param primary primary sequence number of the hive, older logs are not applied
+     * @return the number of bytes replayed
+     */
+    private static int replayDirtyVector(Hive hive, File[] logs, int primary) throws IOException
+    {
+        File best = null;
+        byte[] bestBase = null;
+
+        for (int i = 0; i < logs.length; i++)
+        {
+            byte[] head = read(logs[i], 0, BASE_BLOCK_SIZE + 4);
+            if (head == null || RegistryParser.getDWord(head, 0) != REGF_ID
+                    || RegistryParser.getDWord(head, BASE_BLOCK_SIZE) != DIRT_ID)
+                continue;
+
+            byte[] base = new byte[BASE_BLOCK_SIZE];
+            System.arraycopy(head, 0, base, 0, BASE_BLOCK_SIZE);
+            if (RegistryParser.getDWord(base, 0x1FC) != HivePatchSet.checksum(base))
+                continue;
+
+            if (bestBase == null || RegistryParser.getDWord(base, 0x04) - RegistryParser.getDWord(bestBase, 0x04) > 0)
+            {
+                best = logs[i];
+                bestBase = base;
+            }
+        }
+
+        if (best == null)
+            return 0;
+
+        //the log of the flush that left the hive dirty carries at least its primary sequence number
+        if (RegistryParser.getDWord(bestBase, 0x04) - primary < 0)
+        {
+            hive.setRecoveryProblem(hive.getFile() + " is dirty and its transaction log " + best.getName() + " is older than the hive");
+            return 0;
+        }
+
+        int binsSize = RegistryParser.getDWord(bestBase, 0x28);
+        int sectors = binsSize / SECTOR_SIZE;
+        byte[] bitmap = read(best, BASE_BLOCK_SIZE + 4, (sectors + 7) / 8);
+        if (bitmap == null)
+            return 0;
+
+        ensureLength(hive, binsSize);
+
+        RandomAccessFile raf = new RandomAccessFile(best, "r");
+        int replayed = 0;
+        try
+        {
+            long position = (BASE_BLOCK_SIZE + 4 + bitmap.length + SECTOR_SIZE - 1) & ~(long)(SECTOR_SIZE - 1);
+            byte[] run = new byte[PAGE_SIZE];
+
+            for (int i = 0; i < sectors; )
+            {
+                if (!bit(bitmap, i))
+                {
+                    i++;
+                    continue;
+                }
+
+                //consecutive dirty sectors are stored back to back, copy them as one run
+                int end = i;
+                while (end < sectors && bit(bitmap, end))
+                    end++;
+
+                int len = (end - i) * SECTOR_SIZE;
+                if (run.length < len)
+                    run = new byte[len];
+
+                raf.seek(position);
+                raf.readFully(run, 0, len);
+                hive.write(BINS_START + (i * SECTOR_SIZE), run, 0, len);
+
+                position += len;
+                replayed += len;
+                i = end;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        int seq = Math.max(RegistryParser.getDWord(bestBase, 0x04), RegistryParser.getDWord(bestBase, 0x08));
+        finish(hive, bestBase, seq, binsSize);
+        return replayed;
+    }
+
+    /**
+     * writes the recovered base block into the overlay
+     */
+    private static void finish(Hive hive, byte[] base, int seq, int binsSize)
+    {
+        setDWord(base, 0x04, seq);
+        setDWord(base, 0x08, seq);
+        setDWord(base, 0x1C, 0);               // primary file, logs carry their own type
+        if (binsSize > 0)
+            setDWord(base, 0x28, binsSize);
+        setDWord(base, 0x1FC, HivePatchSet.checksum(base));
+        hive.write(0, base, 0, BASE_BLOCK_SIZE);
+    }
+
+    /**
+     * grows the hive so it holds binsSize bytes of hbin data
+     */
+    private static void ensureLength(Hive hive, int binsSize)
+    {
+        int needed = BINS_START + ((binsSize + PAGE_SIZE - 1) & ~(PAGE_SIZE - 1));
+        if (needed > hive.getLength())
+            hive.grow(needed - hive.getLength());
+    }
+
+    private static boolean bit(byte[] bitmap, int index)
+    {
+        return (bitmap[index >>> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * reads len bytes at position, null if the file is too short
+     */
+    private static byte[] read(File file, long position, int len) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (len < 0 || position + len > raf.length())
+                return null;
+
+            byte[] data = new byte[len];
+            raf.seek(position);
+            raf.readFully(data);
+            return data;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static long getQWord(byte[] buf, int offset)
+    {
+        return (RegistryParser.getDWord(buf, offset) & 0xFFFFFFFFL) | ((long)RegistryParser.getDWord(buf, offset + 4) << 32);
+    }
+
+    private static void setDWord(byte[] buf, int offset, int value)
+    {
+        buf[offset]     = (byte)value;
+        buf[offset + 1] = (byte)(value >>> 8);
+        buf[offset + 2] = (byte)(value >>> 16);
+        buf[offset + 3] = (byte)(value >>> 24);
+    }
+
+    /**
+     * Marvin32, the keyed hash protecting new format log entries
+     * @param data buffer holding the bytes to hash
+     * @param offset start of the bytes
+     * @param len number of bytes
+     * @param seed 64 bit seed
+     * @return the 64 bit hash
+     */
+    static long marvin32(byte[] data, int offset, int len, long seed)
+    {
+        int[] s = { (int)seed, (int)(seed >>> 32) };
+        int i = 0;
+
+        for (; len - i >= 4; i += 4)
+        {
+            s[0] += RegistryParser.getDWord(data, offset + i);
+            marvinBlock(s);
+        }
+
+        int last;
+        switch (len - i)
+        {
+            case 1:
+                last = 0x8000 | (data[offset + i] & 0xFF);
+                break;
+            case 2:
+                last = 0x800000 | (data[offset + i] & 0xFF) | ((data[offset + i + 1] & 0xFF) << 8);
+                break;
+            case 3:
+                last = 0x80000000 | (data[offset + i] & 0xFF) | ((data[offset + i + 1] & 0xFF) << 8) | ((data[offset + i + 2] & 0xFF) << 16);
+                break;
+            default:
+                last = 0x80;
+        }
+
+        s[0] += last;
+        marvinBlock(s);
+        marvinBlock(s);
+
+        return (s[0] & 0xFFFFFFFFL) | ((long)s[1] << 32);
+    }
+
+    private static void marvinBlock(int[] s)
+    {
+        s[1] ^= s[0];
+        s[0] = Integer.rotateLeft(s[0], 20) + s[1];
+        s[1] = Integer.rotateLeft(s[1], 9) ^ s[0];
+        s[0] = Integer.rotateLeft(s[0], 27) + s[1];
+        s[1] = Integer.rotateLeft(s[1], 19);
+    }
+
+    /**
+     * a new format log entry that passed its checks
+     */
+    private static class Entry
+    {
+        final File log;
+        final long position;
+        final int size;
+
+        Entry(File log, long position, int size)
+        {
+            this.log = log;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Reports whether a hive is dirty and how much of its logs was replayed
+     *
+     * @param args hive files
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: HiveLog hiveFile ...");
+            return;
+        }
+
+        for (int i = 0; i < args.length; i++)
+        {
+            File file = new File(args[i]);
+            long start = System.currentTimeMillis();
+            Hive hive = new Hive(file);
+            try
+            {
+                System.out.println(file + ": " + findLogs(file).length + " logs, "
+                        + hive.getReplayedPages().length + " pages replayed in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                if (hive.getRecoveryProblem() != null)
+                    System.out.println("Problem: " + hive.getRecoveryProblem());
+            }
+            finally
+            {
+                hive.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+   HivePatchSet.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * HivePatchSet
+ * Collects byte range edits to a hive file and applies them in one go.
+ *
+ * Edits are only kept in memory until commit().  At commit time they are
+ * sorted and coalesced into runs (edits closer than COALESCE_GAP bytes are
+ * merged, the gap is filled with the bytes on disk), the base block
+ * sequence numbers, timestamp and checksum are updated, the original bytes
+ * of every run are saved to the undo journal, and the runs are written with
+ * positional channel writes followed by a single force().  Overlapping
+ * edits are applied in the order they were added, so the last one wins.
+ *
+ * Pages a dirty hive recovered from its transaction logs are written along
+ * with the first commit, so the patched file is never half recovered.
+ *
+ * rollback() restores the bytes saved in a journal, touching only the
+ * patched ranges, and cuts off anything appended past the old end of file.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HivePatchSet
+{
+    public static final int COALESCE_GAP = 0x40;    // edits closer than this are written as one run
+
+    private static final int BASE_BLOCK_SIZE = 0x200;
+    private static final int REGF_ID = 0x66676572;  // "regf"
+    private static final int JOURNAL_ID = 0x4a564c4f; // "OLVJ"
+    private static final long FILETIME_EPOCH_DIFF = 11644473600000L;   // ms between 1601 and 1970
+
+    private Hive hive;
+    private File journal;                           // null for no undo journal
+    private ArrayList<Edit> edits = new ArrayList<Edit>();
+
+    /**
+     *  HivePatchSet constructor
+     *
+     *  @param hive the hive to patch, invalidated after commit
+     *  @param journal file the undo journal is written to, null for none
+     */
+    public HivePatchSet(Hive hive, File journal)
+    {
+        this.hive = hive;
+        this.journal = journal;
+    }
+
+    /**
+     * queues a single byte edit
+     * @param offset offset into the hive file
+     * @param value the new byte value
+     */
+    public void putByte(int offset, int value)
+    {
+        put(offset, new byte[] { (byte)value });
+    }
+
+    /**
+     * queues a little-endian dword edit
+     * @param offset offset into the hive file
+     * @param value the new dword value
+     */
+    public void putDWord(int offset, int value)
+    {
+        byte[] data = new byte[4];
+        setDWord(data, 0, value);
+        put(offset, data);
+    }
+
+    /**
+     * queues an edit of data.length bytes
+     * @param offset offset into the hive file
+     * @param data the new bytes, copied
+     */
+    public void put(int offset, byte[] data)
+    {
+        put(offset, data, 0, data.length);
+    }
+
+    /**
+     * queues an edit of len bytes taken from data
+     * @param offset offset into the hive file
+     * @param data buffer holding the new bytes, copied
+     * @param dataOffset start of the new bytes in data
+     * @param len number of bytes
+     */
+    public void put(int offset, byte[] data, int dataOffset, int len)
+    {
+        if (offset < 0 || len < 0 || offset + len > hive.getLength())
+            throw new IllegalArgumentException("patch 0x" + Integer.toHexString(offset) + "+" + len + " outside of hive");
+
+        byte[] copy = new byte[len];
+        System.arraycopy(data, dataOffset, copy, 0, len);
+        edits.add(new Edit(offset, copy));
+    }
+
+    /**
+     * inspector for the number of queued edits
+     * @return the number of edits that have not been committed
+     */
+    public int size()
+    {
+        return edits.size();
+    }
+
+    /**
+     * Writes all queued edits to the hive file.  Nothing is written if no
+     * edits are queued.  The queue is empty afterwards.
+     * @return the number of bytes written to the hive
+     */
+    public int commit() throws IOException
+    {
+        if (edits.isEmpty())
+            return 0;
+
+        // a hive recovered from its logs is only consistent with the replayed pages
+        int[] replayed = hive.getReplayedPages();
+        ArrayList<Edit> recovered = new ArrayList<Edit>();
+        for (int i = 0; i < replayed.length; i++)
+        {
+            int offset = replayed[i] * 0x1000;
+            recovered.add(new Edit(offset, hive.slice(offset, Math.min(0x1000, hive.getLength() - offset))));
+        }
+        edits.addAll(0, recovered);     // queued edits win where they overlap
+
+        if (hive.getDWord(0) == REGF_ID)
+            edits.add(new Edit(0, baseBlock()));
+
+        ArrayList<Run> runs = coalesce();
+
+        if (journal != null)
+            writeJournal(runs);
+
+        int written = 0;
+        RandomAccessFile raf = new RandomAccessFile(hive.getFile(), "rw");
+        try
+        {
+            FileChannel fc = raf.getChannel();
+            for (int i = 0; i < runs.size(); i++)
+            {
+                Run run = runs.get(i);
+                ByteBuffer bb = ByteBuffer.wrap(run.patched);
+                long pos = run.offset;
+                while (bb.hasRemaining())
+                    pos += fc.write(bb, pos);
+                written += run.patched.length;
+            }
+            fc.force(false);
+
+            // only the edited bytes: edits still pending in the overlay may sit in the gaps of a run
+            for (int i = 0; i < edits.size(); i++)
+                hive.refresh(edits.get(i).offset, edits.get(i).data);
+        }
+        finally
+        {
+            raf.close();
+            edits.clear();
+            hive.invalidate();  // hive changed under the cached paths
+        }
+
+        hive.patchWritten();
+        return written;
+    }
+
+    /**
+     * Restores the bytes saved in an undo journal to the hive file
+     * @param hiveFile the patched hive file
+     * @param journal the undo journal written by commit()
+     * @return the number of bytes restored
+     */
+    public static int rollback(File hiveFile, File journal) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        RandomAccessFile raf = null;
+        int restored = 0;
+
+        try
+        {
+            if (in.readInt() != JOURNAL_ID)
+                throw new IOException("not an undo journal: " + journal);
+
+            long length = in.readLong();
+            int count = in.readInt();
+
+            raf = new RandomAccessFile(hiveFile, "rw");
+            FileChannel fc = raf.getChannel();
+            if (fc.size() < length)
+                throw new IOException("journal does not match " + hiveFile);
+
+            for (int i = 0; i < count; i++)
+            {
+                int offset = in.readInt();
+                byte[] orig = new byte[in.readInt()];
+                in.readFully(orig);
+
+                ByteBuffer bb = ByteBuffer.wrap(orig);
+                long pos = offset;
+                while (bb.hasRemaining())
+                    pos += fc.write(bb, pos);
+                restored += orig.length;
+            }
+            fc.truncate(length);    // drop hbins appended by the patch
+            fc.force(false);
+        }
+        finally
+        {
+            in.close();
+            if (raf != null)
+                raf.close();
+        }
+
+        return restored;
+    }
+
+    /**
+     * Writes the bytes saved in an undo journal into the overlay of a hive
+     * opened on the patched file, which turns it back into a view of the
+     * hive as it was before the patch.  The file is not touched.
+     * @param hive a hive opened on the patched hive file
+     * @param journal the undo journal written by commit()
+     * @return the length of the hive file before the patch, space past it was appended
+     */
+    public static int overlayJournal(Hive hive, File journal) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try
+        {
+            if (in.readInt() != JOURNAL_ID)
+                throw new IOException("not an undo journal: " + journal);
+
+            long length = in.readLong();
+            int count = in.readInt();
+            if (length > hive.getLength())
+                throw new IOException("journal does not match " + hive.getFile());
+
+            for (int i = 0; i < count; i++)
+            {
+                int offset = in.readInt();
+                byte[] orig = new byte[in.readInt()];
+                in.readFully(orig);
+                hive.write(offset, orig, 0, orig.length);
+            }
+
+            return (int)length;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * the base block with both sequence numbers bumped, a fresh timestamp
+     * and a recomputed checksum, including any queued edits that touch it
+     */
+    private byte[] baseBlock()
+    {
+        byte[] block = hive.slice(0, BASE_BLOCK_SIZE);
+        for (int i = 0; i < edits.size(); i++)
+            edits.get(i).applyTo(block, 0);
+
+        int seq = Math.max(RegistryParser.getDWord(block, 0x04), RegistryParser.getDWord(block, 0x08)) + 1;
+        setDWord(block, 0x04, seq);
+        setDWord(block, 0x08, seq);
+
+        long filetime = (System.currentTimeMillis() + FILETIME_EPOCH_DIFF) * 10000L;
+        setDWord(block, 0x0C, (int)filetime);
+        setDWord(block, 0x10, (int)(filetime >>> 32));
+
+        setDWord(block, 0x1FC, checksum(block));
+        return block;
+    }
+
+    /**
+     * XOR of the first 127 dwords of the base block, 0 and -1 are not
+     * allowed as checksums and are stored as 1 and -2
+     * @param block the base block
+     * @return the base block checksum
+     */
+    public static int checksum(byte[] block)
+    {
+        int sum = 0;
+        for (int i = 0; i < 0x1FC; i += 4)
+            sum ^= RegistryParser.getDWord(block, i);
+
+        if (sum == 0)
+            return 1;
+        if (sum == -1)
+            return -2;
+        return sum;
+    }
+
+    /**
+     * sorts the edits into runs, merging edits that overlap or lie within
+     * COALESCE_GAP of each other, and builds the original and patched bytes
+     * of every run
+     */
+    private ArrayList<Run> coalesce()
+    {
+        ArrayList<Edit> sorted = new ArrayList<Edit>(edits);
+        Collections.sort(sorted, new Comparator<Edit>() {
+            public int compare(Edit a, Edit b)
+            {
+                return (a.offset < b.offset) ? -1 : ((a.offset == b.offset) ? 0 : 1);
+            }
+        });
+
+        ArrayList<Run> runs = new ArrayList<Run>();
+        int start = -1, end = -1;
+        for (int i = 0; i < sorted.size(); i++)
+        {
+            Edit e = sorted.get(i);
+            if (start >= 0 && e.offset <= end + COALESCE_GAP)
+            {
+                end = Math.max(end, e.offset + e.data.length);
+                continue;
+            }
+
+            if (start >= 0)
+                runs.add(new Run(start, end));
+            start = e.offset;
+            end = e.offset + e.data.length;
+        }
+        if (start >= 0)
+            runs.add(new Run(start, end));
+
+        // replay in insertion order so later edits win where they overlap
+        for (int r = 0; r < runs.size(); r++)
+        {
+            Run run = runs.get(r);
+            for (int i = 0; i < edits.size(); i++)
+                edits.get(i).applyTo(run.patched, run.offset);
+        }
+
+        return runs;
+    }
+
+    /**
+     * saves the original bytes of every run, forced to disk before the hive
+     * is touched
+     */
+    private void writeJournal(ArrayList<Run> runs) throws IOException
+    {
+        FileOutputStream fos = new FileOutputStream(journal);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try
+        {
+            out.writeInt(JOURNAL_ID);
+            out.writeLong(hive.getFileLength());
+            out.writeInt(runs.size());
+            for (int i = 0; i < runs.size(); i++)
+            {
+                Run run = runs.get(i);
+                int onDisk = Math.max(0, Math.min(run.orig.length, hive.getFileLength() - run.offset));
+                out.writeInt(run.offset);
+                out.writeInt(onDisk);   // appended space is not saved, rollback truncates it
+                out.write(run.orig, 0, onDisk);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void setDWord(byte[] buf, int offset, int value)
+    {
+        buf[offset]     = (byte)value;
+        buf[offset + 1] = (byte)(value >>> 8);
+        buf[offset + 2] = (byte)(value >>> 16);
+        buf[offset + 3] = (byte)(value >>> 24);
+    }
+
+    /**
+     * a queued edit
+     */
+    private static class Edit
+    {
+        final int offset;
+        final byte[] data;
+
+        Edit(int offset, byte[] data)
+        {
+            this.offset = offset;
+            this.data = data;
+        }
+
+        /**
+         * copies the part of this edit that falls inside buf, which holds
+         * the hive bytes starting at bufOffset
+         */
+        void applyTo(byte[] buf, int bufOffset)
+        {
+            int from = Math.max(offset, bufOffset);
+            int to = Math.min(offset + data.length, bufOffset + buf.length);
+            if (from < to)
+                System.arraycopy(data, from - offset, buf, from - bufOffset, to - from);
+        }
+    }
+
+    /**
+     * a contiguous range written with one write
+     */
+    private class Run
+    {
+        final int offset;
+        final byte[] orig;      // hive bytes before the patch
+        final byte[] patched;   // hive bytes after the patch
+
+        Run(int start, int end)
+        {
+            offset = start;
+            orig = new byte[end - start];
+            hive.readFile(start, orig, 0, orig.length);     // as on disk, not through the overlay
+            patched = orig.clone();
+        }
+    }
+}
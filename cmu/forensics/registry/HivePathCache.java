@@ -0,0 +1,114 @@
+/*
+   HivePathCache.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HivePathCache
+ * Per hive cache of resolved key paths.  Maps a normalized (lower cased,
+ * root relative, backslash separated) key path to the offset of its nk
+ * structure, so repeated lookups under the same prefix, e.g. one per SAM
+ * account or one per NL$ entry, resume from the deepest known ancestor
+ * instead of walking down from the root again.
+ *
+ * The cache is bounded and evicts the least recently used path first.  It
+ * must be cleared whenever the underlying hive file is modified.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HivePathCache
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Integer> paths;
+
+    /**
+     * @param capacity maximum number of paths kept
+     */
+    public HivePathCache(int capacity)
+    {
+        this.capacity = capacity;
+        this.paths = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest)
+            {
+                return size() > HivePathCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * looks up a normalized key path
+     * @param path normalized path, see append()
+     * @return offset of the nk structure for path, 0 if it is not cached
+     */
+    public synchronized int get(String path)
+    {
+        Integer ofs = paths.get(path);
+        return (ofs == null) ? 0 : ofs.intValue();
+    }
+
+    /**
+     * remembers the nk offset of a normalized key path
+     * @param path normalized path, see append()
+     * @param nkOffset offset of the nk structure for path
+     */
+    public synchronized void put(String path, int nkOffset)
+    {
+        paths.put(path, Integer.valueOf(nkOffset));
+    }
+
+    /**
+     * forgets every cached path, called when the hive is patched
+     */
+    public synchronized void clear()
+    {
+        paths.clear();
+    }
+
+    /**
+     * inspector for the number of cached paths
+     * @return number of cached paths
+     */
+    public synchronized int size()
+    {
+        return paths.size();
+    }
+
+    /**
+     * cache key for a path component, appended to the key of its parent
+     * @param sb buffer holding the normalized parent path
+     * @param component next path component
+     */
+    public static void append(StringBuffer sb, String component)
+    {
+        if (sb.length() > 0)
+            sb.append('\\');
+        sb.append(component.trim().toLowerCase());
+    }
+}
@@ -0,0 +1,258 @@
+/*
+   HiveSession.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+
+/**
+ * HiveSession
+ * The SYSTEM, SAM and SECURITY hives of one image, opened once and shared by
+ * every operation run against that image.
+ *
+ * Hives are opened the first time they are asked for and the keys derived
+ * from them (bootkey, hashed bootkey, LSA key and NL$KM) are computed once
+ * and kept for the life of the session, so clearing local and cached domain
+ * passwords on the same image reads and decrypts everything only once.
+ * Any of the three locations may be null if the caller does not need that
+ * hive.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveSession
+{
+    private File sysFile;
+    private File samFile;
+    private File secFile;
+
+    private Hive sysHive;
+    private Hive samHive;
+    private Hive secHive;
+
+    private byte[] bootKey;
+    private byte[] hBootKey;
+    private byte[] lsaKey;
+    private byte[] nlkmKey;
+
+    // a key may legitimately be null (no syskey, Vista+ ...) so remember that we tried
+    private boolean haveBootKey;
+    private boolean haveHashedBootKey;
+    private boolean haveLSAKey;
+    private boolean haveNLKM;
+
+    /**
+     *  HiveSession constructor, nothing is read until it is needed
+     *
+     *  @param sysLoc location of the SYSTEM file, may be null
+     *  @param samLoc location of the SAM file, may be null
+     *  @param secLoc location of the SECURITY file, may be null
+     */
+    public HiveSession(String sysLoc, String samLoc, String secLoc)
+    {
+        sysFile = (sysLoc != null) ? new File(sysLoc) : null;
+        samFile = (samLoc != null) ? new File(samLoc) : null;
+        secFile = (secLoc != null) ? new File(secLoc) : null;
+    }
+
+    /**
+     * Finds the hives of a Windows installation: SYSTEM, SOFTWARE, SAM and
+     * SECURITY from system32\config, and the NTUSER.DAT of every profile
+     * under Documents and Settings (2000/XP) or Users (Vista and later) of
+     * the same volume
+     * @param systemRoot the Windows directory, e.g. X:\WINDOWS
+     * @return the hive files that exist, by label (SYSTEM ... or profile\NTUSER.DAT)
+     */
+    public static LinkedHashMap<String, File> findHives(String systemRoot)
+    {
+        LinkedHashMap<String, File> hives = new LinkedHashMap<String, File>();
+        String[] config = { "SYSTEM", "SOFTWARE", "SAM", "SECURITY" };
+        File configDir = new File(new File(systemRoot, "system32"), "config");
+
+        for (int i = 0; i < config.length; i++)
+        {
+            File hive = new File(configDir, config[i]);
+            if (hive.isFile())
+                hives.put(config[i], hive);
+        }
+
+        File volume = new File(systemRoot).getAbsoluteFile().getParentFile();
+        if (volume == null) { return hives; }
+
+        String[] profileDirs = { "Documents and Settings", "Users" };
+        for (int i = 0; i < profileDirs.length; i++)
+        {
+            File[] profiles = new File(volume, profileDirs[i]).listFiles();
+            if (profiles == null) { continue; }
+
+            for (int j = 0; j < profiles.length; j++)
+            {
+                File hive = new File(profiles[j], "NTUSER.DAT");
+                if (hive.isFile())
+                    hives.put(profiles[j].getName() + "\\NTUSER.DAT", hive);
+            }
+        }
+
+        return hives;
+    }
+
+    /**
+     * inspector for the SYSTEM file
+     * @return the SYSTEM file, null if the session has none
+     */
+    public File getSystemFile()
+    {
+        return sysFile;
+    }
+
+    /**
+     * inspector for the SAM file
+     * @return the SAM file, null if the session has none
+     */
+    public File getSamFile()
+    {
+        return samFile;
+    }
+
+    /**
+     * inspector for the SECURITY file
+     * @return the SECURITY file, null if the session has none
+     */
+    public File getSecurityFile()
+    {
+        return secFile;
+    }
+
+    /**
+     * the SYSTEM hive, opened on first use
+     * @return the SYSTEM hive, null if the session has none
+     */
+    public synchronized Hive getSystemHive()
+    {
+        if (sysHive == null && sysFile != null)
+            sysHive = new Hive(sysFile);
+        return sysHive;
+    }
+
+    /**
+     * the SAM hive, opened on first use
+     * @return the SAM hive, null if the session has none
+     */
+    public synchronized Hive getSamHive()
+    {
+        if (samHive == null && samFile != null)
+            samHive = new Hive(samFile);
+        return samHive;
+    }
+
+    /**
+     * the SECURITY hive, opened on first use
+     * @return the SECURITY hive, null if the session has none
+     */
+    public synchronized Hive getSecurityHive()
+    {
+        if (secHive == null && secFile != null)
+            secHive = new Hive(secFile);
+        return secHive;
+    }
+
+    /**
+     * the boot key (syskey) from SYSTEM
+     * @return the boot key, null if there is none
+     */
+    public synchronized byte[] getBootKey()
+    {
+        if (!haveBootKey)
+        {
+            Hive hive = getSystemHive();
+            bootKey = (hive != null) ? RegistryParser.getBootKey(hive) : null;
+            haveBootKey = true;
+        }
+        return bootKey;
+    }
+
+    /**
+     * the hashed boot key from SAM, needed to decrypt the SAM hashes
+     * @return the hashed boot key, null if there is none
+     */
+    public synchronized byte[] getHashedBootKey()
+    {
+        if (!haveHashedBootKey)
+        {
+            Hive hive = getSamHive();
+            hBootKey = (hive != null) ? RegistryParser.getHashedBootKey(hive, getBootKey()) : null;
+            haveHashedBootKey = true;
+        }
+        return hBootKey;
+    }
+
+    /**
+     * the LSA key from SECURITY
+     * @return the LSA key, null if there is none
+     */
+    public synchronized byte[] getLSAKey()
+    {
+        if (!haveLSAKey)
+        {
+            Hive hive = getSecurityHive();
+            lsaKey = (hive != null) ? RegistryParser.getLSAKey(hive, getBootKey()) : null;
+            haveLSAKey = true;
+        }
+        return lsaKey;
+    }
+
+    /**
+     * the NL$KM secret from SECURITY, needed to decrypt cached domain credentials
+     * @return the NL$KM key, null if there is none
+     */
+    public synchronized byte[] getNLKM()
+    {
+        if (!haveNLKM)
+        {
+            Hive hive = getSecurityHive();
+            nlkmKey = (hive != null) ? RegistryParser.getNLKM(hive, getLSAKey()) : null;
+            haveNLKM = true;
+        }
+        return nlkmKey;
+    }
+
+    /**
+     * Releases the hives.  Derived keys are kept, so the session can still
+     * hand them out; hives are reopened if they are asked for again.
+     */
+    public synchronized void close()
+    {
+        if (sysHive != null)
+            sysHive.close();
+        if (samHive != null)
+            samHive.close();
+        if (secHive != null)
+            secHive.close();
+
+        sysHive = null;
+        samHive = null;
+        secHive = null;
+    }
+}
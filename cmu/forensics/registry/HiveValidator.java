@@ -0,0 +1,367 @@
+/*
+   HiveValidator.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * HiveValidator
+ * Pre-flight integrity check of a hive, run before anything is patched so
+ * a truncated or corrupt hive is rejected up front instead of failing
+ * halfway through parsing.
+ *
+ * The base block is checked first (signature, format, hbin data size, root
+ * cell).  A bad base block checksum is only a warning: a hive that lost
+ * power before its logs could be replayed looks like that, its hbins are
+ * still usable and HivePatchSet writes a fresh checksum anyway.
+ *
+ * The hbin headers are then hopped over once to check their signature,
+ * offset and size and to fill in the page table of the HbinTable.  The cell size chains of the hbins are walked in parallel in
+ * ranges of about a megabyte, each chain must end exactly at the end of
+ * its hbin; every cell start is marked in the table on the way.
+ *
+ * A hive that passes keeps its table (Hive.getHbinTable) for constant time
+ * bounds checks of the offsets read while it is parsed and patched.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveValidator
+{
+    private static final int REGF_ID = 0x66676572;      // "regf"
+    private static final int HBIN_ID = 0x6e696268;      // "hbin"
+    private static final int BASE_BLOCK_SIZE = 0x200;
+    private static final int BINS_START = 0x1000;
+    private static final int HBIN_HEADER = 0x20;
+    private static final int RANGE_SIZE = 0x100000;     // bytes of hbins per task
+    private static final int MAX_PROBLEMS = 100;
+
+    private Hive hive;
+    private HbinTable table;
+    private List<String> problems = new ArrayList<String>();
+    private List<String> warnings = new ArrayList<String>();
+
+    /**
+     *  HiveValidator constructor
+     *
+     *  @param hive the hive to check, not modified
+     */
+    public HiveValidator(Hive hive)
+    {
+        this.hive = hive;
+    }
+
+    /**
+     * Checks the whole hive.  On success the hbin table is attached to the hive.
+     * @param threads number of hbin ranges checked at the same time
+     * @return true if no problem was found
+     */
+    public boolean validate(int threads)
+    {
+        problems.clear();
+        warnings.clear();
+        table = null;
+
+        int binsEnd = checkBaseBlock();
+        if (binsEnd < 0)
+            return false;
+
+        table = new HbinTable(hive);
+        List<int[]> ranges = hopBins(binsEnd);
+        checkRanges(ranges, threads);
+
+        int root = hive.getDWord(0x24) + BINS_START;
+        if (!table.isCell(root) || hive.getDWord(root) >= 0 || hive.getWord(root + 4) != NK_Structure.NK_ID)
+            problem("root cell 0x" + Integer.toHexString(root) + " is not an allocated nk");
+
+        if (!problems.isEmpty())
+            return false;
+
+        hive.setHbinTable(table);
+        return true;
+    }
+
+    /**
+     * inspector for problems
+     * @return what was wrong with the hive, empty if it passed
+     */
+    public List<String> getProblems()
+    {
+        return problems;
+    }
+
+    /**
+     * inspector for warnings
+     * @return what is odd about the hive without making it unsafe to patch
+     */
+    public List<String> getWarnings()
+    {
+        return warnings;
+    }
+
+    /**
+     * inspector for table
+     * @return the hbin table built by the last validate(), null if the base block was unusable
+     */
+    public HbinTable getTable()
+    {
+        return table;
+    }
+
+    /**
+     * checks the base block
+     * @return end of the hbin data, -1 if the hive cannot be walked at all
+     */
+    private int checkBaseBlock()
+    {
+        int length = hive.getLength();
+        if (length < BINS_START + 0x1000 || hive.getDWord(0) != REGF_ID)
+        {
+            problem("not a regf hive (" + length + " bytes)");
+            return -1;
+        }
+
+        byte[] base = hive.slice(0, BASE_BLOCK_SIZE);
+        if (RegistryParser.getDWord(base, 0x1FC) != HivePatchSet.checksum(base))
+            warnings.add("base block checksum mismatch");
+        if (RegistryParser.getDWord(base, 0x14) != 1 || RegistryParser.getDWord(base, 0x20) != 1)
+            problem("unsupported hive version " + RegistryParser.getDWord(base, 0x14) + "." + RegistryParser.getDWord(base, 0x18));
+
+        int binsSize = RegistryParser.getDWord(base, 0x28);
+        if (binsSize <= 0 || (binsSize & 0xFFF) != 0)
+        {
+            problem("bad hbin data size 0x" + Integer.toHexString(binsSize));
+            return -1;
+        }
+        if (binsSize > length - BINS_START)
+        {
+            problem("truncated, hbin data size 0x" + Integer.toHexString(binsSize) + " but only 0x" + Integer.toHexString(length - BINS_START) + " bytes");
+            return length;
+        }
+
+        return BINS_START + binsSize;
+    }
+
+    /**
+     * hops over the hbin headers, fills in the page table and groups the
+     * good hbins into ranges of about RANGE_SIZE bytes.  After a bad
+     * header the pages are skipped until one starts with an hbin signature.
+     */
+    private List<int[]> hopBins(int binsEnd)
+    {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int start = BINS_START;
+        int bin = start;
+
+        while (bin + HBIN_HEADER <= binsEnd)
+        {
+            int binSize = hive.getDWord(bin + 0x0008);
+            String bad = null;
+
+            if (hive.getDWord(bin) != HBIN_ID)
+                bad = "bad signature";
+            else if (hive.getDWord(bin + 0x0004) != bin - BINS_START)
+                bad = "offset field 0x" + Integer.toHexString(hive.getDWord(bin + 0x0004));
+            else if (binSize < 0x1000 || (binSize & 0xFFF) != 0 || binSize > binsEnd - bin)
+                bad = "size 0x" + Integer.toHexString(binSize);
+
+            if (bad != null)
+            {
+                problem("hbin 0x" + Integer.toHexString(bin) + ": " + bad);
+                if (bin > start)
+                    ranges.add(new int[] { start, bin });
+
+                //resynchronize on the next page that starts an hbin
+                do
+                    bin += 0x1000;
+                while (bin + HBIN_HEADER <= binsEnd && hive.getDWord(bin) != HBIN_ID);
+                start = bin;
+                continue;
+            }
+
+            table.addBin(bin, binSize);
+            bin += binSize;
+            if (bin - start >= RANGE_SIZE)
+            {
+                ranges.add(new int[] { start, bin });
+                start = bin;
+            }
+        }
+
+        if (bin > start)
+            ranges.add(new int[] { start, bin });
+
+        return ranges;
+    }
+
+    /**
+     * walks the cell chains of every range, on a pool if there is more than one
+     */
+    private void checkRanges(List<int[]> ranges, int threads)
+    {
+        if (threads <= 1 || ranges.size() <= 1)
+        {
+            for (int i = 0; i < ranges.size(); i++)
+                addProblems(checkRange(ranges.get(i)[0], ranges.get(i)[1]));
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+        try
+        {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(ranges.size());
+            for (int i = 0; i < ranges.size(); i++)
+            {
+                final int[] range = ranges.get(i);
+                results.add(pool.submit(new Callable<List<String>>() {
+                    public List<String> call()
+                    {
+                        return checkRange(range[0], range[1]);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+                addProblems(results.get(i).get());
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+        catch (ExecutionException ee)
+        {
+            throw new IllegalStateException(ee.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * walks the cell chains of the hbins in [start, end), the hbin
+     * headers were already checked
+     */
+    private List<String> checkRange(int start, int end)
+    {
+        List<String> found = new ArrayList<String>();
+
+        for (int bin = start; bin < end; )
+        {
+            int binEnd = bin + hive.getDWord(bin + 0x0008);
+            int cell = bin + HBIN_HEADER;
+
+            while (cell < binEnd)
+            {
+                if (cell + 4 > binEnd)
+                {
+                    found.add("cell 0x" + Integer.toHexString(cell) + ": no room for the size field");
+                    break;
+                }
+
+                int size = hive.getDWord(cell);
+                int abs = (size < 0) ? -size : size;
+                if (size == 0 || size == Integer.MIN_VALUE || (abs & 7) != 0 || abs > binEnd - cell)
+                {
+                    found.add("cell 0x" + Integer.toHexString(cell) + ": size 0x" + Integer.toHexString(size) + " in hbin 0x" + Integer.toHexString(bin));
+                    break;
+                }
+
+                table.addCell(cell);
+                cell += abs;
+            }
+
+            bin = binEnd;
+        }
+
+        return found;
+    }
+
+    private void problem(String problem)
+    {
+        if (problems.size() < MAX_PROBLEMS)
+            problems.add(problem);
+    }
+
+    private void addProblems(List<String> found)
+    {
+        for (int i = 0; i < found.size(); i++)
+            problem(found.get(i));
+    }
+
+    /**
+     * Validates hive files and prints what is wrong with them
+     *
+     * @param args hive files, then optionally the number of threads
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: HiveValidator hiveFile ... [threads]");
+            return;
+        }
+
+        int files = args.length;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1 && args[args.length - 1].matches("\\d+"))
+        {
+            threads = Integer.parseInt(args[args.length - 1]);
+            files--;
+        }
+
+        for (int i = 0; i < files; i++)
+        {
+            Hive hive = new Hive(new File(args[i]));
+            try
+            {
+                long start = System.currentTimeMillis();
+                HiveValidator validator = new HiveValidator(hive);
+                boolean ok = validator.validate(threads);
+                long ms = System.currentTimeMillis() - start;
+
+                List<String> found = validator.getWarnings();
+                for (int j = 0; j < found.size(); j++)
+                    System.out.println(args[i] + ": warning: " + found.get(j));
+                found = validator.getProblems();
+                for (int j = 0; j < found.size(); j++)
+                    System.out.println(args[i] + ": " + found.get(j));
+                System.out.println(args[i] + ": " + (ok ? "ok" : "damaged") + " in " + ms + " ms");
+            }
+            finally
+            {
+                hive.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+   HiveValue.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.util.ArrayList;
+
+/**
+ * HiveValue
+ * Reusable view of a value (vk structure) and its data.  Nothing is copied
+ * when the view is positioned, the data is read from the hive only when one
+ * of the typed accessors is called, so a single view can be moved over every
+ * value of a hive.
+ *
+ * Handles the three places data can live:
+ *
+ *   inline - 4 bytes or less, stored in the data offset field of the vk
+ *   cell   - a single data cell
+ *   db     - big data (hive version 1.4 and later), a db record pointing
+ *            at a list of segments of up to 16344 bytes each
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveValue
+{
+    public static final int REG_NONE = 0;
+    public static final int REG_SZ = 1;
+    public static final int REG_EXPAND_SZ = 2;
+    public static final int REG_BINARY = 3;
+    public static final int REG_DWORD = 4;
+    public static final int REG_DWORD_BIG_ENDIAN = 5;
+    public static final int REG_LINK = 6;
+    public static final int REG_MULTI_SZ = 7;
+    public static final int REG_QWORD = 11;
+
+    public static final int DB_ID = 0x6264;             // "db"
+    public static final int DB_SEGMENT_SIZE = 16344;    // bytes of data per big data segment
+
+    private Hive hive;
+    private VK_Structure vk;
+    private int length;             // data length, 0 if the data can not be reached
+    private int dataOffset;         // hive offset of the data, the vk data field for inline data
+    private int segmentList;        // hive offset of the db segment list, 0 if not big data
+
+    /**
+     *  HiveValue view constructor, the view must be positioned with setOffset before use
+     *
+     *  @param hive the hive the view reads from
+     */
+    public HiveValue(Hive hive)
+    {
+        this.hive = hive;
+        this.vk = new VK_Structure(hive);
+    }
+
+    /**
+     * repositions this view on another vk structure
+     * @param offsetInHive offset into the hive of the vk structure
+     */
+    public void setOffset(int offsetInHive)
+    {
+        vk.setOffset(offsetInHive);
+        segmentList = 0;
+        length = 0;
+        dataOffset = 0;
+
+        int len = (int)vk.getLen_data();
+        if ((len & 0x80000000) != 0)     // data of 4 bytes or less lives in the data offset field
+        {
+            length = Math.min(len & 0x7fffffff, 4);
+            dataOffset = offsetInHive + 0x0008;
+            return;
+        }
+
+        int ofs = (int)vk.getOfs_data() + 0x1004;
+        if (len <= 0 || !inHive(ofs, 8))
+            return;
+
+        if (len > DB_SEGMENT_SIZE && hive.getWord(ofs) == DB_ID)
+        {
+            int list = hive.getDWord(ofs + 0x0004) + 0x1004;
+            if (!inHive(list, hive.getWord(ofs + 0x0002) * 4))
+                return;
+            segmentList = list;
+        }
+        else if (!inHive(ofs, len))
+            return;
+
+        length = len;
+        dataOffset = ofs;
+    }
+
+    /**
+     * inspector for the vk cursor of this view
+     * @return the vk structure the view is positioned on
+     */
+    public VK_Structure getVK()
+    {
+        return vk;
+    }
+
+    /**
+     * inspector for the offset this view points at
+     * @return the offset of the vk structure in the hive
+     */
+    public int getOffset()
+    {
+        return vk.getOffset();
+    }
+
+    /**
+     * decodes the value name in its original case
+     * @return the value name, empty for the default value
+     */
+    public String getName()
+    {
+        return vk.getName();
+    }
+
+    /**
+     * inspector for the value type
+     * @return the REG_* type
+     */
+    public int getType()
+    {
+        return (int)vk.getVal_type();
+    }
+
+    /**
+     * inspector for the data length
+     * @return the number of data bytes, 0 if the data is missing or out of the hive
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * is the data stored as db big data
+     * @return true if the data is split over segments
+     */
+    public boolean isBigData()
+    {
+        return segmentList != 0;
+    }
+
+    /**
+     * reads a single data byte straight from the hive
+     * @param index index into the data
+     * @return the byte at index
+     */
+    public int getByte(int index)
+    {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("value data index " + index);
+
+        return hive.getByte(locate(index));
+    }
+
+    /**
+     * copies part of the data into dest, segment by segment for big data
+     * @param index index into the data of the first byte
+     * @param dest buffer to copy into
+     * @param destOffset position in dest of the first byte
+     * @param len number of bytes to copy
+     */
+    public void read(int index, byte[] dest, int destOffset, int len)
+    {
+        if (index < 0 || len < 0 || index + len > length)
+            throw new IndexOutOfBoundsException("value data range " + index + "+" + len);
+
+        while (len > 0)
+        {
+            int run = (segmentList == 0) ? len : Math.min(len, DB_SEGMENT_SIZE - (index % DB_SEGMENT_SIZE));
+            hive.read(locate(index), dest, destOffset, run);
+            index += run;
+            destOffset += run;
+            len -= run;
+        }
+    }
+
+    /**
+     * copies the data
+     * @return a copy of the data
+     */
+    public byte[] getData()
+    {
+        byte[] data = new byte[length];
+        read(0, data, 0, length);
+        return data;
+    }
+
+    /**
+     * decodes a REG_DWORD or REG_DWORD_BIG_ENDIAN value
+     * @param defaultValue returned when the data is shorter than 4 bytes
+     * @return the value
+     */
+    public int getDWord(int defaultValue)
+    {
+        if (length < 4)
+            return defaultValue;
+
+        int b0 = getByte(0), b1 = getByte(1), b2 = getByte(2), b3 = getByte(3);
+        if (getType() == REG_DWORD_BIG_ENDIAN)
+            return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+
+        return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+    }
+
+    /**
+     * decodes a REG_QWORD value
+     * @param defaultValue returned when the data is shorter than 8 bytes
+     * @return the value
+     */
+    public long getQWord(long defaultValue)
+    {
+        if (length < 8)
+            return defaultValue;
+
+        long val = 0;
+        for (int i = 7; i >= 0; i--)
+            val = (val << 8) | getByte(i);
+        return val;
+    }
+
+    /**
+     * decodes a REG_SZ, REG_EXPAND_SZ or REG_LINK value (UTF-16LE)
+     * @return the string up to its terminating NUL
+     */
+    public String getString()
+    {
+        StringBuffer sb = new StringBuffer(length / 2);
+        for (int i = 0; i + 1 < length; i += 2)
+        {
+            char c = getChar(i);
+            if (c == 0)
+                break;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * decodes a REG_MULTI_SZ value (UTF-16LE strings separated by NULs,
+     * ended by an empty string)
+     * @return the strings
+     */
+    public String[] getMultiString()
+    {
+        ArrayList<String> strings = new ArrayList<String>();
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i + 1 < length; i += 2)
+        {
+            char c = getChar(i);
+            if (c != 0)
+            {
+                sb.append(c);
+                continue;
+            }
+
+            if (sb.length() == 0)
+                break;
+            strings.add(sb.toString());
+            sb.setLength(0);
+        }
+
+        if (sb.length() > 0)
+            strings.add(sb.toString());
+
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    /**
+     * the UTF-16LE character whose low byte is at index
+     */
+    private char getChar(int index)
+    {
+        return (char)(getByte(index) | (getByte(index + 1) << 8));
+    }
+
+    /**
+     * hive offset of the data byte at index
+     */
+    private int locate(int index)
+    {
+        if (segmentList == 0)
+            return dataOffset + index;
+
+        int segment = hive.getDWord(segmentList + ((index / DB_SEGMENT_SIZE) * 4)) + 0x1004;
+        return segment + (index % DB_SEGMENT_SIZE);
+    }
+
+    /**
+     * does [offset, offset+len) lie in the hbins of the hive
+     */
+    private boolean inHive(int offset, int len)
+    {
+        return offset >= 0x1000 && len >= 0 && offset <= hive.getLength() - len;
+    }
+}
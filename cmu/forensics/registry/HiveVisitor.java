@@ -0,0 +1,61 @@
+/*
+   HiveVisitor.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * HiveVisitor
+ * Callbacks for HiveWalker.walk.  The key and value passed in are the
+ * walker's reusable cursors, they are only valid until the callback returns.
+ * visitKey and visitValue return one of HiveWalker.CONTINUE,
+ * HiveWalker.SKIP_SUBTREE or HiveWalker.TERMINATE.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public interface HiveVisitor
+{
+    /**
+     * called when the walk enters a key, before its values and subkeys
+     * @param walker the walker, for getPath() and getDepth()
+     * @param key cursor on the key
+     * @return CONTINUE, SKIP_SUBTREE to skip the values and subkeys of key, or TERMINATE
+     */
+    public int visitKey(HiveWalker walker, NK_Structure key);
+
+    /**
+     * called for every value of the current key
+     * @param walker the walker, for getPath() and getDepth()
+     * @param value view of the value and its data
+     * @return CONTINUE, SKIP_SUBTREE to skip the rest of the key, or TERMINATE
+     */
+    public int visitValue(HiveWalker walker, HiveValue value);
+
+    /**
+     * called when the walk leaves a key, after its values and subkeys
+     * @param walker the walker, for getPath() and getDepth()
+     * @param key cursor on the key
+     */
+    public void leaveKey(HiveWalker walker, NK_Structure key);
+}
@@ -0,0 +1,325 @@
+/*
+   HiveWalker.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * HiveWalker
+ * Streaming depth first walk over every key and value of a hive (or of the
+ * subtree under one key).  Keys are reported before their values, values
+ * before subkeys, and every key is closed with an END_KEY event once its
+ * subtree is done.
+ *
+ * The walker can be pulled with next(), or driven with walk() and a
+ * HiveVisitor.  Either way the same NK_Structure and HiveValue cursors are
+ * repositioned for every event and only one frame of offsets per level of
+ * depth is kept, so memory use does not grow with the size of the hive.
+ *
+ * Paths are relative to the start key and use the same form traversePath
+ * takes: "" for the start key, "\Select" for its subkey Select.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class HiveWalker
+{
+    /* visitor results */
+    public static final int CONTINUE = 0;
+    public static final int SKIP_SUBTREE = 1;
+    public static final int TERMINATE = 2;
+
+    /* events returned by next() */
+    public static final int DONE = 0;
+    public static final int KEY = 1;
+    public static final int VALUE = 2;
+    public static final int END_KEY = 3;
+
+    public static final int MAX_DEPTH = 512;    // deeper keys are skipped, guards against corrupt hives
+
+    private Hive hive;
+    private int startOffset;
+    private NK_Structure key;           // cursor handed out with KEY, VALUE and END_KEY events
+    private HiveValue value;            // view handed out with VALUE events
+
+    /* one frame per level of depth, index 0 is the start key */
+    private int[] nkOfs = new int[16];
+    private int[] valueList = new int[16];
+    private int[] valueIdx = new int[16];
+    private int[] valueCount = new int[16];
+    private int[] subIdx = new int[16];
+    private int[] subCount = new int[16];
+    private int[] pathLen = new int[16];
+    private SubkeyList[] lists = new SubkeyList[16];
+
+    private StringBuffer path = new StringBuffer();
+    private int depth = -1;             // depth of the innermost open key
+    private int eventDepth;             // depth of the key of the last event
+    private int lastEvent = DONE;
+    private boolean started;
+
+    /**
+     *  HiveWalker constructor, walks the whole hive
+     *
+     *  @param hive the hive to walk
+     */
+    public HiveWalker(Hive hive)
+    {
+        this(hive, hive.getRootOffset() + 4);
+    }
+
+    /**
+     *  HiveWalker constructor, walks the subtree under one key
+     *
+     *  @param hive the hive to walk
+     *  @param nkOffset hive offset of the nk structure of the start key
+     */
+    public HiveWalker(Hive hive, int nkOffset)
+    {
+        this.hive = hive;
+        this.startOffset = nkOffset;
+        this.key = new NK_Structure(hive);
+        this.value = new HiveValue(hive);
+    }
+
+    /**
+     * moves to the next key, value or end of key
+     * @return KEY, VALUE, END_KEY, or DONE once the walk is over
+     */
+    public int next()
+    {
+        if (!started)
+        {
+            started = true;
+            return event(push(startOffset) ? KEY : DONE, 0);
+        }
+
+        while (depth >= 0)
+        {
+            int d = depth;
+
+            if (valueIdx[d] < valueCount[d])
+            {
+                int vkOfs = hive.getDWord(valueList[d] + (valueIdx[d]++ * 0x4)) + 0x1004;
+                if (!inHive(vkOfs, 0x18) || hive.getWord(vkOfs) != VK_Structure.VK_ID)
+                    continue;
+
+                key.setOffset(nkOfs[d]);
+                value.setOffset(vkOfs);
+                return event(VALUE, d);
+            }
+
+            if (subIdx[d] < subCount[d])
+            {
+                if (push(lists[d].getOfs_nk(subIdx[d]++)))
+                    return event(KEY, depth);
+                continue;
+            }
+
+            key.setOffset(nkOfs[d]);
+            depth--;
+            return event(END_KEY, d);
+        }
+
+        return event(DONE, 0);
+    }
+
+    /**
+     * walks the rest of the hive, calling visitor for every event
+     * @param visitor callbacks for keys and values
+     * @return false if the visitor terminated the walk, true otherwise
+     */
+    public boolean walk(HiveVisitor visitor)
+    {
+        for (int event = next(); event != DONE; event = next())
+        {
+            int action = CONTINUE;
+
+            if (event == KEY)
+                action = visitor.visitKey(this, key);
+            else if (event == VALUE)
+                action = visitor.visitValue(this, value);
+            else
+                visitor.leaveKey(this, key);
+
+            if (action == TERMINATE)
+            {
+                depth = -1;
+                return false;
+            }
+
+            if (action == SKIP_SUBTREE)
+                skipSubtree();
+        }
+
+        return true;
+    }
+
+    /**
+     * skips the values and subkeys not reported yet of the key of the last
+     * KEY or VALUE event, the next event is its END_KEY
+     */
+    public void skipSubtree()
+    {
+        if (depth < 0 || lastEvent == END_KEY)
+            return;
+
+        valueIdx[depth] = valueCount[depth];
+        subIdx[depth] = subCount[depth];
+    }
+
+    /**
+     * inspector for the key cursor, positioned on the key of the last event
+     * (the owner of the value for VALUE events)
+     * @return the key cursor
+     */
+    public NK_Structure getKey()
+    {
+        return key;
+    }
+
+    /**
+     * inspector for the value view, positioned on the value of the last VALUE event
+     * @return the value view
+     */
+    public HiveValue getValue()
+    {
+        return value;
+    }
+
+    /**
+     * depth of the key of the last event, 0 for the start key
+     * @return the depth
+     */
+    public int getDepth()
+    {
+        return eventDepth;
+    }
+
+    /**
+     * path of the key of the last event relative to the start key
+     * @return the path, "" for the start key
+     */
+    public String getPath()
+    {
+        return path.substring(0, pathLen[eventDepth]);
+    }
+
+    /**
+     * records the last event
+     */
+    private int event(int event, int d)
+    {
+        lastEvent = event;
+        eventDepth = d;
+        return event;
+    }
+
+    /**
+     * opens a frame for the key at nkOffset, positions the key cursor on it
+     * and extends the path by its name
+     * @return false if nkOffset is not a usable nk, is too deep or loops back to an open key
+     */
+    private boolean push(int ofs)
+    {
+        int d = depth + 1;
+        if (d >= MAX_DEPTH || !inHive(ofs, 0x50) || hive.getWord(ofs) != NK_Structure.NK_ID)
+            return false;
+
+        for (int i = 0; i < d; i++)
+        {
+            if (nkOfs[i] == ofs)
+                return false;
+        }
+
+        if (d == nkOfs.length)
+            grow();
+
+        key.setOffset(ofs);
+        nkOfs[d] = ofs;
+
+        valueIdx[d] = 0;
+        valueCount[d] = (int)key.getNo_values();
+        valueList[d] = (int)key.getOfs_vallist() + 0x1004;
+        if (valueCount[d] < 0 || !inHive(valueList[d], valueCount[d] * 4))
+            valueCount[d] = 0;
+
+        subIdx[d] = 0;
+        subCount[d] = (int)key.getNo_subkeys();
+        if (subCount[d] < 0 || !inHive((int)key.getOfs_lf() + 0x1004, 0x8))
+            subCount[d] = 0;
+        else
+        {
+            if (lists[d] == null)
+                lists[d] = new SubkeyList(hive);
+            lists[d].setKey(key);
+        }
+
+        if (d > 0)
+        {
+            path.setLength(pathLen[d - 1]);
+            path.append('\\');
+            int len = key.getNameLength();
+            for (int i = 0; i < len; i++)
+                path.append(key.getNameChar(i));
+        }
+        pathLen[d] = (d > 0) ? path.length() : 0;
+
+        depth = d;
+        return true;
+    }
+
+    /**
+     * doubles the number of frames
+     */
+    private void grow()
+    {
+        int n = nkOfs.length * 2;
+        nkOfs = copy(nkOfs, n);
+        valueList = copy(valueList, n);
+        valueIdx = copy(valueIdx, n);
+        valueCount = copy(valueCount, n);
+        subIdx = copy(subIdx, n);
+        subCount = copy(subCount, n);
+        pathLen = copy(pathLen, n);
+
+        SubkeyList[] l = new SubkeyList[n];
+        System.arraycopy(lists, 0, l, 0, lists.length);
+        lists = l;
+    }
+
+    private static int[] copy(int[] a, int n)
+    {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * does [offset, offset+len) lie in the hbins of the hive
+     */
+    private boolean inHive(int offset, int len)
+    {
+        return offset >= 0x1000 && len >= 0 && offset <= hive.getLength() - len;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+   IndexHit.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+
+/**
+ * IndexHit
+ * A key or value matched by a RegistryIndex query
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class IndexHit
+{
+    private final String label;
+    private final File hive;
+    private final int keyOffset;    // hive offset of the nk structure
+    private final int valueOffset;  // hive offset of the vk structure, 0 for a key
+    private final int fields;       // RegistryIndex.KEY_NAME, VALUE_NAME and VALUE_DATA bits that matched
+    private final String path;      // null if the hive changed since it was indexed
+
+    /**
+     *  IndexHit constructor
+     *
+     *  @param label label of the hive
+     *  @param hive the hive file
+     *  @param keyOffset hive offset of the nk structure
+     *  @param valueOffset hive offset of the vk structure, 0 for a key
+     *  @param fields the fields the terms were found in
+     *  @param path key path or key path \ value name, null if unresolved
+     */
+    public IndexHit(String label, File hive, int keyOffset, int valueOffset, int fields, String path)
+    {
+        this.label = label;
+        this.hive = hive;
+        this.keyOffset = keyOffset;
+        this.valueOffset = valueOffset;
+        this.fields = fields;
+        this.path = path;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer(label);
+        if (path != null)
+            sb.append(path);
+        else
+            sb.append(" 0x").append(Integer.toHexString((valueOffset != 0) ? valueOffset : keyOffset));
+
+        sb.append(" [");
+        if ((fields & RegistryIndex.KEY_NAME) != 0)
+            sb.append(" key");
+        if ((fields & RegistryIndex.VALUE_NAME) != 0)
+            sb.append(" name");
+        if ((fields & RegistryIndex.VALUE_DATA) != 0)
+            sb.append(" data");
+        sb.append(" ]");
+        return sb.toString();
+    }
+
+    /**
+     * inspector for label
+     * @return the label of the hive
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * inspector for hive
+     * @return the hive file
+     */
+    public File getHive()
+    {
+        return hive;
+    }
+
+    /**
+     * inspector for keyOffset
+     * @return hive offset of the nk structure of the key (the owner for values)
+     */
+    public int getKeyOffset()
+    {
+        return keyOffset;
+    }
+
+    /**
+     * inspector for valueOffset
+     * @return hive offset of the vk structure, 0 if the hit is a key
+     */
+    public int getValueOffset()
+    {
+        return valueOffset;
+    }
+
+    /**
+     * inspector for fields
+     * @return the RegistryIndex field bits the terms were found in
+     */
+    public int getFields()
+    {
+        return fields;
+    }
+
+    /**
+     * inspector for path
+     * @return key path, or key path \ value name (@ for the default value), null if unresolved
+     */
+    public String getPath()
+    {
+        return path;
+    }
+}
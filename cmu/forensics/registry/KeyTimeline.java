@@ -0,0 +1,358 @@
+/*
+   KeyTimeline.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * KeyTimeline
+ * Exports the last write time of every key of a set of hives (SYSTEM,
+ * SOFTWARE, SAM, SECURITY and the NTUSER.DAT of each profile) as a
+ * timeline, either as a TSK bodyfile for mactime or as CSV.
+ *
+ * Every hive is walked by its own HiveWalker, several hives at a time on
+ * a small pool.  The walker builds the path of a key by appending its name
+ * to the path it already holds for the parent, so no key is resolved back
+ * to the root.  Records go through a bounded queue to the thread calling
+ * export, which writes them, so memory stays constant however large the
+ * hives are; records of different hives are interleaved in the output
+ * (mactime sorts them).
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class KeyTimeline
+{
+    public static final int BODYFILE = 0;
+    public static final int CSV = 1;
+
+    private static final long FILETIME_UNIX_EPOCH = 116444736000000000L;  // 1970-01-01 as a FILETIME
+    private static final long FILETIME_PER_SECOND = 10000000L;
+    private static final int QUEUE_CAPACITY = 4096;                         // records between the walkers and the writer
+    private static final String END = new String("END");                    // marks the end of one hive, compared by identity
+
+    private int format;
+    private List<String> labels = new ArrayList<String>();
+    private List<File> files = new ArrayList<File>();
+    private List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     *  KeyTimeline constructor
+     *
+     *  @param format BODYFILE or CSV
+     */
+    public KeyTimeline(int format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * adds a hive to the timeline
+     * @param label name the key paths of this hive are prefixed with
+     * @param file the hive file
+     */
+    public void addHive(String label, File file)
+    {
+        labels.add(label);
+        files.add(file);
+    }
+
+    /**
+     * adds the hives of a Windows installation: SYSTEM, SOFTWARE, SAM and
+     * SECURITY from system32\config, and the NTUSER.DAT of every profile
+     * under Documents and Settings (2000/XP) or Users (Vista and later)
+     * of the same volume
+     * @param systemRoot the Windows directory, e.g. X:\WINDOWS
+     * @return the number of hives added
+     */
+    public int addWindowsHives(String systemRoot)
+    {
+        LinkedHashMap<String, File> hives = HiveSession.findHives(systemRoot);
+        Iterator<Map.Entry<String, File>> it = hives.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, File> hive = it.next();
+            addHive(hive.getKey(), hive.getValue());
+        }
+        return hives.size();
+    }
+
+    /**
+     * inspector for warnings
+     * @return the hives that could not be read (completely) by the last export
+     */
+    public String[] getWarnings()
+    {
+        synchronized (warnings)
+        {
+            return warnings.toArray(new String[warnings.size()]);
+        }
+    }
+
+    /**
+     * walks all hives and writes one record per key to out
+     * @param out destination of the timeline, not closed
+     * @param threads number of hives walked at the same time
+     * @return the number of records written
+     * @throws IOException if out can not be written, the walk is stopped
+     */
+    public long export(Writer out, int threads) throws IOException
+    {
+        warnings.clear();
+        String newL = System.getProperty("line.separator");
+
+        if (format == CSV)
+            out.write("timestamp,hive,key" + newL);
+
+        int hives = files.size();
+        if (hives == 0) { return 0; }
+
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, hives)));
+
+        for (int i = 0; i < hives; i++)
+        {
+            final String label = labels.get(i);
+            final File file = files.get(i);
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    walk(label, file, queue);
+                }
+            });
+        }
+        pool.shutdown();
+
+        long records = 0;
+        int finished = 0;
+        try
+        {
+            while (finished < hives)
+            {
+                String record = queue.take();
+                if (record == END)
+                {
+                    finished++;
+                    continue;
+                }
+
+                out.write(record);
+                out.write(newL);
+                records++;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("timeline export interrupted");
+        }
+        catch (IOException ioe)
+        {
+            // stop the walkers, they may be blocked on the full queue
+            pool.shutdownNow();
+            throw ioe;
+        }
+
+        out.flush();
+        return records;
+    }
+
+    /**
+     * walks one hive, queueing a record per key and END when done
+     */
+    private void walk(String label, File file, BlockingQueue<String> queue)
+    {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuffer sb = new StringBuffer();
+
+        try
+        {
+            if (!file.isFile())
+            {
+                warnings.add(label + ": " + file + " not found");
+                return;
+            }
+
+            Hive hive = null;
+            try
+            {
+                hive = new Hive(file);
+                if (hive.getRecoveryProblem() != null)
+                    warnings.add(label + ": " + hive.getRecoveryProblem());
+                HiveWalker walker = new HiveWalker(hive);
+                int event;
+                while ((event = walker.next()) != HiveWalker.DONE)
+                {
+                    if (event != HiveWalker.KEY)
+                        continue;
+
+                    sb.setLength(0);
+                    format(sb, iso, label, walker.getPath(), walker.getKey().getLastWritten());
+                    queue.put(sb.toString());
+                }
+            }
+            catch (RuntimeException re)
+            {
+                // corrupt hive, keep what was walked
+                warnings.add(label + ": " + re.toString());
+            }
+            finally
+            {
+                if (hive != null)
+                    hive.close();
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            // export gave up
+            return;
+        }
+        finally
+        {
+            try
+            {
+                queue.put(END);
+            }
+            catch (InterruptedException ie)
+            {
+                // export gave up, nobody is waiting for the marker
+            }
+        }
+    }
+
+    /**
+     * appends the record of one key
+     */
+    private void format(StringBuffer sb, SimpleDateFormat iso, String label, String path, long filetime)
+    {
+        long since1970 = filetime - FILETIME_UNIX_EPOCH;
+        long seconds = (since1970 > 0) ? since1970 / FILETIME_PER_SECOND : 0;
+
+        if (format == BODYFILE)
+        {
+            // MD5|name|inode|mode_as_string|UID|GID|size|atime|mtime|ctime|crtime
+            sb.append("0|");
+            appendEscaped(sb, label + path, '|', "%7C");
+            sb.append("|0|0|0|0|0|0|").append(seconds).append("|0|0");
+        }
+        else
+        {
+            sb.append(iso.format(new Date(seconds * 1000)));
+            String fraction = Long.toString((since1970 > 0) ? since1970 % FILETIME_PER_SECOND : 0);
+            sb.append('.').append("0000000".substring(fraction.length())).append(fraction).append("Z,");
+            appendQuoted(sb, label);
+            sb.append(',');
+            appendQuoted(sb, path);
+        }
+    }
+
+    private static void appendEscaped(StringBuffer sb, String s, char c, String replacement)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (s.charAt(i) == c)
+                sb.append(replacement);
+            else
+                sb.append(s.charAt(i));
+        }
+    }
+
+    /**
+     * CSV field, quoted when it holds a comma, quote or line break
+     */
+    private static void appendQuoted(StringBuffer sb, String s)
+    {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++)
+        {
+            char c = s.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\r' || c == '\n');
+        }
+
+        if (!quote)
+        {
+            sb.append(s);
+            return;
+        }
+
+        sb.append('"');
+        appendEscaped(sb, s, '"', "\"\"");
+        sb.append('"');
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3)
+        {
+            System.out.println("usage: KeyTimeline body|csv outFile systemRoot|hiveFile ...");
+            return;
+        }
+
+        KeyTimeline timeline = new KeyTimeline(args[0].equalsIgnoreCase("csv") ? CSV : BODYFILE);
+        for (int i = 2; i < args.length; i++)
+        {
+            File f = new File(args[i]);
+            if (f.isDirectory())
+                timeline.addWindowsHives(args[i]);
+            else
+                timeline.addHive(f.getName(), f);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+        try
+        {
+            long records = timeline.export(out, Runtime.getRuntime().availableProcessors());
+            System.out.println(records + " keys written to " + args[1]);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        String[] warnings = timeline.getWarnings();
+        for (int i = 0; i < warnings.length; i++)
+            System.out.println(warnings[i]);
+    }
+}
@@ -30,6 +30,7 @@ package cmu.forensics.registry;
  * All offsets are relative to the beginning of the li structure
  * 
  * LI structures point to an array of nk structure offsets
+ * Fields are decoded from the hive on demand, see NK_Structure
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -37,18 +38,40 @@ package cmu.forensics.registry;
 
 public class LI_Structure
 {
-	private int 	id;			//0x0000
-	private int 	numKeys;		//0x0002
-	private long[] 	offsetNKArray;		//0x0004 
-	
-	public LI_Structure(int[] hiveBuf, int offsetInHive)
+	public static final int LI_ID = 0x696c;		// "li"
+
+	private Hive	hive;
+	private int	offset;			// offset of the structure (start of the "li" id) in the hive
+
+    /**
+     *  LI cursor constructor, the cursor must be positioned with setOffset before use
+     *
+     *  @param hive the hive the cursor reads from
+     */
+	public LI_Structure(Hive hive)
 	{
-		id 		= RegistryParser.getWord(hiveBuf, offsetInHive + 0x0000);
-		numKeys		= RegistryParser.getWord(hiveBuf, offsetInHive + 0x0002);
-		
-		offsetNKArray = new long[1024];
-		for(int i = 0; i < 1024; i++)
-			offsetNKArray[i] = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x004);
+		this.hive = hive;
+	}
+
+    /**
+     *  LI Struct constructor
+     *
+     *  @param hive the hive to populate the struct with
+     *  @param offsetInHive offset into the hive for the LI_structure
+     */
+	public LI_Structure(Hive hive, int offsetInHive)
+	{
+		this.hive = hive;
+		this.offset = offsetInHive;
+	}
+
+    /**
+     * repositions this cursor on another LI structure in the same hive
+     * @param offsetInHive offset into the hive for the LI_structure
+     */
+	public void setOffset(int offsetInHive)
+	{
+		offset = offsetInHive;
 	}
 
     /**
@@ -60,12 +83,12 @@ public class LI_Structure
 		StringBuffer sb = new StringBuffer();
 		String newL = System.getProperty("line.separator");
 		
-		sb.append("id\t 0x" + Integer.toHexString(id) + newL);
-		sb.append("no_keys\t\t 0x" + Integer.toHexString(numKeys) + newL);
+		sb.append("id\t 0x" + Integer.toHexString(getId()) + newL);
+		sb.append("no_keys\t\t 0x" + Integer.toHexString(getNo_keys()) + newL);
 		
 		sb.append("ofs_nk_array\t ");
-		for(int i = 0; i < offsetNKArray.length && i < 10; i++)
-			sb.append(Long.toHexString(offsetNKArray[i]) + " ");
+		for(int i = 0; i < getNo_keys() && i < 10; i++)
+			sb.append(Long.toHexString(getOfs_nk(i)) + " ");
 		
 		return sb.toString();
 	}
@@ -76,7 +99,7 @@ public class LI_Structure
      */
 	public int getId()
 	{
-		return id;
+		return hive.getWord(offset + 0x0000);
 	}
    
     /**
@@ -85,15 +108,28 @@ public class LI_Structure
      */
 	public int getNo_keys()
 	{
-		return numKeys;
+		return hive.getWord(offset + 0x0002);
+	}
+
+    /**
+     * reads a single entry of the nk offset array
+     * @param index index into the array
+     * @return the hbin relative offset of the index'th nk
+     */
+	public long getOfs_nk(int index)
+	{
+		return hive.getDWord(offset + 0x0004 + (index * 0x4));
 	}
 
     /**
      * inspector for offsetNKArray
-     * @return offsetNKArray
+     * @return a copy of the nk offset array
      */
 	public long[] getOfs_nk_array()
 	{
+		long[] offsetNKArray = new long[getNo_keys()];
+		for(int i = 0; i < offsetNKArray.length; i++)
+			offsetNKArray[i] = getOfs_nk(i);
 		return offsetNKArray;
 	}
 }
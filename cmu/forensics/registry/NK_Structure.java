@@ -27,6 +27,11 @@ package cmu.forensics.registry;
  * NK_Structure
  * Represents an NK Registry Hive Structure in a registry hive
  * All offsets are relative to the beginning of the NK structure
+ *
+ * An NK_Structure is a flyweight cursor: it only remembers the hive and the
+ * offset it points at, and every field is decoded from the hive when it is
+ * asked for.  A single instance can be moved around with setOffset() so
+ * walking a hive does not allocate a new structure per key.
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -34,48 +39,50 @@ package cmu.forensics.registry;
 
 public class NK_Structure
 {
-    private int id;                 //0x0000
-    private int type;               //0x0002
-    private long ofs_parent;        //0x0010
-    private long no_subkeys;        //0x0014
-    private long ofs_lf;            //0x001C
-    private long no_values;         //0x0024
-    private long ofs_vallist;       //0x0028
-    private long ofs_sk;            //0x002C
-    private long ofs_classnam;      //0x0030
-    private int len_name;           //0x0048
-    private int len_classnam;       //0x004A
-    private int[] keyname;          //0x004C 
-
-    private byte[]  keynameStr;
+    public static final int NK_ID = 0x6b6e;         // "nk"
+    public static final int KEY_COMP_NAME = 0x0020; // name stored as 8 bit chars instead of UTF-16LE
+
+    private Hive hive;
+    private int offset;             // offset of the structure (start of the "nk" id) in the hive
+
+    /**
+     *  NK cursor constructor, the cursor must be positioned with setOffset before use
+     *
+     *  @param hive the hive the cursor reads from
+     */
+    public NK_Structure(Hive hive)
+    {
+        this.hive = hive;
+    }
 
     /**
      *  NK Struct constructor
      *
-     *  @param hiveBuf the hive to populate the struct with
+     *  @param hive the hive to populate the struct with
      *  @param offsetInHive offset into the hive for the NK_structure
      */
-    public NK_Structure(int[] hiveBuf, int offsetInHive)
-    {
-        id              = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0000);
-        type            = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0002);
-        ofs_parent      = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0010);
-        no_subkeys      = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0014);
-        ofs_lf          = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x001C);
-        no_values       = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0024);
-        ofs_vallist     = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0028);
-        ofs_sk          = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x002C);
-        ofs_classnam    = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0030);
-        len_name        = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0048);
-        len_classnam    = RegistryParser.getWord(hiveBuf, offsetInHive + 0x004A);   
-
-        keyname = new int[len_name];
-        keynameStr = new byte[len_name];
-        for(int i = 0; i < len_name; i++)
-        {
-            keyname[i] = hiveBuf[i + offsetInHive + 0x004C];
-            keynameStr[i] += Character.toLowerCase(hiveBuf[i + offsetInHive + 0x004C]);
-        }
+    public NK_Structure(Hive hive, int offsetInHive)
+    {
+        this.hive = hive;
+        this.offset = offsetInHive;
+    }
+
+    /**
+     * repositions this cursor on another NK structure in the same hive
+     * @param offsetInHive offset into the hive for the NK_structure
+     */
+    public void setOffset(int offsetInHive)
+    {
+        offset = offsetInHive;
+    }
+
+    /**
+     * inspector function for the offset this cursor points at
+     * @return the offset of the NK structure in the hive
+     */
+    public int getOffset()
+    {
+        return offset;
     }
 
     /**
@@ -86,23 +93,24 @@ public class NK_Structure
     {
         StringBuffer sb = new StringBuffer();
         String newL = System.getProperty("line.separator");
-        sb.append("id\t 0x" + Integer.toHexString(id) + newL);
-        sb.append("type\t\t 0x" + Integer.toHexString(type) + newL);
-        sb.append("ofs_parent\t 0x" + Long.toHexString(ofs_parent) + newL);
-        sb.append("no_subkeys\t 0x" + Long.toHexString(no_subkeys) + newL);
-        sb.append("ofs_lf\t\t 0x" + Long.toHexString(ofs_lf) + newL);
-        sb.append("no_values\t 0x" + Long.toHexString(no_values) + newL);
-        sb.append("ofs_vallist\t 0x" + Long.toHexString(ofs_vallist) + newL);
-        sb.append("ofs_sk\t\t 0x" + Long.toHexString(ofs_sk) + newL);
-        sb.append("ofs_classnam\t 0x" + Long.toHexString(ofs_classnam) + newL);
-        sb.append("len_name\t 0x" + Integer.toHexString(len_name) + newL);
-        sb.append("len_classnam\t 0x" + Integer.toHexString(len_classnam) + newL);
+        sb.append("id\t 0x" + Integer.toHexString(getId()) + newL);
+        sb.append("type\t\t 0x" + Integer.toHexString(getType()) + newL);
+        sb.append("lastwritten\t 0x" + Long.toHexString(getLastWritten()) + newL);
+        sb.append("ofs_parent\t 0x" + Long.toHexString(getOfs_parent()) + newL);
+        sb.append("no_subkeys\t 0x" + Long.toHexString(getNo_subkeys()) + newL);
+        sb.append("ofs_lf\t\t 0x" + Long.toHexString(getOfs_lf()) + newL);
+        sb.append("no_values\t 0x" + Long.toHexString(getNo_values()) + newL);
+        sb.append("ofs_vallist\t 0x" + Long.toHexString(getOfs_vallist()) + newL);
+        sb.append("ofs_sk\t\t 0x" + Long.toHexString(getOfs_sk()) + newL);
+        sb.append("ofs_classnam\t 0x" + Long.toHexString(getOfs_classnam()) + newL);
+        sb.append("len_name\t 0x" + Integer.toHexString(getLen_name()) + newL);
+        sb.append("len_classnam\t 0x" + Integer.toHexString(getLen_classnam()) + newL);
 
         sb.append("keyname\t ");
-        for(int i = 0; i < keyname.length && i < 10; i++)
-            sb.append(Integer.toHexString(keyname[i]) + " ");
+        for(int i = 0; i < getLen_name() && i < 10; i++)
+            sb.append(Integer.toHexString(hive.getByte(offset + 0x004C + i)) + " ");
 
-        sb.append(newL + "String Keyname: " + keynameStr);
+        sb.append(newL + "String Keyname: " + getKeynameStr());
 
         return sb.toString();
     }
@@ -113,15 +121,18 @@ public class NK_Structure
      */
     public int getId()
     {
-        return id;
+        return hive.getWord(offset + 0x0000);
     }
 
     /**
      * inspector function for keyname
-     * @return the keyname datamember
+     * @return a copy of the raw keyname bytes
      */
     public int[] getKeyname()
     {
+        int[] keyname = new int[getLen_name()];
+        for(int i = 0; i < keyname.length; i++)
+            keyname[i] = hive.getByte(offset + 0x004C + i);
         return keyname;
     }
 
@@ -131,7 +142,7 @@ public class NK_Structure
      */
     public int getLen_classnam()
     {
-        return len_classnam;
+        return hive.getWord(offset + 0x004A);
     }
 
     /**
@@ -140,7 +151,16 @@ public class NK_Structure
      */
     public int getLen_name()
     {
-        return len_name;
+        return hive.getWord(offset + 0x0048);
+    }
+
+    /**
+     * inspector function for the last write time (0x0004)
+     * @return the FILETIME (100ns intervals since 1601-01-01 UTC) the key was last written
+     */
+    public long getLastWritten()
+    {
+        return ((long)hive.getDWord(offset + 0x0008) << 32) | (hive.getDWord(offset + 0x0004) & 0xffffffffL);
     }
 
     /**
@@ -149,7 +169,7 @@ public class NK_Structure
      */
     public long getNo_subkeys()
     {
-        return no_subkeys;
+        return hive.getDWord(offset + 0x0014);
     }
 
     /**
@@ -158,7 +178,7 @@ public class NK_Structure
      */
     public long getNo_values()
     {
-        return no_values;
+        return hive.getDWord(offset + 0x0024);
     }
 
     /**
@@ -167,7 +187,7 @@ public class NK_Structure
      */
     public long getOfs_classnam()
     {
-        return ofs_classnam;
+        return hive.getDWord(offset + 0x0030);
     }
 
     /**
@@ -176,7 +196,7 @@ public class NK_Structure
      */
     public long getOfs_lf()
     {
-        return ofs_lf;
+        return hive.getDWord(offset + 0x001C);
     }
 
     /**
@@ -185,7 +205,7 @@ public class NK_Structure
      */
     public long getOfs_parent()
     {
-        return ofs_parent;
+        return hive.getDWord(offset + 0x0010);
     }
 
     /**
@@ -194,7 +214,7 @@ public class NK_Structure
      */
     public long getOfs_sk()
     {
-        return ofs_sk;
+        return hive.getDWord(offset + 0x002C);
     }
 
     /**
@@ -203,7 +223,7 @@ public class NK_Structure
      */
     public long getOfs_vallist()
     {
-        return ofs_vallist;
+        return hive.getDWord(offset + 0x0028);
     }
 
     /**
@@ -212,15 +232,113 @@ public class NK_Structure
      */
     public int getType()
     {
-        return type;
+        return hive.getWord(offset + 0x0002);
+    }
+
+    /**
+     * is the key name stored as 8 bit characters rather than UTF-16LE
+     * @return true if the name is compressed
+     */
+    public boolean isCompressedName()
+    {
+        return (getType() & KEY_COMP_NAME) != 0;
+    }
+
+    /**
+     * number of characters in the key name
+     * @return the name length in characters
+     */
+    public int getNameLength()
+    {
+        return isCompressedName() ? getLen_name() : getLen_name() / 2;
+    }
+
+    /**
+     * decodes a single character of the key name straight from the hive
+     * @param index index of the character
+     * @return the character at index
+     */
+    public char getNameChar(int index)
+    {
+        if (isCompressedName())
+            return (char)hive.getByte(offset + 0x004C + index);
+
+        return (char)hive.getWord(offset + 0x004C + (index * 2));
+    }
+
+    /**
+     * case insensitive comparison of the key name against name, done on the
+     * hive bytes without building a String
+     * @param name name to compare against
+     * @return true if the key name equals name ignoring case
+     */
+    public boolean nameEquals(String name)
+    {
+        return getNameLength() == name.length() && nameStartsWith(name);
+    }
+
+    /**
+     * case insensitive prefix test of the key name, done on the hive bytes
+     * without building a String
+     * @param prefix prefix to look for
+     * @return true if the key name starts with prefix ignoring case
+     */
+    public boolean nameStartsWith(String prefix)
+    {
+        int len = prefix.length();
+        if (len > getNameLength())
+            return false;
+
+        for (int i = 0; i < len; i++)
+        {
+            if (Character.toLowerCase(getNameChar(i)) != Character.toLowerCase(prefix.charAt(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * case insensitive ordering of the key name against name, using the
+     * upper case comparison Windows uses to keep subkey lists sorted
+     * @param name name to compare against
+     * @return negative, zero or positive as the key name sorts before, equal to or after name
+     */
+    public int compareName(String name)
+    {
+        int keyLen = getNameLength();
+        int len = Math.min(keyLen, name.length());
+
+        for (int i = 0; i < len; i++)
+        {
+            char k = Character.toUpperCase(getNameChar(i));
+            char n = Character.toUpperCase(name.charAt(i));
+            if (k != n)
+                return k - n;
+        }
+
+        return keyLen - name.length();
+    }
+
+    /**
+     * decodes the key name in its original case
+     * @return the key name
+     */
+    public String getName()
+    {
+        int len = getNameLength();
+        char[] name = new char[len];
+        for (int i = 0; i < len; i++)
+            name[i] = getNameChar(i);
+        return new String(name);
     }
 
     /**
      * inspector function for getKeynameStr
-     * @return the getKeynameStr datamember
+     * @return the lower cased key name
      */
     public String getKeynameStr()
     {
-        return new String(keynameStr);
+        return getName().toLowerCase();
     }
 }
@@ -0,0 +1,130 @@
+/*
+   PasswordClearResult.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * PasswordClearResult
+ * What one PasswordClearer run did to an image: the accounts whose passwords
+ * were blanked, the hashes exported before blanking them (one pwdump or
+ * mscash line per account) and any warnings raised along the way.
+ * Instances are immutable and may be handed between threads.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public final class PasswordClearResult
+{
+    private final String[] accounts;
+    private final String[] records;
+    private final String[] warnings;
+
+    /**
+     *  PasswordClearResult constructor
+     *
+     *  @param accounts accounts whose passwords were blanked
+     *  @param records exported hash lines, one per account
+     *  @param warnings problems that did not stop the run
+     */
+    PasswordClearResult(List<String> accounts, List<String> records, List<String> warnings)
+    {
+        this.accounts = accounts.toArray(new String[accounts.size()]);
+        this.records = records.toArray(new String[records.size()]);
+        this.warnings = warnings.toArray(new String[warnings.size()]);
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        return accounts.length + " accounts, " + records.length + " records, " + warnings.length + " warnings";
+    }
+
+    /**
+     * inspector for accounts
+     * @return a copy of the names of the accounts whose passwords were blanked
+     */
+    public String[] getAccounts()
+    {
+        return accounts.clone();
+    }
+
+    /**
+     * inspector for records
+     * @return a copy of the exported hash lines
+     */
+    public String[] getRecords()
+    {
+        return records.clone();
+    }
+
+    /**
+     * inspector for warnings
+     * @return a copy of the warnings
+     */
+    public String[] getWarnings()
+    {
+        return warnings.clone();
+    }
+
+    /**
+     * were any passwords blanked
+     * @return true if at least one account was touched
+     */
+    public boolean hasAccounts()
+    {
+        return accounts.length > 0;
+    }
+
+    /**
+     * writes the exported hash lines to dumpFile, replacing its contents
+     * @param dumpFile the .SAMDUMP or .MSCASHDUMP file
+     * @throws IOException if the file can not be written
+     */
+    public void writeRecords(File dumpFile) throws IOException
+    {
+        StringBuffer sb = new StringBuffer();
+        String newL = System.getProperty("line.separator");
+        for (int i = 0; i < records.length; i++)
+            sb.append(records[i] + newL);
+
+        RandomAccessFile raf = new RandomAccessFile(dumpFile, "rw");
+        try
+        {
+            raf.writeBytes(sb.toString());
+            raf.setLength(raf.getFilePointer());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
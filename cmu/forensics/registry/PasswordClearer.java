@@ -0,0 +1,409 @@
+/*
+   PasswordClearer.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * PasswordClearer
+ * Blanks the local (SAM) and cached domain (SECURITY) passwords of one image
+ * and exports the hashes it removed.
+ *
+ * Everything a run produces is returned in a PasswordClearResult, nothing is
+ * kept in static fields or reported to the console, so images can be
+ * processed on separate threads, one PasswordClearer per image.  Runs against
+ * the same instance are serialized since they patch the same hives.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class PasswordClearer
+{
+    private static final int V_HEADER_SIZE = 0xCC;      // fixed part of a V record, the offsets in it are relative to its end
+    private static final RegistryQuery CACHE_KEY = new RegistryQuery("\\Cache", RegistryQuery.KEY);
+    private static final int DCC2_ITERATIONS = 10240;   // default MSCash2 iteration count
+
+    private final HiveSession session;
+    private final boolean ownsSession;  // opened by this instance, closed by close()
+
+    /**
+     *  PasswordClearer constructor, opens the hives of one image
+     *
+     *  @param sysLoc location of the SYSTEM file
+     *  @param samLoc location of the SAM file, may be null if only domain passwords are cleared
+     *  @param secLoc location of the SECURITY file, may be null if only local passwords are cleared
+     */
+    public PasswordClearer(String sysLoc, String samLoc, String secLoc)
+    {
+        this.session = new HiveSession(sysLoc, samLoc, secLoc);
+        this.ownsSession = true;
+    }
+
+    /**
+     *  PasswordClearer constructor, works on hives already opened by the caller
+     *
+     *  @param session hives of the image, left open by close()
+     */
+    public PasswordClearer(HiveSession session)
+    {
+        this.session = session;
+        this.ownsSession = false;
+    }
+
+    /**
+     * Clears the passwords for every account in the SAM hive and exports
+     * their hashes in pwdump format
+     *
+     * @param journal undo journal for the SAM patch, null for none
+     * @return the accounts blanked, their pwdump lines and any warnings
+     */
+    public synchronized PasswordClearResult clearLocalPasswords(File journal)
+    {
+        ArrayList<String> accounts = new ArrayList<String>();
+        ArrayList<String> records = new ArrayList<String>();
+        ArrayList<String> warnings = new ArrayList<String>();
+
+        Hive hive = session.getSamHive();
+        byte[] hBootKey = session.getHashedBootKey();
+
+        if (hive == null || hBootKey == null)
+        {
+            warnings.add("Cannot derive the hashed boot key, local passwords will not be cleared");
+            return new PasswordClearResult(accounts, records, warnings);
+        }
+
+        HbinTable table = preflight(hive, "SAM", warnings);
+        if (table == null)
+            return new PasswordClearResult(accounts, records, warnings);
+
+        SamAccountIterator iter = new SamAccountIterator(hive);     //one pass over Users\Names
+
+        if (!iter.hasNext())    //did the lookup fail
+        {
+            warnings.add("Cannot find usernames in registry");
+            return new PasswordClearResult(accounts, records, warnings);
+        }
+
+        HivePatchSet patch = new HivePatchSet(hive, journal);
+        VK_Structure finalVK = new VK_Structure(hive);
+
+        while (iter.hasNext())
+        {
+            SamAccount account = iter.next();
+            if (account.getRid() == -1)
+            {
+                warnings.add("Cannot find the RID of " + account.getName() + ", skipped");
+                continue;
+            }
+            if (account.getVOffset() == 0)
+            {
+                warnings.add("Cannot find V structure for " + account.getName());
+                continue;
+            }
+
+            try
+            {
+                finalVK.setOffset(account.getVOffset());
+                int lenData = (int)finalVK.getLen_data();
+                if (lenData < V_HEADER_SIZE || !table.checkCell((int)finalVK.getOfs_data(), lenData))
+                {
+                    warnings.add("V structure of " + account.getName() + " is truncated or outside of its cell, skipped");
+                    continue;
+                }
+                int vStruct = (int)finalVK.getOfs_data() + 0x1004;
+
+                SAMV_Structure samv = new SAMV_Structure(hive, vStruct, lenData);
+                if (!samv.isInBounds())
+                {
+                    warnings.add("V structure of " + account.getName() + " points outside of itself, skipped");
+                    continue;
+                }
+                samv.decrypt(hBootKey, account.getRid());
+
+                String line = samv.getPWDUMPline();
+                patch.putByte(vStruct + 0xa0, 0x00);    //zero lm hash length
+                patch.putByte(vStruct + 0xac, 0x00);    //zero nt hash length
+
+                records.add(line);
+                accounts.add(account.getName().toLowerCase());
+            }
+            catch (RuntimeException re)
+            {
+                warnings.add("Cannot clear the password of " + account.getName() + ": " + re);
+            }
+        }
+
+        //zero out the LM and NT hash lengths of every account in one write
+        try
+        {
+            patch.commit();
+        }
+        catch (IOException ioe)
+        {
+            warnings.add("I/O error while writing 0's to SAM File " + ioe.getMessage());
+            accounts.clear();
+            records.clear();
+        }
+
+        return new PasswordClearResult(accounts, records, warnings);
+    }
+
+    /**
+     * Clears the passwords for every cached network login in the SECURITY
+     * hive and exports their hashes in mscash (CacheDump) format.  Vista
+     * and later records hold DCC2 hashes, whose blank password hashes are
+     * computed on a pool since each costs thousands of PBKDF2 iterations.
+     *
+     * @param journal undo journal for the SECURITY patch, null for none
+     * @return the accounts blanked (user@domain), their mscash lines and any warnings
+     */
+    public synchronized PasswordClearResult clearDomainPasswords(File journal)
+    {
+        ArrayList<String> accounts = new ArrayList<String>();
+        ArrayList<String> records = new ArrayList<String>();
+        ArrayList<String> warnings = new ArrayList<String>();
+
+        byte[] nlkmKey = session.getNLKM();
+
+        // no nlkmKey means we failed to decrypt LSA Secrets properly, which almost certainly means unsupported guest
+        if (nlkmKey == null)
+        {
+            warnings.add("Domain Cached Credentials will not be cleared " +
+                    "(only supported for Windows NT4 (SP4 with syskey) and later)");
+            return new PasswordClearResult(accounts, records, warnings);
+        }
+
+        // should this be a user checked option?
+        boolean enableUsers = true;
+
+        Hive secHive = session.getSecurityHive();
+        HbinTable table = preflight(secHive, "SECURITY", warnings);
+        if (table == null)
+            return new PasswordClearResult(accounts, records, warnings);
+
+        // a 32 byte (AES) LSA key means Vista+ records with DCC2 hashes
+        byte[] lsaKey = session.getLSAKey();
+        int iterations = (lsaKey != null && lsaKey.length == 0x20) ? getIterations(secHive) : 0;
+
+        VK_Structure vk = new VK_Structure(secHive);
+        HivePatchSet patch = new HivePatchSet(secHive, journal);
+        ArrayList<DCC_Structure> entries = new ArrayList<DCC_Structure>();
+        ArrayList<Integer> entryOffsets = new ArrayList<Integer>();
+        int vkOfs;
+
+        // NL$1, NL$2 ... are looked up under the Cache key, which is resolved once
+        int cacheOfs = CACHE_KEY.find(secHive);
+        NK_Structure cache = new NK_Structure(secHive, cacheOfs);
+
+        for (int i = 1; cacheOfs != 0 && cache.getNo_values() > 0 && (vkOfs = RegistryParser.findValue(secHive, cache, vk, "NL$" + i)) > 0; i++)
+        {
+            vk.setOffset(vkOfs);
+
+            // offset to the cached credential data (ccdata)
+            int ccdata = (int)vk.getOfs_data() + 0x1004;
+
+            if (ccdata == 0x1004 || !table.checkCell((int)vk.getOfs_data(), (int)vk.getLen_data()) || secHive.getWord(ccdata) == 0)
+                continue;
+
+            DCC_Structure dcc;
+
+            // try to create and populate a new DCC structure
+            try
+            {
+                dcc = new DCC_Structure(secHive, ccdata, (int)vk.getLen_data(), enableUsers, iterations);
+            }
+            catch (Exception e)
+            {
+                // unable to process successfully.
+                continue;
+            }
+
+            try
+            {
+                // decrypt dce portion using nlkmKey
+                dcc.decrypt(nlkmKey);
+            }
+            catch (Exception e)
+            {
+                warnings.add("NL$" + i + ": " + e.toString());
+                continue;
+            }
+
+            // get username in user@example.com form
+            accounts.add(dcc.getFullUserName());
+
+            // get MSCASH formatted line of curent hash value for use with john or other crackers
+            records.add(dcc.getMSCASHline());
+
+            entries.add(dcc);
+            entryOffsets.add(ccdata);
+        }
+
+        // blank password hashes, DCC2 ones on a pool
+        byte[][] blank = blankHashes(entries, (iterations != 0) ? Runtime.getRuntime().availableProcessors() : 1);
+
+        for (int i = 0; i < entries.size(); i++)
+        {
+            DCC_Structure dcc = entries.get(i);
+
+            // blank password
+            dcc.setHash(blank[i]);
+
+            // change cipherKey if desired (not necessary, and probably better not to from a least change perspective)
+            // dcc.setRandomCipherKey();
+
+            // re-encrypt dce with new blank password, then write the entire DCC back as several parts of it may have changed
+            dcc.encrypt();
+            patch.put(entryOffsets.get(i), dcc.getDCC());
+        }
+
+        try
+        {
+            patch.commit();
+        }
+        catch (IOException ioe)
+        {
+            warnings.add("I/O error while writing to the SECURITY File " + ioe.getMessage());
+            accounts.clear();
+            records.clear();
+        }
+
+        return new PasswordClearResult(accounts, records, warnings);
+    }
+
+    /**
+     * the DCC2 iteration count of the cached logons, NL$IterationCount is
+     * either the count itself (above 10240, rounded down to a multiple of
+     * 1024) or the count in units of 1024
+     */
+    private static int getIterations(Hive secHive)
+    {
+        int count = RegistryParser.getDWordValue(secHive, "\\Cache\\NL$IterationCount", 0);
+
+        if (count <= 0)
+            return DCC2_ITERATIONS;
+
+        return (count > DCC2_ITERATIONS) ? count & 0xfffffc00 : count * 1024;
+    }
+
+    /**
+     * computes the blank password hash of every decrypted entry, on a pool
+     * if there is more than one
+     */
+    private static byte[][] blankHashes(List<DCC_Structure> entries, int threads)
+    {
+        byte[][] hashes = new byte[entries.size()][];
+
+        if (threads <= 1 || entries.size() <= 1)
+        {
+            for (int i = 0; i < entries.size(); i++)
+                hashes[i] = entries.get(i).passwordHash("");
+            return hashes;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, entries.size()));
+        try
+        {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(entries.size());
+            for (int i = 0; i < entries.size(); i++)
+            {
+                final DCC_Structure dcc = entries.get(i);
+                results.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call()
+                    {
+                        return dcc.passwordHash("");
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+                hashes[i] = results.get(i).get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+        catch (ExecutionException ee)
+        {
+            throw new IllegalStateException(ee.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Validates a hive before anything in it is patched, a hive that was
+     * already validated reuses its hbin table
+     *
+     * @param hive the hive about to be patched
+     * @param name name of the hive for the warnings
+     * @param warnings receives the problems found
+     * @return the hbin table for bounds checks, null if the hive must not be patched
+     */
+    static HbinTable preflight(Hive hive, String name, List<String> warnings)
+    {
+        if (hive.getRecoveryProblem() != null)
+            warnings.add(name + ": " + hive.getRecoveryProblem());
+
+        HbinTable table = hive.getHbinTable();
+        if (table != null)
+            return table;
+
+        HiveValidator validator = new HiveValidator(hive);
+        boolean ok = validator.validate(Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < validator.getWarnings().size(); i++)
+            warnings.add(name + ": " + validator.getWarnings().get(i));
+        if (ok)
+            return hive.getHbinTable();
+
+        List<String> problems = validator.getProblems();
+        warnings.add("The " + name + " hive is damaged and will not be patched (" + problems.size() + " problems)");
+        for (int i = 0; i < problems.size() && i < 10; i++)
+            warnings.add(name + ": " + problems.get(i));
+        return null;
+    }
+
+    /**
+     * closes the hives if this instance opened them
+     */
+    public void close()
+    {
+        if (ownsSession)
+            session.close();
+    }
+}
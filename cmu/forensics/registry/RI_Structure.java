@@ -29,6 +29,7 @@ package cmu.forensics.registry;
  * All offsets are relative to the beginning of the ri structure
  *
  * RI structures contain an offset to an array of LI structures.
+ * Fields are decoded from the hive on demand, see NK_Structure
  *
  * @author Tim Vidas
  * @author Brian Kaplan
@@ -37,24 +38,40 @@ package cmu.forensics.registry;
 
 public class RI_Structure
 {
-    private int     id;                 //0x0000
-    private int     numLIs;             //0x0002
-    private long[]  offsetLIArray;      //0x0004 
+    public static final int RI_ID = 0x6972;     // "ri"
+
+    private Hive    hive;
+    private int     offset;             // offset of the structure (start of the "ri" id) in the hive
+
+    /**
+     *  RI cursor constructor, the cursor must be positioned with setOffset before use
+     *
+     *  @param hive the hive the cursor reads from
+     */
+    public RI_Structure(Hive hive)
+    {
+        this.hive = hive;
+    }
 
     /**
      *  RI Struct constructor
      *
-     *  @param hiveBuf the hive to populate the struct with
+     *  @param hive the hive to populate the struct with
      *  @param offsetInHive offset into the hive for the RI_structure
      */
-    public RI_Structure(int[] hiveBuf, int offsetInHive)
+    public RI_Structure(Hive hive, int offsetInHive)
     {
-        id          = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0000);
-        numLIs      = RegistryParser.getWord(hiveBuf, offsetInHive + 0x0002);
+        this.hive = hive;
+        this.offset = offsetInHive;
+    }
 
-        offsetLIArray = new long[1024];
-        for(int i = 0; i < 1024; i++)
-            offsetLIArray[i] = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x004);
+    /**
+     * repositions this cursor on another RI structure in the same hive
+     * @param offsetInHive offset into the hive for the RI_structure
+     */
+    public void setOffset(int offsetInHive)
+    {
+        offset = offsetInHive;
     }
 
     /**
@@ -66,12 +83,12 @@ public class RI_Structure
         StringBuffer sb = new StringBuffer();
         String newL = System.getProperty("line.separator");
 
-        sb.append("id\t 0x" + Integer.toHexString(id) + newL);
-        sb.append("no_keys\t\t 0x" + Integer.toHexString(numLIs) + newL);
+        sb.append("id\t 0x" + Integer.toHexString(getId()) + newL);
+        sb.append("no_keys\t\t 0x" + Integer.toHexString(getNo_lis()) + newL);
 
         sb.append("ofs_li_array\t ");
-        for(int i = 0; i < offsetLIArray.length && i < 10; i++)
-            sb.append(Long.toHexString(offsetLIArray[i]) + " ");
+        for(int i = 0; i < getNo_lis() && i < 10; i++)
+            sb.append(Long.toHexString(getOfs_li(i)) + " ");
 
         return sb.toString();
     }
@@ -82,7 +99,7 @@ public class RI_Structure
      */
     public int getId()
     {
-        return id;
+        return hive.getWord(offset + 0x0000);
     }
 
     /**
@@ -91,15 +108,28 @@ public class RI_Structure
      */
     public int getNo_lis()
     {
-        return numLIs;
+        return hive.getWord(offset + 0x0002);
+    }
+
+    /**
+     * reads a single entry of the li offset array
+     * @param index index into the array
+     * @return the hbin relative offset of the index'th li/lf/lh list
+     */
+    public long getOfs_li(int index)
+    {
+        return hive.getDWord(offset + 0x0004 + (index * 0x4));
     }
 
     /**
      * inspector for offsetLIArray
-     * @return the offsetLIArray datamember
+     * @return a copy of the offsetLIArray
      */
     public long[] getOfs_li_array()
     {
+        long[] offsetLIArray = new long[getNo_lis()];
+        for(int i = 0; i < offsetLIArray.length; i++)
+            offsetLIArray[i] = getOfs_li(i);
         return offsetLIArray;
     }
 }
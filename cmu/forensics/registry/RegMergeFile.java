@@ -0,0 +1,320 @@
+/*
+   RegMergeFile.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * RegMergeFile
+ * A parsed .reg file (REGEDIT4 or Windows Registry Editor Version 5.00)
+ * that can be applied to a hive offline with a HiveEditor, in place of
+ * running regedit /s against a hive loaded into the live registry.
+ *
+ * Supported: [key] sections, "name"= and @= values of string, dword:,
+ * hex: and hex(n): types (continued over several lines with a trailing
+ * backslash), value deletion with =-, and ; comments.  Deleting whole keys
+ * ([-key]) is not supported.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class RegMergeFile
+{
+    private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Reads and parses a .reg file, UTF-16LE if it starts with a byte
+     * order mark, ANSI otherwise
+     * @param file the .reg file
+     * @return the parsed file
+     */
+    public static RegMergeFile read(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                bytes.write(buf, 0, n);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        byte[] raw = bytes.toByteArray();
+        if (raw.length >= 2 && (raw[0] & 0xFF) == 0xFF && (raw[1] & 0xFF) == 0xFE)
+            return parse(new String(raw, 2, raw.length - 2, "UTF-16LE"));
+
+        return parse(new String(raw, "ISO-8859-1"));
+    }
+
+    /**
+     * Parses the text of a .reg file
+     * @param text contents of the file
+     * @return the parsed file
+     */
+    public static RegMergeFile parse(String text) throws IOException
+    {
+        RegMergeFile reg = new RegMergeFile();
+        String[] lines = text.split("\r\n|\r|\n");
+        String key = null;
+        boolean header = false;
+
+        for (int i = 0; i < lines.length; i++)
+        {
+            int lineNo = i + 1;
+            String line = lines[i].trim();
+
+            // join continuation lines
+            while (line.endsWith("\\") && !line.startsWith("[") && i + 1 < lines.length)
+                line = line.substring(0, line.length() - 1) + lines[++i].trim();
+
+            if (line.length() == 0 || line.startsWith(";"))
+                continue;
+
+            if (!header)
+            {
+                if (!line.equals("REGEDIT4") && !line.startsWith("Windows Registry Editor Version"))
+                    throw new IOException("not a .reg file, line " + lineNo + ": " + line);
+                header = true;
+                continue;
+            }
+
+            if (line.startsWith("["))
+            {
+                if (!line.endsWith("]"))
+                    throw new IOException("bad key on line " + lineNo + ": " + line);
+                if (line.startsWith("[-"))
+                    throw new IOException("deleting keys is not supported, line " + lineNo + ": " + line);
+
+                key = line.substring(1, line.length() - 1);
+                reg.entries.add(new Entry(key, null, 0, null));
+                continue;
+            }
+
+            if (key == null)
+                throw new IOException("value outside of a key on line " + lineNo + ": " + line);
+
+            reg.entries.add(parseValue(key, line, lineNo));
+        }
+
+        return reg;
+    }
+
+    /**
+     * Creates every key and writes every value of the file.  Key paths must
+     * start with rootPrefix (e.g. HKEY_LOCAL_MACHINE\NEWSYSTEM), the part
+     * after it is the path inside the hive.
+     * @param editor editor over the target hive
+     * @param rootPrefix the key path the hive is mounted at in the file
+     * @return the number of values written or deleted
+     */
+    public int apply(HiveEditor editor, String rootPrefix) throws IOException
+    {
+        String prefix = rootPrefix.toLowerCase();
+        String lastKey = null;
+        int key = 0;
+        int values = 0;
+
+        for (int i = 0; i < entries.size(); i++)
+        {
+            Entry e = entries.get(i);
+
+            if (!e.key.equals(lastKey))
+            {
+                if (!e.key.toLowerCase().startsWith(prefix))
+                    throw new IOException("key is outside of " + rootPrefix + ": " + e.key);
+
+                key = editor.createKey(e.key.substring(prefix.length()));
+                lastKey = e.key;
+            }
+
+            if (e.name == null)
+                continue;
+
+            if (e.data == null)
+                editor.deleteValue(key, e.name);
+            else
+                editor.setValue(key, e.name, e.type, e.data);
+            values++;
+        }
+
+        return values;
+    }
+
+    /**
+     * number of keys and values in the file
+     * @return number of entries
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * parses a "name"=data or @=data line
+     */
+    private static Entry parseValue(String key, String line, int lineNo) throws IOException
+    {
+        String name;
+        int pos;
+
+        if (line.startsWith("@"))
+        {
+            name = "";
+            pos = 1;
+        }
+        else if (line.startsWith("\""))
+        {
+            StringBuffer sb = new StringBuffer();
+            pos = unquote(line, 0, sb);
+            if (pos < 0)
+                throw new IOException("unterminated value name on line " + lineNo + ": " + line);
+            name = sb.toString();
+        }
+        else
+            throw new IOException("bad value on line " + lineNo + ": " + line);
+
+        if (pos >= line.length() || line.charAt(pos) != '=')
+            throw new IOException("missing = on line " + lineNo + ": " + line);
+
+        String data = line.substring(pos + 1).trim();
+
+        if (data.equals("-"))
+            return new Entry(key, name, 0, null);
+
+        if (data.startsWith("\""))
+        {
+            StringBuffer sb = new StringBuffer();
+            if (unquote(data, 0, sb) < 0)
+                throw new IOException("unterminated string on line " + lineNo + ": " + line);
+            return new Entry(key, name, HiveEditor.REG_SZ, utf16z(sb.toString()));
+        }
+
+        try
+        {
+            if (data.toLowerCase().startsWith("dword:"))
+            {
+                int value = (int)Long.parseLong(data.substring(6).trim(), 16);
+                byte[] dword = { (byte)value, (byte)(value >>> 8), (byte)(value >>> 16), (byte)(value >>> 24) };
+                return new Entry(key, name, HiveEditor.REG_DWORD, dword);
+            }
+
+            if (data.toLowerCase().startsWith("hex"))
+            {
+                int type = HiveEditor.REG_BINARY;
+                int colon = data.indexOf(':');
+                if (colon < 0)
+                    throw new IOException("bad hex value on line " + lineNo + ": " + line);
+                if (data.charAt(3) == '(')
+                    type = Integer.parseInt(data.substring(4, data.indexOf(')')), 16);
+
+                return new Entry(key, name, type, hexBytes(data.substring(colon + 1)));
+            }
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new IOException("bad number on line " + lineNo + ": " + line);
+        }
+
+        throw new IOException("unsupported value type on line " + lineNo + ": " + line);
+    }
+
+    /**
+     * reads a quoted string starting at start, undoing \\ and \" escapes
+     * @return index just past the closing quote, -1 if there is none
+     */
+    private static int unquote(String s, int start, StringBuffer out)
+    {
+        for (int i = start + 1; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length())
+                out.append(s.charAt(++i));
+            else if (c == '"')
+                return i + 1;
+            else
+                out.append(c);
+        }
+        return -1;
+    }
+
+    /**
+     * comma separated hex bytes
+     */
+    private static byte[] hexBytes(String list)
+    {
+        String[] parts = list.split(",");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < parts.length; i++)
+        {
+            String b = parts[i].trim();
+            if (b.length() > 0)
+                out.write(Integer.parseInt(b, 16));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * a REG_SZ: UTF-16LE with the terminating NUL
+     */
+    private static byte[] utf16z(String s)
+    {
+        byte[] bytes = new byte[(s.length() + 1) * 2];
+        for (int i = 0; i < s.length(); i++)
+        {
+            bytes[i * 2] = (byte)s.charAt(i);
+            bytes[(i * 2) + 1] = (byte)(s.charAt(i) >>> 8);
+        }
+        return bytes;
+    }
+
+    /**
+     * a key (name == null) or a value to write (data != null) or delete
+     */
+    private static class Entry
+    {
+        final String key;
+        final String name;
+        final int type;
+        final byte[] data;
+
+        Entry(String key, String name, int type, byte[] data)
+        {
+            this.key = key;
+            this.name = name;
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
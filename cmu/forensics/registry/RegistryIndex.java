@@ -0,0 +1,835 @@
+/*
+   RegistryIndex.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RegistryIndex
+ * On-disk inverted index over the key names, value names and string data
+ * of a set of hives, so finding where a string appears in the registry of
+ * an image does not mean exporting and grepping every hive.
+ *
+ * Text is split into terms at every character that is not a letter or
+ * digit and lower cased.  String values are decoded as UTF-16LE, other
+ * values (binary, REG_NONE ...) contribute the printable ASCII and
+ * UTF-16LE runs found in their data.  Every term points at the nk of a key
+ * or at the nk and vk of a value, with the fields it was found in.
+ *
+ * Each hive gets its own segment file in the index directory, holding the
+ * sorted term dictionary followed by the postings.  update() only rebuilds
+ * the segments whose hive changed size or modification time since it was
+ * indexed, several hives at a time.  Queries map the segments once and
+ * binary search the dictionaries; the paths of the hits are built from the
+ * parent offsets of the hive when the hit is returned.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class RegistryIndex
+{
+    /* fields a term was found in */
+    public static final int KEY_NAME = 1;
+    public static final int VALUE_NAME = 2;
+    public static final int VALUE_DATA = 4;
+
+    private static final int INDEX_ID = 0x4f4c5649;     // "OLVI"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".idx";
+    private static final int MIN_TERM = 2;              // shorter tokens are not indexed
+    private static final int MAX_TERM = 64;             // longer tokens are cut
+    private static final int MIN_RUN = 4;               // shortest string pulled out of binary data
+    private static final int MAX_DATA = 0x10000;        // data bytes scanned per value
+    private static final int POSTING_SIZE = 9;          // nk, vk, fields
+
+    private File dir;
+    private List<String> labels = new ArrayList<String>();
+    private List<File> files = new ArrayList<File>();
+    private List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+    private List<Segment> segments;                     // loaded on the first search
+
+    /**
+     *  RegistryIndex constructor
+     *
+     *  @param dir directory holding the segment files
+     */
+    public RegistryIndex(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * adds a hive to be indexed by update()
+     * @param label name the hits of this hive are prefixed with, also names its segment
+     * @param file the hive file
+     */
+    public void addHive(String label, File file)
+    {
+        labels.add(label);
+        files.add(file);
+    }
+
+    /**
+     * adds the hives of a Windows installation, see HiveSession.findHives
+     * @param systemRoot the Windows directory, e.g. X:\WINDOWS
+     * @return the number of hives added
+     */
+    public int addWindowsHives(String systemRoot)
+    {
+        LinkedHashMap<String, File> hives = HiveSession.findHives(systemRoot);
+        Iterator<Map.Entry<String, File>> it = hives.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, File> hive = it.next();
+            addHive(hive.getKey(), hive.getValue());
+        }
+        return hives.size();
+    }
+
+    /**
+     * inspector for warnings
+     * @return the hives that could not be indexed or searched (completely)
+     */
+    public String[] getWarnings()
+    {
+        synchronized (warnings)
+        {
+            return warnings.toArray(new String[warnings.size()]);
+        }
+    }
+
+    /**
+     * (re)builds the segment of every added hive that is missing or out of date
+     * @param threads number of hives indexed at the same time
+     * @return the number of segments built
+     */
+    public int update(int threads) throws IOException
+    {
+        warnings.clear();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create index directory " + dir);
+
+        close();    // mapped segments can not be replaced on Windows
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        int built = 0;
+        for (int i = 0; i < files.size(); i++)
+        {
+            final String label = labels.get(i);
+            final File file = files.get(i);
+            final File segment = segmentFile(label);
+            if (isCurrent(segment, file))
+                continue;
+
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    build(label, file, segment);
+                }
+            });
+            built++;
+        }
+
+        pool.shutdown();
+        try
+        {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+                ;
+        }
+        catch (InterruptedException ie)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("indexing interrupted");
+        }
+
+        return built;
+    }
+
+    /**
+     * Finds the keys and values holding every term of the query, a value
+     * also counting the terms of the name of its key.  Words are split into
+     * terms like the indexed text, so "ven_8086" looks for both "ven" and
+     * "8086"; a word ending in * matches its last term as a prefix.
+     * @param query words to look for, case insensitive
+     * @param max maximum number of hits returned
+     * @return the hits, ordered by segment and hive offset
+     */
+    public List<IndexHit> search(String query, int max) throws IOException
+    {
+        List<IndexHit> hits = new ArrayList<IndexHit>();
+
+        List<String> terms = new ArrayList<String>();
+        List<Boolean> prefixes = new ArrayList<Boolean>();
+        String[] words = query.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++)
+        {
+            List<String> t = terms(words[i]);
+            for (int j = 0; j < t.size(); j++)
+            {
+                terms.add(t.get(j));
+                prefixes.add(Boolean.valueOf(j == t.size() - 1 && words[i].endsWith("*")));
+            }
+        }
+        if (terms.isEmpty()) { return hits; }
+
+        if (segments == null)
+            load();
+
+        for (int s = 0; s < segments.size() && hits.size() < max; s++)
+        {
+            Segment segment = segments.get(s);
+            HashMap<Long, Integer> matches = null;
+            for (int i = 0; i < terms.size() && (matches == null || !matches.isEmpty()); i++)
+            {
+                HashMap<Long, Integer> m = segment.match(terms.get(i), prefixes.get(i).booleanValue());
+                if (matches == null)
+                {
+                    matches = m;
+                    continue;
+                }
+
+                matches = intersect(matches, m);
+            }
+
+            Long[] records = matches.keySet().toArray(new Long[matches.size()]);
+            Arrays.sort(records);
+            for (int i = 0; i < records.length && hits.size() < max; i++)
+                hits.add(segment.hit(records[i].longValue(), matches.get(records[i]).intValue()));
+        }
+
+        return hits;
+    }
+
+    /**
+     * the records holding the terms of both a and b, where a value also
+     * holds the terms of its key, so "select current" finds Select\Current
+     */
+    private static HashMap<Long, Integer> intersect(HashMap<Long, Integer> a, HashMap<Long, Integer> b)
+    {
+        HashMap<Long, Integer> both = new HashMap<Long, Integer>();
+        join(a, b, both);
+        join(b, a, both);
+        return both;
+    }
+
+    /**
+     * adds the records of from found in other, directly or through their key
+     */
+    private static void join(HashMap<Long, Integer> from, HashMap<Long, Integer> other, HashMap<Long, Integer> both)
+    {
+        Iterator<Map.Entry<Long, Integer>> it = from.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Long, Integer> e = it.next();
+            long record = e.getKey().longValue();
+            Integer f = other.get(e.getKey());
+            if (f == null && (int)record != 0)
+                f = other.get(Long.valueOf(record & 0xffffffff00000000L));
+            if (f == null)
+                continue;
+
+            Integer known = both.get(e.getKey());
+            int fields = e.getValue().intValue() | f.intValue() | ((known != null) ? known.intValue() : 0);
+            both.put(e.getKey(), Integer.valueOf(fields));
+        }
+    }
+
+    /**
+     * Releases the segments and the hives opened to resolve paths.  The next
+     * search loads them again.
+     */
+    public void close()
+    {
+        if (segments == null)
+            return;
+
+        for (int i = 0; i < segments.size(); i++)
+            segments.get(i).close();
+        segments = null;
+    }
+
+    /**
+     * maps every segment of the index directory
+     */
+    private void load() throws IOException
+    {
+        segments = new ArrayList<Segment>();
+        File[] list = dir.listFiles();
+        if (list == null) { return; }
+
+        Arrays.sort(list);
+        for (int i = 0; i < list.length; i++)
+        {
+            if (!list[i].getName().endsWith(SUFFIX))
+                continue;
+
+            try
+            {
+                segments.add(new Segment(list[i]));
+            }
+            catch (IOException ioe)
+            {
+                warnings.add(list[i] + ": " + ioe);
+            }
+        }
+    }
+
+    /**
+     * segment file of a hive label
+     */
+    private File segmentFile(String label)
+    {
+        StringBuffer name = new StringBuffer();
+        for (int i = 0; i < label.length(); i++)
+        {
+            char c = label.charAt(i);
+            name.append((Character.isLetterOrDigit(c) || c == '.' || c == '-') ? c : '_');
+        }
+        return new File(dir, name.append(SUFFIX).toString());
+    }
+
+    /**
+     * was the segment built from the hive as it is now
+     */
+    private static boolean isCurrent(File segment, File hive)
+    {
+        if (!segment.isFile() || !hive.isFile())
+            return false;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+            try
+            {
+                if (in.readInt() != INDEX_ID || in.readInt() != VERSION)
+                    return false;
+
+                String path = readString(in);
+                readString(in);     // label
+                return path.equals(hive.getAbsolutePath()) && in.readLong() == hive.length() && in.readLong() == hive.lastModified();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            return false;   // damaged, rebuild it
+        }
+    }
+
+    /**
+     * indexes one hive into its segment file
+     */
+    private void build(String label, File file, File segment)
+    {
+        if (!file.isFile())
+        {
+            warnings.add(label + ": " + file + " not found");
+            return;
+        }
+
+        long length = file.length();
+        long modified = file.lastModified();
+        HashMap<String, Postings> index = new HashMap<String, Postings>();
+        Hive hive = null;
+
+        try
+        {
+            hive = new Hive(file);
+            if (hive.getRecoveryProblem() != null)
+                warnings.add(label + ": " + hive.getRecoveryProblem());
+            HashMap<String, Integer> record = new HashMap<String, Integer>();
+            StringBuffer text = new StringBuffer();
+            byte[] data = new byte[MAX_DATA];
+
+            try
+            {
+                HiveWalker walker = new HiveWalker(hive);
+                int event;
+                while ((event = walker.next()) != HiveWalker.DONE)
+                {
+                    record.clear();
+                    if (event == HiveWalker.KEY)
+                    {
+                        tokenize(walker.getKey().getName(), KEY_NAME, record);
+                        post(index, record, walker.getKey().getOffset(), 0);
+                    }
+                    else if (event == HiveWalker.VALUE)
+                    {
+                        HiveValue value = walker.getValue();
+                        tokenize(value.getName(), VALUE_NAME, record);
+                        text.setLength(0);
+                        valueText(value, data, text);
+                        tokenize(text, VALUE_DATA, record);
+                        post(index, record, walker.getKey().getOffset(), value.getOffset());
+                    }
+                }
+            }
+            catch (RuntimeException re)
+            {
+                // corrupt hive, keep what was indexed
+                warnings.add(label + ": " + re.toString());
+            }
+
+            write(segment, label, file, length, modified, index);
+        }
+        catch (IOException ioe)
+        {
+            warnings.add(label + ": " + ioe.toString());
+        }
+        catch (RuntimeException re)
+        {
+            warnings.add(label + ": " + re.toString());
+        }
+        finally
+        {
+            if (hive != null)
+                hive.close();
+        }
+    }
+
+    /**
+     * writes a segment: header, sorted dictionary of terms and posting
+     * counts, then the postings of every term in dictionary order
+     */
+    private static void write(File segment, String label, File hive, long length, long modified, HashMap<String, Postings> index) throws IOException
+    {
+        String[] terms = index.keySet().toArray(new String[index.size()]);
+        Arrays.sort(terms);
+
+        File tmp = new File(segment.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 0x10000));
+        try
+        {
+            out.writeInt(INDEX_ID);
+            out.writeInt(VERSION);
+            writeString(out, hive.getAbsolutePath());
+            writeString(out, label);
+            out.writeLong(length);
+            out.writeLong(modified);
+
+            out.writeInt(terms.length);
+            for (int i = 0; i < terms.length; i++)
+            {
+                writeString(out, terms[i]);
+                out.writeInt(index.get(terms[i]).size);
+            }
+
+            for (int i = 0; i < terms.length; i++)
+            {
+                Postings p = index.get(terms[i]);
+                for (int j = 0; j < p.size * 3; j += 3)
+                {
+                    out.writeInt(p.data[j]);
+                    out.writeInt(p.data[j + 1]);
+                    out.writeByte(p.data[j + 2]);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (segment.exists() && !segment.delete())
+            throw new IOException("could not replace " + segment);
+        if (!tmp.renameTo(segment))
+            throw new IOException("could not rename " + tmp);
+    }
+
+    /**
+     * adds the terms of one key or value to the index
+     */
+    private static void post(HashMap<String, Postings> index, HashMap<String, Integer> record, int nk, int vk)
+    {
+        Iterator<Map.Entry<String, Integer>> it = record.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Integer> e = it.next();
+            Postings p = index.get(e.getKey());
+            if (p == null)
+            {
+                p = new Postings();
+                index.put(e.getKey(), p);
+            }
+            p.add(nk, vk, e.getValue().intValue());
+        }
+    }
+
+    /**
+     * the text of a value: string types decoded as UTF-16LE, numbers
+     * skipped, anything else reduced to its printable runs
+     */
+    private static void valueText(HiveValue value, byte[] data, StringBuffer text)
+    {
+        int type = value.getType();
+        if (type == HiveValue.REG_DWORD || type == HiveValue.REG_DWORD_BIG_ENDIAN || type == HiveValue.REG_QWORD)
+            return;
+
+        int len = Math.min(value.getLength(), MAX_DATA);
+        value.read(0, data, 0, len);
+
+        if (type == HiveValue.REG_SZ || type == HiveValue.REG_EXPAND_SZ || type == HiveValue.REG_MULTI_SZ || type == HiveValue.REG_LINK)
+        {
+            for (int i = 0; i + 1 < len; i += 2)
+                text.append((char)((data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8)));
+            return;
+        }
+
+        // ASCII runs
+        int start = -1;
+        for (int i = 0; i <= len; i++)
+        {
+            if (i < len && data[i] >= 0x20 && data[i] < 0x7f)
+            {
+                if (start < 0)
+                    start = i;
+                continue;
+            }
+
+            if (start >= 0 && i - start >= MIN_RUN)
+            {
+                for (int j = start; j < i; j++)
+                    text.append((char)data[j]);
+                text.append(' ');
+            }
+            start = -1;
+        }
+
+        // UTF-16LE runs of ASCII characters, at both alignments
+        for (int align = 0; align < 2; align++)
+        {
+            start = -1;
+            for (int i = align; i <= len; i += 2)
+            {
+                if (i + 1 < len && data[i] >= 0x20 && data[i] < 0x7f && data[i + 1] == 0)
+                {
+                    if (start < 0)
+                        start = i;
+                    continue;
+                }
+
+                if (start >= 0 && i - start >= MIN_RUN * 2)
+                {
+                    for (int j = start; j < i; j += 2)
+                        text.append((char)data[j]);
+                    text.append(' ');
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * splits text into lower cased terms and records the field they were found in
+     */
+    private static void tokenize(CharSequence text, int field, HashMap<String, Integer> record)
+    {
+        int len = text.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++)
+        {
+            if (i < len && Character.isLetterOrDigit(text.charAt(i)))
+            {
+                if (start < 0)
+                    start = i;
+                continue;
+            }
+
+            if (start >= 0 && i - start >= MIN_TERM)
+            {
+                String term = text.subSequence(start, Math.min(i, start + MAX_TERM)).toString().toLowerCase();
+                Integer fields = record.get(term);
+                record.put(term, Integer.valueOf((fields == null) ? field : (fields.intValue() | field)));
+            }
+            start = -1;
+        }
+    }
+
+    /**
+     * the terms of a query word, in order
+     */
+    private static List<String> terms(String word)
+    {
+        HashMap<String, Integer> record = new LinkedHashMap<String, Integer>();
+        tokenize(word, 0, record);
+        return new ArrayList<String>(record.keySet());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3)
+        {
+            System.out.println("usage: RegistryIndex indexDir update systemRoot|hiveFile ...");
+            System.out.println("       RegistryIndex indexDir search words ...");
+            return;
+        }
+
+        RegistryIndex index = new RegistryIndex(new File(args[0]));
+        long start = System.currentTimeMillis();
+
+        if (args[1].equals("update"))
+        {
+            for (int i = 2; i < args.length; i++)
+            {
+                File f = new File(args[i]);
+                if (f.isDirectory())
+                    index.addWindowsHives(args[i]);
+                else
+                    index.addHive(f.getName(), f);
+            }
+
+            int built = index.update(Runtime.getRuntime().availableProcessors());
+            System.out.println(built + " hives indexed in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        else
+        {
+            StringBuffer query = new StringBuffer();
+            for (int i = 2; i < args.length; i++)
+                query.append(args[i]).append(' ');
+
+            List<IndexHit> hits = index.search(query.toString(), 1000);
+            for (int i = 0; i < hits.size(); i++)
+                System.out.println(hits.get(i));
+            System.out.println(hits.size() + " hits in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        String[] warnings = index.getWarnings();
+        for (int i = 0; i < warnings.length; i++)
+            System.out.println(warnings[i]);
+        index.close();
+    }
+
+    /**
+     * growable list of postings, three ints each: nk, vk, fields
+     */
+    private static class Postings
+    {
+        int[] data = new int[6];
+        int size;
+
+        void add(int nk, int vk, int fields)
+        {
+            if ((size + 1) * 3 > data.length)
+            {
+                int[] bigger = new int[data.length * 2];
+                System.arraycopy(data, 0, bigger, 0, size * 3);
+                data = bigger;
+            }
+
+            data[size * 3] = nk;
+            data[size * 3 + 1] = vk;
+            data[size * 3 + 2] = fields;
+            size++;
+        }
+    }
+
+    /**
+     * a mapped segment file
+     */
+    private class Segment
+    {
+        String label;
+        File hiveFile;
+        long length;
+        long modified;
+        String[] terms;
+        int[] start;                // index of the first posting of each term
+        int[] count;
+        ByteBuffer buffer;          // the whole mapped segment
+        int postings;               // offset of the postings in buffer
+        Hive hive;                  // opened on the first hit, to resolve paths
+        boolean stale;
+
+        Segment(File file) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            try
+            {
+                if (buffer.getInt() != INDEX_ID || buffer.getInt() != VERSION)
+                    throw new IOException("not an index segment");
+
+                hiveFile = new File(getString());
+                label = getString();
+                length = buffer.getLong();
+                modified = buffer.getLong();
+
+                int n = buffer.getInt();
+                terms = new String[n];
+                start = new int[n];
+                count = new int[n];
+                int next = 0;
+                for (int i = 0; i < n; i++)
+                {
+                    terms[i] = getString();
+                    count[i] = buffer.getInt();
+                    start[i] = next;
+                    next += count[i];
+                }
+                postings = buffer.position();
+
+                if (postings + ((long)next * POSTING_SIZE) > buffer.limit())
+                    throw new IOException("truncated index segment");
+            }
+            catch (RuntimeException re)
+            {
+                close();
+                throw new IOException("damaged index segment: " + re);
+            }
+            catch (IOException ioe)
+            {
+                close();
+                throw ioe;
+            }
+        }
+
+        private String getString() throws IOException
+        {
+            byte[] b = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(b);
+            return new String(b, "UTF-8");
+        }
+
+        /**
+         * records holding term (or a term starting with it), with the fields it was found in
+         */
+        HashMap<Long, Integer> match(String term, boolean prefix)
+        {
+            HashMap<Long, Integer> m = new HashMap<Long, Integer>();
+            int i = Arrays.binarySearch(terms, term);
+            if (i < 0)
+            {
+                if (!prefix)
+                    return m;
+                i = -i - 1;
+            }
+
+            for (; i < terms.length && (terms[i].equals(term) || (prefix && terms[i].startsWith(term))); i++)
+            {
+                for (int j = 0; j < count[i]; j++)
+                {
+                    int at = postings + ((start[i] + j) * POSTING_SIZE);
+                    Long record = Long.valueOf(((long)buffer.getInt(at) << 32) | (buffer.getInt(at + 4) & 0xffffffffL));
+                    Integer fields = m.get(record);
+                    int f = buffer.get(at + 8);
+                    m.put(record, Integer.valueOf((fields == null) ? f : (fields.intValue() | f)));
+                }
+            }
+
+            return m;
+        }
+
+        /**
+         * builds the hit of a record, with its path if the hive has not changed
+         */
+        IndexHit hit(long record, int fields)
+        {
+            int nk = (int)(record >>> 32);
+            int vk = (int)record;
+
+            if (hive == null && !stale)
+            {
+                stale = !hiveFile.isFile() || hiveFile.length() != length || hiveFile.lastModified() != modified;
+                if (stale)
+                    warnings.add(label + ": " + hiveFile + " changed since it was indexed, paths not resolved");
+                else
+                    hive = new Hive(hiveFile);
+            }
+
+            String path = null;
+            if (hive != null)
+            {
+                path = RegistryParser.getKeyPath(hive, nk);
+                if (path != null && vk != 0)
+                {
+                    HiveValue value = new HiveValue(hive);
+                    value.setOffset(vk);
+                    String name = value.getName();
+                    path = path + "\\" + ((name.length() == 0) ? "@" : name);
+                }
+            }
+
+            return new IndexHit(label, hiveFile, nk, vk, fields, path);
+        }
+
+        void close()
+        {
+            if (hive != null)
+                hive.close();
+            hive = null;
+
+            if (buffer != null)
+                Hive.unmap(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -28,13 +28,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.Long;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.Formatter;
 import java.util.HashMap;
 
-import cmu.forensics.openlv.OpenLVLauncher;
-import cmu.forensics.openlv.LogWriter;
-import cmu.forensics.registry.crypto.DES;
+import cmu.forensics.registry.crypto.CryptoContext;
 import cmu.forensics.registry.crypto.RC4;
 import cmu.forensics.registry.crypto.Util;
 
@@ -50,8 +48,13 @@ import cmu.forensics.registry.crypto.Util;
 public class RegistryParser
 {
 	static final int ROOTKEY_OFFSET = 0x24;
-        private static String samHashes;        // pwdump formatted dump of sam passwords
-        private static String mscashHashes;     // mscash (CacheDump) formatted dump of domain cached credentials
+
+	//hot lookups, compiled once
+	private static final RegistryQuery ACCOUNT_F = new RegistryQuery("\\SAM\\Domains\\Account\\F", RegistryQuery.VALUE);
+	private static final RegistryQuery SELECT_DEFAULT = new RegistryQuery("\\Select\\Default", RegistryQuery.VALUE);
+	private static final RegistryQuery[] BOOT_KEY_PARTS = {
+		new RegistryQuery("JD", RegistryQuery.KEY), new RegistryQuery("Skew1", RegistryQuery.KEY),
+		new RegistryQuery("GBG", RegistryQuery.KEY), new RegistryQuery("Data", RegistryQuery.KEY) };
 
         /**
          * Main class for testing RegistryParser functions directly
@@ -94,60 +97,27 @@ public class RegistryParser
 
         public static String[] clearDomainPasswords(String sysLoc, String secLoc, String outputDir, String baseFileName)
         {
-            // Open files and hives for reading encryption keys
-            File sysFile = new File(sysLoc);
-            //File samFile = new File(samLoc);
-            File secFile = new File(secLoc);
-
-            Hive sysHive = new Hive(sysFile);
-            //Hive samHive = new Hive(samFile);
-            Hive secHive = new Hive(secFile);
-
-            // bootkey from SYSTEM
-            byte[] bootKey = getBootKey(sysHive);
-
-            // hBootKey from SAM
-            //byte[] hBootKey = getHashedBootKey(samHive, bootKey);
-
-            // lsakey from SECURITY
-            byte[] lsaKey  = getLSAKey(secHive, bootKey);
-
-            // nlkm from SECURITY
-            byte[] nlkmKey = getNLKM(secHive, lsaKey);
-
-            // free Hives
-            sysHive = null;
-            //samHive = null;
-            secHive = null;
-
-            // clear passwords
-            String[] MSCACHEusers = RegistryParser.clearMSCACHEPasswords(secFile, nlkmKey);
-
-            // create lengths we know are defined
-            int mscashLen = (MSCACHEusers != null)? MSCACHEusers.length : 0;
-
-            if ( mscashLen == 0) { return null; }
-
-            String[] allUsers = new String[mscashLen];
-            if (mscashLen > 0)
-            {
-                System.arraycopy(MSCACHEusers, 0, allUsers, 0, mscashLen);
-
-                try
-		{
-                    RandomAccessFile raf = new RandomAccessFile(outputDir + "\\" + baseFileName + ".MSCASHDUMP", "rw");
-                    raf.writeBytes(mscashHashes);   //write out cached domain credential hashes
-                    raf.setLength(raf.getFilePointer());
-                    raf.close();
-		}
-		catch (IOException ioe)
-		{
-			System.out.println("I/O error while writing to MSCASH dump file: " + ioe.getMessage());
-			return null;
-		}
-            }
+            HiveSession session = new HiveSession(sysLoc, null, secLoc);
+            String[] users = clearDomainPasswords(session, outputDir, baseFileName);
+            session.close();
+            return users;
+        }
 
-            return allUsers;
+        /**
+         * Clears the passwords for the network cached credentials using the
+         * SYSTEM and SECURITY hives and keys of session, also exports the
+         * hashes to outputDir\baseFileName.MSCASHDUMP
+         *
+	 * @param session hives of the image, the SECURITY hive is patched in place
+	 * @param outputDir directory to place exported hashes
+	 * @param baseFileName basename for hashes (.MSCASHDUMP will be automatically added)
+         * @returns an array of Strings containing the user names of the
+         * accounts whose passwords have been blanked, or null if none
+         */
+        public static String[] clearDomainPasswords(HiveSession session, String outputDir, String baseFileName)
+        {
+            PasswordClearResult result = new PasswordClearer(session).clearDomainPasswords(new File(outputDir + "\\" + baseFileName + ".SECURITY.UNDO"));
+            return export(result, new File(outputDir + "\\" + baseFileName + ".MSCASHDUMP"));
         }
 
         /**
@@ -165,61 +135,57 @@ public class RegistryParser
          */
         public static String[] clearLocalPasswords(String sysLoc, String samLoc, String outputDir, String baseFileName)
         {
-            // Open files and hives for reading encryption keys
-            File sysFile = new File(sysLoc);
-            File samFile = new File(samLoc);
-            //File secFile = new File(secLoc);
-
-            Hive sysHive = new Hive(sysFile);
-            Hive samHive = new Hive(samFile);
-            //Hive secHive = new Hive(secFile);
-
-            // bootkey from SYSTEM
-            byte[] bootKey = getBootKey(sysHive);
-
-            // hBootKey from SAM
-            byte[] hBootKey = getHashedBootKey(samHive, bootKey);
-
-            // lsakey from SECURITY
-            //byte[] lsaKey  = getLSAKey(secHive, bootKey);
-
-            // nlkm from SECURITY
-            //byte[] nlkmKey = getNLKM(secHive, lsaKey);
-
-            // free Hives
-            sysHive = null;
-            samHive = null;
-            //secHive = null;
-
-            // clear passwords
-            String[] SAMusers     = RegistryParser.clearSAMPasswords(samFile, hBootKey);
+            HiveSession session = new HiveSession(sysLoc, samLoc, null);
+            String[] users = clearLocalPasswords(session, outputDir, baseFileName);
+            session.close();
+            return users;
+        }
 
-            // create lengths we know are defined
-            int samLen    = (SAMusers     != null)? SAMusers.length     : 0;
+        /**
+         * Clears the local passwords using the SYSTEM and SAM hives and keys
+         * of session, also exports the hashes to outputDir\baseFileName.SAMDUMP
+         *
+	 * @param session hives of the image, the SAM hive is patched in place
+	 * @param outputDir directory to place exported hashes
+	 * @param baseFileName basename for hashes (.SAMDUMP will be automatically added)
+         *
+         * @returns an array of Strings containing the user names of the
+         * accounts whose passwords have been blanked, or null if none
+         */
+        public static String[] clearLocalPasswords(HiveSession session, String outputDir, String baseFileName)
+        {
+            PasswordClearResult result = new PasswordClearer(session).clearLocalPasswords(new File(outputDir + "\\" + baseFileName + ".SAM.UNDO"));
+            return export(result, new File(outputDir + "\\" + baseFileName + ".SAMDUMP"));
+        }
 
-            if (samLen == 0) { return null; }
+        /**
+         * Prints the warnings of a PasswordClearer run and writes its hashes
+         * to dumpFile
+         *
+         * @param result the run
+         * @param dumpFile the .SAMDUMP or .MSCASHDUMP file
+         * @returns the names of the accounts whose passwords have been
+         * blanked, or null if none or the dump could not be written
+         */
+        private static String[] export(PasswordClearResult result, File dumpFile)
+        {
+            String[] warnings = result.getWarnings();
+            for (int i = 0; i < warnings.length; i++)
+                System.out.println(warnings[i]);
 
-            String[] allUsers = new String[samLen];
+            if (!result.hasAccounts()) { return null; }
 
-            if (samLen > 0)
+            try
             {
-                System.arraycopy(SAMusers, 0, allUsers, 0, samLen);
-
-                try
-		{
-                    RandomAccessFile raf = new RandomAccessFile(outputDir + "\\" + baseFileName + ".SAMDUMP", "rw");
-                    raf.writeBytes(samHashes);      // write out SAM hashes
-                    raf.setLength(raf.getFilePointer());
-                    raf.close();
-		}
-		catch (IOException ioe)
-		{
-			System.out.println("I/O error while writing to SAM dump file: " + ioe.getMessage());
-			return null;
-		}
+                result.writeRecords(dumpFile);
+            }
+            catch (IOException ioe)
+            {
+                System.out.println("I/O error while writing to " + dumpFile.getName() + ": " + ioe.getMessage());
+                return null;
             }
 
-            return allUsers;
+            return result.getAccounts();
         }
 
 
@@ -320,92 +286,6 @@ public class RegistryParser
         }
 	*/
 
-	/**
-         * Clears the passwords for every account in the given SAM hive file
-	 *
-         * @param samFile File pointing to the SAM file
-         * @param hBootKey contains the hashed system boot key needed to decrypt the sam hashes
-         * @return String[] of usernames found on system for success, null on failure
-	 */
-	private static String[] clearSAMPasswords(File samFile, byte[] hBootKey)
-	{
-                StringBuffer samHashBuffer = new StringBuffer();
-                Hive hive = new Hive(samFile);
-
-                HashMap nameRIDMap = getUserRIDMap(hive);	//user account names mapped to RID values
-
-		if(nameRIDMap == null)	//did the mapping fail
-			return null;
-
-		long curRID = -1;
-		String curUserName = null;
-		Object[] temp = nameRIDMap.keySet().toArray();
-		String[] userNames = new String[temp.length];
-		for(int j = 0; j < temp.length; j++)	//make array of usernames
-			userNames[j] = (String)temp[j];
-
-		long[] offsetToVStruct = new long[userNames.length];	//array of each username's offset to their V structure
-
-		for(int i = 0; i < userNames.length; i++)
-		{
-			curUserName = userNames[i];
-			curRID = ((Long)nameRIDMap.get(curUserName)).longValue();
-
-			String hexRID = Long.toHexString(curRID);	//8 byte hex RID of current user without leading 0's
-
-			if(hexRID.length() < 8)	//pad with leading zero's to make length 8
-			{
-				int padding = 8 - hexRID.length();
-				StringBuffer sbuf = new StringBuffer(hexRID);
-				for(int x = 0; x < padding; x++)
-				{
-					sbuf.insert(0, '0');	//insert leading zero
-				}
-
-				hexRID = sbuf.toString();
-			}
-
-			//build path to current user's V structure
-			String path = "\\SAM\\Domains\\Account\\Users\\" + hexRID + "\\V";
-
-			int vOffset = traversePath(hive, 0, path, 1);	//offset into vk structure for V struct
-			VK_Structure finalVK = new VK_Structure(hive.getBuffer(), vOffset);
-			offsetToVStruct[i] = finalVK.getOfs_data() + 0x1004;		//add the actual offset to the V structure to the array
-
-                        SAMV_Structure samv = new SAMV_Structure(hive.getBuffer(), (int) offsetToVStruct[i], (int)finalVK.getLen_data());
-
-                        samv.decrypt(hBootKey, (int)curRID);
-
-                        System.out.println(samv.toString());
-
-                        samHashBuffer.append(samv.getPWDUMPline() + System.getProperty("line.separator"));
-		}
-
-		//for all offsets (one for each user account), zero out the LM and NT hash lengths in SAM
-		try
-		{
-	        RandomAccessFile raf = new RandomAccessFile(samFile, "rw");
-
-			for(int a = 0; a < offsetToVStruct.length; a++) //for all of the V struct offsets (for each account name)
-			{
-				raf.seek(offsetToVStruct[a] + 0xa0);	//jump to lm hash length
-				raf.write(0x00);			//zero it
-				raf.seek(offsetToVStruct[a] + 0xac);	//jump to nt hash length
-				raf.write(0x00);			//zero it
-			}
-			raf.close();
-		}
-		catch (IOException ioe)
-		{
-			System.out.println("I/O error while writing 0's to SAM File " + ioe.getMessage());
-			return null;
-		}
-
-            samHashes = new String(samHashBuffer);
-
-	    return userNames;
-	}
-
 	/**
          * Converts the system boot key into an RC4 key and then uses it to
          * decrypt the hashed boot key stored in the SAM hive.
@@ -415,39 +295,34 @@ public class RegistryParser
          * @return byte[] containing the hashed boot key needed to decrypt SAM hashes,
          * null if bootKey is null
 	 */
-        private static byte[] getHashedBootKey(Hive samHive, byte[] bootKey)
+        static byte[] getHashedBootKey(Hive samHive, byte[] bootKey)
         {
             if (bootKey == null) { return null; }
 
             int vkOfs;
             VK_Structure vk;
-            MessageDigest md5;
-            RC4 rc4 = new RC4();
 
             byte[] aqwerty = new String("!@#$%^&*()qwertyUIOPAzxcvbnmQQQQQQQQQQQQ)(*@&%\0").getBytes();
             byte[] anum    = new String("0123456789012345678901234567890123456789\0").getBytes();
 
-            vkOfs = traversePath(samHive, 0, "\\SAM\\Domain\\Account\\F", 1);
-            vk = new VK_Structure(samHive.getBuffer(), vkOfs);
+            vkOfs = ACCOUNT_F.find(samHive);
+            vk = new VK_Structure(samHive, vkOfs);
 
-            // 16 bytes needed in MD5 hash from the \\SAM\\Domain\\Account\\F reg entry
-            byte[] fKey = byteSlice(samHive.getBuffer(), (int)vk.getOfs_data() + 0x1004 + 0x70, 0x10);
+            // 16 bytes needed in MD5 hash from the \\SAM\\Domains\\Account\\F reg entry
+            byte[] fKey = samHive.slice((int)vk.getOfs_data() + 0x1004 + 0x70, 0x10);
 
-            try
-            {
-                md5 = MessageDigest.getInstance("MD5");
-            }
-            catch (NoSuchAlgorithmException nsae) { return null; }
+            CryptoContext ctx = CryptoContext.get();
+            MessageDigest md5 = ctx.md5();
 
             md5.update(fKey);
             md5.update(aqwerty);
             md5.update(bootKey);
             md5.update(anum);
 
-            rc4.setKey( md5.digest() );
+            RC4 rc4 = ctx.rc4(md5);
 
             // copy out the encrypted hashed boot key
-            byte[] hBootKey = byteSlice(samHive.getBuffer(), (int)vk.getOfs_data() + 0x1004 + 0x80, 0x20);
+            byte[] hBootKey = samHive.slice((int)vk.getOfs_data() + 0x1004 + 0x80, 0x20);
 
             // decrypt the hashed boot key in place using the md5 hash as the key
             rc4.decrypt(hBootKey, 0, hBootKey, 0, hBootKey.length);
@@ -456,100 +331,59 @@ public class RegistryParser
         }
 
 	/**
-         * Clears the passwords for every cached network login in the given
-         * SECURITY registry file
+         * Reads the number of the current control set from Select\Current of
+         * the SYSTEM registry hive
 	 *
-         * @param secFile File pointing to the SECURITY file
-         * @param nlkmKey byte[] containing nlkmKey
-         * @return String[] of accounts whose passwords have been blanked, null on failure
+         * @param sysHive Hive containing the SYSTEM registry hive
+         * @return the current control set number (1 for ControlSet001), -1 if not found
 	 */
-	private static String[] clearMSCACHEPasswords(File secFile, byte[] nlkmKey)
-	{
-                int vkOfs;
-                VK_Structure vk;
-                DCC_Structure dcc;
-                StringBuffer userNameBuffer = new StringBuffer();
-                StringBuffer mscashHashBuffer = new StringBuffer();
-
-                // no nlkmKey means we failed to decrypt LSA Secrets properly, which almost certainly means unsupported guest
-                if (nlkmKey == null) {
-                    OpenLVLauncher.postOutput("Domain Cached Credentials will not be cleared " +
-                                                "(only supported for Windows NT4 (SP4 with syskey), 2000, XP, and 2003)"
-                                                + OpenLVLauncher.endL);
-                    return null;
-                }
+        public static int getCurrentControlSet(Hive sysHive)
+        {
+            int vkOfs = traversePath(sysHive, 0, "\\Select\\Current", 1);
+            if (vkOfs == 0) { return -1; }
 
-                // should this be a user checked option?
-                boolean enableUsers = true;
-
-                Hive secHive = new Hive(secFile);
-
-                for (int i = 1; (vkOfs = traversePath(secHive, 0, "\\Cache\\NL$"+i, 1)) > 0; i++) {
-                    vk = new VK_Structure(secHive.getBuffer(), vkOfs);
-
-                    // offset to the cached credential data (ccdata)
-                    int ccdata = (int)vk.getOfs_data() + 0x1004;
-
-                    if (ccdata == 0x1004 || getWord(secHive.getBuffer(), ccdata) == 0) {
-                        continue;
-                    }
-
-                    // try to create and populate a new DCC structure
-                    try {
-                        dcc = new DCC_Structure(secHive.getBuffer(), ccdata, (int)vk.getLen_data(), enableUsers);
-                    } catch (Exception e) {
-                        // unable to process successfully.
-                        continue;
-                    }
-
-                    try {
-                        // decrypt dce portion using nlkmKey
-                        dcc.decrypt(nlkmKey);
-                    } catch (Exception e) {
-                        // error in decrypt
-                        OpenLVLauncher.logError(e.toString());
-                        continue;
-                    }
-
-                    if (userNameBuffer.length() > 0) {
-                        userNameBuffer.append(":");
-                    }
-
-                    // get username in user@example.com form
-                    userNameBuffer.append(dcc.getFullUserName());
-
-                    // get MSCASH formatted line of curent hash value for use with john or other crackers
-                    mscashHashBuffer.append(dcc.getMSCASHline() + System.getProperty("line.separator"));
-
-                    // blank password
-                    dcc.clearUserPassword();
-
-                    // change cipherKey if desired (not necessary, and probably better not to from a least change perspective)
-                    // dcc.setRandomCipherKey();
-
-                    // re-encrypt dce with new blank password
-                    dcc.encrypt();
-
-                    // pull the entire DCC as multiple parts of it may have been changed
-                    byte[] dccEntry     = dcc.getDCC();
-
-                    try
-                    {
-                        RandomAccessFile raf = new RandomAccessFile(secFile, "rw");
-                        raf.seek(ccdata);           // jump to DCC
-                        raf.write(dccEntry);        // overwrite DCC
-			raf.close();
-                    }
-                    catch (IOException ioe)
-                    {
-			System.out.println("I/O error while writing to the SECURITY File " + ioe.getMessage());
-			return null;
-                    }
-                }
+            // a REG_DWORD is stored inline in the data offset field
+            VK_Structure vk = new VK_Structure(sysHive, vkOfs);
+            return (int)vk.getOfs_data();
+        }
+
+	/**
+         * Resolves the boot volume of the SYSTEM registry hive: the current
+         * control set, the drive letter of the boot partition (first letter of
+         * Control\ContentIndex\DllsToRegister) and its \DosDevices\X: entry
+         * under MountedDevices, which holds the disk signature and the byte
+         * offset of the partition
+	 *
+         * @param sysHive Hive containing the SYSTEM registry hive
+         * @return the boot volume, null if any of the values is missing
+	 */
+        public static BootVolume getBootVolume(Hive sysHive)
+        {
+            int controlSet = getCurrentControlSet(sysHive);
+            if (controlSet == -1) { return null; }
+
+            String controlSetString = "ControlSet" + new Formatter().format("%03d", controlSet).toString();
+            String dlls = getStringValue(sysHive, "\\" + controlSetString + "\\Control\\ContentIndex\\DllsToRegister");
+            if (dlls == null || dlls.length() < 2 || dlls.charAt(1) != ':') { return null; }
+
+            char driveLetter = Character.toUpperCase(dlls.charAt(0));
+
+            // the value name itself contains backslashes, so it is looked up on the key
+            int nkOfs = traversePath(sysHive, 0, "\\MountedDevices", 0);
+            if (nkOfs == 0) { return null; }
+
+            NK_Structure key = new NK_Structure(sysHive, nkOfs + 4);
+            if (key.getNo_values() <= 0) { return null; }
 
-                mscashHashes = new String(mscashHashBuffer);
+            int vkOfs = findValue(sysHive, key, new VK_Structure(sysHive), "\\DosDevices\\" + driveLetter + ":");
+            if (vkOfs == 0) { return null; }
 
-                return (userNameBuffer.length() > 0)? (new String(userNameBuffer)).split(":") : null;
+            // MBR disks store a 4 byte signature followed by the 8 byte partition offset
+            byte[] data = getValueData(sysHive, vkOfs);
+            if (data == null || data.length != 12) { return null; }
+
+            long partitionOffset = (getDWord(data, 4) & 0xffffffffL) | ((long)getDWord(data, 8) << 32);
+            return new BootVolume(controlSet, driveLetter, byteSlice(data, 0, 4), partitionOffset);
         }
 
 	/**
@@ -558,37 +392,37 @@ public class RegistryParser
          * @param sysHive Hive containing the SYSTEM registry hive
          * @return byte[] containing the boot key (also called syskey), null if no bootkey
 	 */
-        private static byte[] getBootKey(Hive sysHive)
+        static byte[] getBootKey(Hive sysHive)
         {
             // descrambling matrix
             int p[] = { 0x8, 0x5, 0x4, 0x2, 0xb, 0x9, 0xd, 0x3, 0x0, 0x6, 0x1, 0xc, 0xe, 0xa, 0xf, 0x7 };
 
             // Find the right ControlSet
-            int vkOfs = traversePath(sysHive, 0, "\\Select\\Default", 1);
-            VK_Structure vk = new VK_Structure(sysHive.getBuffer(), vkOfs);
+            int vkOfs = SELECT_DEFAULT.find(sysHive);
+            VK_Structure vk = new VK_Structure(sysHive, vkOfs);
 
             NumberFormat nf = NumberFormat.getInstance();
             nf.setMinimumIntegerDigits(3);
             String controlSet = "\\ControlSet" + nf.format(vk.getOfs_data());
 
-            String lsaRoot = controlSet + "\\Control\\Lsa\\";
-
-            // Reg keys containing parts of the boot key
-            String [] keys = {"JD", "Skew1", "GBG", "Data"};
+            int lsaOfs = new RegistryQuery(controlSet + "\\Control\\Lsa", RegistryQuery.KEY).find(sysHive);
+            if (lsaOfs == 0) { return null; }
 
             byte[] bootUnsorted = new byte [16];
+            NK_Structure nk = new NK_Structure(sysHive);
 
-            for (int i = 0; i < keys.length; i++) {
-                int nkOfs = traversePath(sysHive, 0, lsaRoot + keys[i], 0);
+            // Reg keys containing parts of the boot key, JD, Skew1, GBG and Data under Lsa
+            for (int i = 0; i < BOOT_KEY_PARTS.length; i++) {
+                int nkOfs = BOOT_KEY_PARTS[i].find(sysHive, lsaOfs);
 
                 if (nkOfs == 0) { return null; } // syskey is not enabled
 
-                NK_Structure nk = new NK_Structure(sysHive.getBuffer(), nkOfs+4);
+                nk.setOffset(nkOfs);
 
                 /* as an additional obfuscation, the boot key data is stored in the classnam
                  * in UTF-16LE ascii chars representing the actual hex values.  i.e.
                  * 'a', '0', '5', '0', '7', '0', 'b', '0' ... becomes 0xa5, 0x7b ... */
-                byte[] utfkey = byteSlice(sysHive.getBuffer(), (int)nk.getOfs_classnam() + 0x1004, 0x10);
+                byte[] utfkey = sysHive.slice((int)nk.getOfs_classnam() + 0x1004, 0x10);
 
                 /* convert { 'a', '0', '5', '0', '7', '0', 'b', '0' } to { 0xa5, 0x7b}
                  * skip all odd entries, convert 'a' and '5' into a string 'a5' which can then
@@ -611,36 +445,32 @@ public class RegistryParser
         }
 
         /**
-         * Decrypts the LSA key from the SECURITY hive
+         * Decrypts the LSA key from the SECURITY hive.  Up to 2003 it is the
+         * 16 byte RC4 protected PolSecretEncryptionKey, from Vista on the 32
+         * byte AES key in PolEKList.
          *
          * @param secHive Security hive containing the encrypted LSA key
          * @param bootKey System bootkey needed to decrypt the LSA key
          * @return a byte[] containing the LSA key, null if bootKey is null
          */
-        private static byte[] getLSAKey(Hive secHive, byte[] bootKey)
+        static byte[] getLSAKey(Hive secHive, byte[] bootKey)
         {
             if (bootKey == null) { return null; }
 
-            MessageDigest md5;
-            RC4 rc4 = new RC4();
-
             int vkOfs = traversePath(secHive, 0, "\\Policy\\PolSecretEncryptionKey\\@", 1);
 
             // Key does not exist for Vista+
             if (vkOfs == 0) {
-                return null;
+                return getAESLSAKey(secHive, bootKey);
             }
 
-            VK_Structure vk = new VK_Structure(secHive.getBuffer(), vkOfs);
+            VK_Structure vk = new VK_Structure(secHive, vkOfs);
 
             // copy out the Policy Secret Encryption Key default value
-            byte[] PSEK = byteSlice(secHive.getBuffer(), (int)vk.getOfs_data() + 0x1004, (int)vk.getLen_data());
+            byte[] PSEK = secHive.slice((int)vk.getOfs_data() + 0x1004, (int)vk.getLen_data());
 
-            try
-            {
-                md5 = MessageDigest.getInstance("MD5");
-            }
-            catch (NoSuchAlgorithmException nsae) { return null; }
+            CryptoContext ctx = CryptoContext.get();
+            MessageDigest md5 = ctx.md5();
 
             // the bootKey is the part of the data to be hashed
             md5.update(bootKey);
@@ -653,16 +483,40 @@ public class RegistryParser
                 md5.update(psekmd5);
             }
 
-            // set RC4 key to the md5 output
-            rc4.setKey( md5.digest() );
-
-            // decrypt the LSA key in place
-            rc4.decrypt(PSEK, 12, PSEK, 12, 0x30);
+            // set RC4 key to the md5 output and decrypt the LSA key in place
+            ctx.rc4(md5).decrypt(PSEK, 12, PSEK, 12, 0x30);
 
             // return the 16 byte LSA key starting from offset 28
             return byteSlice(PSEK, 28, 0x10);
         }
 
+        /**
+         * Decrypts the Vista+ LSA key, an AES secret under the bootKey
+         *
+         * @param secHive Security hive containing the encrypted LSA key
+         * @param bootKey System bootkey needed to decrypt the LSA key
+         * @return a byte[] containing the 32 byte LSA key, null if there is none
+         */
+        private static byte[] getAESLSAKey(Hive secHive, byte[] bootKey)
+        {
+            int vkOfs = traversePath(secHive, 0, "\\Policy\\PolEKList\\@", 1);
+
+            if (vkOfs == 0) {
+                return null;
+            }
+
+            VK_Structure vk = new VK_Structure(secHive, vkOfs);
+            byte[] ekList = secHive.slice((int)vk.getOfs_data() + 0x1004, (int)vk.getLen_data());
+
+            // the secret is an LSA key list, the current key is 52 bytes in
+            byte[] keys = decryptAESSecret(ekList, bootKey);
+            if (keys == null || keys.length < 52 + 0x20) {
+                return null;
+            }
+
+            return byteSlice(keys, 52, 0x20);
+        }
+
 
         /**
          * Retrieves the NL$KM LSA Secret needed to decrypt the cached
@@ -672,7 +526,7 @@ public class RegistryParser
          * @param lsaKey byte[] containing the lsa key needed to decrypt LSA secrets
          * @return byte[] containing the decrypted NL$KM secret, null if lsaKey is null
          */
-        private static byte[] getNLKM(Hive secHive, byte[] lsaKey)
+        static byte[] getNLKM(Hive secHive, byte[] lsaKey)
         {
             if (lsaKey == null) { return null; }
 
@@ -693,10 +547,15 @@ public class RegistryParser
         private static byte[] getLSASecret(Hive secHive, String secretName, byte[] lsaKey)
         {
             int vkOfs = traversePath(secHive, 0, "\\Policy\\Secrets\\" + secretName + "\\CurrVal\\@", 1);
-            VK_Structure vk = new VK_Structure(secHive.getBuffer(), vkOfs);
+            VK_Structure vk = new VK_Structure(secHive, vkOfs);
+
+            // Vista+ secrets are AES encrypted with the 32 byte LSA key
+            if (lsaKey.length == 0x20) {
+                return decryptAESSecret(secHive.slice((int)vk.getOfs_data() + 0x1004, (int)vk.getLen_data()), lsaKey);
+            }
 
             //secret starts 12 bytes in
-            byte[] secret = byteSlice(secHive.getBuffer(), (int)vk.getOfs_data() + 0x1004 + 12, (int)vk.getLen_data() - 12);
+            byte[] secret = secHive.slice((int)vk.getOfs_data() + 0x1004 + 12, (int)vk.getLen_data() - 12);
 
             // call decrypySecret to do the actual decryption
             return decryptSecret(secret, lsaKey);
@@ -709,9 +568,9 @@ public class RegistryParser
          * @param lsaKey byte[] containing the lsa key needed to decrypt the LSA secret
          * @return a byte[] containing the decrypted LSA secret
          */
-        private static byte[] decryptSecret(byte[] secret, byte[] lsaKey)
+        public static byte[] decryptSecret(byte[] secret, byte[] lsaKey)
         {
-            DES des;
+            CryptoContext ctx = CryptoContext.get();
             int lsaKeyOffset = 0;
             byte[] dest = new byte[secret.length];
 
@@ -719,12 +578,9 @@ public class RegistryParser
             for(int i = 0; i < secret.length; i += 8) {
                 int length = (secret.length - i < 8)? secret.length - i : 8;
 
-                // use shifting parts of the lsaKey to decode the blocks
-                byte[] key_block = byteSlice(lsaKey, lsaKeyOffset, 7);
-
-                // convert the 7 byte key into an 8 byte (w/parity) DES key
-                des = new DES( DES.createKey(key_block,0) );
-                des.decrypt(secret, i , dest, i, length);
+                // use shifting 7 byte parts of the lsaKey to decode the blocks,
+                // the context caches the 8 byte (w/parity) DES key for each part
+                ctx.des(lsaKey, lsaKeyOffset).decrypt(secret, i , dest, i, length);
 
                 // shift 7 bytes forward into the lsaKey
                 lsaKeyOffset += 7;
@@ -742,6 +598,43 @@ public class RegistryParser
             return byteSlice(dest, 8, secretLen);
         }
 
+        /**
+         * Decrypts a Vista+ LSA secret.  After a 28 byte header it holds a
+         * 32 byte salt and the AES-256 encrypted secret, each 16 byte block
+         * encrypted on its own with SHA-256(key, 1000 x salt).
+         *
+         * @param secret byte[] containing the encrypted LSA secret
+         * @param key the bootKey for the LSA key, the LSA key for any other secret
+         * @return a byte[] containing the decrypted LSA secret, null if it is malformed
+         */
+        public static byte[] decryptAESSecret(byte[] secret, byte[] key)
+        {
+            if (secret.length <= 60) { return null; }
+
+            CryptoContext ctx = CryptoContext.get();
+            MessageDigest sha256 = ctx.sha256();
+
+            // the key, then 1000 concatenations of the salt
+            sha256.update(key);
+            for (int i = 0; i < 1000; i++) {
+                sha256.update(secret, 28, 0x20);
+            }
+
+            byte[] aesKey = new byte[0x20];
+            CryptoContext.finish(sha256, aesKey, 0);
+
+            // a short last block is decrypted zero padded
+            byte[] dest = new byte[(secret.length - 60 + 15) & ~15];
+            System.arraycopy(secret, 60, dest, 0, secret.length - 60);
+            ctx.aes(aesKey, 0, aesKey.length).decrypt(dest, 0, dest, 0, dest.length);
+
+            // first dword of decrypted secret is secret length, the secret starts 16 bytes in
+            int secretLen = getDWord(dest, 0);
+            if (secretLen < 0 || secretLen > dest.length - 16) { return null; }
+
+            return byteSlice(dest, 16, secretLen);
+        }
+
         /**
          * Creates a mapping between user account names and their RID values
          *
@@ -752,140 +645,30 @@ public class RegistryParser
 	{
 		HashMap<String, Long> nameRIDMap = new HashMap<String, Long>();
 
-		//find offset to NK structure for this path
-		int nkOfs = traversePath(hive, 0, "\\SAM\\Domains\\Account\\Users\\Names",0);
-
-		if(nkOfs <= 0)	//did we find it?
+		SamAccountIterator accounts = new SamAccountIterator(hive);
+		if(!accounts.hasNext())	//did we find any?
 		{
 			System.out.println("Cannot find usernames in registry");
 			return null;
 		}
 
-		int count = 0, countri = 0;
-		int exNextN = -2;
-		int newNKOfs;
-
-		int sptr_nkoffs;
-		NK_Structure sptr_nk;
-		String sptr_name;
-
-		while(exNextN > 0 || exNextN == -2)	//-2 is starting case
+		while(accounts.hasNext())
 		{
-			//get value of ex_next_n
-			NK_Structure nk = new NK_Structure(hive.getBuffer(), nkOfs + 4);
-
-			if(nk.getId() != 0x6b6e)
-			{
-				System.out.println("Not an nk node....error");
-				return null;
-			}
-
-			long lfOffset = nk.getOfs_lf() + 0x1004;
-			int lfKeyID = getWord(hive.getBuffer(), (int)lfOffset);
-			long lfKeyOfsNK = getDWord(hive.getBuffer(), (int)lfOffset + 0x0004);
-
-			RI_Structure ri = new RI_Structure(hive.getBuffer(), (int)nk.getOfs_lf() + 0x1004);
-
-			if(ri.getId() == 0x6972)
-			{
-				if(countri < 0 || countri >= ri.getNo_lis())
-				{
-					exNextN = 0;
-					continue;
-				}
-
-				/* get li of lf struct thats current based on countri */
-				LI_Structure li = new LI_Structure(hive.getBuffer(), (int)ri.getOfs_li_array()[countri] + 0x1004);
-
-				if(li.getId() == 0x696c)
-				{
-					newNKOfs = (int)li.getOfs_nk_array()[count] + 0x1000;
-				}
-				else
-				{
-					lfOffset = ri.getOfs_li_array()[countri] + 0x1004;
-					lfKeyID = getWord(hive.getBuffer(), (int)lfOffset);
-					lfKeyOfsNK = getDWord(hive.getBuffer(), (int)(lfOffset + 0x0004 + (count * 0x0008)) );
-					newNKOfs = (int)lfKeyOfsNK + 0x1000;
-				}
-
-				if(count >= li.getNo_keys() - 1)
-				{
-					countri++;	//bump up ri so we take next ri entry next time
-					count = -1;	//reset li traverse counter for next round, not used later here
-				}
-			}
-			else	//plain handler
-			{
-				if(nk.getNo_subkeys() <=0 || count >= nk.getNo_subkeys())
-				{
-					exNextN = -1;
-					continue;
-				}
-
-				if(lfKeyID == 0x696c)	//is it 3.x li instead?
-				{
-					LI_Structure li = new LI_Structure(hive.getBuffer(), (int)nk.getOfs_lf() + 0x1004);
-					newNKOfs = (int)li.getOfs_nk_array()[count] + 0x1000;
-				}
-				else
-				{
-					lfKeyOfsNK = getDWord(hive.getBuffer(), (int)(lfOffset + 0x0004 + (count * 0x0008)) );
-					newNKOfs = (int)lfKeyOfsNK + 0x1000;
-				}
-			}
-			sptr_nkoffs = newNKOfs;
-			NK_Structure new_nk_key = new NK_Structure(hive.getBuffer(), newNKOfs + 4);
-
-			sptr_nk = new_nk_key;
-
-			if(new_nk_key.getId() != 0x6b6e)
-			{
-				System.out.println("ex_next: error not nk node at " + newNKOfs);
-				exNextN = 0;
-				continue;
-			}
-			else
-			{
-				if(new_nk_key.getLen_name() <= 0)
-				{
-					System.out.println("ex_next nk has no name!");
-					return null;
-				}
-				else
-				{
-					sptr_name = new_nk_key.getKeynameStr();	//TODO change to actual max len
-//					System.out.println("Name: sptr_name: " + sptr_name);
-
-					//find rid for this username
-					String ridString = "\\SAM\\Domains\\Account\\Users\\Names\\" + sptr_name + "\\@";
-					int offsetRIDVK = traversePath(hive, 0, ridString, 1);
-//					System.out.println("Offset RID: " + offsetRIDVK);
-
-					VK_Structure vk_rid = new VK_Structure(hive.getBuffer(), offsetRIDVK);
-					long rid;
-					if(vk_rid.getLen_data() == 0x80000000)	//special inline case where data is in val type field
-					{
-//						System.out.println("RID = " + vk_rid.getVal_type());
-						rid = vk_rid.getVal_type();
-					}
-					else
-					{
-						System.out.println("**********ERROR - CANT FIND RID");
-						rid = -1;
-					}
-					nameRIDMap.put(sptr_name, new Long(rid));
-				}
-			}
-			count++;
+			SamAccount account = accounts.next();
+			nameRIDMap.put(account.getName().toLowerCase(), Long.valueOf(account.getRid()));
 		}
-//		System.out.println("***GOT HASHMAP OF NAME TO RID PAIRS");
+
 		return nameRIDMap;
 	}
 
 	/**
-	 * Recursevely follows the given path string and returns the offset for the
-	 * last nk or vk structure
+	 * Follows the given path string and returns the offset for the
+	 * last nk or vk structure.  The walk reuses one set of NK/VK cursors
+	 * for every level instead of recursing with fresh structures.
+	 * Path components are matched case insensitively against the whole
+	 * key or value name.  Paths from the root are resolved through the
+	 * hive's path cache: the walk starts at the deepest cached ancestor
+	 * and every key it resolves is added to the cache.
 	 *
          * @param hive the registry hive
          * @param offsetToStartNode offset to the start node
@@ -895,176 +678,226 @@ public class RegistryParser
 	 */
 	public static int traversePath(Hive hive, int offsetToStartNode, String path, int structureType)
 	{
-		NK_Structure key, newnkkey;
-		long vlistofs;
+		HivePathCache cache = null;
 
 		if(path.startsWith("\\"))	//if we are at the root
 		{
 			path = path.substring(1,path.length());	//chop off slash
-//			System.out.println("new path: " + path);
 			offsetToStartNode = hive.getRootOffset() + 4;
+			cache = hive.getPathCache();
 		}
 
-		key = new NK_Structure(hive.getBuffer(), offsetToStartNode);
-
-		if(key.getId() != 0x6b6e)
-		{
-			System.out.println("Error: Not an nk node");
-			return 0;
-		}
-
-		//find \ delimiter or end of string
+		//find \ delimiters once, each level then just moves to the next branch
 		String[] branches = path.trim().split("\\\\");
-		String part = branches[0];
-//		System.out.println("Searching for: " + part);
+		String[] prefixes = null;
+		int b = 0;
 
-		if(part.trim().equals(""))
-		{
-//			System.out.println("End of string");
-			return offsetToStartNode - 4;
-		}
-		else
+		if(cache != null)
 		{
+			//normalized root relative path of every key along the way
+			prefixes = new String[branches.length];
 			StringBuffer sb = new StringBuffer();
-			for(int i = 1; i < branches.length; i++)
+			for(int i = 0; i < branches.length; i++)
 			{
-				sb.append(branches[i]);
-				if (i < branches.length -1)
-					sb.append("\\");
+				HivePathCache.append(sb, branches[i]);
+				prefixes[i] = sb.toString();
 			}
 
-			path = sb.toString();
-		}
-
-		//last name in path, we want vk, and nk has values
-		if(branches.length == 1 && structureType == 1 && key.getNo_values() > 0)
-		{
-//			System.out.println("VK name match for " + path);
-			vlistofs = key.getOfs_vallist() + 0x1004;
-
-			//vlist_find
-			int indexIntoTable = -1;
-			for(int i = 0; i < key.getNo_values(); i++)
+			//resume from the deepest cached key, the last branch of a vk lookup is the value
+			int deepest = (structureType == 1) ? branches.length - 2 : branches.length - 1;
+			for(int i = deepest; i >= 0; i--)
 			{
-				long vkofs = vlistofs + (i * 0x4); //+ 0x1004;
-				int offset = getDWord(hive.getBuffer(), (int)vkofs);
-				VK_Structure vkkey = new VK_Structure(hive.getBuffer(), offset + 0x1004);
-//				System.out.println(vkkey);
-
-				String compareStr = new String(vkkey.getKeynameStr());
-
-			    if(vkkey.getLen_name() == 0 && part.compareTo("@") == 0) //@ is alias for nameless val
-			    {
-			        indexIntoTable = i;
-			        return offset + 0x1004;
-			    }
-
-				if(compareStr.startsWith(part.toLowerCase()))
+				int cached = cache.get(prefixes[i]);
+				if(cached != 0)
 				{
-					indexIntoTable = i;
-					return offset + 0x1004; //(int)(getDWord(hdesc.getBuffer(), offset) + 0x1000);
+					offsetToStartNode = cached;
+					b = i + 1;
+					break;
 				}
 			}
 		}
 
-		int subs = -1, riCount, r, newNKOfs;
+		NK_Structure key = new NK_Structure(hive, offsetToStartNode);
+		VK_Structure vkkey = new VK_Structure(hive);
+		SubkeyList subkeys = new SubkeyList(hive);
 
-		if(key.getNo_subkeys() > 0)	//if has subkeys, loop through hash
+		for(; ; b++)
 		{
-			long lfOffset = key.getOfs_lf() + 0x1004;
-			int lfKeyID = getWord(hive.getBuffer(), (int)lfOffset);
-			long lfKeyOfsNK = getDWord(hive.getBuffer(), (int)lfOffset + 0x0004);
-
-			if(lfKeyID == 0x6972)	//ri struct needs special parsing
+			if(key.getId() != NK_Structure.NK_ID)
 			{
-				System.out.println("ri key needs special parsing -- not handled");
-				//make rikey
-				riCount = 0; //ricnt = rikey.getNo_lis()
-				r = 0;
-				//make likey
-				//subs = likey.getNo_keys();
-				//if likey id != 0x696c
-					//make new lfkey
-					//likey = null
+				System.out.println("Error: Not an nk node");
+				return 0;
 			}
-			else
+
+			if(b >= branches.length || branches[b].trim().equals(""))
 			{
-				if(lfKeyID == 0x696c)	//li?
-				{
-					System.out.println("li key");
-					//likey
-				}
-				else
-				{
-//					System.out.println("likey = null");
-					//likey == null
-				}
-				subs = (int)key.getNo_subkeys();
-				riCount = 0;
-				r = 0;
+//				System.out.println("End of string");
+				return key.getOffset() - 4;
 			}
 
-			do
+			String part = branches[b];
+
+			//last name in path, we want vk, and nk has values
+			if(b == branches.length - 1 && structureType == 1 && key.getNo_values() > 0)
 			{
-				for(int i = 0; i < subs; i++)
-				{
-					//if(likey != null)
-					//	newnkofs = likey.hash[i].ofs_nk + 0x1004;
-					//else
-
-					lfKeyOfsNK = getDWord(hive.getBuffer(), (int)(lfOffset + 0x0004 + (i * 0x0008)) );
-					newNKOfs = (int)lfKeyOfsNK + 0x1004;
-
-					//make new nk key
-					newnkkey = new NK_Structure(hive.getBuffer(), newNKOfs);
-
-					//check new nk key id
-					if(newnkkey.getId() != 0x6b6e)
-					{
-						System.out.println("not nk node! strange?");
-					}
-					else
-					{
-						if(newnkkey.getLen_name() <= 0)
-						{
-							System.out.println("[No name]");
-						}
-						else
-						{
-							if(newnkkey.getKeynameStr().toLowerCase().startsWith(part.toLowerCase()))
-							{
-//								System.out.println(" Key at " + newnkofs + " matches, recursing with path: " + path);
-//								System.out.println(newnkkey.getKeynameStr().toLowerCase() + " ~== " + part.toLowerCase());
-								return traversePath(hive, newNKOfs, path, structureType);
-							}
-							else
-							{
-//								System.out.println("Name does not match: " + newnkkey.getKeynameStr().toLowerCase() + " != " + part.toLowerCase());
-							}
-						}
-					}//if id okay
-
-				}//hash loop
-
-				r++;
-//				if(ricnt > 0 && r < ricnt)
-//				{
-//
-//				}
-			} while(r < riCount && riCount > 0);
+				int vkOfs = findValue(hive, key, vkkey, part);
+				if(vkOfs != 0)
+					return vkOfs;
+			}
+
+			if(key.getNo_subkeys() <= 0)
+				return 0;
+
+			//hint/hash assisted search of the lf/lh/li list, or every list under an ri
+			subkeys.setKey(key);
+			int newNKOfs = subkeys.find(part);
+			if(newNKOfs == 0)
+				return 0;
+
+			key.setOffset(newNKOfs);
+
+			if(cache != null)
+				cache.put(prefixes[b], newNKOfs);
 		}
+	}
+
+	/**
+	 * Searches the value list of key for the value called part
+	 *
+	 * @param hive the registry hive
+	 * @param key cursor on the nk whose values are searched
+	 * @param vkkey scratch cursor used while scanning
+	 * @param part value name (case insensitive), @ for the nameless default value
+	 * @return offset of the matching vk structure, 0 if there is none
+	 */
+	static int findValue(Hive hive, NK_Structure key, VK_Structure vkkey, String part)
+	{
+		long vlistofs = key.getOfs_vallist() + 0x1004;
+
+		//vlist_find
+		for(int i = 0; i < key.getNo_values(); i++)
+		{
+			long vkofs = vlistofs + (i * 0x4); //+ 0x1004;
+			int offset = hive.getDWord((int)vkofs);
+			vkkey.setOffset(offset + 0x1004);
+
+			if(vkkey.getLen_name() == 0 && part.compareTo("@") == 0) //@ is alias for nameless val
+				return offset + 0x1004;
+
+			if(vkkey.nameEquals(part))
+				return offset + 0x1004;
+		}
+
 		return 0;
 	}
 
         /**
-         * function to get a word from a buffer, doesn't modify buf
-         * @param buf buffer to extract from
+         * Builds the path of a key by following the parent offsets up to the
+         * root, the reverse of traversePath
+         *
+         * @param hive the registry hive
+         * @param nkOfs offset of the nk structure
+         * @return the path in the form traversePath takes, "" for the root, null if the chain is broken
+         */
+	public static String getKeyPath(Hive hive, int nkOfs)
+	{
+		int root = hive.getRootOffset() + 4;
+		NK_Structure key = new NK_Structure(hive);
+		String path = "";
+
+		for(int depth = 0; nkOfs != root; depth++)
+		{
+			if(depth >= HiveWalker.MAX_DEPTH || nkOfs < 0x1000 || nkOfs > hive.getLength() - 0x50 || hive.getWord(nkOfs) != NK_Structure.NK_ID)
+				return null;
+
+			key.setOffset(nkOfs);
+			path = "\\" + key.getName() + path;
+			nkOfs = (int)key.getOfs_parent() + 0x1004;
+		}
+
+		return path;
+	}
+
+        /**
+         * Reads the data of a value
+         *
+         * @param hive the registry hive
+         * @param path path from the hive root to the value, @ for the default value
+         * @return a copy of the value data, null if the value does not exist
+         */
+	public static byte[] getValueData(Hive hive, String path)
+	{
+		int vkOfs = traversePath(hive, 0, path, 1);
+		if(vkOfs == 0)
+			return null;
+
+		return getValueData(hive, vkOfs);
+	}
+
+        /**
+         * Reads the data of the value at a vk offset
+         *
+         * @param hive the registry hive
+         * @param vkOfs offset of the vk structure
+         * @return a copy of the value data, null if vkOfs is not a vk
+         */
+	static byte[] getValueData(Hive hive, int vkOfs)
+	{
+		if(hive.getWord(vkOfs) != VK_Structure.VK_ID)
+			return null;
+
+		//inline, single cell and db big data
+		HiveValue value = new HiveValue(hive);
+		value.setOffset(vkOfs);
+		return value.getData();
+	}
+
+        /**
+         * Reads a REG_SZ or REG_EXPAND_SZ value
+         *
+         * @param hive the registry hive
+         * @param path path from the hive root to the value, @ for the default value
+         * @return the string up to its terminating NUL, null if the value does not exist
+         */
+	public static String getStringValue(Hive hive, String path)
+	{
+		byte[] data = getValueData(hive, path);
+		if(data == null)
+			return null;
+
+		int len = 0;
+		while(len + 1 < data.length && (data[len] != 0 || data[len + 1] != 0))
+			len += 2;
+
+		return utfToString(byteSlice(data, 0, len), false);
+	}
+
+        /**
+         * Reads a REG_DWORD value
+         *
+         * @param hive the registry hive
+         * @param path path from the hive root to the value
+         * @param defaultValue returned when the value is missing or too short
+         * @return the value
+         */
+	public static int getDWordValue(Hive hive, String path, int defaultValue)
+	{
+		byte[] data = getValueData(hive, path);
+		if(data == null || data.length < 4)
+			return defaultValue;
+
+		return getDWord(data, 0);
+	}
+
+        /**
+         * function to get a word from a hive, doesn't modify the hive
+         * @param hive hive to extract from
          * @param offset offset to start extraction
-         * @return 2 bytes from buf at offset
+         * @return 2 bytes from the hive at offset
          */
-	public static int getWord(int[] buf, int offset)
+	public static int getWord(Hive hive, int offset)
 	{
-		return (( (buf[offset + 1] & 0xFF) << 8) | buf[offset]);
+		return hive.getWord(offset);
 	}
 
         /**
@@ -1075,21 +908,18 @@ public class RegistryParser
          */
 	public static int getWord(byte[] buf, int offset)
 	{
-		return ((buf[offset + 1] << 8) | buf[offset]);
+		return (((buf[offset + 1] & 0xff) << 8) | (buf[offset] & 0xff));
 	}
 
 	/**
-         * function to get a dword from a buffer, doesn't modify buf
-         * @param buf buffer to extract from
+         * function to get a dword from a hive, doesn't modify the hive
+         * @param hive hive to extract from
          * @param offset offset to start extraction
-         * @return 4 bytes from buf at offset
+         * @return 4 bytes from the hive at offset
          */
-	public static int getDWord(int[] buf, int offset)
+	public static int getDWord(Hive hive, int offset)
 	{
-		return			 	(	( buf[offset + 3] 	& 0xFF) << 24)
-						| 	((buf[offset + 2] 	& 0xFF) << 16)
-						| 	((buf[offset + 1] 	& 0xFF) << 8)
-						| 	 (buf[offset + 0] 	& 0xFF);
+		return hive.getDWord(offset);
 	}
 
         /**
@@ -1101,9 +931,9 @@ public class RegistryParser
 	public static int getDWord(byte[] buf, int offset)
 	{
 		return			 	        ( buf[offset + 3] << 24)
-						| 	( buf[offset + 2] << 16)
-						| 	( buf[offset + 1] << 8)
-						| 	( buf[offset + 0]);
+						| 	((buf[offset + 2] & 0xff) << 16)
+						| 	((buf[offset + 1] & 0xff) << 8)
+						| 	( buf[offset + 0] & 0xff);
 	}
 
 
@@ -1182,11 +1012,9 @@ public class RegistryParser
             return slice;
         }
 
-        public static byte[] byteSlice(int[] array, int offset, int length)
+        public static byte[] byteSlice(Hive hive, int offset, int length)
         {
-            byte[] slice = new byte[length];
-            arrayCopy(array, offset, slice, 0, length);
-            return slice;
+            return hive.slice(offset, length);
         }
 
         public static String utfToString(byte[] utf, boolean lowerCase)
@@ -0,0 +1,603 @@
+/*
+   RegistryQuery.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RegistryQuery
+ * A registry path compiled once and run against any number of hives.
+ *
+ * The path is split into its components up front.  Literal components keep
+ * their lh hash so subkey lists are searched without hashing the name again
+ * on every lookup.  Components holding * (any run of characters) or ?
+ * (any one character) are globs, for example
+ *
+ *   ControlSet*\Services\*\ImagePath
+ *   SAM\Domains\Account\Users\*\V
+ *
+ * Literal components are resolved through SubkeyList.find, glob components
+ * enumerate the subkey or value list and compare names straight from the
+ * hive, rejecting on length and literal prefix before the full match.  A
+ * branch is only entered if it can still match: keys without subkeys are
+ * skipped while more key components follow, keys without values are
+ * skipped before the value component.  Names are matched case insensitively
+ * and @ names the nameless default value.
+ *
+ * Queries are immutable and may be shared between threads.  Runs from the
+ * hive root use the hive's path cache for the leading literal components,
+ * the same cache traversePath uses.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class RegistryQuery
+{
+    public static final int KEY = 0;        // the last component names a key
+    public static final int VALUE = 1;      // the last component names a value
+
+    private final String pattern;
+    private final Component[] keys;         // key components, root first
+    private final Component value;          // value component, null for a key query
+    private final String[] prefixes;        // path cache keys of the leading literal key components
+    private final boolean wildcard;
+
+    /**
+     *  RegistryQuery constructor, compiles path
+     *
+     *  @param path \ separated path, the leading \ is optional and paths always start at the hive root
+     *  @param structureType KEY or VALUE, as for RegistryParser.traversePath
+     *  @throws IllegalArgumentException if a value query has no value component
+     */
+    public RegistryQuery(String path, int structureType)
+    {
+        pattern = path;
+
+        ArrayList<Component> parts = new ArrayList<Component>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++)
+        {
+            if (i < path.length() && path.charAt(i) != '\\')
+                continue;
+
+            String part = path.substring(start, i).trim();
+            if (part.length() > 0)
+                parts.add(new Component(part));
+            start = i + 1;
+        }
+
+        if (structureType == VALUE)
+        {
+            if (parts.isEmpty())
+                throw new IllegalArgumentException("no value name in " + path);
+            value = parts.remove(parts.size() - 1);
+        }
+        else
+            value = null;
+
+        keys = parts.toArray(new Component[parts.size()]);
+
+        int literal = 0;
+        while (literal < keys.length && !keys[literal].glob)
+            literal++;
+
+        prefixes = new String[literal];
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < literal; i++)
+        {
+            HivePathCache.append(sb, keys[i].name);
+            prefixes[i] = sb.toString();
+        }
+
+        wildcard = literal < keys.length || (value != null && value.glob);
+    }
+
+    /**
+     * generic toString method
+     * @return the path the query was compiled from
+     */
+    public String toString()
+    {
+        return pattern;
+    }
+
+    /**
+     * does the query hold a glob component
+     * @return true if the query can match more than one key or value
+     */
+    public boolean isWildcard()
+    {
+        return wildcard;
+    }
+
+    /**
+     * is this a value query
+     * @return true if the query matches values, false if it matches keys
+     */
+    public boolean isValueQuery()
+    {
+        return value != null;
+    }
+
+    /**
+     * number of key components, the depth below the root of the keys the query matches
+     * @return the number of key components
+     */
+    int getKeyDepth()
+    {
+        return keys.length;
+    }
+
+    /**
+     * matches one key component against a key during a walk driven by the caller
+     * @param index index of the key component, 0 for the component below the root
+     * @param nk cursor on the key
+     * @return true if the name of nk matches the component
+     */
+    boolean matchesKey(int index, NK_Structure nk)
+    {
+        Component c = keys[index];
+        return c.glob ? c.matches(nk) : nk.nameEquals(c.name);
+    }
+
+    /**
+     * matches the value component against a value during a walk driven by the caller
+     * @param vk cursor on the value
+     * @return true if this is a value query and the name of vk matches its value component
+     */
+    boolean matchesValue(VK_Structure vk)
+    {
+        if (value == null)
+            return false;
+        if (value.glob)
+            return value.matches(vk);
+        if (vk.getNameLength() == 0)
+            return value.name.equals("@");
+        return vk.nameEquals(value.name);
+    }
+
+    /**
+     * first match from the hive root
+     * @param hive the registry hive
+     * @return hive offset of the matching nk or vk structure, 0 if nothing matches
+     */
+    public int find(Hive hive)
+    {
+        return find(hive, 0);
+    }
+
+    /**
+     * first match below a key, for repeated lookups under a key that was
+     * already resolved.  Only this lookup skips building paths.
+     * @param hive the registry hive
+     * @param startOfs hive offset of the nk structure the path is relative to, 0 for the hive root
+     * @return hive offset of the matching nk or vk structure, 0 if nothing matches
+     */
+    public int find(Hive hive, int startOfs)
+    {
+        List<Match> matches = new Run(hive, 1, false).start(startOfs);
+        return matches.isEmpty() ? 0 : matches.get(0).getOffset();
+    }
+
+    /**
+     * every match from the hive root
+     * @param hive the registry hive
+     * @return the matches in subkey and value list order
+     */
+    public List<Match> execute(Hive hive)
+    {
+        return execute(hive, 0, 0);
+    }
+
+    /**
+     * matches below a key
+     * @param hive the registry hive
+     * @param startOfs hive offset of the nk structure the path is relative to, 0 for the hive root
+     * @param max stop after this many matches, 0 for no limit
+     * @return the matches in subkey and value list order
+     */
+    public List<Match> execute(Hive hive, int startOfs, int max)
+    {
+        return new Run(hive, max, true).start(startOfs);
+    }
+
+    /**
+     * a key or value matched by a query
+     */
+    public static class Match
+    {
+        private final int keyOffset;
+        private final int valueOffset;
+        private final String path;
+
+        Match(int keyOffset, int valueOffset, String path)
+        {
+            this.keyOffset = keyOffset;
+            this.valueOffset = valueOffset;
+            this.path = path;
+        }
+
+        /**
+         * inspector for keyOffset
+         * @return hive offset of the nk structure, the key holding the value for a value match
+         */
+        public int getKeyOffset()
+        {
+            return keyOffset;
+        }
+
+        /**
+         * inspector for valueOffset
+         * @return hive offset of the vk structure, 0 for a key match
+         */
+        public int getValueOffset()
+        {
+            return valueOffset;
+        }
+
+        /**
+         * the offset of the structure that matched
+         * @return the vk offset for a value match, the nk offset otherwise
+         */
+        public int getOffset()
+        {
+            return (valueOffset != 0) ? valueOffset : keyOffset;
+        }
+
+        /**
+         * inspector for path
+         * @return path from the hive root in the original case, null for find lookups
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public String toString()
+        {
+            return (path != null) ? path : "0x" + Integer.toHexString(getOffset());
+        }
+    }
+
+    /**
+     * one path component
+     */
+    private static class Component
+    {
+        final String name;          // as written in the path
+        final boolean glob;
+        final int hash;             // lh hash of a literal component
+        final char[] pattern;       // upper cased glob
+        final String prefix;        // literal characters before the first wildcard
+        final int minLength;        // characters a matching name has at least
+        final boolean fixed;        // no *, names match only at exactly minLength
+
+        Component(String name)
+        {
+            this.name = name;
+            pattern = name.toUpperCase().toCharArray();
+
+            int first = -1, stars = 0;
+            for (int i = 0; i < pattern.length; i++)
+            {
+                if (pattern[i] != '*' && pattern[i] != '?')
+                    continue;
+                if (first < 0)
+                    first = i;
+                if (pattern[i] == '*')
+                    stars++;
+            }
+
+            glob = first >= 0;
+            hash = glob ? 0 : SubkeyList.hash(name);
+            prefix = glob ? name.substring(0, first) : name;
+            minLength = pattern.length - stars;
+            fixed = stars == 0;
+        }
+
+        boolean matches(NK_Structure nk)
+        {
+            int len = nk.getNameLength();
+            if (len < minLength || (fixed && len != minLength) || !nk.nameStartsWith(prefix))
+                return false;
+
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++)
+                chars[i] = nk.getNameChar(i);
+            return glob(chars);
+        }
+
+        boolean matches(VK_Structure vk)
+        {
+            int len = vk.getNameLength();
+            if (len < minLength || (fixed && len != minLength) || !vk.nameStartsWith(prefix))
+                return false;
+
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++)
+                chars[i] = vk.getNameChar(i);
+            return glob(chars);
+        }
+
+        /**
+         * glob match with backtracking to the last *
+         */
+        private boolean glob(char[] chars)
+        {
+            int p = 0, n = 0, star = -1, mark = 0;
+
+            while (n < chars.length)
+            {
+                if (p < pattern.length && pattern[p] == '*')
+                {
+                    star = p++;
+                    mark = n;
+                }
+                else if (p < pattern.length && (pattern[p] == '?' || pattern[p] == Character.toUpperCase(chars[n])))
+                {
+                    p++;
+                    n++;
+                }
+                else if (star >= 0)
+                {
+                    p = star + 1;
+                    n = ++mark;
+                }
+                else
+                    return false;
+            }
+
+            while (p < pattern.length && pattern[p] == '*')
+                p++;
+            return p == pattern.length;
+        }
+    }
+
+    /**
+     * state of one execution, one key cursor and subkey list per depth so a
+     * glob can keep enumerating while the branches below it are searched
+     */
+    private class Run
+    {
+        private Hive hive;
+        private int max;
+        private NK_Structure[] nks;
+        private SubkeyList[] lists;
+        private VK_Structure vk;
+        private HivePathCache cache;        // set for runs from the root
+        private StringBuffer path;          // null if paths are not wanted
+        private List<Match> matches = new ArrayList<Match>();
+
+        Run(Hive hive, int max, boolean paths)
+        {
+            this.hive = hive;
+            this.max = max;
+            nks = new NK_Structure[keys.length + 1];
+            lists = new SubkeyList[keys.length];
+            for (int i = 0; i < nks.length; i++)
+                nks[i] = new NK_Structure(hive);
+            for (int i = 0; i < lists.length; i++)
+                lists[i] = new SubkeyList(hive);
+            vk = new VK_Structure(hive);
+            if (paths)
+                path = new StringBuffer();
+        }
+
+        List<Match> start(int startOfs)
+        {
+            int depth = 0;
+
+            if (startOfs == 0)
+            {
+                startOfs = hive.getRootOffset() + 4;
+                cache = hive.getPathCache();
+
+                //resume from the deepest cached literal key
+                for (int i = prefixes.length - 1; i >= 0; i--)
+                {
+                    int cached = cache.get(prefixes[i]);
+                    if (cached != 0)
+                    {
+                        startOfs = cached;
+                        depth = i + 1;
+                        break;
+                    }
+                }
+            }
+
+            NK_Structure key = nks[depth];
+            key.setOffset(startOfs);
+            if (key.getId() != NK_Structure.NK_ID)
+                return matches;
+
+            if (path != null)
+            {
+                String keyPath = RegistryParser.getKeyPath(hive, startOfs);
+                if (keyPath == null)
+                    return matches;
+                path.append(keyPath);
+            }
+
+            walk(depth);
+            return matches;
+        }
+
+        /**
+         * searches below nks[d], which matched the first d key components
+         * @return false once max matches were found
+         */
+        private boolean walk(int d)
+        {
+            NK_Structure key = nks[d];
+
+            if (d == keys.length)
+                return (value == null) ? add(key.getOffset(), 0, null) : values(key);
+
+            Component c = keys[d];
+            SubkeyList list = lists[d];
+            NK_Structure child = nks[d + 1];
+
+            if (key.getNo_subkeys() <= 0)
+                return true;
+            list.setKey(key);
+
+            if (!c.glob)
+            {
+                int ofs = list.find(c.name, c.hash);
+                if (ofs == 0)
+                    return true;
+
+                child.setOffset(ofs);
+                if (cache != null && d < prefixes.length)
+                    cache.put(prefixes[d], ofs);
+                return descend(d);
+            }
+
+            int count = list.size();
+            for (int i = 0; i < count; i++)
+            {
+                child.setOffset(list.getOfs_nk(i));
+                if (child.getId() != NK_Structure.NK_ID || !c.matches(child))
+                    continue;
+                if (!descend(d))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * enters nks[d + 1] unless nothing below it can match
+         */
+        private boolean descend(int d)
+        {
+            NK_Structure child = nks[d + 1];
+
+            if (d + 1 < keys.length && child.getNo_subkeys() <= 0)
+                return true;
+            if (d + 1 == keys.length && value != null && child.getNo_values() <= 0)
+                return true;
+
+            int mark = 0;
+            if (path != null)
+            {
+                mark = path.length();
+                path.append('\\').append(child.getName());
+            }
+
+            boolean more = walk(d + 1);
+
+            if (path != null)
+                path.setLength(mark);
+            return more;
+        }
+
+        /**
+         * matches the value component against the values of key
+         */
+        private boolean values(NK_Structure key)
+        {
+            if (key.getNo_values() <= 0)
+                return true;
+
+            if (!value.glob)
+            {
+                int vkOfs = RegistryParser.findValue(hive, key, vk, value.name);
+                return (vkOfs == 0) || add(key.getOffset(), vkOfs, vk);
+            }
+
+            int vlist = (int)key.getOfs_vallist() + 0x1004;
+            for (int i = 0; i < key.getNo_values(); i++)
+            {
+                int vkOfs = hive.getDWord(vlist + (i * 0x4)) + 0x1004;
+                vk.setOffset(vkOfs);
+                if (vk.getId() != VK_Structure.VK_ID || !value.matches(vk))
+                    continue;
+                if (!add(key.getOffset(), vkOfs, vk))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * records a match
+         * @return false once max matches were found
+         */
+        private boolean add(int keyOfs, int vkOfs, VK_Structure named)
+        {
+            String matchPath = null;
+            if (path != null)
+            {
+                matchPath = path.toString();
+                if (named != null)
+                    matchPath += "\\" + ((named.getNameLength() == 0) ? "@" : named.getName());
+                else if (matchPath.length() == 0)
+                    matchPath = "\\";
+            }
+
+            matches.add(new Match(keyOfs, vkOfs, matchPath));
+            return max <= 0 || matches.size() < max;
+        }
+    }
+
+    /**
+     * Runs queries against a hive file and prints the matching paths
+     *
+     * @param args hive file, key or value, then one or more paths
+     * @throws IOException if the hive cannot be read
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3 || !(args[1].equals("key") || args[1].equals("value")))
+        {
+            System.out.println("usage: RegistryQuery hiveFile key|value path ...");
+            return;
+        }
+
+        int type = args[1].equals("key") ? KEY : VALUE;
+        Hive hive = new Hive(new File(args[0]));
+
+        try
+        {
+            for (int i = 2; i < args.length; i++)
+            {
+                long start = System.currentTimeMillis();
+                List<Match> matches = new RegistryQuery(args[i], type).execute(hive);
+
+                for (int j = 0; j < matches.size(); j++)
+                    System.out.println(matches.get(j));
+                System.out.println(args[i] + ": " + matches.size() + " matches in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+        finally
+        {
+            hive.close();
+        }
+    }
+}
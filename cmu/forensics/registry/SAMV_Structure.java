@@ -23,10 +23,8 @@
 package cmu.forensics.registry;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
-import cmu.forensics.registry.crypto.DES;
-import cmu.forensics.registry.crypto.RC4;
+import cmu.forensics.registry.crypto.CryptoContext;
 import cmu.forensics.registry.crypto.Util;
 
 /**
@@ -65,21 +63,21 @@ public class SAMV_Structure
     /**
      *  SAMV Struct constructor
      *
-     *  @param hiveBuf the hive to populate the struct with
+     *  @param hive the hive to populate the struct with
      *  @param offsetInHive offset into the hive for the NK_structure
      *  @param size of V data structure
      */
-    public SAMV_Structure(int[] hiveBuf, int offsetInHive, int size)
+    public SAMV_Structure(Hive hive, int offsetInHive, int size)
     {
-        unameOffset     = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0C) + 0xCC;
-        unameLen        = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x10);
-        lmHashOffset    = RegistryParser.getDWord(hiveBuf, offsetInHive + 0x9C) + 0xCC;
-        lmHashLen       = RegistryParser.getDWord(hiveBuf, offsetInHive + 0xA0);
-        ntHashOffset    = RegistryParser.getDWord(hiveBuf, offsetInHive + 0xA8) + 0xCC;
-        ntHashLen       = RegistryParser.getDWord(hiveBuf, offsetInHive + 0xAC);
+        unameOffset     = hive.getDWord(offsetInHive + 0x0C) + 0xCC;
+        unameLen        = hive.getDWord(offsetInHive + 0x10);
+        lmHashOffset    = hive.getDWord(offsetInHive + 0x9C) + 0xCC;
+        lmHashLen       = hive.getDWord(offsetInHive + 0xA0);
+        ntHashOffset    = hive.getDWord(offsetInHive + 0xA8) + 0xCC;
+        ntHashLen       = hive.getDWord(offsetInHive + 0xAC);
 
-        //copy entire SAMV entry to vData
-        vData           = RegistryParser.byteSlice(hiveBuf, offsetInHive, size);
+        //copy the SAMV entry (only this record, not the hive) to vData
+        vData           = hive.slice(offsetInHive, size);
 
         sysKey = false;
 
@@ -98,6 +96,26 @@ public class SAMV_Structure
         encrypted  = true;
     }
 
+    /**
+     * checks that the user name and the hashes the record points to lie
+     * inside the record, the offsets of a damaged V value can point anywhere
+     * @return true if every field read or decrypted is inside the record
+     */
+    public boolean isInBounds()
+    {
+        return fits(unameOffset, unameLen)
+            && (lmHashLen != 16 || fits(lmHashOffset, lmHashLen))
+            && (ntHashLen != 16 || fits(ntHashOffset, ntHashLen));
+    }
+
+    /**
+     * is the range offset, len inside vData
+     */
+    private boolean fits(int offset, int len)
+    {
+        return offset >= 0 && len >= 0 && offset <= vData.length - len;
+    }
+
     /**
      * generic toString method that assembles datamembers
      * @return a formated string
@@ -182,17 +200,15 @@ public class SAMV_Structure
     {
         if (!encrypted || (sysKey && !keySet)) { return; }
 
-        // set key1, this is a function of the users rid
-        DES des1 = new DES( DES.createKey(sid_to_key1(), 0) );
-
-        // set key2, this is a function of the users rid
-        DES des2 = new DES( DES.createKey(sid_to_key2(), 0) );
+        // key1 and key2 are a function of the users rid
+        byte[] key1 = sid_to_key1();
+        byte[] key2 = sid_to_key2();
 
         // decrypt LM hash
-        decryptHash(vData, lmHashOffset, lmHashLen, ALMPASSWORD, des1, des2);
+        decryptHash(vData, lmHashOffset, lmHashLen, ALMPASSWORD, key1, key2);
 
         // decrypt NT hash
-        decryptHash(vData, ntHashOffset, ntHashLen, ANTPASSWORD, des1, des2);
+        decryptHash(vData, ntHashOffset, ntHashLen, ANTPASSWORD, key1, key2);
 
         // hashes are now decrypted (or properly recognized as absent)
         encrypted = false;
@@ -204,27 +220,31 @@ public class SAMV_Structure
      * @param hashOffset hashes offset into data
      * @param hashLen length of hash
      * @param aLmNtPassword byte representation of magic string needed to create RC4 Key
-     * @param des1 DES instance set with key1 from sid_to_key1
-     * @param des2 DES instance set with key2 from sid_to_key2
+     * @param key1 7 byte DES key material from sid_to_key1
+     * @param key2 7 byte DES key material from sid_to_key2
      */
-    private void decryptHash(byte[] data, int hashOffset, int hashLen, byte[] aLmNtPassword, DES des1, DES des2)
+    private void decryptHash(byte[] data, int hashOffset, int hashLen, byte[] aLmNtPassword, byte[] key1, byte[] key2)
     {
         // hashLen must be 16 or hash is not set
         if (hashLen != 16) { return; }
 
+        CryptoContext ctx = CryptoContext.get();
+
         // hBootKey needed for SYSKEY systems
         if (sysKey) {
-            RC4 rc4 = new RC4();
-
             // get RC4 key, this is an MD5 of bootkey, user rid, and ALMPASSWORD
-            rc4.setKey( getRC4Key(aLmNtPassword) );
-            rc4.decrypt(data, hashOffset, data, hashOffset, hashLen);
+            MessageDigest md5 = ctx.md5();
+            md5.update(hBootKey);
+            md5.update(rid);
+            md5.update(aLmNtPassword);
+
+            ctx.rc4(md5).decrypt(data, hashOffset, data, hashOffset, hashLen);
         }
 
         // decrypt first hash block inplace with key1
-        des1.decrypt(data, hashOffset, data, hashOffset, DES_BLOCK_SIZE);
+        ctx.des(key1, 0).decrypt(data, hashOffset, data, hashOffset, DES_BLOCK_SIZE);
         // decrypt second hash block inplace with key2
-        des2.decrypt(data, hashOffset + DES_BLOCK_SIZE, data, hashOffset + DES_BLOCK_SIZE, DES_BLOCK_SIZE);
+        ctx.des(key2, 0).decrypt(data, hashOffset + DES_BLOCK_SIZE, data, hashOffset + DES_BLOCK_SIZE, DES_BLOCK_SIZE);
     }
 
 /*
@@ -277,17 +297,7 @@ public class SAMV_Structure
     {
         if (!keySet) { return null; }
 
-        MessageDigest md5;
-
-        try
-        {
-            md5 = MessageDigest.getInstance("MD5");
-        }
-        catch (NoSuchAlgorithmException nsae)
-        {
-            //Error
-            return null;
-        }
+        MessageDigest md5 = CryptoContext.get().md5();
 
         md5.update(hBootKey);
         md5.update(rid);
@@ -0,0 +1,102 @@
+/*
+   SamAccount.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * SamAccount
+ * A local account found in the SAM hive: its name (from Users\Names), its
+ * RID and the offsets of the F and V values under Users\<RID>
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SamAccount
+{
+    private final String name;
+    private final int rid;
+    private final int fOffset;          // offset of the F vk structure, 0 if missing
+    private final int vOffset;          // offset of the V vk structure, 0 if missing
+
+    /**
+     *  SamAccount constructor
+     *
+     *  @param name account name as stored under Users\Names
+     *  @param rid relative id of the account, -1 if it cannot be read
+     *  @param fOffset hive offset of the F vk structure, 0 if missing
+     *  @param vOffset hive offset of the V vk structure, 0 if missing
+     */
+    public SamAccount(String name, int rid, int fOffset, int vOffset)
+    {
+        this.name = name;
+        this.rid = rid;
+        this.fOffset = fOffset;
+        this.vOffset = vOffset;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     * @return a formated string
+     */
+    public String toString()
+    {
+        return name + " rid " + rid + " F 0x" + Integer.toHexString(fOffset) + " V 0x" + Integer.toHexString(vOffset);
+    }
+
+    /**
+     * inspector for name
+     * @return the account name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * inspector for rid
+     * @return the account RID, -1 if it cannot be read
+     */
+    public int getRid()
+    {
+        return rid;
+    }
+
+    /**
+     * inspector for fOffset
+     * @return hive offset of the F vk structure, 0 if missing
+     */
+    public int getFOffset()
+    {
+        return fOffset;
+    }
+
+    /**
+     * inspector for vOffset
+     * @return hive offset of the V vk structure, 0 if missing
+     */
+    public int getVOffset()
+    {
+        return vOffset;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+   SamAccountIterator.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SamAccountIterator
+ * Streams the local accounts of a SAM hive in a single pass.
+ *
+ * Users and Users\Names are resolved once.  Each entry of Users\Names
+ * carries the account RID in the type field of its default value; the
+ * matching Users\<RID> key is then found with an indexed lookup under the
+ * already resolved Users key, and its F and V values are read from there.
+ * Nothing is looked up from the hive root again.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SamAccountIterator implements Iterator<SamAccount>
+{
+    private static final RegistryQuery USERS = new RegistryQuery("\\SAM\\Domains\\Account\\Users", RegistryQuery.KEY);
+
+    private Hive hive;
+    private NK_Structure users;         // Users key
+    private NK_Structure nameKey;       // current Users\Names\<name> key
+    private NK_Structure ridKey;        // current Users\<RID> key
+    private VK_Structure vk;
+    private SubkeyList names;           // subkey list of Users\Names
+    private SubkeyList rids;            // subkey list of Users
+    private int count;                  // number of entries under Users\Names
+    private int index;                  // next entry of Users\Names to read
+    private SamAccount next;
+
+    /**
+     *  SamAccountIterator constructor
+     *
+     *  @param hive the SAM hive
+     */
+    public SamAccountIterator(Hive hive)
+    {
+        this.hive = hive;
+        users = new NK_Structure(hive);
+        nameKey = new NK_Structure(hive);
+        ridKey = new NK_Structure(hive);
+        vk = new VK_Structure(hive);
+        names = new SubkeyList(hive);
+        rids = new SubkeyList(hive);
+
+        int usersOfs = USERS.find(hive);
+        if (usersOfs == 0)
+            return;
+
+        users.setOffset(usersOfs);
+        if (users.getNo_subkeys() <= 0)
+            return;
+        rids.setKey(users);
+
+        int namesOfs = rids.find("Names");
+        if (namesOfs == 0)
+            return;
+
+        nameKey.setOffset(namesOfs);
+        if (nameKey.getNo_subkeys() <= 0)
+            return;
+
+        names.setKey(nameKey);
+        count = names.size();
+    }
+
+    /**
+     * are there more accounts
+     * @return true if next() will return an account
+     */
+    public boolean hasNext()
+    {
+        while (next == null && index < count)
+            next = read(index++);
+
+        return next != null;
+    }
+
+    /**
+     * the next account in Users\Names order
+     * @return the next account
+     */
+    public SamAccount next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        SamAccount account = next;
+        next = null;
+        return account;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * decodes the index'th entry of Users\Names
+     * @return the account, with a RID of -1 and no F or V value if the RID
+     * cannot be read, null if the entry is unusable
+     */
+    private SamAccount read(int i)
+    {
+        nameKey.setOffset(names.getOfs_nk(i));
+        if (nameKey.getId() != NK_Structure.NK_ID || nameKey.getLen_name() <= 0)
+            return null;
+
+        // the RID is kept in the type field of the nameless default value
+        int defOfs = RegistryParser.findValue(hive, nameKey, vk, "@");
+        if (defOfs == 0)
+            return null;
+        vk.setOffset(defOfs);
+        if (vk.getLen_data() != 0x80000000)     //special inline case where data is in val type field
+            return new SamAccount(nameKey.getName(), -1, 0, 0);
+        int rid = (int)vk.getVal_type();
+
+        int fOfs = 0, vOfs = 0;
+        int ridOfs = rids.find(ridKeyName(rid));
+        if (ridOfs != 0)
+        {
+            ridKey.setOffset(ridOfs);
+            fOfs = RegistryParser.findValue(hive, ridKey, vk, "F");
+            vOfs = RegistryParser.findValue(hive, ridKey, vk, "V");
+        }
+
+        return new SamAccount(nameKey.getName(), rid, fOfs, vOfs);
+    }
+
+    /**
+     * Users\<RID> keys are named with the RID as 8 upper case hex digits
+     */
+    private static String ridKeyName(int rid)
+    {
+        String hex = Integer.toHexString(rid).toUpperCase();
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+   SubkeyList.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry;
+
+/**
+ * SubkeyList
+ * Cursor over the subkey list of an nk structure.  Handles all four list
+ * formats found in hives:
+ *
+ *   li - plain array of nk offsets (NT 3.x/4.0 style)
+ *   lf - nk offsets with a 4 character name hint (NT4/2000)
+ *   lh - nk offsets with a hash of the upper cased name (XP and later)
+ *   ri - index root, an array of offsets to li/lf/lh lists, used when a
+ *        key has too many subkeys for a single list
+ *
+ * Lookups by name binary search the (sorted) lists, use the lf hints to
+ * order probes without touching the nk cells, and walk ri lists by the
+ * first and last name of each child list.  If the binary search misses, a
+ * linear scan that only decodes cells whose hint or hash matches is used
+ * as a safety net, so hives with unusual sort orders still resolve.
+ *
+ * All offsets returned are hive offsets of the nk structure itself (the
+ * "nk" id), the same offsets NK_Structure cursors are positioned at.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class SubkeyList
+{
+    public static final int LF_ID = 0x666c;     // "lf"
+    public static final int LH_ID = 0x686c;     // "lh"
+
+    private Hive hive;
+    private int offset;                 // offset of the list (start of the list id) in the hive
+    private NK_Structure nk;            // scratch cursor for name comparisons
+    private int memoList = -1;          // ri child list that held the last index asked for
+    private int memoStart;              // index of the first key in memoList
+
+    /**
+     *  SubkeyList cursor constructor, the cursor must be positioned with setOffset before use
+     *
+     *  @param hive the hive the cursor reads from
+     */
+    public SubkeyList(Hive hive)
+    {
+        this.hive = hive;
+        this.nk = new NK_Structure(hive);
+    }
+
+    /**
+     * repositions this cursor on another subkey list
+     * @param offsetInHive offset into the hive of the li/lf/lh/ri structure
+     */
+    public void setOffset(int offsetInHive)
+    {
+        offset = offsetInHive;
+        memoList = -1;
+    }
+
+    /**
+     * positions this cursor on the subkey list of key
+     * @param key the key whose subkeys should be listed
+     */
+    public void setKey(NK_Structure key)
+    {
+        setOffset((int)key.getOfs_lf() + 0x1004);
+    }
+
+    /**
+     * inspector for id
+     * @return the list id (li, lf, lh or ri)
+     */
+    public int getId()
+    {
+        return hive.getWord(offset);
+    }
+
+    /**
+     * number of subkeys in the list, including every list under an ri
+     * @return the number of subkeys
+     */
+    public int size()
+    {
+        if (getId() != RI_Structure.RI_ID)
+            return hive.getWord(offset + 0x0002);
+
+        int total = 0;
+        int lists = hive.getWord(offset + 0x0002);
+        for (int i = 0; i < lists; i++)
+            total += hive.getWord(childList(i) + 0x0002);
+        return total;
+    }
+
+    /**
+     * offset of the index'th subkey, counting across every list under an ri.
+     * Walking the indexes in ascending order is O(1) per call for ri lists
+     * too, the child list of the previous call is remembered.
+     * @param index index of the subkey
+     * @return hive offset of the nk structure, 0 if index is out of range
+     */
+    public int getOfs_nk(int index)
+    {
+        if (getId() != RI_Structure.RI_ID)
+            return leafEntry(offset, index);
+
+        int lists = hive.getWord(offset + 0x0002);
+        int first = 0, start = 0;
+
+        if (memoList >= 0 && index >= memoStart)
+        {
+            first = memoList;
+            start = memoStart;
+        }
+
+        for (int i = first; i < lists; i++)
+        {
+            int leaf = childList(i);
+            int count = hive.getWord(leaf + 0x0002);
+            if (index - start < count)
+            {
+                memoList = i;
+                memoStart = start;
+                return leafEntry(leaf, index - start);
+            }
+            start += count;
+        }
+
+        return 0;
+    }
+
+    /**
+     * finds the subkey called name (case insensitive, exact match)
+     * @param name name of the subkey
+     * @return hive offset of the nk structure, 0 if there is no such subkey
+     */
+    public int find(String name)
+    {
+        return find(name, hash(name));
+    }
+
+    /**
+     * finds the subkey called name with its lh hash already computed
+     * @param name name of the subkey
+     * @param hash hash(name)
+     * @return hive offset of the nk structure, 0 if there is no such subkey
+     */
+    public int find(String name, int hash)
+    {
+        if (getId() != RI_Structure.RI_ID)
+        {
+            int found = searchLeaf(offset, name);
+            return (found != 0) ? found : scanLeaf(offset, name, hash);
+        }
+
+        int lists = hive.getWord(offset + 0x0002);
+
+        /* child lists are in order, pick the one whose name range holds name */
+        int lo = 0, hi = lists - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int leaf = childList(mid);
+            int count = hive.getWord(leaf + 0x0002);
+
+            if (count == 0)
+                break;
+
+            nk.setOffset(leafEntry(leaf, 0));
+            if (nk.compareName(name) > 0)
+            {
+                hi = mid - 1;
+                continue;
+            }
+
+            nk.setOffset(leafEntry(leaf, count - 1));
+            if (nk.compareName(name) < 0)
+            {
+                lo = mid + 1;
+                continue;
+            }
+
+            int found = searchLeaf(leaf, name);
+            if (found != 0)
+                return found;
+            break;
+        }
+
+        for (int i = 0; i < lists; i++)
+        {
+            int found = scanLeaf(childList(i), name, hash);
+            if (found != 0)
+                return found;
+        }
+
+        return 0;
+    }
+
+    /**
+     * the name hash stored in lh lists: hash = hash * 37 + upcase(c)
+     * @param name key name
+     * @return the lh hash of name
+     */
+    public static int hash(String name)
+    {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++)
+            hash = (hash * 37) + Character.toUpperCase(name.charAt(i));
+        return hash;
+    }
+
+    /**
+     * hive offset of the index'th list under an ri
+     */
+    private int childList(int index)
+    {
+        return hive.getDWord(offset + 0x0004 + (index * 0x4)) + 0x1004;
+    }
+
+    /**
+     * hive offset of the nk for the index'th entry of an li/lf/lh list
+     */
+    private int leafEntry(int leaf, int index)
+    {
+        if (index < 0 || index >= hive.getWord(leaf + 0x0002))
+            return 0;
+
+        int stride = (hive.getWord(leaf) == LI_Structure.LI_ID) ? 0x4 : 0x8;
+        return hive.getDWord(leaf + 0x0004 + (index * stride)) + 0x1004;
+    }
+
+    /**
+     * binary search of a sorted li/lf/lh list
+     * @return hive offset of the nk, 0 if not found
+     */
+    private int searchLeaf(int leaf, String name)
+    {
+        int id = hive.getWord(leaf);
+        int lo = 0, hi = hive.getWord(leaf + 0x0002) - 1;
+
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int cmp = (id == LF_ID) ? compareHint(leaf + 0x0008 + (mid * 0x8), name) : 0;
+
+            if (cmp == 0)
+            {
+                nk.setOffset(leafEntry(leaf, mid));
+                if (nk.getId() != NK_Structure.NK_ID)
+                    return 0;
+                cmp = nk.compareName(name);
+            }
+
+            if (cmp == 0)
+                return nk.getOffset();
+            else if (cmp < 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * linear scan of an li/lf/lh list that only decodes nk cells whose
+     * lh hash or lf hint matches name
+     * @return hive offset of the nk, 0 if not found
+     */
+    private int scanLeaf(int leaf, String name, int hash)
+    {
+        int id = hive.getWord(leaf);
+        int count = hive.getWord(leaf + 0x0002);
+
+        for (int i = 0; i < count; i++)
+        {
+            if (id == LH_ID && hive.getDWord(leaf + 0x0008 + (i * 0x8)) != hash)
+                continue;
+            if (id == LF_ID && compareHint(leaf + 0x0008 + (i * 0x8), name) != 0)
+                continue;
+
+            nk.setOffset(leafEntry(leaf, i));
+            if (nk.getId() == NK_Structure.NK_ID && nk.nameEquals(name))
+                return nk.getOffset();
+        }
+
+        return 0;
+    }
+
+    /**
+     * orders name against the 4 character hint of an lf entry without
+     * reading the nk.  Only plain ASCII is compared, anything else returns 0
+     * so the caller falls back to decoding the nk.
+     * @param hintOffset hive offset of the hint
+     * @param name name being looked up
+     * @return negative/positive if the hinted key sorts before/after name, 0 if unknown
+     */
+    private int compareHint(int hintOffset, String name)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            int h = hive.getByte(hintOffset + i);
+            int n = (i < name.length()) ? name.charAt(i) : 0;
+
+            if (h >= 0x80 || n >= 0x80)
+                return 0;
+
+            h = Character.toUpperCase((char)h);
+            n = Character.toUpperCase((char)n);
+
+            if (h != n)
+                return h - n;
+            if (h == 0)
+                return 0;
+        }
+
+        return 0;
+    }
+}
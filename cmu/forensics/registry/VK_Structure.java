@@ -30,6 +30,9 @@ package cmu.forensics.registry;
  * 
  * VK Structures appear to be similar to similar to leaf nodes containing 
  * the actual data (or rather an offset pointing directly to its data)
+ *
+ * Like NK_Structure this is a flyweight cursor, fields are decoded from the
+ * hive on demand and setOffset() moves the cursor to another value.
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -37,36 +40,50 @@ package cmu.forensics.registry;
 
 public class VK_Structure
 {
-	private int 	id;					//0x0000
-	private int 	lenName;			//0x0002
-	private long 	lenData;			//0x0004
-	private long 	offsetData;			//0x0008
-	private long 	valType;			//0x000C
-	private int[] 	keyName;			//0x0014 
-	
-	private byte[]  keyNameString;
+	public static final int VK_ID = 0x6b76;			// "vk"
+	public static final int VALUE_COMP_NAME = 0x0001;	// name stored as 8 bit chars instead of UTF-16LE
+
+	private Hive	hive;
+	private int	offset;				// offset of the structure (start of the "vk" id) in the hive
+
+	/**
+	 *  VK cursor constructor, the cursor must be positioned with setOffset before use
+	 *
+	 *  @param hive the hive the cursor reads from
+	 */
+	public VK_Structure(Hive hive)
+	{
+		this.hive = hive;
+	}
 
 	   /**
      *  VK Struct constructor
      *
-     *  @param hiveBuf the hive to populate the struct with
+     *  @param hive the hive to populate the struct with
      *  @param offsetInHive offset into the hive for the VK_structure
      */
-	public VK_Structure(int[] hiveBuf, int offsetInHive)
+	public VK_Structure(Hive hive, int offsetInHive)
 	{
-		id 				= RegistryParser.getWord(hiveBuf, offsetInHive + 0x0000);
-		lenName			= RegistryParser.getWord(hiveBuf, offsetInHive + 0x0002);
-		lenData 		= RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0004);
-		offsetData 		= RegistryParser.getDWord(hiveBuf, offsetInHive + 0x0008);
-		valType	 		= RegistryParser.getDWord(hiveBuf, offsetInHive + 0x000C);
-		
-		keyName = new int[lenName];
-		keyNameString = new byte[lenName];
-		for(int i = 0; i < lenName; i++)
-		{
-			keyName[i] = hiveBuf[i + offsetInHive + 0x0014];
-			keyNameString[i] += Character.toLowerCase(hiveBuf[i + offsetInHive + 0x0014]);
-		}
+		this.hive = hive;
+		this.offset = offsetInHive;
+	}
+
+	/**
+	 * repositions this cursor on another VK structure in the same hive
+	 * @param offsetInHive offset into the hive for the VK_structure
+	 */
+	public void setOffset(int offsetInHive)
+	{
+		offset = offsetInHive;
+	}
+
+	/**
+	 * inspector for the offset this cursor points at
+	 * @return the offset of the VK structure in the hive
+	 */
+	public int getOffset()
+	{
+		return offset;
 	}
 
     /**
@@ -78,17 +95,17 @@ public class VK_Structure
 		StringBuffer sb = new StringBuffer();
 		String newL = System.getProperty("line.separator");
 		
-		sb.append("id\t 0x" + Integer.toHexString(id) + newL);
-		sb.append("len_name\t\t 0x" + Integer.toHexString(lenName) + newL);
-		sb.append("len_data\t 0x" + Long.toHexString(lenData) + newL);
-		sb.append("ofs_data\t 0x" + Long.toHexString(offsetData) + newL);
-		sb.append("val_type\t 0x" + Long.toHexString(valType) + newL);
+		sb.append("id\t 0x" + Integer.toHexString(getId()) + newL);
+		sb.append("len_name\t\t 0x" + Integer.toHexString(getLen_name()) + newL);
+		sb.append("len_data\t 0x" + Long.toHexString(getLen_data()) + newL);
+		sb.append("ofs_data\t 0x" + Long.toHexString(getOfs_data()) + newL);
+		sb.append("val_type\t 0x" + Long.toHexString(getVal_type()) + newL);
 		
 		sb.append("keyname\t ");
-		for(int i = 0; i < keyName.length && i < 10; i++)
-			sb.append(Integer.toHexString(keyName[i]) + " ");
+		for(int i = 0; i < getLen_name() && i < 10; i++)
+			sb.append(Integer.toHexString(hive.getByte(offset + 0x0014 + i)) + " ");
 		
-		sb.append(newL + "String Keyname: " + new String(keyNameString).substring(0,8));
+		sb.append(newL + "String Keyname: " + getName());
 		
 		return sb.toString();
 	}
@@ -99,15 +116,18 @@ public class VK_Structure
      */
 	public int getId()
 	{
-		return id;
+		return hive.getWord(offset + 0x0000);
 	}
 
     /**
      * inspector for keyName
-     * @return the keyName datamember
+     * @return a copy of the raw keyName bytes
      */
 	public int[] getKeyname()
 	{
+		int[] keyName = new int[getLen_name()];
+		for(int i = 0; i < keyName.length; i++)
+			keyName[i] = hive.getByte(offset + 0x0014 + i);
 		return keyName;
 	}
 
@@ -117,7 +137,7 @@ public class VK_Structure
      */
 	public long getLen_data()
 	{
-		return lenData;
+		return hive.getDWord(offset + 0x0004);
 	}
 
     /**
@@ -126,7 +146,7 @@ public class VK_Structure
      */
 	public int getLen_name()
 	{
-		return lenName;
+		return hive.getWord(offset + 0x0002);
 	}
 
     /**
@@ -135,7 +155,7 @@ public class VK_Structure
      */
 	public long getOfs_data()
 	{
-		return offsetData;
+		return hive.getDWord(offset + 0x0008);
 	}
 
     /**
@@ -144,15 +164,100 @@ public class VK_Structure
      */
 	public long getVal_type()
 	{
-		return valType;
+		return hive.getDWord(offset + 0x000C);
+	}
+
+    /**
+     * inspector for flags
+     * @return the flags word
+     */
+	public int getFlags()
+	{
+		return hive.getWord(offset + 0x0010);
+	}
+
+    /**
+     * is the value name stored as 8 bit characters rather than UTF-16LE
+     * @return true if the name is compressed
+     */
+	public boolean isCompressedName()
+	{
+		return (getFlags() & VALUE_COMP_NAME) != 0;
+	}
+
+    /**
+     * number of characters in the value name
+     * @return the name length in characters
+     */
+	public int getNameLength()
+	{
+		return isCompressedName() ? getLen_name() : getLen_name() / 2;
+	}
+
+    /**
+     * decodes a single character of the value name straight from the hive
+     * @param index index of the character
+     * @return the character at index
+     */
+	public char getNameChar(int index)
+	{
+		if (isCompressedName())
+			return (char)hive.getByte(offset + 0x0014 + index);
+
+		return (char)hive.getWord(offset + 0x0014 + (index * 2));
+	}
+
+    /**
+     * case insensitive comparison of the value name against name, done on the
+     * hive bytes without building a String
+     * @param name name to compare against
+     * @return true if the value name equals name ignoring case
+     */
+	public boolean nameEquals(String name)
+	{
+		return getNameLength() == name.length() && nameStartsWith(name);
+	}
+
+    /**
+     * case insensitive prefix test of the value name, done on the hive bytes
+     * without building a String
+     * @param prefix prefix to look for
+     * @return true if the value name starts with prefix ignoring case
+     */
+	public boolean nameStartsWith(String prefix)
+	{
+		int len = prefix.length();
+		if (len > getNameLength())
+			return false;
+
+		for (int i = 0; i < len; i++)
+		{
+			if (Character.toLowerCase(getNameChar(i)) != Character.toLowerCase(prefix.charAt(i)))
+				return false;
+		}
+
+		return true;
+	}
+
+    /**
+     * decodes the value name in its original case
+     * @return the value name
+     */
+	public String getName()
+	{
+		int len = getNameLength();
+		char[] name = new char[len];
+		for (int i = 0; i < len; i++)
+			name[i] = getNameChar(i);
+		return new String(name);
 	}
 
     /**
      * inspector for KeynameStr
-     * @return the keyNameString datamember
+     * @return the lower cased value name bytes
      */
 	public byte[] getKeynameStr()
 	{
-		return keyNameString;
+		return getName().toLowerCase().getBytes();
 	}
 }
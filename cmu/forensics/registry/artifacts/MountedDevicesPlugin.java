@@ -0,0 +1,132 @@
+/*
+   MountedDevicesPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * MountedDevicesPlugin
+ * Drive letters and volume GUIDs the mount manager has handed out, with
+ * the volume each was given to: an MBR disk signature and partition
+ * offset (12 bytes), a GPT partition GUID ("DMIO:ID:" and 16 bytes) or
+ * the device path of a removable volume as a UTF-16 string, which often
+ * names the USB device it was.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class MountedDevicesPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SYSTEM" };
+    private static final RegistryQuery[] QUERIES = {
+        new RegistryQuery("MountedDevices\\*", RegistryQuery.VALUE) };
+    private static final String GPT_PREFIX = "DMIO:ID:";
+
+    public String getName()
+    {
+        return "mounteddevices";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+        String name = value.getName();
+        byte[] data = value.getData();
+
+        if (data.length == 12)
+        {
+            long offset = 0;
+            for (int i = 11; i >= 4; i--)
+                offset = (offset << 8) | (data[i] & 0xff);
+            ctx.report("Name", name, "DiskSignature", Integer.toHexString(getInt(data, 0)),
+                "PartitionOffset", Long.toString(offset));
+        }
+        else if (data.length == GPT_PREFIX.length() + 16 && startsWith(data, GPT_PREFIX))
+        {
+            ctx.report("Name", name, "PartitionGUID", formatGuid(data, GPT_PREFIX.length()));
+        }
+        else if (data.length >= 2 && (data.length & 1) == 0 && data[1] == 0)
+        {
+            ctx.report("Name", name, "Device", value.getString());
+        }
+        else
+        {
+            ctx.report("Name", name, "Data", ArtifactContext.toHex(data));
+        }
+    }
+
+    /**
+     * little-endian int at offset
+     */
+    private static int getInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8)
+            | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    /**
+     * does data start with the ASCII characters of prefix
+     */
+    private static boolean startsWith(byte[] data, String prefix)
+    {
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            if (data[i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * renders the 16 byte GUID at offset as {xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx}
+     */
+    private static String formatGuid(byte[] data, int offset)
+    {
+        byte[] ordered = new byte[16];
+        int[] order = { 3, 2, 1, 0, 5, 4, 7, 6, 8, 9, 10, 11, 12, 13, 14, 15 };
+        for (int i = 0; i < 16; i++)
+            ordered[i] = data[offset + order[i]];
+
+        String hex = ArtifactContext.toHex(ordered);
+        return "{" + hex.substring(0, 8) + "-" + hex.substring(8, 12) + "-" + hex.substring(12, 16) + "-"
+            + hex.substring(16, 20) + "-" + hex.substring(20) + "}";
+    }
+}
@@ -0,0 +1,106 @@
+/*
+   NetworkInterfacesPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * NetworkInterfacesPlugin
+ * TCP/IP settings of each network interface of every control set, static
+ * or as last leased from a DHCP server.  Interfaces are named by the GUID
+ * of their adapter.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class NetworkInterfacesPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SYSTEM" };
+    private static final RegistryQuery[] QUERIES = {
+        new RegistryQuery("ControlSet*\\Services\\Tcpip\\Parameters\\Interfaces\\*", RegistryQuery.KEY) };
+    private static final String[] SETTINGS = { "IPAddress", "SubnetMask", "DefaultGateway", "NameServer", "Domain",
+        "DhcpIPAddress", "DhcpSubnetMask", "DhcpDefaultGateway", "DhcpServer", "DhcpNameServer", "DhcpDomain" };
+
+    public String getName()
+    {
+        return "interfaces";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+        /* Interface, EnableDHCP, the settings, LeaseObtainedTime, LeaseTerminatesTime */
+        String[] fields = new String[(SETTINGS.length + 4) * 2];
+        int n = 0;
+        fields[n++] = "Interface";
+        fields[n++] = ctx.getKeyName();
+        fields[n++] = "EnableDHCP";
+        fields[n++] = ctx.getText("EnableDHCP");
+        for (int i = 0; i < SETTINGS.length; i++)
+        {
+            fields[n++] = SETTINGS[i];
+            fields[n++] = ctx.getText(SETTINGS[i]);
+        }
+        fields[n++] = "LeaseObtainedTime";
+        fields[n++] = formatTime(ctx.getValue("LeaseObtainedTime"));
+        fields[n++] = "LeaseTerminatesTime";
+        fields[n++] = formatTime(ctx.getValue("LeaseTerminatesTime"));
+
+        ctx.report(fields);
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+    }
+
+    /**
+     * renders a lease time, seconds since 1970 UTC
+     */
+    private static String formatTime(HiveValue value)
+    {
+        if (value == null || value.getLength() != 4)
+            return null;
+
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return iso.format(new Date((value.getDWord(0) & 0xffffffffL) * 1000L));
+    }
+}
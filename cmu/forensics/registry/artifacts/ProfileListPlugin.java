@@ -0,0 +1,71 @@
+/*
+   ProfileListPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * ProfileListPlugin
+ * The user profiles of the machine, mapping each account SID to its
+ * profile directory, and so to the NTUSER.DAT of that account.  The last
+ * written time of a profile key is usually close to the last logon.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class ProfileListPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SOFTWARE" };
+    private static final RegistryQuery[] QUERIES = {
+        new RegistryQuery("Microsoft\\Windows NT\\CurrentVersion\\ProfileList\\*", RegistryQuery.KEY) };
+
+    public String getName()
+    {
+        return "profiles";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+        ctx.report("SID", ctx.getKeyName(), "ProfileImagePath", ctx.getString("ProfileImagePath"),
+            "State", ctx.getText("State"));
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+    }
+}
@@ -0,0 +1,80 @@
+/*
+   RunKeysPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * RunKeysPlugin
+ * Programs started at boot or logon from the Run, RunOnce and RunServices
+ * keys of the machine (SOFTWARE) and of each user (NTUSER.DAT), for 64 and
+ * 32 bit programs, and from the Explorer Run policy.  One artifact per
+ * value, the key's last written time dates the latest change to any of
+ * the entries of that key.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class RunKeysPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SOFTWARE", "NTUSER.DAT" };
+    private static final RegistryQuery[] QUERIES = {
+        /* SOFTWARE */
+        new RegistryQuery("Microsoft\\Windows\\CurrentVersion\\Run*\\*", RegistryQuery.VALUE),
+        new RegistryQuery("Wow6432Node\\Microsoft\\Windows\\CurrentVersion\\Run*\\*", RegistryQuery.VALUE),
+        new RegistryQuery("Microsoft\\Windows\\CurrentVersion\\Policies\\Explorer\\Run\\*", RegistryQuery.VALUE),
+        /* NTUSER.DAT */
+        new RegistryQuery("Software\\Microsoft\\Windows\\CurrentVersion\\Run*\\*", RegistryQuery.VALUE),
+        new RegistryQuery("Software\\Wow6432Node\\Microsoft\\Windows\\CurrentVersion\\Run*\\*", RegistryQuery.VALUE),
+        new RegistryQuery("Software\\Microsoft\\Windows\\CurrentVersion\\Policies\\Explorer\\Run\\*", RegistryQuery.VALUE) };
+
+    public String getName()
+    {
+        return "run";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+        String name = value.getName();
+        ctx.report("Name", (name.length() == 0) ? "@" : name, "Command", ArtifactContext.toText(value));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+   ServicesPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * ServicesPlugin
+ * Services and drivers of every control set: the image run, how it is
+ * started and the account it runs as.  Keys under Services without an
+ * ImagePath or a Type are settings of other components and are left out.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class ServicesPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SYSTEM" };
+    private static final RegistryQuery[] QUERIES = {
+        new RegistryQuery("ControlSet*\\Services\\*", RegistryQuery.KEY) };
+    private static final String[] START_NAMES = { "boot", "system", "auto", "manual", "disabled" };
+    private static final int NO_VALUE = -1;
+
+    public String getName()
+    {
+        return "services";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+        String imagePath = ctx.getString("ImagePath");
+        int type = ctx.getDWord("Type", NO_VALUE);
+        if (imagePath == null && type == NO_VALUE)
+            return;
+
+        int start = ctx.getDWord("Start", NO_VALUE);
+        String startName = null;
+        if (start >= 0 && start < START_NAMES.length)
+            startName = START_NAMES[start];
+        else if (start != NO_VALUE)
+            startName = Integer.toString(start);
+
+        ctx.report("Name", ctx.getKeyName(), "DisplayName", ctx.getString("DisplayName"),
+            "ImagePath", imagePath, "Start", startName,
+            "Type", (type == NO_VALUE) ? null : "0x" + Integer.toHexString(type),
+            "ObjectName", ctx.getString("ObjectName"));
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+    }
+}
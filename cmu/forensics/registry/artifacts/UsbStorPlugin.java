@@ -0,0 +1,96 @@
+/*
+   UsbStorPlugin.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.artifacts;
+
+import cmu.forensics.registry.ArtifactContext;
+import cmu.forensics.registry.ArtifactPlugin;
+import cmu.forensics.registry.HiveValue;
+import cmu.forensics.registry.RegistryQuery;
+
+/**
+ * UsbStorPlugin
+ * USB mass storage devices ever attached, from the device instance keys
+ * under Enum\USBSTOR of every control set.  The parent key names the
+ * device (Disk&amp;Ven_x&amp;Prod_y&amp;Rev_z), the instance key its serial
+ * number; a serial whose second character is &amp; was made up by Windows
+ * because the device has none.  The last written time of the instance
+ * key roughly dates the last time the device was set up.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public class UsbStorPlugin implements ArtifactPlugin
+{
+    private static final String[] HIVES = { "SYSTEM" };
+    private static final RegistryQuery[] QUERIES = {
+        new RegistryQuery("ControlSet*\\Enum\\USBSTOR\\*\\*", RegistryQuery.KEY) };
+
+    public String getName()
+    {
+        return "usbstor";
+    }
+
+    public String[] getHives()
+    {
+        return HIVES;
+    }
+
+    public RegistryQuery[] getQueries()
+    {
+        return QUERIES;
+    }
+
+    public void visitKey(ArtifactContext ctx, int query)
+    {
+        String path = ctx.getPath();
+        String serial = ctx.getKeyName();
+        int end = path.lastIndexOf('\\');
+        String device = path.substring(path.lastIndexOf('\\', end - 1) + 1, end);
+
+        /* Disk&Ven_SanDisk&Prod_Cruzer&Rev_8.02 */
+        String type = null, vendor = null, product = null, revision = null;
+        String[] parts = device.split("&");
+        for (int i = 0; i < parts.length; i++)
+        {
+            if (i == 0)
+                type = parts[i];
+            else if (parts[i].startsWith("Ven_"))
+                vendor = parts[i].substring(4);
+            else if (parts[i].startsWith("Prod_"))
+                product = parts[i].substring(5);
+            else if (parts[i].startsWith("Rev_"))
+                revision = parts[i].substring(4);
+        }
+
+        boolean madeUp = serial.length() > 1 && serial.charAt(1) == '&';
+        ctx.report("Type", type, "Vendor", vendor, "Product", product, "Revision", revision,
+            "Serial", serial, "UniqueSerial", madeUp ? "no" : "yes",
+            "FriendlyName", ctx.getString("FriendlyName"), "ParentIdPrefix", ctx.getString("ParentIdPrefix"));
+    }
+
+    public void visitValue(ArtifactContext ctx, int query, HiveValue value)
+    {
+    }
+}
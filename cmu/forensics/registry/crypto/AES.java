@@ -0,0 +1,341 @@
+/*
+   AES.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.crypto;
+
+/**
+ * AES
+ * The AES block cipher (FIPS 197) with 128, 192 and 256 bit keys, and the
+ * two modes Vista and later use for LSA data:
+ *
+ *   ECB     - LSA secrets and the PolEKList LSA key, every 16 byte block
+ *             decrypted on its own (CBC with a zero IV restarted per block)
+ *   CBC-CTS - cached domain logons (NL$n), CBC with ciphertext stealing:
+ *             the last two blocks are swapped and the last one may be short
+ *
+ * Kept in Java rather than on javax.crypto because the LSA key is a 256 bit
+ * AES key, which the default JCE policy of older runtimes refuses.  The
+ * round tables are built once from the S-box; an instance only holds its
+ * key schedule and is rekeyed in place.
+ *
+ * Instances are not thread safe, CryptoContext.aes() hands out one per
+ * thread.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public final class AES
+{
+    public static final int BLOCK = 16;
+
+    private static final int[] SBOX = new int[256];
+    private static final int[] SBOX_INV = new int[256];
+    private static final int[] TE0 = new int[256], TE1 = new int[256], TE2 = new int[256], TE3 = new int[256];
+    private static final int[] TD0 = new int[256], TD1 = new int[256], TD2 = new int[256], TD3 = new int[256];
+
+    static
+    {
+        // logarithms to the base 3 in GF(2^8) give the multiplicative inverses
+        int[] exp = new int[256];
+        int[] log = new int[256];
+        for (int i = 0, x = 1; i < 255; i++)
+        {
+            exp[i] = x;
+            log[x] = i;
+            x ^= xtime(x);
+        }
+
+        for (int i = 0; i < 256; i++)
+        {
+            int inv = (i == 0) ? 0 : exp[(255 - log[i]) % 255];
+            int s = inv ^ rotl8(inv, 1) ^ rotl8(inv, 2) ^ rotl8(inv, 3) ^ rotl8(inv, 4) ^ 0x63;
+            SBOX[i] = s;
+            SBOX_INV[s] = i;
+        }
+
+        for (int i = 0; i < 256; i++)
+        {
+            int s = SBOX[i];
+            int e = (mul(s, 2, exp, log) << 24) | (s << 16) | (s << 8) | mul(s, 3, exp, log);
+            TE0[i] = e;
+            TE1[i] = Integer.rotateRight(e, 8);
+            TE2[i] = Integer.rotateRight(e, 16);
+            TE3[i] = Integer.rotateRight(e, 24);
+
+            int si = SBOX_INV[i];
+            int d = (mul(si, 14, exp, log) << 24) | (mul(si, 9, exp, log) << 16) | (mul(si, 13, exp, log) << 8) | mul(si, 11, exp, log);
+            TD0[i] = d;
+            TD1[i] = Integer.rotateRight(d, 8);
+            TD2[i] = Integer.rotateRight(d, 16);
+            TD3[i] = Integer.rotateRight(d, 24);
+        }
+    }
+
+    private final int[] ek = new int[60];          // encryption round keys
+    private final int[] dk = new int[60];          // decryption round keys, InvMixColumns applied
+    private int rounds;
+
+    private final byte[] prev = new byte[BLOCK];
+    private final byte[] next = new byte[BLOCK];
+    private final byte[] tail = new byte[2 * BLOCK];
+
+    /**
+     * expands a key
+     * @param key buffer holding the key
+     * @param off position in key of the key
+     * @param len length of the key, 16, 24 or 32
+     */
+    public void setKey(byte[] key, int off, int len)
+    {
+        if (len != 16 && len != 24 && len != 32)
+            throw new IllegalArgumentException("AES key of " + len + " bytes");
+
+        int nk = len / 4;
+        rounds = nk + 6;
+        int words = 4 * (rounds + 1);
+
+        for (int i = 0; i < nk; i++)
+            ek[i] = getInt(key, off + (i * 4));
+
+        for (int i = nk, rcon = 1; i < words; i++)
+        {
+            int t = ek[i - 1];
+            if (i % nk == 0)
+            {
+                t = subWord(Integer.rotateLeft(t, 8)) ^ (rcon << 24);
+                rcon = xtime(rcon);
+            }
+            else if (nk > 6 && i % nk == 4)
+            {
+                t = subWord(t);
+            }
+            ek[i] = ek[i - nk] ^ t;
+        }
+
+        // the equivalent inverse cipher runs the round keys backwards
+        for (int r = 0; r <= rounds; r++)
+        {
+            for (int j = 0; j < 4; j++)
+            {
+                int w = ek[((rounds - r) * 4) + j];
+                if (r > 0 && r < rounds)
+                {
+                    w = TD0[SBOX[w >>> 24]] ^ TD1[SBOX[(w >>> 16) & 0xff]]
+                      ^ TD2[SBOX[(w >>> 8) & 0xff]] ^ TD3[SBOX[w & 0xff]];
+                }
+                dk[(r * 4) + j] = w;
+            }
+        }
+    }
+
+    /**
+     * encrypts whole blocks, each on its own
+     * @param len number of bytes, a multiple of BLOCK
+     */
+    public void encrypt(byte[] src, int srcOff, byte[] dest, int destOff, int len)
+    {
+        for (int i = 0; i < len; i += BLOCK)
+            encryptBlock(src, srcOff + i, dest, destOff + i);
+    }
+
+    /**
+     * decrypts whole blocks, each on its own
+     * @param len number of bytes, a multiple of BLOCK
+     */
+    public void decrypt(byte[] src, int srcOff, byte[] dest, int destOff, int len)
+    {
+        for (int i = 0; i < len; i += BLOCK)
+            decryptBlock(src, srcOff + i, dest, destOff + i);
+    }
+
+    /**
+     * CBC with ciphertext stealing, in place
+     * @param iv the 16 byte IV
+     * @param data buffer holding the plain text
+     * @param off position in data of the plain text
+     * @param len length of the plain text, more than one block
+     */
+    public void encryptCTS(byte[] iv, byte[] data, int off, int len)
+    {
+        if (len <= BLOCK)
+            throw new IllegalArgumentException("CTS needs more than one block, got " + len + " bytes");
+
+        int blocks = (len + BLOCK - 1) / BLOCK;
+        int last = len - ((blocks - 1) * BLOCK);
+        System.arraycopy(iv, 0, prev, 0, BLOCK);
+
+        int pos = off;
+        for (int b = 0; b < blocks - 1; b++, pos += BLOCK)
+        {
+            for (int i = 0; i < BLOCK; i++)
+                data[pos + i] ^= prev[i];
+            encryptBlock(data, pos, data, pos);
+            System.arraycopy(data, pos, prev, 0, BLOCK);
+        }
+
+        // the second to last block, already encrypted into prev: the zero
+        // padded last block is chained to it and the two change places
+        pos -= BLOCK;
+        for (int i = 0; i < BLOCK; i++)
+            next[i] = (byte)(((i < last) ? data[pos + BLOCK + i] : 0) ^ prev[i]);
+        encryptBlock(next, 0, data, pos);
+        System.arraycopy(prev, 0, data, pos + BLOCK, last);
+    }
+
+    /**
+     * CBC with ciphertext stealing, in place
+     * @param iv the 16 byte IV
+     * @param data buffer holding the cipher text
+     * @param off position in data of the cipher text
+     * @param len length of the cipher text, more than one block
+     */
+    public void decryptCTS(byte[] iv, byte[] data, int off, int len)
+    {
+        if (len <= BLOCK)
+            throw new IllegalArgumentException("CTS needs more than one block, got " + len + " bytes");
+
+        int blocks = (len + BLOCK - 1) / BLOCK;
+        int last = len - ((blocks - 1) * BLOCK);
+        System.arraycopy(iv, 0, prev, 0, BLOCK);
+
+        int pos = off;
+        for (int b = 0; b < blocks - 2; b++, pos += BLOCK)
+        {
+            System.arraycopy(data, pos, next, 0, BLOCK);
+            decryptBlock(data, pos, data, pos);
+            for (int i = 0; i < BLOCK; i++)
+                data[pos + i] ^= prev[i];
+            System.arraycopy(next, 0, prev, 0, BLOCK);
+        }
+
+        // the stored second to last block decrypts to the last plain text
+        // xor the real second to last cipher text, whose tail it carries
+        decryptBlock(data, pos, tail, 0);
+        System.arraycopy(data, pos + BLOCK, tail, BLOCK, last);
+        System.arraycopy(tail, last, tail, BLOCK + last, BLOCK - last);
+        for (int i = 0; i < last; i++)
+            data[pos + BLOCK + i] = (byte)(tail[i] ^ tail[BLOCK + i]);
+
+        decryptBlock(tail, BLOCK, data, pos);
+        for (int i = 0; i < BLOCK; i++)
+            data[pos + i] ^= prev[i];
+    }
+
+    private void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int[] k = ek;
+        int s0 = getInt(in, inOff) ^ k[0];
+        int s1 = getInt(in, inOff + 4) ^ k[1];
+        int s2 = getInt(in, inOff + 8) ^ k[2];
+        int s3 = getInt(in, inOff + 12) ^ k[3];
+        int t0, t1, t2, t3;
+
+        int r = 4;
+        for (int round = 1; round < rounds; round++, r += 4)
+        {
+            t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ k[r];
+            t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ k[r + 1];
+            t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ k[r + 2];
+            t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ k[r + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+        }
+
+        putInt(out, outOff,      lastRound(s0, s1, s2, s3, SBOX) ^ k[r]);
+        putInt(out, outOff + 4,  lastRound(s1, s2, s3, s0, SBOX) ^ k[r + 1]);
+        putInt(out, outOff + 8,  lastRound(s2, s3, s0, s1, SBOX) ^ k[r + 2]);
+        putInt(out, outOff + 12, lastRound(s3, s0, s1, s2, SBOX) ^ k[r + 3]);
+    }
+
+    private void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
+    {
+        int[] k = dk;
+        int s0 = getInt(in, inOff) ^ k[0];
+        int s1 = getInt(in, inOff + 4) ^ k[1];
+        int s2 = getInt(in, inOff + 8) ^ k[2];
+        int s3 = getInt(in, inOff + 12) ^ k[3];
+        int t0, t1, t2, t3;
+
+        int r = 4;
+        for (int round = 1; round < rounds; round++, r += 4)
+        {
+            t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ k[r];
+            t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ k[r + 1];
+            t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ k[r + 2];
+            t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ k[r + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+        }
+
+        putInt(out, outOff,      lastRound(s0, s3, s2, s1, SBOX_INV) ^ k[r]);
+        putInt(out, outOff + 4,  lastRound(s1, s0, s3, s2, SBOX_INV) ^ k[r + 1]);
+        putInt(out, outOff + 8,  lastRound(s2, s1, s0, s3, SBOX_INV) ^ k[r + 2]);
+        putInt(out, outOff + 12, lastRound(s3, s2, s1, s0, SBOX_INV) ^ k[r + 3]);
+    }
+
+    /**
+     * one output word of the last round: the S-box without MixColumns
+     */
+    private static int lastRound(int a, int b, int c, int d, int[] box)
+    {
+        return (box[a >>> 24] << 24) | (box[(b >>> 16) & 0xff] << 16) | (box[(c >>> 8) & 0xff] << 8) | box[d & 0xff];
+    }
+
+    private static int subWord(int w)
+    {
+        return (SBOX[w >>> 24] << 24) | (SBOX[(w >>> 16) & 0xff] << 16) | (SBOX[(w >>> 8) & 0xff] << 8) | SBOX[w & 0xff];
+    }
+
+    private static int xtime(int x)
+    {
+        return ((x << 1) ^ (((x & 0x80) != 0) ? 0x1b : 0)) & 0xff;
+    }
+
+    private static int rotl8(int x, int n)
+    {
+        return ((x << n) | (x >>> (8 - n))) & 0xff;
+    }
+
+    private static int mul(int a, int b, int[] exp, int[] log)
+    {
+        return (a == 0) ? 0 : exp[(log[a] + log[b]) % 255];
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int off, int v)
+    {
+        b[off]     = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+   CryptoContext.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * CryptoContext
+ * Per thread cipher and digest instances for decrypting SAM, LSA and DCC
+ * records.  Every record uses the same few primitives (RC4, MD5, HMAC-MD5
+ * and DES keyed from 7 bytes of key material up to XP, AES, SHA-256 and
+ * HMAC-SHA1 from Vista on), so rather than building new ones for every
+ * record each thread keeps one of each and rekeys it:
+ *
+ *   rc4    - one RC4 instance, rekeyed in place
+ *   md5    - one MD5 digest, reset before it is handed out
+ *   sha256 - one SHA-256 digest, reset before it is handed out
+ *   hmac   - HMAC-MD5 and HMAC-SHA1 computed on the same MD5 and SHA-1
+ *            digests, no javax.crypto.Mac
+ *   aes    - one AES instance, rekeyed in place
+ *   des    - small direct mapped cache of DES instances keyed by the 7 byte
+ *            key material, so repeated keys (the rotating LSA key) skip the
+ *            key schedule entirely
+ *   pbkdf2 - PBKDF2-HMAC-SHA1 with its own preallocated SHA-1 state, the
+ *            derivation of MSCash2 (DCC2) hashes
+ *
+ * Instances are not thread safe, get() returns the one for the calling
+ * thread.  Results handed back (the RC4 and DES instances, the digest) are
+ * only valid until the next call on the same context.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public final class CryptoContext
+{
+    private static final int DES_SLOTS = 64;        // power of 2
+    private static final int HMAC_BLOCK = 64;       // MD5 and SHA-1 block size
+
+    private static final ThreadLocal<CryptoContext> CONTEXTS = new ThreadLocal<CryptoContext>() {
+        protected CryptoContext initialValue()
+        {
+            return new CryptoContext();
+        }
+    };
+
+    private final RC4 rc4 = new RC4();
+    private final byte[] rc4Key = new byte[16];
+    private final MessageDigest md5;
+    private final MessageDigest sha1;
+    private final MessageDigest sha256;
+    private final AES aes = new AES();
+
+    private final long[] desMaterial = new long[DES_SLOTS];
+    private final DES[] desCache = new DES[DES_SLOTS];
+    private final byte[] desKey = new byte[8];
+
+    private final byte[] pad = new byte[HMAC_BLOCK];
+    private final byte[] hmacKey = new byte[20];
+    private final byte[] inner = new byte[20];
+
+    private final PBKDF2 pbkdf2 = new PBKDF2();
+
+    private CryptoContext()
+    {
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+            sha1 = MessageDigest.getInstance("SHA-1");
+            sha256 = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * the context of the calling thread
+     * @return the context, created on first use
+     */
+    public static CryptoContext get()
+    {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * the RC4 instance of this context, keyed with len bytes of key at off
+     * @return the rekeyed RC4 instance
+     */
+    public RC4 rc4(byte[] key, int off, int len)
+    {
+        rc4.setKey(key, off, len);
+        return rc4;
+    }
+
+    /**
+     * the RC4 instance of this context, keyed with the MD5 of the input of
+     * digest so far
+     * @param digest the digest returned by md5()
+     * @return the rekeyed RC4 instance
+     */
+    public RC4 rc4(MessageDigest digest)
+    {
+        finish(digest, rc4Key, 0);
+        rc4.setKey(rc4Key, 0, 16);
+        return rc4;
+    }
+
+    /**
+     * the MD5 digest of this context, reset
+     * @return the digest
+     */
+    public MessageDigest md5()
+    {
+        md5.reset();
+        return md5;
+    }
+
+    /**
+     * the SHA-256 digest of this context, reset
+     * @return the digest
+     */
+    public MessageDigest sha256()
+    {
+        sha256.reset();
+        return sha256;
+    }
+
+    /**
+     * the AES instance of this context, keyed with len bytes of key at off
+     * @return the rekeyed AES instance
+     */
+    public AES aes(byte[] key, int off, int len)
+    {
+        aes.setKey(key, off, len);
+        return aes;
+    }
+
+    /**
+     * hash of the digest's input so far, written to out
+     * @param digest the digest returned by md5() or sha256()
+     * @param out buffer receiving the hash
+     * @param outOff position in out of the hash
+     */
+    public static void finish(MessageDigest digest, byte[] out, int outOff)
+    {
+        try
+        {
+            digest.digest(out, outOff, digest.getDigestLength());
+        }
+        catch (DigestException de)
+        {
+            throw new IllegalStateException(de);
+        }
+    }
+
+    /**
+     * HMAC-MD5 (RFC 2104) of len bytes of data at off
+     * @param key the HMAC key
+     * @param data the message
+     * @param off position in data of the message
+     * @param len length of the message
+     * @param out buffer receiving the 16 byte HMAC
+     * @param outOff position in out of the HMAC
+     */
+    public void hmacMD5(byte[] key, byte[] data, int off, int len, byte[] out, int outOff)
+    {
+        hmac(md5, key, 0, key.length, data, off, len, out, outOff);
+    }
+
+    /**
+     * HMAC-SHA1 (RFC 2104) of len bytes of data at off
+     * @param key buffer holding the HMAC key
+     * @param keyOff position in key of the HMAC key
+     * @param keyLen length of the HMAC key
+     * @param data the message
+     * @param off position in data of the message
+     * @param len length of the message
+     * @param out buffer receiving the 20 byte HMAC
+     * @param outOff position in out of the HMAC
+     */
+    public void hmacSHA1(byte[] key, int keyOff, int keyLen, byte[] data, int off, int len, byte[] out, int outOff)
+    {
+        hmac(sha1, key, keyOff, keyLen, data, off, len, out, outOff);
+    }
+
+    private void hmac(MessageDigest digest, byte[] key, int keyOff, int keyLen, byte[] data, int off, int len, byte[] out, int outOff)
+    {
+        byte[] k = key;
+        int kOff = keyOff;
+        int kLen = keyLen;
+
+        // keys longer than a block are hashed first
+        if (kLen > HMAC_BLOCK)
+        {
+            digest.reset();
+            digest.update(key, keyOff, keyLen);
+            finish(digest, hmacKey, 0);
+            k = hmacKey;
+            kOff = 0;
+            kLen = digest.getDigestLength();
+        }
+
+        digest.reset();
+        for (int i = 0; i < HMAC_BLOCK; i++)
+            pad[i] = (byte)(((i < kLen) ? k[kOff + i] : 0) ^ 0x36);
+        digest.update(pad);
+        digest.update(data, off, len);
+        finish(digest, inner, 0);
+
+        for (int i = 0; i < HMAC_BLOCK; i++)
+            pad[i] = (byte)(((i < kLen) ? k[kOff + i] : 0) ^ 0x5c);
+        digest.update(pad);
+        digest.update(inner, 0, digest.getDigestLength());
+        finish(digest, out, outOff);
+    }
+
+    /**
+     * the PBKDF2-HMAC-SHA1 engine of this thread
+     * @return the engine
+     */
+    public PBKDF2 pbkdf2()
+    {
+        return pbkdf2;
+    }
+
+    /**
+     * a DES instance keyed with the 7 bytes of key material at off (expanded
+     * with DES.createKey), taken from the cache when the same material was
+     * used recently
+     * @param material buffer holding the key material
+     * @param off position in material of the 7 bytes
+     * @return the DES instance
+     */
+    public DES des(byte[] material, int off)
+    {
+        long k = 0;
+        for (int i = 0; i < 7; i++)
+            k = (k << 8) | (material[off + i] & 0xff);
+
+        int slot = (int)((k * 0x9E3779B97F4A7C15L) >>> 58);   // top 6 bits, DES_SLOTS == 64
+        DES des = desCache[slot];
+
+        if (des != null && desMaterial[slot] == k)
+            return des;
+
+        DES.createKey(material, off, desKey);
+        if (des == null)
+            desCache[slot] = des = new DES(desKey);
+        else
+            des.setKey(desKey);
+
+        desMaterial[slot] = k;
+        return des;
+    }
+}
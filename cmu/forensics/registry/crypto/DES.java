@@ -29,26 +29,43 @@ public class DES {
 
     private final Cipher cipher;
     private Key pkey;
+    private int mode;       // mode the cipher was last initialized for, 0 if it needs an init
 
     public DES(byte[] key) {
         cipher = createCipher();
         pkey = new SecretKeySpec(key, "DES");
     }
 
+    /**
+     * Replaces the key, the underlying cipher is kept and initialized again
+     * on the next block.
+     */
+    public void setKey(byte[] key) {
+        pkey = new SecretKeySpec(key, "DES");
+        mode = 0;
+    }
+
     public void decrypt(byte[] data, int offset, byte[] output, int index, int length) {
-        try {
-            cipher.init(Cipher.DECRYPT_MODE, pkey);
-            cipher.doFinal(data, offset, length, output, index);
-        } catch (Exception ex) {
-            throw new IllegalStateException();
-        }
+        run(Cipher.DECRYPT_MODE, data, offset, output, index, length);
     }
 
     public void encrypt(byte[] data, int offset, byte[] output, int index, int length) {
+        run(Cipher.ENCRYPT_MODE, data, offset, output, index, length);
+    }
+
+    /**
+     * ECB without padding keeps no state between doFinal calls, so the key
+     * schedule is only rebuilt when the key or the direction changes.
+     */
+    private void run(int opmode, byte[] data, int offset, byte[] output, int index, int length) {
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, pkey);
+            if (mode != opmode) {
+                cipher.init(opmode, pkey);
+                mode = opmode;
+            }
             cipher.doFinal(data, offset, length, output, index);
         } catch (Exception ex) {
+            mode = 0;
             throw new IllegalStateException();
         }
     }
@@ -64,6 +81,15 @@ public class DES {
 
     public static byte[] createKey(byte[] bytes, int offset) {
         byte[] material = new byte[8];
+        createKey(bytes, offset, material);
+        return material;
+    }
+
+    /**
+     * Expands the 7 bytes at offset into an 8 byte DES key with odd parity,
+     * written to material.
+     */
+    public static void createKey(byte[] bytes, int offset, byte[] material) {
         material[0] = bytes[offset];
         material[1] = (byte) (bytes[offset++] << 7 |
                 (bytes[offset] & 0xff) >>> 1);
@@ -88,7 +114,6 @@ public class DES {
                 material[i] &= (byte) 0xfe;
             }
         }
-        return material;
     }
 
 }
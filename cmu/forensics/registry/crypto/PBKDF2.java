@@ -0,0 +1,301 @@
+/*
+   PBKDF2.java
+   Copyright (C) 2006-2008 Carnegie Mellon University
+
+   Tim Vidas <tvidas at gmail d0t com>
+   Brian Kaplan <bfkaplan at cmu d0t edu>
+
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of the GNU General Public License as published by the Free
+   Software Foundation; either version 2 of the License, or (at your option)
+   any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT
+   ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+   FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+   more details.
+
+   You should have received a copy of the GNU General Public License along with
+   this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+   Place, Suite 330, Boston, MA 02111-1307 USA
+   */
+
+package cmu.forensics.registry.crypto;
+
+/**
+ * PBKDF2
+ * PBKDF2 with HMAC-SHA1 as the PRF (RFC 2898), as used for the MSCash2
+ * (DCC2) hashes of Vista and later cached domain logons.
+ *
+ * DCC2 runs 10240 iterations per record, each iteration an HMAC over a 20
+ * byte block.  Instead of a MessageDigest and javax.crypto.Mac this keeps
+ * its own SHA-1 on int arrays: the states after the inner and outer pad
+ * blocks are computed once per password, so an iteration is exactly two
+ * SHA-1 compressions on a prepadded message schedule, and nothing is
+ * allocated after construction.
+ *
+ * Instances are not thread safe, CryptoContext.pbkdf2() hands out one per
+ * thread.
+ * @author Tim Vidas
+ * @author Brian Kaplan
+ * @version 0.9.2
+ */
+
+public final class PBKDF2
+{
+    private static final int BLOCK = 64;            // SHA-1 block size
+    private static final int DIGEST = 20;           // SHA-1 digest size
+
+    private static final int[] IV = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+    private final int[] innerState = new int[5];    // SHA-1 state after key ^ ipad
+    private final int[] outerState = new int[5];    // SHA-1 state after key ^ opad
+    private final int[] state = new int[5];
+    private final int[] w = new int[80];            // message schedule
+    private final int[] u = new int[5];             // U_j of the current block
+    private final int[] t = new int[5];             // T_i, the xor of all U_j
+
+    private final byte[] block = new byte[BLOCK];   // partial block of the byte oriented path
+    private final byte[] key = new byte[DIGEST];    // hashed password when it is longer than a block
+    private final byte[] digest = new byte[DIGEST];
+    private final byte[] counter = new byte[4];
+    private int blockLen;
+    private long msgLen;
+
+    /**
+     * derives dkLen bytes of key from password and salt
+     * @param password buffer holding the password
+     * @param pOff position in password of the password
+     * @param pLen length of the password
+     * @param salt buffer holding the salt
+     * @param sOff position in salt of the salt
+     * @param sLen length of the salt
+     * @param iterations iteration count, at least 1
+     * @param out buffer receiving the derived key
+     * @param outOff position in out of the derived key
+     * @param dkLen length of the derived key
+     */
+    public void deriveKey(byte[] password, int pOff, int pLen, byte[] salt, int sOff, int sLen,
+                          int iterations, byte[] out, int outOff, int dkLen)
+    {
+        setKey(password, pOff, pLen);
+
+        for (int i = 1, done = 0; done < dkLen; i++, done += DIGEST)
+        {
+            // U_1 = HMAC(P, S || INT(i))
+            counter[0] = (byte)(i >>> 24);
+            counter[1] = (byte)(i >>> 16);
+            counter[2] = (byte)(i >>> 8);
+            counter[3] = (byte)i;
+
+            begin(innerState, BLOCK);
+            update(salt, sOff, sLen);
+            update(counter, 0, 4);
+            finish();
+            toBytes(state, digest, 0, DIGEST);
+
+            begin(outerState, BLOCK);
+            update(digest, 0, DIGEST);
+            finish();
+
+            System.arraycopy(state, 0, u, 0, 5);
+            System.arraycopy(state, 0, t, 0, 5);
+
+            // U_j = HMAC(P, U_j-1): a 20 byte message after the pad block
+            // fits one block, so its padding is the same every time
+            for (int j = 1; j < iterations; j++)
+            {
+                hmacWords();
+                t[0] ^= u[0];
+                t[1] ^= u[1];
+                t[2] ^= u[2];
+                t[3] ^= u[3];
+                t[4] ^= u[4];
+            }
+
+            toBytes(t, out, outOff + done, Math.min(DIGEST, dkLen - done));
+        }
+    }
+
+    /**
+     * computes the inner and outer pad states of the password
+     */
+    private void setKey(byte[] password, int pOff, int pLen)
+    {
+        byte[] k = password;
+        int kOff = pOff;
+        int kLen = pLen;
+
+        // keys longer than a block are hashed first
+        if (kLen > BLOCK)
+        {
+            begin(IV, 0);
+            update(password, pOff, pLen);
+            finish();
+            toBytes(state, key, 0, DIGEST);
+            k = key;
+            kOff = 0;
+            kLen = DIGEST;
+        }
+
+        for (int i = 0; i < BLOCK; i++)
+            block[i] = (byte)(((i < kLen) ? k[kOff + i] : 0) ^ 0x36);
+        System.arraycopy(IV, 0, innerState, 0, 5);
+        compressBlock(innerState);
+
+        for (int i = 0; i < BLOCK; i++)
+            block[i] = (byte)(((i < kLen) ? k[kOff + i] : 0) ^ 0x5c);
+        System.arraycopy(IV, 0, outerState, 0, 5);
+        compressBlock(outerState);
+    }
+
+    /**
+     * u = HMAC(P, u) on words: one compression from each pad state
+     */
+    private void hmacWords()
+    {
+        prepad();
+        w[0] = u[0];
+        w[1] = u[1];
+        w[2] = u[2];
+        w[3] = u[3];
+        w[4] = u[4];
+        System.arraycopy(innerState, 0, state, 0, 5);
+        compress(state);
+
+        prepad();
+        w[0] = state[0];
+        w[1] = state[1];
+        w[2] = state[2];
+        w[3] = state[3];
+        w[4] = state[4];
+        System.arraycopy(outerState, 0, u, 0, 5);
+        compress(u);
+    }
+
+    /**
+     * padding of a 20 byte message that follows one block
+     */
+    private void prepad()
+    {
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++)
+            w[i] = 0;
+        w[15] = (BLOCK + DIGEST) * 8;
+    }
+
+    /**
+     * starts a byte oriented hash from a saved state
+     * @param from state to continue from
+     * @param prefix bytes already hashed into from
+     */
+    private void begin(int[] from, int prefix)
+    {
+        System.arraycopy(from, 0, state, 0, 5);
+        blockLen = 0;
+        msgLen = prefix;
+    }
+
+    private void update(byte[] data, int off, int len)
+    {
+        msgLen += len;
+        while (len > 0)
+        {
+            int n = Math.min(len, BLOCK - blockLen);
+            System.arraycopy(data, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+
+            if (blockLen == BLOCK)
+            {
+                compressBlock(state);
+                blockLen = 0;
+            }
+        }
+    }
+
+    private void finish()
+    {
+        long bits = msgLen * 8;
+
+        block[blockLen++] = (byte)0x80;
+        if (blockLen > BLOCK - 8)
+        {
+            while (blockLen < BLOCK)
+                block[blockLen++] = 0;
+            compressBlock(state);
+            blockLen = 0;
+        }
+        while (blockLen < BLOCK - 8)
+            block[blockLen++] = 0;
+        for (int i = 7; i >= 0; i--)
+            block[blockLen++] = (byte)(bits >>> (i * 8));
+
+        compressBlock(state);
+        blockLen = 0;
+    }
+
+    private void compressBlock(int[] st)
+    {
+        for (int i = 0; i < 16; i++)
+        {
+            int b = i * 4;
+            w[i] = (block[b] << 24) | ((block[b + 1] & 0xff) << 16) | ((block[b + 2] & 0xff) << 8) | (block[b + 3] & 0xff);
+        }
+        compress(st);
+    }
+
+    /**
+     * the SHA-1 compression function over w[0..15]
+     */
+    private void compress(int[] st)
+    {
+        for (int i = 16; i < 80; i++)
+        {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            w[i] = (x << 1) | (x >>> 31);
+        }
+
+        int a = st[0];
+        int b = st[1];
+        int c = st[2];
+        int d = st[3];
+        int e = st[4];
+        int tmp;
+
+        for (int i = 0; i < 20; i++)
+        {
+            tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + w[i] + 0x5A827999;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 20; i < 40; i++)
+        {
+            tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i] + 0x6ED9EBA1;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 40; i < 60; i++)
+        {
+            tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e + w[i] + 0x8F1BBCDC;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 60; i < 80; i++)
+        {
+            tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i] + 0xCA62C1D6;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+
+        st[0] += a;
+        st[1] += b;
+        st[2] += c;
+        st[3] += d;
+        st[4] += e;
+    }
+
+    private static void toBytes(int[] words, byte[] out, int off, int len)
+    {
+        for (int i = 0; i < len; i++)
+            out[off + i] = (byte)(words[i >> 2] >>> (24 - ((i & 3) * 8)));
+    }
+}
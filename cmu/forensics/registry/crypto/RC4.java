@@ -29,28 +29,30 @@ package cmu.forensics.registry.crypto;
 public final class RC4 extends Cipher {
   int    x;
   int    y;
-  byte[] state = new byte[256];
+  int[]  state = new int[256];     // permutation kept as ints, no sign handling per byte
 
-  final int arcfour_byte() {
-    int x;
-    int y;
-    int sx, sy;
+  /*
+   * Not synchronized: an RC4 instance carries its keystream position, so it
+   * is only ever used by one thread (see CryptoContext for per thread reuse).
+   */
+  public void encrypt(byte[] src, int srcOff, byte[] dest, int destOff, int len) {
+    int[] s = state;
+    int x = this.x;
+    int y = this.y;
+    int end = srcOff + len;
+
+    for(int si = srcOff, di = destOff; si < end; si++, di++) {
+      x = (x + 1) & 0xff;
+      int sx = s[x];
+      y = (y + sx) & 0xff;
+      int sy = s[y];
+      s[x] = sy;
+      s[y] = sx;
+      dest[di] = (byte)(src[si] ^ s[(sx + sy) & 0xff]);
+    }
 
-    x = (this.x + 1) & 0xff;
-    sx = (int)state[x];
-    y = (sx + this.y) & 0xff;
-    sy = (int)state[y];
     this.x = x;
     this.y = y;
-    state[y] = (byte)(sx & 0xff);
-    state[x] = (byte)(sy & 0xff);
-    return (int)state[((sx + sy) & 0xff)];
-  }
-
-  public synchronized void encrypt(byte[] src, int srcOff, byte[] dest, int destOff, int len) {
-    int end = srcOff + len;
-    for(int si = srcOff, di = destOff; si < end; si++, di++)
-      dest[di] = (byte)(((int)src[si] ^ arcfour_byte()) & 0xff);
   }
 
   public void decrypt(byte[] src, int srcOff, byte[] dest, int destOff, int len) {
@@ -58,24 +60,32 @@ public final class RC4 extends Cipher {
   }
 
   public void setKey(byte[] key) {
-    int t, u;
-    int keyindex;
-    int stateindex;
+    setKey(key, 0, key.length);
+  }
+
+  /*
+   * Rekeys in place, the keystream restarts from the beginning
+   */
+  public void setKey(byte[] key, int keyOff, int keyLen) {
+    int[] s = state;
     int counter;
+    int keyindex = 0;
+    int stateindex = 0;
 
     for(counter = 0; counter < 256; counter++)
-      state[counter] = (byte)counter;
-    keyindex = 0;
-    stateindex = 0;
+      s[counter] = counter;
+
     for(counter = 0; counter < 256; counter++) {
-      t = (int)state[counter];
-      stateindex = (stateindex + key[keyindex] + t) & 0xff;
-      u = (int)state[stateindex];
-      state[stateindex] = (byte)(t & 0xff);
-      state[counter] = (byte)(u & 0xff);
-      if(++keyindex >= key.length)
+      int t = s[counter];
+      stateindex = (stateindex + key[keyOff + keyindex] + t) & 0xff;
+      s[counter] = s[stateindex];
+      s[stateindex] = t;
+      if(++keyindex >= keyLen)
 	keyindex = 0;
     }
+
+    x = 0;
+    y = 0;
   }
 
 }